@@ -0,0 +1,563 @@
+/*
+ * This file is part of Talc.
+ * Copyright (C) 2008-2009 Elliott Hughes <enh@jessies.org>.
+ * 
+ * Talc is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * Talc is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package org.jessies.talc;
+
+import java.util.*;
+
+/**
+ * Evaluates repeated int, real and string arithmetic once rather than every
+ * time it appears. When an expression like "r*r" is evaluated again, and
+ * none of its variables can have changed in the meantime, we turn the first
+ * occurrence into an assignment to a new variable, "($cse0 = r*r)", and the
+ * later ones into uses of that variable.
+ * 
+ * We only consider operators (not calls) on ints, reals and strings, so only
+ * an assignment can change an expression's value. Globals and fields can
+ * also be assigned by any user-defined code we call.
+ * 
+ * An expression is available from its first occurrence to the end of the
+ * innermost enclosing block, as long as that occurrence is evaluated on
+ * every path there. Expressions evaluated by a loop's condition are also
+ * available in the loop's body, including those on the right of an "&&",
+ * since all of those were evaluated if the body's running. Loops and "if"
+ * statements make unavailable anything they might change.
+ * 
+ * The first occurrence is still evaluated where it always was, so this never
+ * changes when or whether an error happens.
+ */
+public class AstCommonSubexpressionEliminator implements AstVisitor<AstNode> {
+    // Finding an available expression is a linear search, so we limit how many we remember.
+    private static final int MAX_AVAILABLE_EXPRESSIONS = 64;
+    
+    private long creationTime;
+    
+    private static class Expression {
+        // The first occurrence, which we'll turn into an assignment if we see it again.
+        final AstNode.BinaryOperator firstOccurrence;
+        // The statement containing the first occurrence, the list it's in, and that list's scope, so we know where to define a variable.
+        final List<AstNode> statements;
+        final AstNode statement;
+        final Scope scope;
+        // The variables the expression's value depends on.
+        final HashSet<AstNode.VariableDefinition> variables;
+        final boolean usesNonLocals;
+        final int serialNumber;
+        
+        AstNode.VariableDefinition variable;
+        
+        Expression(AstNode.BinaryOperator firstOccurrence, List<AstNode> statements, AstNode statement, Scope scope, HashSet<AstNode.VariableDefinition> variables, boolean usesNonLocals, int serialNumber) {
+            this.firstOccurrence = firstOccurrence;
+            this.statements = statements;
+            this.statement = statement;
+            this.scope = scope;
+            this.variables = variables;
+            this.usesNonLocals = usesNonLocals;
+            this.serialNumber = serialNumber;
+        }
+    }
+    
+    // The expressions whose values we know, oldest first.
+    private ArrayList<Expression> available = new ArrayList<Expression>();
+    private int expressionCount = 0;
+    private int variableCount = 0;
+    // The variables we've introduced, and the expressions they hold.
+    private IdentityHashMap<AstNode.VariableDefinition, AstNode> variableValues = new IdentityHashMap<AstNode.VariableDefinition, AstNode>();
+    
+    // The statement list we're working through, its scope, and the statement we're in.
+    private List<AstNode> currentStatements;
+    private Scope currentScope;
+    private AstNode currentStatement;
+    
+    public AstCommonSubexpressionEliminator() {
+        creationTime = System.nanoTime();
+    }
+    
+    public long creationTime() {
+        return creationTime;
+    }
+    
+    public List<AstNode> eliminate(List<AstNode> ast) {
+        return visitStatements(ast, Scope.globalScope());
+    }
+    
+    private ArrayList<AstNode> visitStatements(List<AstNode> statements, Scope defaultScope) {
+        List<AstNode> oldStatements = currentStatements;
+        Scope oldScope = currentScope;
+        AstNode oldStatement = currentStatement;
+        ArrayList<AstNode> result = new ArrayList<AstNode>(statements.size());
+        currentStatements = result;
+        currentScope = scopeOf(statements, defaultScope);
+        for (AstNode statement : statements) {
+            currentStatement = statement;
+            result.add(statement);
+            AstNode newStatement = statement.accept(this);
+            if (newStatement != statement) {
+                result.set(indexOf(result, statement), newStatement);
+            }
+        }
+        currentStatements = oldStatements;
+        currentScope = oldScope;
+        currentStatement = oldStatement;
+        return result;
+    }
+    
+    // Returns the scope of the given statements. The simplifier doesn't always give the nodes it creates a scope, so we have to look.
+    private static Scope scopeOf(List<AstNode> statements, Scope defaultScope) {
+        for (AstNode statement : statements) {
+            if (statement.scope() != null) {
+                return statement.scope();
+            }
+        }
+        return defaultScope;
+    }
+    
+    // Finds a statement in a list we may have inserted variable definitions into since we added it.
+    private static int indexOf(List<AstNode> nodes, AstNode node) {
+        for (int i = nodes.size() - 1; i >= 0; --i) {
+            if (nodes.get(i) == node) {
+                return i;
+            }
+        }
+        throw new IllegalStateException("couldn't find " + node);
+    }
+    
+    // Returns a use of the variable holding the value of 'binOp' if it's available, or null.
+    private AstNode reuse(AstNode.BinaryOperator binOp) {
+        if (isCandidate(binOp) == false) {
+            return null;
+        }
+        for (Expression expression : available) {
+            if (isSameExpression(expression.firstOccurrence, binOp)) {
+                return useOf(expression, binOp);
+            }
+        }
+        return null;
+    }
+    
+    private AstNode useOf(Expression expression, AstNode.BinaryOperator occurrence) {
+        if (expression.variable == null) {
+            // This is the first reuse, so we need to define a variable and turn the first occurrence into an assignment to it.
+            AstNode.BinaryOperator first = expression.firstOccurrence;
+            AstNode.BinaryOperator value = new AstNode.BinaryOperator(first.location(), first.op(), first.lhs(), first.rhs());
+            value.setType(first.type());
+            value.setScope(first.scope());
+            
+            String identifier = "$cse" + variableCount++;
+            AstNode.VariableDefinition variable = new AstNode.VariableDefinition(first.location(), identifier, first.type(), defaultValue(first), false);
+            expression.scope.addVariable(variable);
+            expression.statements.add(indexOf(expression.statements, expression.statement), variable);
+            variableValues.put(variable, value);
+            expression.variable = variable;
+            
+            first.setOp(Token.ASSIGN);
+            first.setLhs(newVariableName(variable, first));
+            first.setRhs(value);
+        }
+        return newVariableName(expression.variable, occurrence);
+    }
+    
+    private static AstNode.VariableName newVariableName(AstNode.VariableDefinition variable, AstNode occurrence) {
+        AstNode.VariableName result = new AstNode.VariableName(occurrence.location(), variable.identifier());
+        result.setDefinition(variable);
+        result.setScope(occurrence.scope());
+        return result;
+    }
+    
+    // Returns a constant to initialize a new variable of the given type with, so the code generator can unbox it.
+    private static AstNode.Constant defaultValue(AstNode.BinaryOperator binOp) {
+        TalcType type = binOp.type();
+        SourceLocation location = binOp.location();
+        if (type == TalcType.INT) {
+            return new AstNode.Constant(location, IntegerValue.valueOf(0), TalcType.INT);
+        } else if (type == TalcType.REAL) {
+            return new AstNode.Constant(location, RealValue.valueOf(0.0), TalcType.REAL);
+        }
+        return new AstNode.Constant(location, null, TalcType.NULL);
+    }
+    
+    // Notes that 'binOp' has been evaluated, in case we see it again.
+    private void noteEvaluated(AstNode.BinaryOperator binOp) {
+        if (isCandidate(binOp) == false) {
+            return;
+        }
+        HashSet<AstNode.VariableDefinition> variables = new HashSet<AstNode.VariableDefinition>();
+        collectVariables(binOp, variables);
+        boolean usesNonLocals = false;
+        for (AstNode.VariableDefinition variable : variables) {
+            usesNonLocals |= AstSideEffectFinder.isLocal(variable) == false;
+        }
+        if (available.size() == MAX_AVAILABLE_EXPRESSIONS) {
+            available.remove(0);
+        }
+        available.add(new Expression(binOp, currentStatements, currentStatement, currentScope, variables, usesNonLocals, expressionCount++));
+    }
+    
+    // Returns true if 'node' is worth reusing, and its value can only change if one of its variables is assigned to.
+    private static boolean isCandidate(AstNode.BinaryOperator binOp) {
+        TalcType type = binOp.type();
+        if (type != TalcType.INT && type != TalcType.REAL && type != TalcType.STRING) {
+            return false;
+        }
+        return isPure(binOp);
+    }
+    
+    private static boolean isPure(AstNode node) {
+        if (node instanceof AstNode.Constant || node instanceof AstNode.VariableName) {
+            return true;
+        } else if (node instanceof AstNode.BinaryOperator) {
+            AstNode.BinaryOperator binOp = (AstNode.BinaryOperator) node;
+            if (AstSimplifier.isAssignment(binOp.op())) {
+                // Our own assignments just record values.
+                return isOurAssignment(binOp) && isPure(binOp.rhs());
+            }
+            // Comparing lists, say, depends on what's in them, which can change without an assignment.
+            if (isImmutable(AstSimplifier.talcTypeOf(binOp.lhs())) == false || (binOp.rhs() != null && isImmutable(AstSimplifier.talcTypeOf(binOp.rhs())) == false)) {
+                return false;
+            }
+            return isPure(binOp.lhs()) && (binOp.rhs() == null || isPure(binOp.rhs()));
+        }
+        return false;
+    }
+    
+    private static boolean isImmutable(TalcType type) {
+        return (type == TalcType.BOOL || type == TalcType.INT || type == TalcType.REAL || type == TalcType.STRING);
+    }
+    
+    private static boolean isOurAssignment(AstNode.BinaryOperator binOp) {
+        return (binOp.op() == Token.ASSIGN && ((AstNode.VariableName) binOp.lhs()).identifier().startsWith("$cse"));
+    }
+    
+    // Returns the expression 'node' stands for, looking through our variables and assignments to them.
+    private AstNode valueOf(AstNode node) {
+        if (node instanceof AstNode.VariableName && variableValues.containsKey(((AstNode.VariableName) node).definition())) {
+            return valueOf(variableValues.get(((AstNode.VariableName) node).definition()));
+        } else if (node instanceof AstNode.BinaryOperator && AstSimplifier.isAssignment(((AstNode.BinaryOperator) node).op())) {
+            AstNode.BinaryOperator binOp = (AstNode.BinaryOperator) node;
+            if (binOp.lhs() instanceof AstNode.VariableName && variableValues.containsKey(((AstNode.VariableName) binOp.lhs()).definition())) {
+                return valueOf(binOp.rhs());
+            }
+        }
+        return node;
+    }
+    
+    private boolean isSameExpression(AstNode a, AstNode b) {
+        a = valueOf(a);
+        b = valueOf(b);
+        if (a instanceof AstNode.Constant && b instanceof AstNode.Constant) {
+            AstNode.Constant aConstant = (AstNode.Constant) a;
+            AstNode.Constant bConstant = (AstNode.Constant) b;
+            Object aValue = aConstant.constant();
+            return aConstant.type() == bConstant.type() && aValue != null && aValue.equals(bConstant.constant());
+        } else if (a instanceof AstNode.VariableName && b instanceof AstNode.VariableName) {
+            return ((AstNode.VariableName) a).definition() == ((AstNode.VariableName) b).definition();
+        } else if (a instanceof AstNode.BinaryOperator && b instanceof AstNode.BinaryOperator) {
+            AstNode.BinaryOperator aBinOp = (AstNode.BinaryOperator) a;
+            AstNode.BinaryOperator bBinOp = (AstNode.BinaryOperator) b;
+            if (aBinOp.op() != bBinOp.op() || aBinOp.type() != bBinOp.type() || isSameExpression(aBinOp.lhs(), bBinOp.lhs()) == false) {
+                return false;
+            }
+            return (aBinOp.rhs() == null) ? (bBinOp.rhs() == null) : (bBinOp.rhs() != null && isSameExpression(aBinOp.rhs(), bBinOp.rhs()));
+        }
+        return false;
+    }
+    
+    private void collectVariables(AstNode node, Set<AstNode.VariableDefinition> variables) {
+        node = valueOf(node);
+        if (node instanceof AstNode.VariableName) {
+            variables.add(((AstNode.VariableName) node).definition());
+        } else if (node instanceof AstNode.BinaryOperator) {
+            AstNode.BinaryOperator binOp = (AstNode.BinaryOperator) node;
+            collectVariables(binOp.lhs(), variables);
+            if (binOp.rhs() != null) {
+                collectVariables(binOp.rhs(), variables);
+            }
+        }
+    }
+    
+    // Forgets expressions that depend on 'variable', which has just been assigned to.
+    private void kill(AstNode.VariableDefinition variable) {
+        for (Iterator<Expression> it = available.iterator(); it.hasNext(); ) {
+            if (it.next().variables.contains(variable)) {
+                it.remove();
+            }
+        }
+    }
+    
+    // Forgets expressions that depend on globals or fields, because we've called code that might change them.
+    private void killNonLocals() {
+        for (Iterator<Expression> it = available.iterator(); it.hasNext(); ) {
+            if (it.next().usesNonLocals) {
+                it.remove();
+            }
+        }
+    }
+    
+    // Forgets expressions that 'loop' (or other statement) might change as it runs.
+    private void killChangedBy(AstNode statement) {
+        AstSideEffectFinder effects = new AstSideEffectFinder(statement);
+        for (Iterator<Expression> it = available.iterator(); it.hasNext(); ) {
+            for (AstNode.VariableDefinition variable : it.next().variables) {
+                if (effects.isUnchanged(variable) == false) {
+                    it.remove();
+                    break;
+                }
+            }
+        }
+    }
+    
+    // Forgets expressions first evaluated after 'serialNumber' was allocated.
+    private void forgetSince(int serialNumber) {
+        for (Iterator<Expression> it = available.iterator(); it.hasNext(); ) {
+            if (it.next().serialNumber >= serialNumber) {
+                it.remove();
+            }
+        }
+    }
+    
+    /**
+     * Visits a loop or "if" condition. Expressions evaluated whenever the condition is are left available.
+     * Those only evaluated when an "&&" gets as far as them are added to 'whenTrue' instead.
+     */
+    private AstNode visitCondition(AstNode condition, List<Expression> whenTrue) {
+        int[] conditionalSerialNumber = new int[] { Integer.MAX_VALUE };
+        AstNode result = visitConjunction(condition, conditionalSerialNumber);
+        for (Iterator<Expression> it = available.iterator(); it.hasNext(); ) {
+            Expression expression = it.next();
+            if (expression.serialNumber >= conditionalSerialNumber[0]) {
+                whenTrue.add(expression);
+                it.remove();
+            }
+        }
+        return result;
+    }
+    
+    private AstNode visitConjunction(AstNode node, int[] conditionalSerialNumber) {
+        if (node instanceof AstNode.BinaryOperator == false || ((AstNode.BinaryOperator) node).op() != Token.L_AND) {
+            return node.accept(this);
+        }
+        AstNode.BinaryOperator binOp = (AstNode.BinaryOperator) node;
+        binOp.setLhs(visitConjunction(binOp.lhs(), conditionalSerialNumber));
+        // Everything after this is only evaluated if everything before it was true.
+        conditionalSerialNumber[0] = Math.min(conditionalSerialNumber[0], expressionCount);
+        binOp.setRhs(visitConjunction(binOp.rhs(), conditionalSerialNumber));
+        return binOp;
+    }
+    
+    // Visits something that's only evaluated sometimes, forgetting anything it evaluates.
+    private AstNode visitConditionally(AstNode node) {
+        int serialNumber = expressionCount;
+        AstNode result = node.accept(this);
+        forgetSince(serialNumber);
+        return result;
+    }
+    
+    @SuppressWarnings("unchecked")
+    private <T extends AstNode> T visitIfNonNull(T node) {
+        return (node != null) ? (T) node.accept(this) : null;
+    }
+    
+    public AstNode visitAssertStatement(AstNode.AssertStatement assertStatement) {
+        assertStatement.setTestExpression(assertStatement.testExpression().accept(this));
+        if (assertStatement.explanatoryExpression() != null) {
+            assertStatement.setExplanatoryExpression(visitConditionally(assertStatement.explanatoryExpression()));
+        }
+        return assertStatement;
+    }
+    
+    public AstNode visitBinaryOperator(AstNode.BinaryOperator binOp) {
+        AstNode reused = reuse(binOp);
+        if (reused != null) {
+            return reused;
+        }
+        Token op = binOp.op();
+        if (AstSimplifier.isAssignment(op)) {
+            // We don't visit the lhs: it's a variable, and evaluating it doesn't tell us anything.
+            binOp.setRhs(visitIfNonNull(binOp.rhs()));
+            kill(((AstNode.VariableName) binOp.lhs()).definition());
+            return binOp;
+        }
+        binOp.setLhs(binOp.lhs().accept(this));
+        if (binOp.rhs() != null) {
+            if (op == Token.L_AND || op == Token.L_OR) {
+                binOp.setRhs(visitConditionally(binOp.rhs()));
+            } else {
+                binOp.setRhs(binOp.rhs().accept(this));
+            }
+        }
+        noteEvaluated(binOp);
+        return binOp;
+    }
+    
+    public AstNode visitBlock(AstNode.Block block) {
+        if (block == AstNode.Block.EMPTY_BLOCK) {
+            return block;
+        }
+        int serialNumber = expressionCount;
+        block.setStatements(visitStatements(block.statements(), new Scope(block.scope())));
+        // Our variables are only in scope in this block.
+        forgetSince(serialNumber);
+        return block;
+    }
+    
+    public AstNode visitBreakStatement(AstNode.BreakStatement breakStatement) {
+        return breakStatement;
+    }
+    
+    public AstNode visitClassDefinition(AstNode.ClassDefinition classDefinition) {
+        for (AstNode.FunctionDefinition method : classDefinition.methods()) {
+            method.accept(this);
+        }
+        return classDefinition;
+    }
+    
+    public AstNode visitConstant(AstNode.Constant constant) {
+        return constant;
+    }
+    
+    public AstNode visitContinueStatement(AstNode.ContinueStatement continueStatement) {
+        return continueStatement;
+    }
+    
+    public AstNode visitDoStatement(AstNode.DoStatement doStatement) {
+        killChangedBy(doStatement);
+        int serialNumber = expressionCount;
+        doStatement.setBody(doStatement.body().accept(this));
+        doStatement.setExpression(doStatement.expression().accept(this));
+        forgetSince(serialNumber);
+        return doStatement;
+    }
+    
+    public AstNode visitForStatement(AstNode.ForStatement forStatement) {
+        forStatement.setInitializer(visitIfNonNull(forStatement.initializer()));
+        killChangedBy(forStatement);
+        int serialNumber = expressionCount;
+        ArrayList<Expression> whenTrue = new ArrayList<Expression>();
+        forStatement.setConditionExpression(visitCondition(forStatement.conditionExpression(), whenTrue));
+        available.addAll(whenTrue);
+        forStatement.setBody(forStatement.body().accept(this));
+        available.removeAll(whenTrue);
+        forStatement.setUpdateExpression(forStatement.updateExpression().accept(this));
+        forgetSince(serialNumber);
+        return forStatement;
+    }
+    
+    public AstNode visitForEachStatement(AstNode.ForEachStatement forEachStatement) {
+        forEachStatement.setExpression(forEachStatement.expression().accept(this));
+        killChangedBy(forEachStatement);
+        int serialNumber = expressionCount;
+        forEachStatement.setBody(forEachStatement.body().accept(this));
+        forgetSince(serialNumber);
+        return forEachStatement;
+    }
+    
+    public AstNode visitFunctionCall(AstNode.FunctionCall functionCall) {
+        functionCall.setInstance(visitIfNonNull(functionCall.instance()));
+        AstNode[] arguments = functionCall.arguments();
+        for (int i = 0; i < arguments.length; ++i) {
+            arguments[i] = arguments[i].accept(this);
+        }
+        if (AstSideEffectFinder.mightCallUserCode(functionCall)) {
+            killNonLocals();
+        }
+        return functionCall;
+    }
+    
+    public AstNode visitFunctionDefinition(AstNode.FunctionDefinition functionDefinition) {
+        // A function body starts afresh.
+        ArrayList<Expression> oldAvailable = available;
+        available = new ArrayList<Expression>();
+        functionDefinition.setBody(visitIfNonNull(functionDefinition.body()));
+        available = oldAvailable;
+        return functionDefinition;
+    }
+    
+    public AstNode visitIfStatement(AstNode.IfStatement ifStatement) {
+        List<AstNode> expressions = ifStatement.expressions();
+        List<AstNode> bodies = ifStatement.bodies();
+        // Only the first condition is always evaluated.
+        int serialNumber = Integer.MAX_VALUE;
+        for (int i = 0; i < expressions.size(); ++i) {
+            ArrayList<Expression> whenTrue = new ArrayList<Expression>();
+            expressions.set(i, visitCondition(expressions.get(i), whenTrue));
+            serialNumber = Math.min(serialNumber, expressionCount);
+            available.addAll(whenTrue);
+            bodies.set(i, bodies.get(i).accept(this));
+            available.removeAll(whenTrue);
+        }
+        ifStatement.setElseBlock(ifStatement.elseBlock().accept(this));
+        forgetSince(serialNumber);
+        return ifStatement;
+    }
+    
+    public AstNode visitImportStatement(AstNode.ImportStatement importStatement) {
+        return importStatement;
+    }
+    
+    public AstNode visitListLiteral(AstNode.ListLiteral listLiteral) {
+        List<AstNode> expressions = listLiteral.expressions();
+        for (int i = 0; i < expressions.size(); ++i) {
+            expressions.set(i, expressions.get(i).accept(this));
+        }
+        return listLiteral;
+    }
+    
+    public AstNode visitMapLiteral(AstNode.MapLiteral mapLiteral) {
+        List<AstNode> expressions = mapLiteral.expressions();
+        for (int i = 0; i < expressions.size(); ++i) {
+            expressions.set(i, expressions.get(i).accept(this));
+        }
+        return mapLiteral;
+    }
+    
+    public AstNode visitReturnStatement(AstNode.ReturnStatement returnStatement) {
+        returnStatement.setExpression(visitIfNonNull(returnStatement.expression()));
+        return returnStatement;
+    }
+    
+    public AstNode visitStringConcatenation(AstNode.StringConcatenation stringConcatenation) {
+        List<AstNode> operands = stringConcatenation.operands();
+        for (int i = 0; i < operands.size(); ++i) {
+            operands.set(i, operands.get(i).accept(this));
+        }
+        return stringConcatenation;
+    }
+    
+    public AstNode visitVariableDefinition(AstNode.VariableDefinition variableDefinition) {
+        variableDefinition.setInitializer(visitIfNonNull(variableDefinition.initializer()));
+        kill(variableDefinition);
+        return variableDefinition;
+    }
+    
+    public AstNode visitVariableName(AstNode.VariableName variableName) {
+        return variableName;
+    }
+    
+    public AstNode visitWhileStatement(AstNode.WhileStatement whileStatement) {
+        killChangedBy(whileStatement);
+        int serialNumber = expressionCount;
+        ArrayList<Expression> whenTrue = new ArrayList<Expression>();
+        whileStatement.setExpression(visitCondition(whileStatement.expression(), whenTrue));
+        available.addAll(whenTrue);
+        whileStatement.setBody(whileStatement.body().accept(this));
+        available.removeAll(whenTrue);
+        forgetSince(serialNumber);
+        return whileStatement;
+    }
+}
@@ -28,6 +28,9 @@ public class AstErrorChecker implements AstVisitor<Void> {
     private int loopDepth = 0;
     private int functionDepth = 0;
     
+    // Every variable modified after its definition.
+    private HashSet<AstNode.VariableDefinition> assignedVariables = new HashSet<AstNode.VariableDefinition>();
+    
     public AstErrorChecker(List<AstNode> ast) {
         creationTime = System.nanoTime();
         for (AstNode node : ast) {
@@ -39,6 +42,14 @@ public class AstErrorChecker implements AstVisitor<Void> {
         return creationTime;
     }
     
+    /**
+     * Returns the variables that are assigned to (or incremented, or whatever) anywhere other than in their definition.
+     * AstSimplifier can treat the others as constants.
+     */
+    public Set<AstNode.VariableDefinition> assignedVariables() {
+        return assignedVariables;
+    }
+    
     private void visitIfNonNull(AstNode node) {
         if (node != null) {
             node.accept(this);
@@ -81,6 +92,7 @@ public class AstErrorChecker implements AstVisitor<Void> {
             if (variableDefinition.isFinal()) {
                 throw new TalcError(binOp, "can't reassign final variable \"" + variableName.identifier() + "\"\n" + variableDefinition.location() + "...defined here");
             }
+            assignedVariables.add(variableDefinition);
         }
         return null;
     }
@@ -176,6 +188,10 @@ public class AstErrorChecker implements AstVisitor<Void> {
         return null;
     }
     
+    public Void visitImportStatement(AstNode.ImportStatement importStatement) {
+        return null;
+    }
+    
     public Void visitListLiteral(AstNode.ListLiteral listLiteral) {
         for (AstNode expression : listLiteral.expressions()) {
             expression.accept(this);
@@ -195,6 +211,13 @@ public class AstErrorChecker implements AstVisitor<Void> {
         return null;
     }
     
+    public Void visitStringConcatenation(AstNode.StringConcatenation stringConcatenation) {
+        for (AstNode operand : stringConcatenation.operands()) {
+            operand.accept(this);
+        }
+        return null;
+    }
+    
     public Void visitVariableDefinition(AstNode.VariableDefinition variableDefinition) {
         variableDefinition.initializer().accept(this);
         return null;
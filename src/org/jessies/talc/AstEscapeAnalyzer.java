@@ -0,0 +1,299 @@
+/*
+ * This file is part of Talc.
+ * Copyright (C) 2008-2009 Elliott Hughes <enh@jessies.org>.
+ * 
+ * Talc is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * Talc is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.jessies.talc;
+
+import java.util.*;
+
+/**
+ * Works out which global variables are "shared": referenced from a function
+ * or class body. The others can only be seen by global code, so the code
+ * generator is free to keep them in locals rather than in fields.
+ * 
+ * Also works out which "real" variables might hold null (a missing map key,
+ * say), because the code generator can only keep the others in primitive
+ * doubles.
+ * 
+ * This has to run on the final AST (after AstSimplifier).
+ */
+public class AstEscapeAnalyzer implements AstVisitor<Void> {
+    private long creationTime;
+    private int functionDepth = 0;
+    
+    private HashSet<AstNode.VariableDefinition> sharedGlobals = new HashSet<AstNode.VariableDefinition>();
+    
+    // The globals used by each top-level statement, in order of first use.
+    private IdentityHashMap<AstNode, LinkedHashSet<AstNode.VariableDefinition>> globalsUsedByStatement = new IdentityHashMap<AstNode, LinkedHashSet<AstNode.VariableDefinition>>();
+    private LinkedHashSet<AstNode.VariableDefinition> globalsUsedByCurrentStatement;
+    
+    // The values assigned to each "real" variable (including its initializer), and the variables that might be null as a result.
+    private IdentityHashMap<AstNode.VariableDefinition, ArrayList<AstNode>> realValues = new IdentityHashMap<AstNode.VariableDefinition, ArrayList<AstNode>>();
+    private HashSet<AstNode.VariableDefinition> nullableReals = new HashSet<AstNode.VariableDefinition>();
+    
+    public AstEscapeAnalyzer(List<AstNode> ast) {
+        creationTime = System.nanoTime();
+        for (AstNode node : ast) {
+            globalsUsedByCurrentStatement = new LinkedHashSet<AstNode.VariableDefinition>();
+            node.accept(this);
+            globalsUsedByStatement.put(node, globalsUsedByCurrentStatement);
+        }
+        globalsUsedByCurrentStatement = null;
+        findNullableReals();
+    }
+    
+    public long creationTime() {
+        return creationTime;
+    }
+    
+    /**
+     * Returns the unshared globals used (or defined) by the given top-level statement.
+     */
+    public List<AstNode.VariableDefinition> unsharedGlobalsUsedBy(AstNode statement) {
+        ArrayList<AstNode.VariableDefinition> result = new ArrayList<AstNode.VariableDefinition>();
+        LinkedHashSet<AstNode.VariableDefinition> globals = globalsUsedByStatement.get(statement);
+        if (globals != null) {
+            for (AstNode.VariableDefinition global : globals) {
+                if (sharedGlobals.contains(global) == false) {
+                    result.add(global);
+                }
+            }
+        }
+        return result;
+    }
+    
+    /**
+     * Returns true if the given "real" variable might ever hold null.
+     * We can't tell for variables we haven't seen all the assignments to, such as parameters.
+     */
+    public boolean mightBeNull(AstNode.VariableDefinition variableDefinition) {
+        return (realValues.containsKey(variableDefinition) == false || nullableReals.contains(variableDefinition));
+    }
+    
+    private void noteRealValue(AstNode.VariableDefinition variableDefinition, AstNode value) {
+        ArrayList<AstNode> values = realValues.get(variableDefinition);
+        if (values == null) {
+            values = new ArrayList<AstNode>();
+            realValues.put(variableDefinition, values);
+        }
+        values.add(value);
+    }
+    
+    private void findNullableReals() {
+        // A variable assigned from a nullable variable is nullable too, so keep going until nothing changes.
+        boolean changed = true;
+        while (changed) {
+            changed = false;
+            for (Map.Entry<AstNode.VariableDefinition, ArrayList<AstNode>> entry : realValues.entrySet()) {
+                if (nullableReals.contains(entry.getKey())) {
+                    continue;
+                }
+                for (AstNode value : entry.getValue()) {
+                    if (mightBeNull(value)) {
+                        nullableReals.add(entry.getKey());
+                        changed = true;
+                        break;
+                    }
+                }
+            }
+        }
+    }
+    
+    // Returns true if the "real" expression 'node' might evaluate to null.
+    public boolean mightBeNull(AstNode node) {
+        if (node instanceof AstNode.Constant) {
+            return ((AstNode.Constant) node).constant() == null;
+        } else if (node instanceof AstNode.VariableName) {
+            return mightBeNull(((AstNode.VariableName) node).definition());
+        } else if (node instanceof AstNode.BinaryOperator) {
+            // Arithmetic either gives a value or fails, but an assignment gives whatever was assigned.
+            AstNode.BinaryOperator binOp = (AstNode.BinaryOperator) node;
+            return (binOp.op() == Token.ASSIGN && mightBeNull(binOp.rhs()));
+        } else if (node instanceof AstNode.FunctionCall) {
+            // The built-in methods of numbers never return null, but user-defined functions and container methods can.
+            AstNode.FunctionCall functionCall = (AstNode.FunctionCall) node;
+            AstNode instance = functionCall.instance();
+            if (functionCall.definition() instanceof BuiltInFunction && instance != null) {
+                TalcType instanceType = AstSimplifier.talcTypeOf(instance);
+                return (instanceType != TalcType.INT && instanceType != TalcType.REAL);
+            }
+        }
+        return true;
+    }
+    
+    private void noteUse(AstNode.VariableDefinition variableDefinition) {
+        if (variableDefinition.scope() != Scope.globalScope()) {
+            return;
+        }
+        if (functionDepth > 0) {
+            sharedGlobals.add(variableDefinition);
+        } else {
+            globalsUsedByCurrentStatement.add(variableDefinition);
+        }
+    }
+    
+    private void visitIfNonNull(AstNode node) {
+        if (node != null) {
+            node.accept(this);
+        }
+    }
+    
+    public Void visitAssertStatement(AstNode.AssertStatement assertStatement) {
+        assertStatement.testExpression().accept(this);
+        visitIfNonNull(assertStatement.explanatoryExpression());
+        return null;
+    }
+    
+    public Void visitBinaryOperator(AstNode.BinaryOperator binOp) {
+        if (binOp.op() == Token.ASSIGN) {
+            AstNode.VariableDefinition variableDefinition = ((AstNode.VariableName) binOp.lhs()).definition();
+            if (variableDefinition.type() == TalcType.REAL) {
+                noteRealValue(variableDefinition, binOp.rhs());
+            }
+        }
+        binOp.lhs().accept(this);
+        visitIfNonNull(binOp.rhs());
+        return null;
+    }
+    
+    public Void visitBlock(AstNode.Block block) {
+        for (AstNode statement : block.statements()) {
+            statement.accept(this);
+        }
+        return null;
+    }
+    
+    public Void visitBreakStatement(AstNode.BreakStatement breakStatement) {
+        return null;
+    }
+    
+    public Void visitClassDefinition(AstNode.ClassDefinition classDefinition) {
+        ++functionDepth;
+        for (AstNode.VariableDefinition field : classDefinition.fields()) {
+            field.accept(this);
+        }
+        for (AstNode.FunctionDefinition method : classDefinition.methods()) {
+            method.accept(this);
+        }
+        --functionDepth;
+        return null;
+    }
+    
+    public Void visitConstant(AstNode.Constant constant) {
+        return null;
+    }
+    
+    public Void visitContinueStatement(AstNode.ContinueStatement continueStatement) {
+        return null;
+    }
+    
+    public Void visitDoStatement(AstNode.DoStatement doStatement) {
+        doStatement.body().accept(this);
+        doStatement.expression().accept(this);
+        return null;
+    }
+    
+    public Void visitForStatement(AstNode.ForStatement forStatement) {
+        visitIfNonNull(forStatement.initializer());
+        forStatement.conditionExpression().accept(this);
+        forStatement.updateExpression().accept(this);
+        forStatement.body().accept(this);
+        return null;
+    }
+    
+    public Void visitForEachStatement(AstNode.ForEachStatement forEachStatement) {
+        forEachStatement.expression().accept(this);
+        forEachStatement.body().accept(this);
+        return null;
+    }
+    
+    public Void visitFunctionCall(AstNode.FunctionCall functionCall) {
+        visitIfNonNull(functionCall.instance());
+        for (AstNode argument : functionCall.arguments()) {
+            argument.accept(this);
+        }
+        return null;
+    }
+    
+    public Void visitFunctionDefinition(AstNode.FunctionDefinition functionDefinition) {
+        ++functionDepth;
+        visitIfNonNull(functionDefinition.body());
+        --functionDepth;
+        return null;
+    }
+    
+    public Void visitIfStatement(AstNode.IfStatement ifStatement) {
+        for (AstNode expression : ifStatement.expressions()) {
+            expression.accept(this);
+        }
+        for (AstNode body : ifStatement.bodies()) {
+            body.accept(this);
+        }
+        ifStatement.elseBlock().accept(this);
+        return null;
+    }
+    
+    public Void visitImportStatement(AstNode.ImportStatement importStatement) {
+        return null;
+    }
+    
+    public Void visitListLiteral(AstNode.ListLiteral listLiteral) {
+        for (AstNode expression : listLiteral.expressions()) {
+            expression.accept(this);
+        }
+        return null;
+    }
+    
+    public Void visitMapLiteral(AstNode.MapLiteral mapLiteral) {
+        for (AstNode expression : mapLiteral.expressions()) {
+            expression.accept(this);
+        }
+        return null;
+    }
+    
+    public Void visitReturnStatement(AstNode.ReturnStatement returnStatement) {
+        visitIfNonNull(returnStatement.expression());
+        return null;
+    }
+    
+    public Void visitStringConcatenation(AstNode.StringConcatenation stringConcatenation) {
+        for (AstNode operand : stringConcatenation.operands()) {
+            operand.accept(this);
+        }
+        return null;
+    }
+    
+    public Void visitVariableDefinition(AstNode.VariableDefinition variableDefinition) {
+        noteUse(variableDefinition);
+        if (variableDefinition.type() == TalcType.REAL && variableDefinition.initializer() != null) {
+            noteRealValue(variableDefinition, variableDefinition.initializer());
+        }
+        visitIfNonNull(variableDefinition.initializer());
+        return null;
+    }
+    
+    public Void visitVariableName(AstNode.VariableName variableName) {
+        noteUse(variableName.definition());
+        return null;
+    }
+    
+    public Void visitWhileStatement(AstNode.WhileStatement whileStatement) {
+        whileStatement.expression().accept(this);
+        whileStatement.body().accept(this);
+        return null;
+    }
+}
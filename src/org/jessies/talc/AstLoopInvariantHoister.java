@@ -0,0 +1,413 @@
+/*
+ * This file is part of Talc.
+ * Copyright (C) 2008-2009 Elliott Hughes <enh@jessies.org>.
+ * 
+ * Talc is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * Talc is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package org.jessies.talc;
+
+import java.util.*;
+
+/**
+ * Moves loop-invariant computations out of loops. An expression in a loop is
+ * invariant if it only does arithmetic, or calls built-in methods without side
+ * effects (like "size"), on constants and variables the loop doesn't change
+ * (see AstSideEffectFinder). We evaluate each one once, into a new variable
+ * defined just before the loop, rather than once per iteration.
+ * 
+ * Moving code mustn't change whether, or in what order, errors and side
+ * effects happen. So anything that might fail (a division, or a method call on
+ * what might be null) is only moved out of the part of a "for" or "while"
+ * condition that's evaluated first anyway. Elsewhere, we only move arithmetic
+ * that can't fail, which doesn't matter if the loop never runs.
+ * 
+ * Inner loops are done first, so code can move out through several loops.
+ * This has to run after AstSimplifier, on the final AST.
+ */
+public class AstLoopInvariantHoister implements AstVisitor<AstNode> {
+    private long creationTime;
+    
+    private int hoistedCount = 0;
+    
+    // What the loop we're hoisting code out of changes, or null if we're just looking for loops.
+    private AstSideEffectFinder loopEffects;
+    // The definitions of the variables holding the values we've hoisted out of the current loop.
+    private ArrayList<AstNode.VariableDefinition> hoistedDefinitions;
+    private Scope hoistedScope;
+    // True while nothing evaluated so far in the current loop could fail or have side effects, and we're sure to get this far.
+    private boolean isEvaluatedFirst;
+    
+    public AstLoopInvariantHoister() {
+        creationTime = System.nanoTime();
+    }
+    
+    public long creationTime() {
+        return creationTime;
+    }
+    
+    public List<AstNode> hoist(List<AstNode> ast) {
+        return visitAstNodeList(ast);
+    }
+    
+    private void startHoisting(AstNode loop) {
+        loopEffects = new AstSideEffectFinder(loop);
+        hoistedDefinitions = new ArrayList<AstNode.VariableDefinition>();
+        hoistedScope = new Scope(loop.scope());
+        isEvaluatedFirst = false;
+    }
+    
+    // Returns 'loop', preceded by the definitions of anything we hoisted out of it.
+    private AstNode finishHoisting(AstNode loop) {
+        ArrayList<AstNode> statements = new ArrayList<AstNode>(hoistedDefinitions);
+        loopEffects = null;
+        hoistedDefinitions = null;
+        hoistedScope = null;
+        if (statements.isEmpty()) {
+            return loop;
+        }
+        statements.add(loop);
+        AstNode.Block block = new AstNode.Block(loop.location(), statements);
+        block.setScope(loop.scope());
+        return block;
+    }
+    
+    // Returns a use of a new variable initialized to 'expression' before the loop, or null if 'expression' should stay where it is.
+    private AstNode hoistExpression(AstNode expression) {
+        if (loopEffects == null || isWorthHoisting(expression) == false || isInvariant(expression) == false) {
+            return null;
+        }
+        if (isEvaluatedFirst == false && isHarmless(expression) == false) {
+            return null;
+        }
+        String identifier = "$invariant" + hoistedCount++;
+        AstNode.VariableDefinition definition = new AstNode.VariableDefinition(expression.location(), identifier, AstSimplifier.talcTypeOf(expression), expression, true);
+        hoistedScope.addVariable(definition);
+        hoistedDefinitions.add(definition);
+        AstNode.VariableName result = new AstNode.VariableName(expression.location(), identifier);
+        result.setDefinition(definition);
+        result.setScope(expression.scope());
+        return result;
+    }
+    
+    private static boolean isWorthHoisting(AstNode expression) {
+        return (expression instanceof AstNode.BinaryOperator || expression instanceof AstNode.FunctionCall || expression instanceof AstNode.StringConcatenation);
+    }
+    
+    // Returns true if 'expression' always has the same value in the current loop, and evaluating it has no side effects.
+    private boolean isInvariant(AstNode expression) {
+        if (expression instanceof AstNode.Constant) {
+            return true;
+        } else if (expression instanceof AstNode.VariableName) {
+            return loopEffects.isUnchanged(((AstNode.VariableName) expression).definition());
+        } else if (expression instanceof AstNode.BinaryOperator) {
+            AstNode.BinaryOperator binOp = (AstNode.BinaryOperator) expression;
+            if (AstSimplifier.isAssignment(binOp.op()) || isImmutable(binOp.type()) == false) {
+                return false;
+            }
+            // Comparing lists, say, depends on what's in them.
+            if (isImmutableOrNull(AstSimplifier.talcTypeOf(binOp.lhs())) == false || (binOp.rhs() != null && isImmutableOrNull(AstSimplifier.talcTypeOf(binOp.rhs())) == false)) {
+                return false;
+            }
+            return isInvariant(binOp.lhs()) && (binOp.rhs() == null || isInvariant(binOp.rhs()));
+        } else if (expression instanceof AstNode.StringConcatenation) {
+            for (AstNode operand : ((AstNode.StringConcatenation) expression).operands()) {
+                if (isImmutable(AstSimplifier.talcTypeOf(operand)) == false || isInvariant(operand) == false) {
+                    return false;
+                }
+            }
+            return true;
+        } else if (expression instanceof AstNode.FunctionCall) {
+            AstNode.FunctionCall call = (AstNode.FunctionCall) expression;
+            if (isQuery(call) == false || isInvariant(call.instance()) == false) {
+                return false;
+            }
+            for (AstNode argument : call.arguments()) {
+                if (isInvariant(argument) == false) {
+                    return false;
+                }
+            }
+            return true;
+        }
+        return false;
+    }
+    
+    // Returns true if 'call' is a built-in method call with no side effects that returns an immutable value.
+    private boolean isQuery(AstNode.FunctionCall call) {
+        if (call.definition() instanceof BuiltInFunction == false || call.instance() == null || isImmutable(call.resolvedReturnType()) == false) {
+            return false;
+        }
+        if (isImmutable(AstSimplifier.talcTypeOf(call.instance()))) {
+            // The built-in methods of strings and numbers don't change anything, but "format" would call "to_s" on a list argument.
+            for (AstNode argument : call.arguments()) {
+                if (isImmutableOrNull(AstSimplifier.talcTypeOf(argument)) == false) {
+                    return false;
+                }
+            }
+            return true;
+        }
+        return AstSideEffectFinder.isContainerQuery(call.definition()) && loopEffects.modifiesContainers() == false;
+    }
+    
+    private static boolean isImmutable(TalcType type) {
+        return (type == TalcType.BOOL || type == TalcType.INT || type == TalcType.REAL || type == TalcType.STRING);
+    }
+    
+    private static boolean isImmutableOrNull(TalcType type) {
+        return isImmutable(type) || type == TalcType.NULL;
+    }
+    
+    // Returns true if evaluating 'node' can't fail or do anything visible outside the program, so it doesn't matter when, or whether, we do it.
+    // (Talc programs stop at the first failure, so nothing can see the variables they assign to afterwards.)
+    private static boolean isHarmless(AstNode node) {
+        if (node == null || node instanceof AstNode.Constant || node instanceof AstNode.VariableName) {
+            return true;
+        } else if (node instanceof AstNode.VariableDefinition) {
+            return isHarmless(((AstNode.VariableDefinition) node).initializer());
+        } else if (node instanceof AstNode.BinaryOperator) {
+            AstNode.BinaryOperator binOp = (AstNode.BinaryOperator) node;
+            switch (binOp.op()) {
+            case ASSIGN:
+                return isHarmless(binOp.rhs());
+            case EQ: case NE:
+                break;
+            case SHL:
+                // A shift by a small constant (such as AstSimplifier makes of "x * 8") is just a multiplication.
+                IntegerValue distance = AstSimplifier.integerConstant(binOp.rhs());
+                if (distance == null || distance.isBig() || distance.longValue() < 0 || distance.longValue() >= 64) {
+                    return false;
+                }
+                break;
+            case DIV: case MOD: case POW: case SHR: case FACTORIAL:
+            case DIV_ASSIGN: case MOD_ASSIGN: case POW_ASSIGN: case SHL_ASSIGN: case SHR_ASSIGN:
+                return false;
+            default:
+                // Strings can be null. Everything else we'd hoist is an int, real or bool, which can't.
+                TalcType lhsType = AstSimplifier.talcTypeOf(binOp.lhs());
+                if (lhsType != TalcType.BOOL && lhsType != TalcType.INT && lhsType != TalcType.REAL) {
+                    return false;
+                }
+            }
+            return isHarmless(binOp.lhs()) && isHarmless(binOp.rhs());
+        }
+        // Method calls fail on null, and string concatenation fails on null operands.
+        return false;
+    }
+    
+    // Visits a part of the current loop that's evaluated whenever the code before it is, noting whether it could fail.
+    private AstNode visitInOrder(AstNode node) {
+        AstNode result = node.accept(this);
+        if (isHarmless(result) == false) {
+            isEvaluatedFirst = false;
+        }
+        return result;
+    }
+    
+    // Visits a part of the current loop that's only conditionally evaluated.
+    private AstNode visitConditionally(AstNode node) {
+        boolean wasEvaluatedFirst = isEvaluatedFirst;
+        isEvaluatedFirst = false;
+        AstNode result = node.accept(this);
+        isEvaluatedFirst = wasEvaluatedFirst && isHarmless(result);
+        return result;
+    }
+    
+    @SuppressWarnings("unchecked")
+    private <T extends AstNode> ArrayList<T> visitAstNodeList(List<T> nodes) {
+        ArrayList<T> result = new ArrayList<T>(nodes.size());
+        for (T node : nodes) {
+            result.add((T) node.accept(this));
+        }
+        return result;
+    }
+    
+    @SuppressWarnings("unchecked")
+    private <T extends AstNode> T visitIfNonNull(T node) {
+        return (node != null) ? (T) node.accept(this) : null;
+    }
+    
+    public AstNode visitAssertStatement(AstNode.AssertStatement assertStatement) {
+        assertStatement.setTestExpression(assertStatement.testExpression().accept(this));
+        assertStatement.setExplanatoryExpression(visitIfNonNull(assertStatement.explanatoryExpression()));
+        return assertStatement;
+    }
+    
+    public AstNode visitBinaryOperator(AstNode.BinaryOperator binOp) {
+        AstNode hoisted = hoistExpression(binOp);
+        if (hoisted != null) {
+            return hoisted;
+        }
+        binOp.setLhs(visitInOrder(binOp.lhs()));
+        if (binOp.rhs() != null) {
+            if (binOp.op() == Token.L_AND || binOp.op() == Token.L_OR) {
+                binOp.setRhs(visitConditionally(binOp.rhs()));
+            } else {
+                binOp.setRhs(visitInOrder(binOp.rhs()));
+            }
+        }
+        return binOp;
+    }
+    
+    public AstNode visitBlock(AstNode.Block block) {
+        if (block == AstNode.Block.EMPTY_BLOCK) {
+            return block;
+        }
+        block.setStatements(visitAstNodeList(block.statements()));
+        return block;
+    }
+    
+    public AstNode visitBreakStatement(AstNode.BreakStatement breakStatement) {
+        return breakStatement;
+    }
+    
+    public AstNode visitClassDefinition(AstNode.ClassDefinition classDefinition) {
+        classDefinition.setMethods(visitAstNodeList(classDefinition.methods()));
+        return classDefinition;
+    }
+    
+    public AstNode visitConstant(AstNode.Constant constant) {
+        return constant;
+    }
+    
+    public AstNode visitContinueStatement(AstNode.ContinueStatement continueStatement) {
+        return continueStatement;
+    }
+    
+    public AstNode visitDoStatement(AstNode.DoStatement doStatement) {
+        if (loopEffects != null) {
+            doStatement.setBody(doStatement.body().accept(this));
+            doStatement.setExpression(doStatement.expression().accept(this));
+            return doStatement;
+        }
+        doStatement.setBody(doStatement.body().accept(this));
+        // The condition is only evaluated after the body, so it's no different from the body.
+        startHoisting(doStatement);
+        doStatement.setBody(doStatement.body().accept(this));
+        doStatement.setExpression(doStatement.expression().accept(this));
+        return finishHoisting(doStatement);
+    }
+    
+    public AstNode visitForStatement(AstNode.ForStatement forStatement) {
+        if (loopEffects != null) {
+            forStatement.setInitializer(visitIfNonNull(forStatement.initializer()));
+            forStatement.setConditionExpression(forStatement.conditionExpression().accept(this));
+            forStatement.setUpdateExpression(forStatement.updateExpression().accept(this));
+            forStatement.setBody(forStatement.body().accept(this));
+            return forStatement;
+        }
+        forStatement.setBody(forStatement.body().accept(this));
+        startHoisting(forStatement);
+        // The initializer has to stay where it is, so we can only move code from the condition ahead of it if that's unobservable.
+        isEvaluatedFirst = isHarmless(forStatement.initializer());
+        forStatement.setConditionExpression(visitInOrder(forStatement.conditionExpression()));
+        isEvaluatedFirst = false;
+        forStatement.setUpdateExpression(forStatement.updateExpression().accept(this));
+        forStatement.setBody(forStatement.body().accept(this));
+        return finishHoisting(forStatement);
+    }
+    
+    public AstNode visitForEachStatement(AstNode.ForEachStatement forEachStatement) {
+        if (loopEffects != null) {
+            forEachStatement.setExpression(forEachStatement.expression().accept(this));
+            forEachStatement.setBody(forEachStatement.body().accept(this));
+            return forEachStatement;
+        }
+        forEachStatement.setBody(forEachStatement.body().accept(this));
+        startHoisting(forEachStatement);
+        forEachStatement.setBody(forEachStatement.body().accept(this));
+        return finishHoisting(forEachStatement);
+    }
+    
+    public AstNode visitFunctionCall(AstNode.FunctionCall functionCall) {
+        AstNode hoisted = hoistExpression(functionCall);
+        if (hoisted != null) {
+            return hoisted;
+        }
+        functionCall.setInstance((functionCall.instance() != null) ? visitInOrder(functionCall.instance()) : null);
+        AstNode[] arguments = functionCall.arguments();
+        for (int i = 0; i < arguments.length; ++i) {
+            arguments[i] = visitInOrder(arguments[i]);
+        }
+        return functionCall;
+    }
+    
+    public AstNode visitFunctionDefinition(AstNode.FunctionDefinition functionDefinition) {
+        functionDefinition.setBody(visitIfNonNull(functionDefinition.body()));
+        return functionDefinition;
+    }
+    
+    public AstNode visitIfStatement(AstNode.IfStatement ifStatement) {
+        ifStatement.setExpressions(visitAstNodeList(ifStatement.expressions()));
+        ifStatement.setBodies(visitAstNodeList(ifStatement.bodies()));
+        ifStatement.setElseBlock(ifStatement.elseBlock().accept(this));
+        return ifStatement;
+    }
+    
+    public AstNode visitImportStatement(AstNode.ImportStatement importStatement) {
+        return importStatement;
+    }
+    
+    public AstNode visitListLiteral(AstNode.ListLiteral listLiteral) {
+        listLiteral.setExpressions(visitAstNodeList(listLiteral.expressions()));
+        return listLiteral;
+    }
+    
+    public AstNode visitMapLiteral(AstNode.MapLiteral mapLiteral) {
+        mapLiteral.setExpressions(visitAstNodeList(mapLiteral.expressions()));
+        return mapLiteral;
+    }
+    
+    public AstNode visitReturnStatement(AstNode.ReturnStatement returnStatement) {
+        returnStatement.setExpression(visitIfNonNull(returnStatement.expression()));
+        return returnStatement;
+    }
+    
+    public AstNode visitStringConcatenation(AstNode.StringConcatenation stringConcatenation) {
+        AstNode hoisted = hoistExpression(stringConcatenation);
+        if (hoisted != null) {
+            return hoisted;
+        }
+        ArrayList<AstNode> operands = new ArrayList<AstNode>();
+        for (AstNode operand : stringConcatenation.operands()) {
+            operands.add(visitInOrder(operand));
+        }
+        stringConcatenation.setOperands(operands);
+        return stringConcatenation;
+    }
+    
+    public AstNode visitVariableDefinition(AstNode.VariableDefinition variableDefinition) {
+        variableDefinition.setInitializer(visitIfNonNull(variableDefinition.initializer()));
+        return variableDefinition;
+    }
+    
+    public AstNode visitVariableName(AstNode.VariableName variableName) {
+        return variableName;
+    }
+    
+    public AstNode visitWhileStatement(AstNode.WhileStatement whileStatement) {
+        if (loopEffects != null) {
+            whileStatement.setExpression(whileStatement.expression().accept(this));
+            whileStatement.setBody(whileStatement.body().accept(this));
+            return whileStatement;
+        }
+        whileStatement.setBody(whileStatement.body().accept(this));
+        startHoisting(whileStatement);
+        isEvaluatedFirst = true;
+        whileStatement.setExpression(visitInOrder(whileStatement.expression()));
+        isEvaluatedFirst = false;
+        whileStatement.setBody(whileStatement.body().accept(this));
+        return finishHoisting(whileStatement);
+    }
+}
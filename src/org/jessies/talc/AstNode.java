@@ -18,6 +18,7 @@
 
 package org.jessies.talc;
 
+import java.io.*;
 import java.util.*;
 
 public abstract class AstNode {
@@ -559,6 +560,8 @@ public abstract class AstNode {
         
         // Null, or the type of the class this is a method on.
         private TalcType containingType;
+        // Null, or the class generated for the library this global function was imported from.
+        private String libraryClassName;
         private boolean isClassMethod = false;
         private boolean isConstructor = false;
         
@@ -664,6 +667,14 @@ public abstract class AstNode {
             return containingType;
         }
         
+        public String libraryClassName() {
+            return libraryClassName;
+        }
+        
+        public void setLibraryClassName(String libraryClassName) {
+            this.libraryClassName = libraryClassName;
+        }
+        
         public AstNode body() {
             return body;
         }
@@ -777,6 +788,44 @@ public abstract class AstNode {
         }
     }
     
+    public static class ImportStatement extends AstNode {
+        private String libraryName;
+        private File libraryFile;
+        
+        // Set once the library has been compiled, before the symbol table is built.
+        private Library library;
+        
+        public ImportStatement(SourceLocation location, String libraryName, File libraryFile) {
+            this.location = location;
+            this.libraryName = libraryName;
+            this.libraryFile = libraryFile;
+        }
+        
+        public <ResultT> ResultT accept(AstVisitor<ResultT> visitor) {
+            return visitor.visitImportStatement(this);
+        }
+        
+        public String libraryName() {
+            return libraryName;
+        }
+        
+        public File libraryFile() {
+            return libraryFile;
+        }
+        
+        public Library library() {
+            return library;
+        }
+        
+        public void setLibrary(Library library) {
+            this.library = library;
+        }
+        
+        public String toString() {
+            return "import \"" + libraryName + "\"";
+        }
+    }
+    
     public static class ListLiteral extends AstNode {
         private List<AstNode> expressions;
         
@@ -885,6 +934,44 @@ public abstract class AstNode {
         }
     }
     
+    /**
+     * A chain of string "+" operations, collected up by AstSimplifier so that
+     * the code generator can build the result in one go.
+     */
+    public static class StringConcatenation extends AstNode {
+        private List<AstNode> operands;
+        
+        public StringConcatenation(SourceLocation location, List<AstNode> operands) {
+            this.location = location;
+            this.operands = operands;
+        }
+        
+        public <ResultT> ResultT accept(AstVisitor<ResultT> visitor) {
+            return visitor.visitStringConcatenation(this);
+        }
+        
+        public List<AstNode> operands() {
+            return operands;
+        }
+        
+        public void setOperands(List<AstNode> operands) {
+            this.operands = operands;
+        }
+        
+        public String toString() {
+            StringBuilder result = new StringBuilder();
+            result.append("(");
+            for (int i = 0; i < operands.size(); ++i) {
+                if (i > 0) {
+                    result.append(" + ");
+                }
+                result.append(operands.get(i));
+            }
+            result.append(")");
+            return result.toString();
+        }
+    }
+    
     public static class VariableDefinition extends AstNode {
         private String identifier;
         private TalcType type;
@@ -0,0 +1,245 @@
+/*
+ * This file is part of Talc.
+ * Copyright (C) 2008-2009 Elliott Hughes <enh@jessies.org>.
+ * 
+ * Talc is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * Talc is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package org.jessies.talc;
+
+import java.util.*;
+
+/**
+ * Finds what running a piece of code (usually a loop) might change: the
+ * variables it assigns to or defines, whether it calls user-defined code
+ * (which might change any global or field, or the contents of any list or
+ * map), and whether it changes any list or map itself through a built-in
+ * method like "push_back" or "__set_item__".
+ * 
+ * Talc has no way to change a local variable other than by naming it, so
+ * a local the code doesn't assign to keeps its value throughout.
+ */
+public class AstSideEffectFinder implements AstVisitor<Void> {
+    // The built-in list and map methods that only look at their instance.
+    private static final HashSet<String> CONTAINER_QUERIES = new HashSet<String>(Arrays.asList("__get_item__", "contains", "has_key", "has_value", "is_empty", "size"));
+    
+    private HashSet<AstNode.VariableDefinition> assignedVariables = new HashSet<AstNode.VariableDefinition>();
+    private HashSet<AstNode.VariableDefinition> definedVariables = new HashSet<AstNode.VariableDefinition>();
+    private boolean callsUserCode = false;
+    private boolean modifiesContainers = false;
+    
+    public AstSideEffectFinder(AstNode node) {
+        node.accept(this);
+    }
+    
+    /**
+     * Returns true if 'variable' has the same value throughout, and was defined before we started.
+     */
+    public boolean isUnchanged(AstNode.VariableDefinition variable) {
+        if (assignedVariables.contains(variable) || definedVariables.contains(variable)) {
+            return false;
+        }
+        // User-defined code we call might change anything but a local.
+        return (callsUserCode == false || isLocal(variable));
+    }
+    
+    /**
+     * Returns true if the contents of any list or map might change.
+     */
+    public boolean modifiesContainers() {
+        return callsUserCode || modifiesContainers;
+    }
+    
+    /**
+     * Returns true if 'function' is a built-in list or map method that doesn't change its instance.
+     */
+    public static boolean isContainerQuery(AstNode.FunctionDefinition function) {
+        if (function instanceof BuiltInFunction == false) {
+            return false;
+        }
+        TalcType containingType = function.containingType();
+        return (containingType == TalcType.LIST_OF_T || containingType == TalcType.MAP_OF_K_V) && CONTAINER_QUERIES.contains(function.functionName());
+    }
+    
+    /**
+     * Returns true if 'call' might run user-defined code. Besides user-defined
+     * functions, that includes built-ins such as "puts" and "format" given an
+     * object, list or map, whose "to_s" might be (or call) user-defined code.
+     */
+    public static boolean mightCallUserCode(AstNode.FunctionCall call) {
+        if (call.definition() instanceof BuiltInFunction == false) {
+            return true;
+        }
+        for (AstNode argument : call.arguments()) {
+            if (mightCallToString(argument)) {
+                return true;
+            }
+        }
+        // A list's "join" and "to_s" call "to_s" on each element.
+        String name = call.definition().functionName();
+        return (call.instance() != null && (name.equals("join") || name.equals("to_s")) && mightCallToString(call.instance()));
+    }
+    
+    // Returns true if converting 'node' to a string might involve anything other than built-in code.
+    private static boolean mightCallToString(AstNode node) {
+        TalcType type = AstSimplifier.talcTypeOf(node);
+        return (type != TalcType.BOOL && type != TalcType.INT && type != TalcType.REAL && type != TalcType.STRING && type != TalcType.NULL);
+    }
+    
+    static boolean isLocal(AstNode.VariableDefinition variable) {
+        Scope scope = variable.scope();
+        return (variable.isField() == false && scope != Scope.globalScope() && scope != Scope.importedScope() && scope != Scope.builtInScope());
+    }
+    
+    private void visitIfNonNull(AstNode node) {
+        if (node != null) {
+            node.accept(this);
+        }
+    }
+    
+    public Void visitAssertStatement(AstNode.AssertStatement assertStatement) {
+        assertStatement.testExpression().accept(this);
+        visitIfNonNull(assertStatement.explanatoryExpression());
+        return null;
+    }
+    
+    public Void visitBinaryOperator(AstNode.BinaryOperator binOp) {
+        if (AstSimplifier.isAssignment(binOp.op()) && binOp.lhs() instanceof AstNode.VariableName) {
+            assignedVariables.add(((AstNode.VariableName) binOp.lhs()).definition());
+        }
+        binOp.lhs().accept(this);
+        visitIfNonNull(binOp.rhs());
+        return null;
+    }
+    
+    public Void visitBlock(AstNode.Block block) {
+        for (AstNode statement : block.statements()) {
+            statement.accept(this);
+        }
+        return null;
+    }
+    
+    public Void visitBreakStatement(AstNode.BreakStatement breakStatement) {
+        return null;
+    }
+    
+    public Void visitClassDefinition(AstNode.ClassDefinition classDefinition) {
+        return null;
+    }
+    
+    public Void visitConstant(AstNode.Constant constant) {
+        return null;
+    }
+    
+    public Void visitContinueStatement(AstNode.ContinueStatement continueStatement) {
+        return null;
+    }
+    
+    public Void visitDoStatement(AstNode.DoStatement doStatement) {
+        doStatement.body().accept(this);
+        doStatement.expression().accept(this);
+        return null;
+    }
+    
+    public Void visitForStatement(AstNode.ForStatement forStatement) {
+        visitIfNonNull(forStatement.initializer());
+        forStatement.conditionExpression().accept(this);
+        forStatement.updateExpression().accept(this);
+        forStatement.body().accept(this);
+        return null;
+    }
+    
+    public Void visitForEachStatement(AstNode.ForEachStatement forEachStatement) {
+        definedVariables.addAll(forEachStatement.loopVariableDefinitions());
+        forEachStatement.expression().accept(this);
+        forEachStatement.body().accept(this);
+        return null;
+    }
+    
+    public Void visitFunctionCall(AstNode.FunctionCall functionCall) {
+        AstNode.FunctionDefinition function = functionCall.definition();
+        if (mightCallUserCode(functionCall)) {
+            callsUserCode = true;
+        } else if ((function.containingType() == TalcType.LIST_OF_T || function.containingType() == TalcType.MAP_OF_K_V) && isContainerQuery(function) == false) {
+            modifiesContainers = true;
+        }
+        visitIfNonNull(functionCall.instance());
+        for (AstNode argument : functionCall.arguments()) {
+            argument.accept(this);
+        }
+        return null;
+    }
+    
+    public Void visitFunctionDefinition(AstNode.FunctionDefinition functionDefinition) {
+        return null;
+    }
+    
+    public Void visitIfStatement(AstNode.IfStatement ifStatement) {
+        for (AstNode expression : ifStatement.expressions()) {
+            expression.accept(this);
+        }
+        for (AstNode body : ifStatement.bodies()) {
+            body.accept(this);
+        }
+        ifStatement.elseBlock().accept(this);
+        return null;
+    }
+    
+    public Void visitImportStatement(AstNode.ImportStatement importStatement) {
+        return null;
+    }
+    
+    public Void visitListLiteral(AstNode.ListLiteral listLiteral) {
+        for (AstNode expression : listLiteral.expressions()) {
+            expression.accept(this);
+        }
+        return null;
+    }
+    
+    public Void visitMapLiteral(AstNode.MapLiteral mapLiteral) {
+        for (AstNode expression : mapLiteral.expressions()) {
+            expression.accept(this);
+        }
+        return null;
+    }
+    
+    public Void visitReturnStatement(AstNode.ReturnStatement returnStatement) {
+        visitIfNonNull(returnStatement.expression());
+        return null;
+    }
+    
+    public Void visitStringConcatenation(AstNode.StringConcatenation stringConcatenation) {
+        for (AstNode operand : stringConcatenation.operands()) {
+            operand.accept(this);
+        }
+        return null;
+    }
+    
+    public Void visitVariableDefinition(AstNode.VariableDefinition variableDefinition) {
+        definedVariables.add(variableDefinition);
+        visitIfNonNull(variableDefinition.initializer());
+        return null;
+    }
+    
+    public Void visitVariableName(AstNode.VariableName variableName) {
+        return null;
+    }
+    
+    public Void visitWhileStatement(AstNode.WhileStatement whileStatement) {
+        whileStatement.expression().accept(this);
+        whileStatement.body().accept(this);
+        return null;
+    }
+}
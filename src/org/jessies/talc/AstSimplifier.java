@@ -20,11 +20,77 @@ package org.jessies.talc;
 
 import java.util.*;
 
+/**
+ * Simplifies the AST before code generation: folds constant expressions,
+ * applies algebraic identities, propagates constants, and removes dead code.
+ * 
+ * A variable is treated as a constant if it's initialized with a constant and
+ * never assigned to anywhere else (as reported by AstErrorChecker), so uses of
+ * it can be replaced by its value. This isn't flow-sensitive, but Talc has no
+ * way to modify a variable other than by naming it, so it's safe. Branches and
+ * loops whose conditions become constant are pruned, and definitions of
+ * constants that are no longer used are removed.
+ * 
+ * Calls of small global functions whose bodies are a single "return" are
+ * replaced by a copy of the returned expression, with the arguments in place
+ * of the parameters, so the callee's code gets simplified in the context of
+ * each call.
+ * 
+ * Expensive arithmetic is replaced by cheaper equivalents where that doesn't
+ * change the result: integer multiplication by powers of two by shifts, "x**2"
+ * by "x*x", real division by a power of two by multiplication by its exact
+ * reciprocal, and multiplication of a "for" loop's variable by a constant by
+ * a variable that's incremented along with the loop variable.
+ */
 public class AstSimplifier implements AstVisitor<AstNode> {
+    // The most AstNodes we'll copy into a caller in place of a function call.
+    private static final int INLINING_BUDGET = 12;
+    
     private long creationTime;
     
-    public AstSimplifier() {
+    private final Set<AstNode.VariableDefinition> assignedVariables;
+    private final boolean isLibrary;
+    
+    // Counts the uses of variables we've replaced by constants.
+    private int propagationCount = 0;
+    // The variables still used after simplification.
+    private HashSet<AstNode.VariableDefinition> usedVariables = new HashSet<AstNode.VariableDefinition>();
+    // The statement lists containing the definitions of variables we're treating as constants, in case they end up unused.
+    private IdentityHashMap<AstNode.VariableDefinition, List<AstNode>> constantDefinitions = new IdentityHashMap<AstNode.VariableDefinition, List<AstNode>>();
+    
+    // The functions we're inlining, so we don't try to inline recursive calls.
+    private HashSet<AstNode.FunctionDefinition> inliningFunctions = new HashSet<AstNode.FunctionDefinition>();
+    // Set by copyForInlining if it copies a function call.
+    private boolean copiedFunctionCall;
+    // Methods can't see the script's globals, so we mustn't inline code that uses them into a class.
+    private int classDepth = 0;
+    
+    // The variables of the "for" loops we're in whose multiples we can replace, innermost last.
+    private ArrayList<InductionVariable> inductionVariables = new ArrayList<InductionVariable>();
+    private int inductionVariableMultipleCount = 0;
+    
+    // A "for" loop's int variable, which only the loop's update expression changes, by a constant step.
+    private static class InductionVariable {
+        final AstNode.VariableDefinition variable;
+        final IntegerValue step;
+        // The variables we've introduced to hold multiples of 'variable', and the increments that keep them up to date.
+        final LinkedHashMap<IntegerValue, AstNode.VariableDefinition> multiples = new LinkedHashMap<IntegerValue, AstNode.VariableDefinition>();
+        final ArrayList<AstNode> increments = new ArrayList<AstNode>();
+        
+        InductionVariable(AstNode.VariableDefinition variable, IntegerValue step) {
+            this.variable = variable;
+            this.step = step;
+        }
+    }
+    
+    /**
+     * 'assignedVariables' should come from AstErrorChecker.
+     * A library's globals aren't treated as constants unless they're final, because importers can modify them.
+     */
+    public AstSimplifier(Set<AstNode.VariableDefinition> assignedVariables, boolean isLibrary) {
         creationTime = System.nanoTime();
+        this.assignedVariables = assignedVariables;
+        this.isLibrary = isLibrary;
     }
     
     public long creationTime() {
@@ -32,7 +98,53 @@ public class AstSimplifier implements AstVisitor<AstNode> {
     }
     
     public List<AstNode> simplify(List<AstNode> ast) {
-        return simplifyAstNodeList(ast);
+        List<AstNode> result = simplifyAstNodeList(ast);
+        removeUnusedConstants();
+        return result;
+    }
+    
+    private void removeUnusedConstants() {
+        for (Map.Entry<AstNode.VariableDefinition, List<AstNode>> entry : constantDefinitions.entrySet()) {
+            AstNode.VariableDefinition definition = entry.getKey();
+            if (usedVariables.contains(definition) || (isLibrary && definition.scope() == Scope.globalScope())) {
+                continue;
+            }
+            // Lists of AstNodes use object identity, so this can only remove the definition itself.
+            entry.getValue().remove(definition);
+        }
+    }
+    
+    // Returns the constant 'variableDefinition' is always equal to, or null.
+    private AstNode.Constant constantValue(AstNode.VariableDefinition variableDefinition) {
+        if (variableDefinition == null || variableDefinition.isField() || assignedVariables.contains(variableDefinition)) {
+            return null;
+        }
+        Scope scope = variableDefinition.scope();
+        if (scope == Scope.builtInScope()) {
+            return null;
+        }
+        if (variableDefinition.isFinal() == false && (scope == Scope.importedScope() || (isLibrary && scope == Scope.globalScope()))) {
+            // Code we can't see can modify these.
+            return null;
+        }
+        AstNode initializer = variableDefinition.initializer();
+        if (initializer instanceof AstNode.Constant == false) {
+            return null;
+        }
+        AstNode.Constant constant = (AstNode.Constant) initializer;
+        // An int constant initializing a real variable, say, can't stand in for the variable.
+        if (constant.type() != variableDefinition.type()) {
+            return null;
+        }
+        Object value = constant.constant();
+        if (value instanceof RealValue && ((RealValue) value).doubleValue() == 0.0) {
+            // Negating 0.0 at run time gives -0.0, but negating the constant 0.0 at compile time gives 0.0.
+            return null;
+        }
+        if (value instanceof IntegerValue || value instanceof RealValue || value instanceof BooleanValue || value instanceof String) {
+            return constant;
+        }
+        return null;
     }
     
     public AstNode visitAssertStatement(AstNode.AssertStatement assertStatement) {
@@ -65,7 +177,34 @@ public class AstSimplifier implements AstVisitor<AstNode> {
             if (lhsString != null && rhsString != null) {
                 return new AstNode.Constant(binOp.location(), lhsString + rhsString, TalcType.STRING);
             }
+            // We can turn chains of string concatenation into a single operation.
+            if (binOp.type() == TalcType.STRING) {
+                ArrayList<AstNode> operands = new ArrayList<AstNode>();
+                addConcatenationOperands(operands, lhs);
+                addConcatenationOperands(operands, rhs);
+                if (operands.size() == 2) {
+                    binOp.setLhs(operands.get(0));
+                    binOp.setRhs(operands.get(1));
+                    return binOp;
+                }
+                return new AstNode.StringConcatenation(binOp.location(), operands);
+            }
         } else if (op == Token.PLUS_ASSIGN) {
+            // s += a + b == s = s + a + b, which we can do as a single concatenation.
+            if (binOp.type() == TalcType.STRING) {
+                AstNode.VariableName variableName = (AstNode.VariableName) lhs;
+                AstNode.VariableName value = new AstNode.VariableName(variableName.location(), variableName.identifier());
+                value.setDefinition(variableName.definition());
+                value.setScope(variableName.scope());
+                ArrayList<AstNode> operands = new ArrayList<AstNode>();
+                operands.add(value);
+                addConcatenationOperands(operands, rhs);
+                if (operands.size() > 2) {
+                    AstNode.BinaryOperator result = new AstNode.BinaryOperator(binOp.location(), Token.ASSIGN, lhs, new AstNode.StringConcatenation(binOp.location(), operands));
+                    result.setType(binOp.type());
+                    return result;
+                }
+            }
             // x += 0 == x
             if (isZero(rhs)) {
                 return lhs;
@@ -131,7 +270,8 @@ public class AstSimplifier implements AstVisitor<AstNode> {
             if (lhsConstant instanceof IntegerValue) {
                 return new AstNode.Constant(binOp.location(), ((IntegerValue) lhsConstant).negate(), TalcType.INT);
             } else if (lhsConstant instanceof RealValue) {
-                return new AstNode.Constant(binOp.location(), ((RealValue) lhsConstant).negate(), TalcType.REAL);
+                // Real constants are boxed with RealValue.valueOf, so "-0.0" means 0.0.
+                return new AstNode.Constant(binOp.location(), RealValue.valueOf(-((RealValue) lhsConstant).doubleValue()), TalcType.REAL);
             }
         } else if (op == Token.L_AND) {
             // true && x = x
@@ -185,14 +325,144 @@ public class AstSimplifier implements AstVisitor<AstNode> {
                     return new AstNode.Constant(binOp.location(), BooleanValue.valueOf(lhsValue.compareTo(rhsValue) < 0), TalcType.BOOL);
                 }
                 
+                // Dividing by zero must fail when (and only if) it's evaluated, which might be never.
+                if ((op == Token.DIV || op == Token.MOD) && rhsValue.signum().compareTo(IntegerValue.valueOf(0)) == 0) {
+                    return binOp;
+                }
+                
                 // Must be an "arithmetic" integer expression.
                 return new AstNode.Constant(binOp.location(), evaluateIntegerExpression(binOp, lhsValue, rhsValue), TalcType.INT);
             }
         }
         
+        return reduceStrength(binOp);
+    }
+    
+    /**
+     * Replaces 'binOp' with something cheaper that gives the same result, if we can.
+     * Integer division and modulus by powers of two stay as they are: they round
+     * towards zero, so a shift or a mask would be wrong for negative numbers, and
+     * correcting for that costs more than it saves. (HotSpot already does this for
+     * the primitive arithmetic we generate when we can.)
+     */
+    private AstNode reduceStrength(AstNode.BinaryOperator binOp) {
+        Token op = binOp.op();
+        AstNode lhs = binOp.lhs();
+        AstNode rhs = binOp.rhs();
+        if (op == Token.MUL && binOp.type() == TalcType.INT) {
+            // i * k == a variable we keep equal to i * k, if i is a "for" loop's variable
+            AstNode multiple = inductionVariableMultiple(lhs, rhs);
+            if (multiple == null) {
+                multiple = inductionVariableMultiple(rhs, lhs);
+            }
+            if (multiple != null) {
+                return multiple;
+            }
+            // x * 2**n == x << n (which also overflows into a bignum)
+            if (powerOfTwo(rhs) > 0) {
+                return shiftLeft(binOp, lhs, powerOfTwo(rhs));
+            } else if (powerOfTwo(lhs) > 0) {
+                return shiftLeft(binOp, rhs, powerOfTwo(lhs));
+            }
+        } else if (op == Token.POW) {
+            // x ** 1 == x
+            if (isOne(rhs) || isEqualToRealConstant(rhs, 1.0)) {
+                return lhs;
+            }
+            // x ** 2 == x * x
+            if (lhs instanceof AstNode.VariableName && (isEqualToIntegerConstant(rhs, IntegerValue.valueOf(2)) || isEqualToRealConstant(rhs, 2.0))) {
+                binOp.setOp(Token.MUL);
+                binOp.setRhs(copyVariableName((AstNode.VariableName) lhs));
+            }
+        } else if ((op == Token.DIV || op == Token.DIV_ASSIGN) && binOp.type() == TalcType.REAL) {
+            // x / c == x * (1/c), if 1/c is exact
+            RealValue reciprocal = exactReciprocal(rhs);
+            if (reciprocal != null) {
+                binOp.setOp(op == Token.DIV ? Token.MUL : Token.MUL_ASSIGN);
+                binOp.setRhs(new AstNode.Constant(rhs.location(), reciprocal, TalcType.REAL));
+            }
+        }
         return binOp;
     }
     
+    private static AstNode shiftLeft(AstNode.BinaryOperator binOp, AstNode value, int distance) {
+        binOp.setOp(Token.SHL);
+        binOp.setLhs(value);
+        binOp.setRhs(new AstNode.Constant(binOp.location(), IntegerValue.valueOf(distance), TalcType.INT));
+        return binOp;
+    }
+    
+    // Returns n if 'node' is the integer constant 2**n, or -1.
+    private static int powerOfTwo(AstNode node) {
+        IntegerValue value = integerConstant(node);
+        if (value == null || value.isBig()) {
+            return -1;
+        }
+        long l = value.longValue();
+        return (l > 0 && (l & (l - 1)) == 0) ? Long.numberOfTrailingZeros(l) : -1;
+    }
+    
+    // Returns 1/c if 'node' is the real constant c, and 1/c is exactly representable, or null.
+    private static RealValue exactReciprocal(AstNode node) {
+        Object value = constant(node);
+        if (value instanceof RealValue == false) {
+            return null;
+        }
+        double d = ((RealValue) value).doubleValue();
+        // Only powers of two have exact reciprocals, and only normal ones have finite reciprocals.
+        int exponent = Math.getExponent(d);
+        if (exponent < Double.MIN_EXPONENT || exponent > Double.MAX_EXPONENT || Math.abs(d) != Math.scalb(1.0, exponent)) {
+            return null;
+        }
+        return RealValue.valueOf(1.0 / d);
+    }
+    
+    // Returns a variable holding 'variableName' * 'factor', if 'variableName' is an induction variable and 'factor' a constant, or null.
+    private AstNode inductionVariableMultiple(AstNode variableName, AstNode factor) {
+        IntegerValue factorValue = integerConstant(factor);
+        if (variableName instanceof AstNode.VariableName == false || factorValue == null) {
+            return null;
+        }
+        AstNode.VariableDefinition variable = ((AstNode.VariableName) variableName).definition();
+        for (InductionVariable inductionVariable : inductionVariables) {
+            if (inductionVariable.variable != variable) {
+                continue;
+            }
+            AstNode.VariableDefinition multiple = inductionVariable.multiples.get(factorValue);
+            if (multiple == null) {
+                multiple = newInductionVariableMultiple(inductionVariable, (AstNode.VariableName) variableName, factorValue);
+            }
+            AstNode.VariableName result = new AstNode.VariableName(variableName.location(), multiple.identifier());
+            result.setDefinition(multiple);
+            result.setScope(variableName.scope());
+            return result;
+        }
+        return null;
+    }
+    
+    /**
+     * Defines a variable equal to 'inductionVariable' * 'factor' at the start of each iteration.
+     * The body of the loop starts by adding step * factor to it, so it starts off one step behind.
+     */
+    private AstNode.VariableDefinition newInductionVariableMultiple(InductionVariable inductionVariable, AstNode.VariableName variableName, IntegerValue factor) {
+        SourceLocation location = variableName.location();
+        IntegerValue increment = inductionVariable.step.multiply(factor);
+        AstNode.BinaryOperator product = new AstNode.BinaryOperator(location, Token.MUL, copyVariableName(variableName), new AstNode.Constant(location, factor, TalcType.INT));
+        product.setType(TalcType.INT);
+        AstNode.BinaryOperator initializer = new AstNode.BinaryOperator(location, Token.SUB, product, new AstNode.Constant(location, increment, TalcType.INT));
+        initializer.setType(TalcType.INT);
+        AstNode.VariableDefinition multiple = new AstNode.VariableDefinition(location, "$induction" + inductionVariableMultipleCount++, TalcType.INT, initializer, false);
+        inductionVariable.variable.scope().addVariable(multiple);
+        inductionVariable.multiples.put(factor, multiple);
+        
+        AstNode.VariableName lhs = new AstNode.VariableName(location, multiple.identifier());
+        lhs.setDefinition(multiple);
+        AstNode.BinaryOperator update = new AstNode.BinaryOperator(location, Token.PLUS_ASSIGN, lhs, new AstNode.Constant(location, increment, TalcType.INT));
+        update.setType(TalcType.INT);
+        inductionVariable.increments.add(update);
+        return multiple;
+    }
+    
     private IntegerValue evaluateIntegerExpression(AstNode.BinaryOperator binOp, IntegerValue lhs, IntegerValue rhs) {
         switch (binOp.op()) {
             case PLUS: return lhs.add(rhs);
@@ -230,7 +500,7 @@ public class AstSimplifier implements AstVisitor<AstNode> {
     }
     
     // Returns the integer constant 'node' represents, or null if 'node' isn't an integer constant.
-    private static IntegerValue integerConstant(AstNode node) {
+    static IntegerValue integerConstant(AstNode node) {
         if (node instanceof AstNode.Constant == false) {
             return null;
         }
@@ -242,7 +512,27 @@ public class AstSimplifier implements AstVisitor<AstNode> {
         return (IntegerValue) value;
     }
     
-    // Returns the string constant 'node' represents, or null if 'node' isn't an string constant.
+    // Flattens 'node' into 'operands', merging adjacent string constants as we go.
+    private static void addConcatenationOperands(List<AstNode> operands, AstNode node) {
+        if (node instanceof AstNode.StringConcatenation) {
+            for (AstNode operand : ((AstNode.StringConcatenation) node).operands()) {
+                addConcatenationOperands(operands, operand);
+            }
+        } else if (node instanceof AstNode.BinaryOperator && ((AstNode.BinaryOperator) node).op() == Token.PLUS && ((AstNode.BinaryOperator) node).type() == TalcType.STRING) {
+            addConcatenationOperands(operands, ((AstNode.BinaryOperator) node).lhs());
+            addConcatenationOperands(operands, ((AstNode.BinaryOperator) node).rhs());
+        } else {
+            String string = stringConstant(node);
+            String previousString = operands.isEmpty() ? null : stringConstant(operands.get(operands.size() - 1));
+            if (string != null && previousString != null) {
+                operands.set(operands.size() - 1, new AstNode.Constant(node.location(), previousString + string, TalcType.STRING));
+            } else {
+                operands.add(node);
+            }
+        }
+    }
+    
+    // Returns the string constant 'node' represents, or null if 'node' isn't a string constant.
     private static String stringConstant(AstNode node) {
         if (node instanceof AstNode.Constant == false) {
             return null;
@@ -255,6 +545,11 @@ public class AstSimplifier implements AstVisitor<AstNode> {
         return (String) value;
     }
     
+    private static boolean isEqualToRealConstant(AstNode node, double value) {
+        Object constantValue = constant(node);
+        return (constantValue instanceof RealValue && ((RealValue) constantValue).doubleValue() == value);
+    }
+    
     private static boolean isZero(AstNode node) {
         return isEqualToIntegerConstant(node, IntegerValue.valueOf(0));
     }
@@ -270,6 +565,12 @@ public class AstSimplifier implements AstVisitor<AstNode> {
         
         // The source language insists on blocks everywhere to encourage good style, but there's no reason we can't optimize unnecessary blocks away internally.
         List<AstNode> newStatements = simplifyAstNodeList(block.statements());
+        for (Iterator<AstNode> it = newStatements.iterator(); it.hasNext(); ) {
+            if (it.next() instanceof AstNode.Constant) {
+                // A constant on its own does nothing.
+                it.remove();
+            }
+        }
         final int newStatementsCount = newStatements.size();
         if (newStatementsCount == 0) {
             // If this block ends up empty, we already have a handy empty block.
@@ -290,6 +591,9 @@ public class AstSimplifier implements AstVisitor<AstNode> {
             T newNode = (T) node.accept(this);
             if (newNode != null) {
                 newNodes.add(newNode);
+                if (newNode instanceof AstNode.VariableDefinition && constantValue((AstNode.VariableDefinition) newNode) != null) {
+                    constantDefinitions.put((AstNode.VariableDefinition) newNode, (List<AstNode>) newNodes);
+                }
             }
         }
         return newNodes;
@@ -305,8 +609,10 @@ public class AstSimplifier implements AstVisitor<AstNode> {
     }
     
     public AstNode visitClassDefinition(AstNode.ClassDefinition classDefinition) {
+        ++classDepth;
         classDefinition.setFields(simplifyAstNodeList(classDefinition.fields()));
         classDefinition.setMethods(simplifyAstNodeList(classDefinition.methods()));
+        --classDepth;
         return classDefinition;
     }
     
@@ -328,10 +634,70 @@ public class AstSimplifier implements AstVisitor<AstNode> {
         forStatement.setInitializer(simplifyIfNonNull(forStatement.initializer()));
         forStatement.setConditionExpression(forStatement.conditionExpression().accept(this));
         forStatement.setUpdateExpression(forStatement.updateExpression().accept(this));
+        InductionVariable inductionVariable = inductionVariableOf(forStatement);
+        if (inductionVariable != null) {
+            inductionVariables.add(inductionVariable);
+        }
         forStatement.setBody(forStatement.body().accept(this));
+        if (inductionVariable != null) {
+            inductionVariables.remove(inductionVariables.size() - 1);
+            if (inductionVariable.multiples.isEmpty() == false && forStatement.body() != AstNode.Block.EMPTY_BLOCK) {
+                return reduceInductionVariableMultiples(forStatement, inductionVariable);
+            }
+        }
         return forStatement;
     }
     
+    // Returns the loop's variable if it's an int that only the update expression changes, by a constant step, or null.
+    private static InductionVariable inductionVariableOf(AstNode.ForStatement forStatement) {
+        AstNode.VariableDefinition variable = forStatement.initializer();
+        if (variable == null || variable.type() != TalcType.INT || variable.initializer() == null || forStatement.updateExpression() instanceof AstNode.BinaryOperator == false) {
+            return null;
+        }
+        AstNode.BinaryOperator update = (AstNode.BinaryOperator) forStatement.updateExpression();
+        if (update.lhs() instanceof AstNode.VariableName == false || ((AstNode.VariableName) update.lhs()).definition() != variable) {
+            return null;
+        }
+        IntegerValue step = null;
+        switch (update.op()) {
+            case PRE_INCREMENT: case POST_INCREMENT: step = IntegerValue.valueOf(1); break;
+            case PRE_DECREMENT: case POST_DECREMENT: step = IntegerValue.valueOf(-1); break;
+            case PLUS_ASSIGN: step = integerConstant(update.rhs()); break;
+            case SUB_ASSIGN:
+                step = integerConstant(update.rhs());
+                step = (step != null) ? step.negate() : null;
+                break;
+            default: break;
+        }
+        if (step == null) {
+            return null;
+        }
+        if (new AstSideEffectFinder(forStatement.conditionExpression()).isUnchanged(variable) == false || new AstSideEffectFinder(forStatement.body()).isUnchanged(variable) == false) {
+            return null;
+        }
+        return new InductionVariable(variable, step);
+    }
+    
+    /**
+     * Turns "for (i := a; c; i += s) { ... i * k ... }" into
+     * "{ i := a; $induction0 := i * k - s * k; for (; c; i += s) { $induction0 += s * k; ... $induction0 ... } }".
+     */
+    private static AstNode reduceInductionVariableMultiples(AstNode.ForStatement forStatement, InductionVariable inductionVariable) {
+        AstNode.Block body = (AstNode.Block) forStatement.body();
+        ArrayList<AstNode> bodyStatements = new ArrayList<AstNode>(inductionVariable.increments);
+        bodyStatements.addAll(body.statements());
+        body.setStatements(bodyStatements);
+        
+        ArrayList<AstNode> statements = new ArrayList<AstNode>();
+        statements.add(inductionVariable.variable);
+        statements.addAll(inductionVariable.multiples.values());
+        forStatement.setInitializer(null);
+        statements.add(forStatement);
+        AstNode.Block block = new AstNode.Block(forStatement.location(), statements);
+        block.setScope(forStatement.scope());
+        return block;
+    }
+    
     public AstNode visitForEachStatement(AstNode.ForEachStatement forEachStatement) {
         forEachStatement.setExpression(forEachStatement.expression().accept(this));
         forEachStatement.setBody(forEachStatement.body().accept(this));
@@ -346,7 +712,193 @@ public class AstSimplifier implements AstVisitor<AstNode> {
         }
         call.setArguments(newArguments);
         call.setInstance(simplifyIfNonNull(call.instance()));
-        return call;
+        
+        AstNode inlinedCall = inline(call);
+        return (inlinedCall != null) ? inlinedCall : call;
+    }
+    
+    // Returns the simplified expression to use instead of 'call', or null if it can't be inlined.
+    private AstNode inline(AstNode.FunctionCall call) {
+        // We can only inline global functions we're compiling, not methods, built-in functions, or functions from imported libraries.
+        AstNode.FunctionDefinition function = call.definition();
+        if (function == null || function.scope() != Scope.globalScope() || function.containingType() != null || function.libraryClassName() != null || function.isExtern() || function.isVarArgs() || call.instance() != null) {
+            return null;
+        }
+        if (inliningFunctions.contains(function) || function.body() instanceof AstNode.Block == false) {
+            return null;
+        }
+        List<AstNode> statements = ((AstNode.Block) function.body()).statements();
+        if (statements.size() != 1 || statements.get(0) instanceof AstNode.ReturnStatement == false) {
+            return null;
+        }
+        AstNode expression = ((AstNode.ReturnStatement) statements.get(0)).expression();
+        if (expression == null || call.resolvedReturnType().equals(talcTypeOf(expression)) == false) {
+            return null;
+        }
+        
+        // The arguments may be evaluated any number of times, in any order, so they have to be constants or variables.
+        IdentityHashMap<AstNode.VariableDefinition, AstNode> arguments = new IdentityHashMap<AstNode.VariableDefinition, AstNode>();
+        boolean hasMutableArgument = false;
+        for (int i = 0; i < call.arguments().length; ++i) {
+            AstNode argument = call.arguments()[i];
+            AstNode.VariableDefinition parameter = function.formalParameters().get(i);
+            if (parameter.type().equals(talcTypeOf(argument)) == false) {
+                return null;
+            }
+            if (argument instanceof AstNode.VariableName) {
+                AstNode.VariableDefinition variable = ((AstNode.VariableName) argument).definition();
+                Scope scope = variable.scope();
+                // Unlike locals, globals and fields might be changed by a function the callee calls.
+                hasMutableArgument |= variable.isField() || scope == Scope.globalScope() || scope == Scope.importedScope() || scope == Scope.builtInScope();
+            } else if (argument instanceof AstNode.Constant == false) {
+                return null;
+            }
+            arguments.put(parameter, argument);
+        }
+        
+        copiedFunctionCall = false;
+        AstNode copy = copyForInlining(expression, arguments, new int[] { INLINING_BUDGET });
+        if (copy == null || (hasMutableArgument && copiedFunctionCall)) {
+            return null;
+        }
+        inliningFunctions.add(function);
+        try {
+            return copy.accept(this);
+        } finally {
+            inliningFunctions.remove(function);
+        }
+    }
+    
+    // Returns a copy of 'node' with each use of a parameter replaced by a copy of its argument, or null if 'node' is too big or complicated to inline.
+    private AstNode copyForInlining(AstNode node, IdentityHashMap<AstNode.VariableDefinition, AstNode> arguments, int[] budget) {
+        if (node == null) {
+            return null;
+        }
+        if (--budget[0] < 0) {
+            return null;
+        }
+        AstNode result;
+        if (node instanceof AstNode.Constant) {
+            AstNode.Constant constant = (AstNode.Constant) node;
+            result = new AstNode.Constant(constant.location(), constant.constant(), constant.type());
+        } else if (node instanceof AstNode.VariableName) {
+            AstNode.VariableName variableName = (AstNode.VariableName) node;
+            AstNode.VariableDefinition definition = variableName.definition();
+            if (arguments.containsKey(definition)) {
+                // The argument is a constant or a variable in the caller.
+                AstNode argument = arguments.get(definition);
+                return (argument instanceof AstNode.Constant) ? copyForInlining(argument, arguments, budget) : copyVariableName((AstNode.VariableName) argument);
+            }
+            Scope scope = definition.scope();
+            boolean isGlobal = (scope == Scope.globalScope() || scope == Scope.importedScope() || scope == Scope.builtInScope());
+            if (isGlobal == false || (scope == Scope.globalScope() && classDepth > 0)) {
+                return null;
+            }
+            result = copyVariableName(variableName);
+        } else if (node instanceof AstNode.BinaryOperator) {
+            AstNode.BinaryOperator binOp = (AstNode.BinaryOperator) node;
+            if (isAssignment(binOp.op())) {
+                return null;
+            }
+            AstNode lhs = copyForInlining(binOp.lhs(), arguments, budget);
+            AstNode rhs = copyForInlining(binOp.rhs(), arguments, budget);
+            if (lhs == null || (rhs == null && binOp.rhs() != null)) {
+                return null;
+            }
+            AstNode.BinaryOperator copy = new AstNode.BinaryOperator(binOp.location(), binOp.op(), lhs, rhs);
+            copy.setType(binOp.type());
+            result = copy;
+        } else if (node instanceof AstNode.FunctionCall) {
+            AstNode.FunctionCall call = (AstNode.FunctionCall) node;
+            AstNode instance = copyForInlining(call.instance(), arguments, budget);
+            if (instance == null && call.instance() != null) {
+                return null;
+            }
+            AstNode[] callArguments = new AstNode[call.arguments().length];
+            for (int i = 0; i < callArguments.length; ++i) {
+                callArguments[i] = copyForInlining(call.arguments()[i], arguments, budget);
+                if (callArguments[i] == null) {
+                    return null;
+                }
+            }
+            AstNode.FunctionCall copy;
+            if (call.classTypeDescriptor() != null) {
+                copy = new AstNode.FunctionCall(call.location(), call.functionName(), call.classTypeDescriptor(), callArguments);
+            } else {
+                copy = new AstNode.FunctionCall(call.location(), call.functionName(), instance, callArguments);
+            }
+            copy.setDefinition(call.definition());
+            for (int i = 0; i < callArguments.length; ++i) {
+                copy.setResolvedArgumentType(i, call.resolvedArgumentType(i));
+            }
+            copy.setResolvedReturnType(call.resolvedReturnType());
+            copiedFunctionCall = true;
+            result = copy;
+        } else if (node instanceof AstNode.StringConcatenation) {
+            ArrayList<AstNode> operands = new ArrayList<AstNode>();
+            for (AstNode operand : ((AstNode.StringConcatenation) node).operands()) {
+                AstNode copy = copyForInlining(operand, arguments, budget);
+                if (copy == null) {
+                    return null;
+                }
+                operands.add(copy);
+            }
+            result = new AstNode.StringConcatenation(node.location(), operands);
+        } else {
+            return null;
+        }
+        result.setScope(node.scope());
+        return result;
+    }
+    
+    private static AstNode.VariableName copyVariableName(AstNode.VariableName variableName) {
+        AstNode.VariableName result = new AstNode.VariableName(variableName.location(), variableName.identifier());
+        result.setDefinition(variableName.definition());
+        result.setScope(variableName.scope());
+        if (variableName.isFieldAccess()) {
+            result.markAsFieldAccess();
+        }
+        return result;
+    }
+    
+    static boolean isAssignment(Token op) {
+        switch (op) {
+        case POST_DECREMENT:
+        case POST_INCREMENT:
+        case PRE_DECREMENT:
+        case PRE_INCREMENT:
+        case ASSIGN:
+        case PLUS_ASSIGN:
+        case SUB_ASSIGN:
+        case MUL_ASSIGN:
+        case POW_ASSIGN:
+        case DIV_ASSIGN:
+        case MOD_ASSIGN:
+        case SHL_ASSIGN:
+        case SHR_ASSIGN:
+        case AND_ASSIGN:
+        case OR_ASSIGN:
+        case XOR_ASSIGN:
+            return true;
+        default:
+            return false;
+        }
+    }
+    
+    // Returns the Talc type of the value of an expression node, or null if we don't easily know.
+    static TalcType talcTypeOf(AstNode node) {
+        if (node instanceof AstNode.BinaryOperator) {
+            return ((AstNode.BinaryOperator) node).type();
+        } else if (node instanceof AstNode.Constant) {
+            return ((AstNode.Constant) node).type();
+        } else if (node instanceof AstNode.FunctionCall) {
+            return ((AstNode.FunctionCall) node).resolvedReturnType();
+        } else if (node instanceof AstNode.StringConcatenation) {
+            return TalcType.STRING;
+        } else if (node instanceof AstNode.VariableName) {
+            return ((AstNode.VariableName) node).definition().type();
+        }
+        return null;
     }
     
     public AstNode visitFunctionDefinition(AstNode.FunctionDefinition function) {
@@ -388,6 +940,10 @@ public class AstSimplifier implements AstVisitor<AstNode> {
         return ifStatement;
     }
     
+    public AstNode visitImportStatement(AstNode.ImportStatement importStatement) {
+        return importStatement;
+    }
+    
     public AstNode visitListLiteral(AstNode.ListLiteral listLiteral) {
         listLiteral.setExpressions(simplifyAstNodeList(listLiteral.expressions()));
         return listLiteral;
@@ -403,18 +959,34 @@ public class AstSimplifier implements AstVisitor<AstNode> {
         return returnStatement;
     }
     
+    public AstNode visitStringConcatenation(AstNode.StringConcatenation stringConcatenation) {
+        stringConcatenation.setOperands(simplifyAstNodeList(stringConcatenation.operands()));
+        return stringConcatenation;
+    }
+    
     public AstNode visitVariableDefinition(AstNode.VariableDefinition var) {
         var.setInitializer(var.initializer().accept(this));
         return var;
     }
     
     public AstNode visitVariableName(AstNode.VariableName node) {
+        AstNode.Constant value = constantValue(node.definition());
+        if (value != null) {
+            ++propagationCount;
+            return new AstNode.Constant(node.location(), value.constant(), value.type());
+        }
+        usedVariables.add(node.definition());
         return node;
     }
     
     public AstNode visitWhileStatement(AstNode.WhileStatement whileStatement) {
+        int oldPropagationCount = propagationCount;
         AstNode expression = whileStatement.expression().accept(this);
         if (constant(expression) == BooleanValue.FALSE) {
+            if (propagationCount != oldPropagationCount) {
+                // The loop depends on a constant (a configuration setting, say) that rules it out.
+                return AstNode.Block.EMPTY_BLOCK;
+            }
             // The user probably didn't write a dead loop on purpose.
             throw new TalcError(whileStatement.expression(), "this \"while\" expression is always false, so the loop body is unreachable");
         }
@@ -0,0 +1,252 @@
+/*
+ * This file is part of Talc.
+ * Copyright (C) 2008-2009 Elliott Hughes <enh@jessies.org>.
+ * 
+ * Talc is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * Talc is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.jessies.talc;
+
+import java.util.*;
+
+/**
+ * Finds the string variables that a loop only ever appends to: "s += x",
+ * "s = s + x", or "s = s + x + y + ...", as statements. The loop doesn't
+ * otherwise mention them, so the code generator can keep them in a
+ * StringBuilder for the duration of the loop rather than copying the whole
+ * string on every iteration.
+ * 
+ * This has to run on the final AST (after AstSimplifier).
+ */
+public class AstStringAccumulatorFinder implements AstVisitor<Void> {
+    private LinkedHashSet<AstNode.VariableDefinition> appendedTo = new LinkedHashSet<AstNode.VariableDefinition>();
+    private HashSet<AstNode.VariableDefinition> disqualified = new HashSet<AstNode.VariableDefinition>();
+    
+    public AstStringAccumulatorFinder(AstNode loop) {
+        loop.accept(this);
+    }
+    
+    /**
+     * Returns the variables defined outside the loop that the loop only appends to.
+     */
+    public List<AstNode.VariableDefinition> accumulators() {
+        ArrayList<AstNode.VariableDefinition> result = new ArrayList<AstNode.VariableDefinition>();
+        for (AstNode.VariableDefinition variable : appendedTo) {
+            if (disqualified.contains(variable) == false) {
+                result.add(variable);
+            }
+        }
+        return result;
+    }
+    
+    /**
+     * Returns the variable appended to if 'statement' is an append to a string variable, null otherwise.
+     */
+    public static AstNode.VariableDefinition appendTarget(AstNode statement) {
+        if (appendedOperands(statement) == null) {
+            return null;
+        }
+        return ((AstNode.VariableName) ((AstNode.BinaryOperator) statement).lhs()).definition();
+    }
+    
+    /**
+     * Returns the operands appended if 'statement' is an append to a string variable, null otherwise.
+     */
+    public static List<AstNode> appendedOperands(AstNode statement) {
+        if (statement instanceof AstNode.BinaryOperator == false) {
+            return null;
+        }
+        AstNode.BinaryOperator binOp = (AstNode.BinaryOperator) statement;
+        if (binOp.type() != TalcType.STRING || binOp.lhs() instanceof AstNode.VariableName == false) {
+            return null;
+        }
+        AstNode.VariableDefinition variable = ((AstNode.VariableName) binOp.lhs()).definition();
+        if (binOp.op() == Token.PLUS_ASSIGN) {
+            // s += x
+            return Collections.singletonList(binOp.rhs());
+        } else if (binOp.op() == Token.ASSIGN) {
+            AstNode rhs = binOp.rhs();
+            if (rhs instanceof AstNode.StringConcatenation) {
+                // s = s + x + y + ...
+                List<AstNode> operands = ((AstNode.StringConcatenation) rhs).operands();
+                if (isReferenceTo(operands.get(0), variable)) {
+                    return operands.subList(1, operands.size());
+                }
+            } else if (rhs instanceof AstNode.BinaryOperator) {
+                // s = s + x
+                AstNode.BinaryOperator rhsOp = (AstNode.BinaryOperator) rhs;
+                if (rhsOp.op() == Token.PLUS && rhsOp.type() == TalcType.STRING && isReferenceTo(rhsOp.lhs(), variable)) {
+                    return Collections.singletonList(rhsOp.rhs());
+                }
+            }
+        }
+        return null;
+    }
+    
+    private static boolean isReferenceTo(AstNode node, AstNode.VariableDefinition variable) {
+        return (node instanceof AstNode.VariableName && ((AstNode.VariableName) node).definition() == variable);
+    }
+    
+    private void visitStatement(AstNode statement) {
+        List<AstNode> operands = appendedOperands(statement);
+        if (operands != null) {
+            AstNode.VariableDefinition variable = appendTarget(statement);
+            if (variable.type() == TalcType.STRING) {
+                appendedTo.add(variable);
+            } else {
+                disqualified.add(variable);
+            }
+            for (AstNode operand : operands) {
+                operand.accept(this);
+            }
+        } else {
+            statement.accept(this);
+        }
+    }
+    
+    private void visitIfNonNull(AstNode node) {
+        if (node != null) {
+            node.accept(this);
+        }
+    }
+    
+    public Void visitAssertStatement(AstNode.AssertStatement assertStatement) {
+        assertStatement.testExpression().accept(this);
+        visitIfNonNull(assertStatement.explanatoryExpression());
+        return null;
+    }
+    
+    public Void visitBinaryOperator(AstNode.BinaryOperator binOp) {
+        binOp.lhs().accept(this);
+        visitIfNonNull(binOp.rhs());
+        return null;
+    }
+    
+    public Void visitBlock(AstNode.Block block) {
+        for (AstNode statement : block.statements()) {
+            visitStatement(statement);
+        }
+        return null;
+    }
+    
+    public Void visitBreakStatement(AstNode.BreakStatement breakStatement) {
+        return null;
+    }
+    
+    public Void visitClassDefinition(AstNode.ClassDefinition classDefinition) {
+        return null;
+    }
+    
+    public Void visitConstant(AstNode.Constant constant) {
+        return null;
+    }
+    
+    public Void visitContinueStatement(AstNode.ContinueStatement continueStatement) {
+        return null;
+    }
+    
+    public Void visitDoStatement(AstNode.DoStatement doStatement) {
+        doStatement.body().accept(this);
+        doStatement.expression().accept(this);
+        return null;
+    }
+    
+    public Void visitForStatement(AstNode.ForStatement forStatement) {
+        visitIfNonNull(forStatement.initializer());
+        forStatement.conditionExpression().accept(this);
+        visitStatement(forStatement.updateExpression());
+        forStatement.body().accept(this);
+        return null;
+    }
+    
+    public Void visitForEachStatement(AstNode.ForEachStatement forEachStatement) {
+        // The loop variables are redefined on every iteration.
+        disqualified.addAll(forEachStatement.loopVariableDefinitions());
+        forEachStatement.expression().accept(this);
+        forEachStatement.body().accept(this);
+        return null;
+    }
+    
+    public Void visitFunctionCall(AstNode.FunctionCall functionCall) {
+        visitIfNonNull(functionCall.instance());
+        for (AstNode argument : functionCall.arguments()) {
+            argument.accept(this);
+        }
+        return null;
+    }
+    
+    public Void visitFunctionDefinition(AstNode.FunctionDefinition functionDefinition) {
+        return null;
+    }
+    
+    public Void visitIfStatement(AstNode.IfStatement ifStatement) {
+        for (AstNode expression : ifStatement.expressions()) {
+            expression.accept(this);
+        }
+        for (AstNode body : ifStatement.bodies()) {
+            body.accept(this);
+        }
+        ifStatement.elseBlock().accept(this);
+        return null;
+    }
+    
+    public Void visitImportStatement(AstNode.ImportStatement importStatement) {
+        return null;
+    }
+    
+    public Void visitListLiteral(AstNode.ListLiteral listLiteral) {
+        for (AstNode expression : listLiteral.expressions()) {
+            expression.accept(this);
+        }
+        return null;
+    }
+    
+    public Void visitMapLiteral(AstNode.MapLiteral mapLiteral) {
+        for (AstNode expression : mapLiteral.expressions()) {
+            expression.accept(this);
+        }
+        return null;
+    }
+    
+    public Void visitReturnStatement(AstNode.ReturnStatement returnStatement) {
+        visitIfNonNull(returnStatement.expression());
+        return null;
+    }
+    
+    public Void visitStringConcatenation(AstNode.StringConcatenation stringConcatenation) {
+        for (AstNode operand : stringConcatenation.operands()) {
+            operand.accept(this);
+        }
+        return null;
+    }
+    
+    public Void visitVariableDefinition(AstNode.VariableDefinition variableDefinition) {
+        // Variables defined inside the loop start afresh on every iteration.
+        disqualified.add(variableDefinition);
+        visitIfNonNull(variableDefinition.initializer());
+        return null;
+    }
+    
+    public Void visitVariableName(AstNode.VariableName variableName) {
+        // Any use other than appending means the variable has to hold a real string.
+        disqualified.add(variableName.definition());
+        return null;
+    }
+    
+    public Void visitWhileStatement(AstNode.WhileStatement whileStatement) {
+        whileStatement.expression().accept(this);
+        whileStatement.body().accept(this);
+        return null;
+    }
+}
@@ -446,6 +446,10 @@ public class AstTypeChecker implements AstVisitor<TalcType> {
         return true;
     }
     
+    public TalcType visitImportStatement(AstNode.ImportStatement importStatement) {
+        return TalcType.VOID;
+    }
+    
     public TalcType visitListLiteral(AstNode.ListLiteral listLiteral) {
         if (DEBUG_TYPES) { System.out.println("visitListLiteral()"); }
         final List<AstNode> expressions = listLiteral.expressions();
@@ -549,6 +553,16 @@ public class AstTypeChecker implements AstVisitor<TalcType> {
         return TalcType.VOID;
     }
     
+    public TalcType visitStringConcatenation(AstNode.StringConcatenation stringConcatenation) {
+        for (AstNode operand : stringConcatenation.operands()) {
+            TalcType operandType = operand.accept(this);
+            if (operandType != TalcType.STRING) {
+                throw new TalcError(stringConcatenation, "all operands to string concatenation must be of string type, got " + operandType);
+            }
+        }
+        return TalcType.STRING;
+    }
+    
     public TalcType visitVariableDefinition(AstNode.VariableDefinition variableDefinition) {
         TalcType actualType = null;
         if (variableDefinition.initializer() != null) {
@@ -32,9 +32,11 @@ public interface AstVisitor<ResultT> {
     public ResultT visitFunctionCall(AstNode.FunctionCall functionCall);
     public ResultT visitFunctionDefinition(AstNode.FunctionDefinition functionDefinition);
     public ResultT visitIfStatement(AstNode.IfStatement ifStatement);
+    public ResultT visitImportStatement(AstNode.ImportStatement importStatement);
     public ResultT visitListLiteral(AstNode.ListLiteral listLiteral);
     public ResultT visitMapLiteral(AstNode.MapLiteral mapLiteral);
     public ResultT visitReturnStatement(AstNode.ReturnStatement returnStatement);
+    public ResultT visitStringConcatenation(AstNode.StringConcatenation stringConcatenation);
     public ResultT visitVariableDefinition(AstNode.VariableDefinition variableDefinition);
     public ResultT visitVariableName(AstNode.VariableName variableName);
     public ResultT visitWhileStatement(AstNode.WhileStatement whileStatement);
@@ -0,0 +1,379 @@
+/*
+ * This file is part of Talc.
+ * Copyright (C) 2008-2009 Elliott Hughes <enh@jessies.org>.
+ * 
+ * Talc is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * Talc is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.jessies.talc;
+
+import java.io.*;
+import java.security.*;
+import java.util.*;
+
+/**
+ * An on-disk cache of generated classes, so that running an unchanged script
+ * doesn't mean lexing, parsing, checking and generating code all over again.
+ * 
+ * Entries live in $TALC_CACHE_DIR, or $XDG_CACHE_HOME/talc, or ~/.cache/talc.
+ * Each one is named after a hash of everything that affects the generated code
+ * that we know before parsing: the script's source, the library path, the
+ * options, the default charset, and this build of Talc itself. We don't know what a script imports
+ * until we've parsed it, so each entry also records the libraries it used,
+ * and we check they'd still be found in the same place with the same content
+ * before trusting it.
+ * 
+ * Entries for libraries (see Library) also hold the library's signature: what
+ * its importers need to know about it.
+ * 
+ * The cache is kept to MAX_CACHE_SIZE bytes by deleting the least recently
+ * used entries whenever we add one.
+ * 
+ * Any trouble reading or writing the cache just means a miss; it's never worth
+ * failing a script over.
+ */
+public class CodeCache {
+    private static final int MAGIC = 0x74616c63; // "talc"
+    // Bump this if the format of the entries changes.
+    private static final int FORMAT_VERSION = 2;
+    
+    // How big we let the cache get before evicting entries.
+    private static final long MAX_CACHE_SIZE = 64 * 1024 * 1024;
+    
+    // Debugging flags that change the generated code, and so have to be part of the key.
+    private static final String CODE_GENERATION_FLAGS = "CIMoU";
+    
+    private static String talcFingerprint;
+    
+    private final File directory;
+    private final File entryFile;
+    private final List<String> libraryPath;
+    
+    private CodeCache(File directory, String key, List<String> libraryPath) {
+        this.directory = directory;
+        this.entryFile = new File(directory, key + ".classes");
+        this.libraryPath = libraryPath;
+    }
+    
+    /**
+     * Returns the cache entry for the given source, or null if caching is turned off.
+     * 'options' should describe any command-line options that change the AST.
+     */
+    public static CodeCache forSource(byte[] source, String argv0, List<String> libraryPath, String options) {
+        if (Talc.debugging('c')) {
+            return null;
+        }
+        // Anything that wants to see the compiler at work needs the compiler to run.
+        for (char ch : "ilLpsSTv".toCharArray()) {
+            if (Talc.debugging(ch)) {
+                return null;
+            }
+        }
+        File directory = cacheDirectory();
+        if (directory == null) {
+            return null;
+        }
+        
+        MessageDigest digest = newDigest();
+        update(digest, FORMAT_VERSION + " " + talcFingerprint());
+        // ARGV0 is a constant in the generated code.
+        update(digest, String.valueOf(argv0));
+        update(digest, new ListValue(libraryPath).join(File.pathSeparator));
+        update(digest, options);
+        // The lexer decodes source using the default charset.
+        update(digest, java.nio.charset.Charset.defaultCharset().name());
+        for (char ch : CODE_GENERATION_FLAGS.toCharArray()) {
+            update(digest, Talc.debugging(ch) ? "+" : "-");
+        }
+        digest.update(source);
+        return new CodeCache(directory, toHex(digest.digest()), libraryPath);
+    }
+    
+    private static File cacheDirectory() {
+        String path = System.getenv("TALC_CACHE_DIR");
+        if (path == null || path.length() == 0) {
+            String xdgCacheHome = System.getenv("XDG_CACHE_HOME");
+            if (xdgCacheHome != null && xdgCacheHome.length() > 0) {
+                path = xdgCacheHome + "/talc";
+            } else {
+                String home = System.getProperty("user.home");
+                if (home == null) {
+                    return null;
+                }
+                path = home + "/.cache/talc";
+            }
+        }
+        return new File(path);
+    }
+    
+    public static class Entry {
+        private final LinkedHashMap<String, File> importedLibraries = new LinkedHashMap<String, File>();
+        private final LinkedHashMap<String, byte[]> classes = new LinkedHashMap<String, byte[]>();
+        private byte[] signature;
+        
+        private Entry() {
+        }
+        
+        /**
+         * Returns the libraries the source imported, directly or indirectly, and the files they were found in.
+         */
+        public Map<String, File> importedLibraries() {
+            return importedLibraries;
+        }
+        
+        /**
+         * Returns the generated classes, in the order they were defined.
+         */
+        public Map<String, byte[]> classes() {
+            return classes;
+        }
+        
+        public byte[] signature() {
+            return signature;
+        }
+    }
+    
+    /**
+     * Returns the entry for our source, or null on a miss.
+     */
+    public Entry load() {
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(entryFile)));
+            if (in.readInt() != MAGIC || in.readInt() != FORMAT_VERSION) {
+                return null;
+            }
+            Entry entry = new Entry();
+            // Check that the imports haven't changed.
+            int importCount = in.readInt();
+            for (int i = 0; i < importCount; ++i) {
+                String libraryName = in.readUTF();
+                String path = in.readUTF();
+                String hash = in.readUTF();
+                File libraryFile = Parser.findLibrary(libraryPath, libraryName);
+                if (libraryFile == null || libraryFile.getPath().equals(path) == false || hash.equals(hashFile(libraryFile)) == false) {
+                    return null;
+                }
+                entry.importedLibraries.put(libraryName, libraryFile);
+            }
+            int classCount = in.readInt();
+            for (int i = 0; i < classCount; ++i) {
+                String className = in.readUTF();
+                byte[] bytecode = new byte[in.readInt()];
+                in.readFully(bytecode);
+                entry.classes.put(className, bytecode);
+            }
+            int signatureLength = in.readInt();
+            if (signatureLength >= 0) {
+                entry.signature = new byte[signatureLength];
+                in.readFully(entry.signature);
+            }
+            // The modification time records when an entry was last used, for evictOldEntries.
+            entryFile.setLastModified(System.currentTimeMillis());
+            return entry;
+        } catch (IOException ex) {
+            // Most likely there's no entry, but a truncated or unreadable one is a miss too.
+            return null;
+        } finally {
+            closeQuietly(in);
+        }
+    }
+    
+    /**
+     * Saves the classes generated for our source, which imported 'importedLibraries' (directly or indirectly).
+     * 'signature' may be null. Returns false if the entry couldn't be written.
+     */
+    public boolean store(Map<String, File> importedLibraries, Map<String, byte[]> classes, byte[] signature) {
+        File tmpFile = null;
+        DataOutputStream out = null;
+        try {
+            directory.mkdirs();
+            // Write to a temporary file and rename it into place, so concurrent runs of the same script never see a partial entry.
+            tmpFile = File.createTempFile("talc-", ".tmp", directory);
+            out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmpFile)));
+            out.writeInt(MAGIC);
+            out.writeInt(FORMAT_VERSION);
+            out.writeInt(importedLibraries.size());
+            for (Map.Entry<String, File> library : importedLibraries.entrySet()) {
+                out.writeUTF(library.getKey());
+                out.writeUTF(library.getValue().getPath());
+                out.writeUTF(hashFile(library.getValue()));
+            }
+            out.writeInt(classes.size());
+            for (Map.Entry<String, byte[]> generatedClass : classes.entrySet()) {
+                out.writeUTF(generatedClass.getKey());
+                out.writeInt(generatedClass.getValue().length);
+                out.write(generatedClass.getValue());
+            }
+            if (signature != null) {
+                out.writeInt(signature.length);
+                out.write(signature);
+            } else {
+                out.writeInt(-1);
+            }
+            out.close();
+            out = null;
+            if (tmpFile.renameTo(entryFile)) {
+                tmpFile = null;
+                evictOldEntries();
+                return true;
+            }
+            return false;
+        } catch (IOException ex) {
+            return false;
+        } finally {
+            closeQuietly(out);
+            if (tmpFile != null) {
+                tmpFile.delete();
+            }
+        }
+    }
+    
+    public File entryFile() {
+        return entryFile;
+    }
+    
+    // Deletes the least recently used entries (other than ours) until the cache fits in MAX_CACHE_SIZE.
+    private void evictOldEntries() {
+        File[] entries = directory.listFiles(new FilenameFilter() {
+            public boolean accept(File dir, String name) {
+                return name.endsWith(".classes");
+            }
+        });
+        if (entries == null) {
+            return;
+        }
+        long totalSize = 0;
+        // Other runs may touch entries while we sort, so we sort by a snapshot of their times.
+        final HashMap<File, Long> lastUsed = new HashMap<File, Long>();
+        for (File entry : entries) {
+            totalSize += entry.length();
+            lastUsed.put(entry, entry.lastModified());
+        }
+        if (totalSize <= MAX_CACHE_SIZE) {
+            return;
+        }
+        Arrays.sort(entries, new Comparator<File>() {
+            public int compare(File lhs, File rhs) {
+                return lastUsed.get(lhs).compareTo(lastUsed.get(rhs));
+            }
+        });
+        for (File entry : entries) {
+            if (totalSize <= MAX_CACHE_SIZE) {
+                break;
+            }
+            long length = entry.length();
+            if (entry.equals(entryFile) == false && entry.delete()) {
+                totalSize -= length;
+            }
+        }
+    }
+    
+    /**
+     * Identifies this build of Talc. We don't have a version number, so we use the
+     * size and modification time of our jar file or of each of our class files
+     * (including those in subpackages such as org.jessies.talc.bytecode).
+     */
+    private static synchronized String talcFingerprint() {
+        if (talcFingerprint == null) {
+            StringBuilder result = new StringBuilder();
+            try {
+                File location = new File(Talc.class.getProtectionDomain().getCodeSource().getLocation().toURI());
+                if (location.isDirectory()) {
+                    appendFingerprints(result, new File(location, "org/jessies/talc"), "");
+                } else {
+                    appendFingerprint(result, location);
+                }
+            } catch (Exception ex) {
+                // Without a fingerprint, all we can do is never reuse an entry.
+                result.append(System.nanoTime());
+            }
+            talcFingerprint = result.toString();
+        }
+        return talcFingerprint;
+    }
+    
+    private static void appendFingerprints(StringBuilder result, File directory, String prefix) {
+        File[] files = directory.listFiles();
+        if (files == null) {
+            return;
+        }
+        Arrays.sort(files);
+        for (File file : files) {
+            if (file.isDirectory()) {
+                appendFingerprints(result, file, prefix + file.getName() + "/");
+            } else {
+                result.append(prefix);
+                appendFingerprint(result, file);
+            }
+        }
+    }
+    
+    private static void appendFingerprint(StringBuilder result, File file) {
+        result.append(file.getName()).append(':').append(file.length()).append(':').append(file.lastModified()).append(';');
+    }
+    
+    private static String hashFile(File file) throws IOException {
+        MessageDigest digest = newDigest();
+        InputStream in = new FileInputStream(file);
+        try {
+            byte[] buffer = new byte[8192];
+            int byteCount;
+            while ((byteCount = in.read(buffer)) != -1) {
+                digest.update(buffer, 0, byteCount);
+            }
+        } finally {
+            in.close();
+        }
+        return toHex(digest.digest());
+    }
+    
+    private static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException ex) {
+            // Every Java implementation is required to support SHA-1.
+            throw new RuntimeException(ex);
+        }
+    }
+    
+    private static void update(MessageDigest digest, String s) {
+        try {
+            digest.update(s.getBytes("UTF-8"));
+            // Separate the fields, so that "ab"+"c" and "a"+"bc" give different keys.
+            digest.update((byte) 0);
+        } catch (UnsupportedEncodingException ex) {
+            throw new RuntimeException(ex);
+        }
+    }
+    
+    private static String toHex(byte[] bytes) {
+        StringBuilder result = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes) {
+            result.append(Character.forDigit((b >> 4) & 0xf, 16));
+            result.append(Character.forDigit(b & 0xf, 16));
+        }
+        return result.toString();
+    }
+    
+    private static void closeQuietly(Closeable closeable) {
+        if (closeable != null) {
+            try {
+                closeable.close();
+            } catch (IOException ex) {
+                // Nothing we can usefully do.
+            }
+        }
+    }
+}
@@ -20,6 +20,7 @@ package org.jessies.talc;
 
 import java.io.*;
 import java.nio.*;
+import java.util.*;
 
 public class FileValue {
     private final File file;
@@ -44,6 +45,17 @@ public class FileValue {
         return new FileValue(file.getParentFile());
     }
     
+    /**
+     * Returns the same lines as read_lines, but reads them as they're needed.
+     */
+    public IterableValue each_line() {
+        return new IterableValue() {
+            public Iterator<Object> iterator() {
+                return new LineIterator(file);
+            }
+        };
+    }
+    
     @Override public boolean equals(Object o) {
         if (o instanceof FileValue) {
             return file.equals(((FileValue) o).file);
@@ -137,4 +149,89 @@ public class FileValue {
     public String toString() {
         return file.toString();
     }
+    
+    // Splits a file into lines at "\n" as it's read, dropping trailing empty lines as read_lines does.
+    private static class LineIterator extends IterableValue.LookaheadIterator implements Closeable {
+        private final Reader reader;
+        private final char[] buffer = new char[8192];
+        private int bufferPosition = 0;
+        private int bufferLength = 0;
+        private boolean finished = false;
+        // Empty lines we've read but can't yet return, because we don't know whether they're trailing.
+        private int emptyLineCount = 0;
+        private String pendingLine = null;
+        
+        private LineIterator(File file) {
+            try {
+                this.reader = new InputStreamReader(new FileInputStream(file), "UTF-8");
+            } catch (IOException ex) {
+                throw new RuntimeException(ex);
+            }
+        }
+        
+        protected Object computeNext() {
+            while (true) {
+                if (emptyLineCount > 0 && pendingLine != null) {
+                    --emptyLineCount;
+                    return "";
+                } else if (pendingLine != null) {
+                    final String result = pendingLine;
+                    pendingLine = null;
+                    return result;
+                } else if (finished) {
+                    close();
+                    return null;
+                }
+                
+                final String line = readLine();
+                if (line == null) {
+                    finished = true;
+                } else if (line.length() == 0) {
+                    ++emptyLineCount;
+                } else {
+                    pendingLine = line;
+                }
+            }
+        }
+        
+        // Returns the next line (without its "\n"), or null at the end of the file.
+        private String readLine() {
+            StringBuilder line = null;
+            try {
+                while (true) {
+                    if (bufferPosition == bufferLength) {
+                        bufferLength = reader.read(buffer);
+                        bufferPosition = 0;
+                        if (bufferLength <= 0) {
+                            bufferLength = 0;
+                            return (line != null) ? line.toString() : null;
+                        }
+                    }
+                    final int start = bufferPosition;
+                    while (bufferPosition < bufferLength && buffer[bufferPosition] != '\n') {
+                        ++bufferPosition;
+                    }
+                    if (line == null) {
+                        line = new StringBuilder(bufferPosition - start);
+                    }
+                    line.append(buffer, start, bufferPosition - start);
+                    if (bufferPosition < bufferLength) {
+                        // Skip the "\n".
+                        ++bufferPosition;
+                        return line.toString();
+                    }
+                }
+            } catch (IOException ex) {
+                throw new RuntimeException(ex);
+            }
+        }
+        
+        public void close() {
+            try {
+                reader.close();
+            } catch (IOException ex) {
+                throw new RuntimeException(ex);
+            }
+        }
+    }
 }
@@ -23,17 +23,27 @@ import java.util.*;
 
 public class Functions {
     public static BooleanValue eq(Object lhs, Object rhs) {
+        return BooleanValue.valueOf(areEqual(lhs, rhs));
+    }
+    
+    public static BooleanValue ne(Object lhs, Object rhs) {
+        return BooleanValue.valueOf(!areEqual(lhs, rhs));
+    }
+    
+    // Used by JvmCodeGenerator to branch on == and != without building a BooleanValue.
+    public static boolean areEqual(Object lhs, Object rhs) {
         if (lhs == null) {
-            return BooleanValue.valueOf(rhs == null);
+            return (rhs == null);
         }
-        return BooleanValue.valueOf(lhs.equals(rhs));
+        return lhs.equals(rhs);
     }
     
-    public static BooleanValue ne(Object lhs, Object rhs) {
+    // Used by JvmCodeGenerator when both operands are known to be strings, so the JIT only ever sees String.equals.
+    public static boolean areEqual(String lhs, String rhs) {
         if (lhs == null) {
-            return BooleanValue.valueOf(rhs != null);
+            return (rhs == null);
         }
-        return BooleanValue.valueOf(!lhs.equals(rhs));
+        return lhs.equals(rhs);
     }
     
     public static String backquote(String command) {
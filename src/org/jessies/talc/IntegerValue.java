@@ -33,6 +33,9 @@ public class IntegerValue implements Comparable<IntegerValue> {
     // Used by factorial.
     private static final BigInteger TWO = BigInteger.valueOf(2);
     
+    // Stands for null in the spill slot of an unboxed int local (see spilled and reboxed).
+    private static final IntegerValue SPILLED_NULL = new IntegerValue(0);
+    
     // If 'bignum' is null, this IntegerValue's value is 'fixnum'. Otherwise, it's 'bignum' and 'fixnum' is ignored.
     private long fixnum;
     private BigInteger bignum;
@@ -52,6 +55,31 @@ public class IntegerValue implements Comparable<IntegerValue> {
         return fixnum;
     }
     
+    // Used by JvmCodeGenerator's unboxed int locals, which keep values that fit in a Java int in a primitive long slot,
+    // and "spill" any other value (which might be a bignum, or null) to an IntegerValue slot.
+    public static boolean fitsInInt(IntegerValue value) {
+        return value != null && value.bignum == null && value.fixnum == (int) value.fixnum;
+    }
+
+    public static long unboxed(IntegerValue value) {
+        return (value != null) ? value.fixnum : 0;
+    }
+
+    public static IntegerValue spilled(IntegerValue value) {
+        if (value == null) {
+            // A null spill slot means "not spilled", so null itself needs a stand-in.
+            return SPILLED_NULL;
+        }
+        return fitsInInt(value) ? null : value;
+    }
+
+    public static IntegerValue reboxed(long fixnum, IntegerValue spilled) {
+        if (spilled == null) {
+            return valueOf(fixnum);
+        }
+        return (spilled != SPILLED_NULL) ? spilled : null;
+    }
+
     public static IntegerValue valueOf(long l) {
         if (l >= -128 && l <= 127) {
             return cache[CACHE_OFFSET + (int) l];
@@ -153,11 +181,23 @@ public class IntegerValue implements Comparable<IntegerValue> {
     }
     
     public IntegerValue shiftLeft(IntegerValue rhs) {
-        // FIXME: check that rhs not too large?
+        if (fitsInInt(rhs) == false) {
+            // BigInteger.shiftLeft takes an int. Shifting right that far leaves just the sign, and shifting left that far would need more memory than we have.
+            final int sign = big().signum();
+            if (sign == 0 || rhs.big().signum() < 0) {
+                return IntegerValue.valueOf(sign < 0 ? -1 : 0);
+            }
+            throw new RuntimeException("Shift distance too large");
+        }
         if (isBig() || rhs.isBig()) {
-            return new IntegerValue(big().shiftLeft(rhs.intValue()));
+            return IntegerValue.valueOf(big().shiftLeft(rhs.intValue()));
         } else {
-            return IntegerValue.valueOf(fixnum << rhs.fixnum);
+            // Shifting left is multiplication by a power of two, so it mustn't overflow any more than multiplication does.
+            final long distance = rhs.fixnum;
+            if (distance >= 0 && distance < 64 && ((fixnum << distance) >> distance) == fixnum) {
+                return IntegerValue.valueOf(fixnum << distance);
+            }
+            return IntegerValue.valueOf(big().shiftLeft(rhs.intValue()));
         }
     }
     
@@ -258,6 +298,15 @@ public class IntegerValue implements Comparable<IntegerValue> {
         }
     }
     
+    // Used by JvmCodeGenerator when both operands are known to be "int", to avoid Comparable's interface dispatch.
+    // Because we normalize in valueOf, this is fine for == and != too.
+    public static int compare(IntegerValue lhs, IntegerValue rhs) {
+        if (lhs.bignum == null && rhs.bignum == null) {
+            return (lhs.fixnum < rhs.fixnum) ? -1 : ((lhs.fixnum == rhs.fixnum) ? 0 : 1);
+        }
+        return lhs.big().compareTo(rhs.big());
+    }
+    
     @Override public boolean equals(Object o) {
         if (o instanceof IntegerValue == false) {
             return false;
@@ -0,0 +1,164 @@
+/*
+ * This file is part of Talc.
+ * Copyright (C) 2008-2009 Elliott Hughes <enh@jessies.org>.
+ * 
+ * Talc is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * Talc is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.jessies.talc;
+
+import java.io.*;
+import java.util.*;
+
+/**
+ * A lazily-computed sequence, as returned by the streaming counterparts of
+ * the built-in methods that return lists ("file.each_line" rather than
+ * "file.read_lines", say). A for-each loop asks for one element at a time,
+ * so the whole sequence is never in memory at once, and a "break" means the
+ * rest is never computed.
+ * 
+ * Each call to iterator starts again from the beginning.
+ */
+public abstract class IterableValue implements Iterable<Object> {
+    public abstract Iterator<Object> iterator();
+    
+    /**
+     * Releases anything 'iterator' holds on to (an open file, say).
+     * Called at the end of a for-each loop, however it ends: by running out
+     * of elements, by "break" or "return", or by throwing.
+     */
+    public static void close(Iterator<Object> iterator) {
+        if (iterator instanceof Closeable) {
+            try {
+                ((Closeable) iterator).close();
+            } catch (IOException ex) {
+                throw new RuntimeException(ex);
+            }
+        }
+    }
+    
+    public ListValue to_list() {
+        final ListValue result = new ListValue();
+        final Iterator<Object> it = iterator();
+        try {
+            while (it.hasNext()) {
+                result.push_back(it.next());
+            }
+        } finally {
+            close(it);
+        }
+        return result;
+    }
+    
+    public String toString() {
+        return to_list().toString();
+    }
+    
+    /**
+     * Helps implement iterators whose next element isn't known until it's been computed.
+     * Subclasses implement computeNext, returning null at the end of the sequence.
+     */
+    public static abstract class LookaheadIterator implements Iterator<Object> {
+        private Object next;
+        private boolean haveNext = false;
+        
+        protected abstract Object computeNext();
+        
+        public boolean hasNext() {
+            if (haveNext == false) {
+                next = computeNext();
+                haveNext = true;
+            }
+            return (next != null);
+        }
+        
+        public Object next() {
+            if (hasNext() == false) {
+                throw new NoSuchElementException();
+            }
+            haveNext = false;
+            return next;
+        }
+        
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+    }
+    
+    /**
+     * Yields the pieces of a string between the separators found by findSeparator, with the
+     * same results as Pattern.split: trailing empty pieces are dropped, and a string with no
+     * separators yields just itself.
+     */
+    public static abstract class SplitIterator extends LookaheadIterator {
+        private final String s;
+        private int pieceStart = 0;
+        private boolean foundSeparator = false;
+        private boolean finished = false;
+        // Empty pieces we've found but can't yet return, because we don't know whether they're trailing.
+        private int emptyPieceCount = 0;
+        private String pendingPiece = null;
+        
+        // Set by findSeparator.
+        protected int separatorStart;
+        protected int separatorEnd;
+        
+        protected SplitIterator(String s) {
+            this.s = s;
+        }
+        
+        /**
+         * Finds the next separator, setting separatorStart and separatorEnd. Returns false if there isn't one.
+         */
+        protected abstract boolean findSeparator();
+        
+        protected Object computeNext() {
+            while (true) {
+                if (emptyPieceCount > 0 && (pendingPiece != null)) {
+                    --emptyPieceCount;
+                    return "";
+                } else if (pendingPiece != null) {
+                    final String result = pendingPiece;
+                    pendingPiece = null;
+                    return result;
+                } else if (finished) {
+                    return null;
+                }
+                
+                String piece;
+                if (findSeparator()) {
+                    if (separatorEnd == 0) {
+                        // Like Pattern.split, ignore an empty separator at the very start.
+                        continue;
+                    }
+                    foundSeparator = true;
+                    piece = s.substring(pieceStart, separatorStart);
+                    pieceStart = separatorEnd;
+                } else {
+                    finished = true;
+                    if (foundSeparator == false) {
+                        return s;
+                    }
+                    piece = s.substring(pieceStart);
+                }
+                
+                if (piece.length() == 0) {
+                    ++emptyPieceCount;
+                } else {
+                    pendingPiece = piece;
+                }
+            }
+        }
+    }
+}
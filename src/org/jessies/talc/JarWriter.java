@@ -0,0 +1,127 @@
+/*
+ * This file is part of Talc.
+ * Copyright (C) 2008-2009 Elliott Hughes <enh@jessies.org>.
+ * 
+ * Talc is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * Talc is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.jessies.talc;
+
+import java.io.*;
+import java.util.*;
+import java.util.jar.*;
+
+/**
+ * Writes the classes generated for a script to a jar file that "java -jar"
+ * can run, for "talc --compile". The generated code needs the Talc runtime,
+ * so we copy in the classes we're running from: the result doesn't need Talc
+ * to be installed, and always matches the compiler that generated it.
+ */
+public class JarWriter {
+    private JarWriter() {
+    }
+    
+    public static void writeJar(File jarFile, Map<String, byte[]> generatedClasses) throws IOException {
+        Manifest manifest = new Manifest();
+        Attributes attributes = manifest.getMainAttributes();
+        attributes.put(Attributes.Name.MANIFEST_VERSION, "1.0");
+        attributes.put(Attributes.Name.MAIN_CLASS, "GeneratedClass");
+        attributes.put(new Attributes.Name("Created-By"), "talc --compile");
+        
+        JarOutputStream out = new JarOutputStream(new BufferedOutputStream(new FileOutputStream(jarFile)), manifest);
+        try {
+            for (Map.Entry<String, byte[]> generatedClass : generatedClasses.entrySet()) {
+                out.putNextEntry(new JarEntry(generatedClass.getKey().replace('.', '/') + ".class"));
+                out.write(generatedClass.getValue());
+                out.closeEntry();
+            }
+            copyRuntime(out);
+        } finally {
+            out.close();
+        }
+    }
+    
+    private static void copyRuntime(JarOutputStream out) throws IOException {
+        File location;
+        try {
+            location = new File(Talc.class.getProtectionDomain().getCodeSource().getLocation().toURI());
+        } catch (Exception ex) {
+            throw new IOException("couldn't find the Talc runtime: " + ex.getMessage());
+        }
+        if (location.isDirectory()) {
+            copyDirectory(out, location, "");
+        } else {
+            copyJar(out, location);
+        }
+    }
+    
+    private static void copyDirectory(JarOutputStream out, File directory, String prefix) throws IOException {
+        File[] files = directory.listFiles();
+        if (files == null) {
+            throw new IOException("couldn't list \"" + directory + "\"");
+        }
+        Arrays.sort(files);
+        for (File file : files) {
+            String name = prefix + file.getName();
+            if (file.isDirectory()) {
+                out.putNextEntry(new JarEntry(name + "/"));
+                out.closeEntry();
+                copyDirectory(out, file, name + "/");
+            } else {
+                InputStream in = new FileInputStream(file);
+                try {
+                    copyEntry(out, name, in);
+                } finally {
+                    in.close();
+                }
+            }
+        }
+    }
+    
+    private static void copyJar(JarOutputStream out, File file) throws IOException {
+        JarFile jar = new JarFile(file);
+        try {
+            for (Enumeration<JarEntry> entries = jar.entries(); entries.hasMoreElements(); ) {
+                JarEntry entry = entries.nextElement();
+                // We've written our own manifest, and any signatures wouldn't match our jar.
+                if (entry.getName().startsWith("META-INF/")) {
+                    continue;
+                }
+                if (entry.isDirectory()) {
+                    out.putNextEntry(new JarEntry(entry.getName()));
+                    out.closeEntry();
+                    continue;
+                }
+                InputStream in = jar.getInputStream(entry);
+                try {
+                    copyEntry(out, entry.getName(), in);
+                } finally {
+                    in.close();
+                }
+            }
+        } finally {
+            jar.close();
+        }
+    }
+    
+    private static void copyEntry(JarOutputStream out, String name, InputStream in) throws IOException {
+        out.putNextEntry(new JarEntry(name));
+        byte[] buffer = new byte[8192];
+        int byteCount;
+        while ((byteCount = in.read(buffer)) != -1) {
+            out.write(buffer, 0, byteCount);
+        }
+        out.closeEntry();
+    }
+}
@@ -20,6 +20,7 @@ package org.jessies.talc;
 
 import java.io.*;
 import java.util.*;
+import java.util.regex.*;
 import org.jessies.talc.bytecode.*;
 
 /**
@@ -31,23 +32,63 @@ public class JvmCodeGenerator implements AstVisitor<Void> {
     // FIXME: these "types" are actually class names. We should say so.
     // FIXME: we often want the corresponding signatures. Add constants for them?
     private static final String integerValueType = "org/jessies/talc/IntegerValue";
+    private static final String iterableValueType = "org/jessies/talc/IterableValue";
     private static final String listValueType = "org/jessies/talc/ListValue";
     private static final String mapValueType = "org/jessies/talc/MapValue";
     private static final String realValueType = "org/jessies/talc/RealValue";
+    private static final String regularExpressionType = "org/jessies/talc/RegularExpression";
     
-    private static final String generatedClassType = "GeneratedClass";
+    private static final String scriptClassType = "GeneratedClass";
+    
+    // The class we're generating for the global code: scriptClassType, or a library's class.
+    private final String generatedClassType;
+    private final boolean isLibrary;
     
     private static final String javaLangAssertionErrorType = "java/lang/AssertionError";
     private static final String javaLangObjectType = "java/lang/Object";
     private static final String javaLangStringType = "java/lang/String";
     private static final String javaUtilIteratorType = "java/util/Iterator";
     
-    // Our highly sophisticated register allocator.
-    // Also used to set the value of the eponymous field of the Code attribute.
+    private static final ClassFileWriter.MHandle builtInMethodBootstrap = new ClassFileWriter.MHandle(ByteCode.MH_INVOKESTATIC, "org/jessies/talc/Linker", "bootstrap", "(Ljava/lang/invoke/MethodHandles$Lookup;Ljava/lang/String;Ljava/lang/invoke/MethodType;Ljava/lang/invoke/MethodHandle;)Ljava/lang/invoke/CallSite;");
+    
+    // Our register allocator. Each local gets the next free slot, and its slots
+    // become free again when the scope (block, "for" or for-each) that defined
+    // it ends, so later scopes reuse them. Scopes nest, so a stack is enough.
+    // 'maxLocals' is the high water mark, used to set the value of the
+    // eponymous field of the Code attribute.
+    private short nextLocal;
     private short maxLocals;
+    // For each active scope, the value of 'nextLocal' and the size of 'liveVariableDescriptors' on entry.
+    private ArrayStack<int[]> activeScopes = new ArrayStack<int[]>();
+    // The LocalVariableTable handles of the locals in active scopes, so we can end their ranges when the scope ends.
+    private ArrayList<Integer> liveVariableDescriptors = new ArrayList<Integer>();
+    // The number of slots we'd have used without reuse, and the method they're for, for -D L.
+    private int unsharedLocals;
+    private String currentMethodName;
+    
+    // HotSpot won't JIT-compile a method with more than this many bytes of bytecode (-XX:HugeMethodLimit),
+    // and the class file format won't let a method have more than 64KiB.
+    private static final int HUGE_METHOD_SIZE = 8000;
+    // When we split code into helper methods, we start a new helper once the current one has this many bytes.
+    private static final int SPLIT_METHOD_SIZE = 4000;
+    
+    // True while we're generating a function that's been split into helper methods.
+    // Variables defined in 'frameScope' (the function body's outermost scope) live in a "frame" array shared by the helpers.
+    private boolean inSplitFunction;
+    private Scope frameScope;
+    private int frameSize;
+    // The local holding the frame array in the method we're currently generating.
+    private int frameLocal;
+    
+    // Non-zero while we're generating the boxed slow path for unboxed int code, which doesn't need guarding again.
+    private int unboxedSlowPathDepth;
     
     // We need the ability to track active loops to implement "break" and "continue".
-    private static class LoopInfo { int breakLabel, continueLabel; }
+    private static class LoopInfo {
+        int breakLabel, continueLabel;
+        // For a for-each over an IterableValue, the iterator to close however the loop is left.
+        JvmLocalVariableAccessor iterator;
+    }
     private ArrayStack<LoopInfo> activeLoops = new ArrayStack<LoopInfo>();
     private LoopInfo enterLoop() {
         LoopInfo loopInfo = new LoopInfo();
@@ -60,18 +101,62 @@ public class JvmCodeGenerator implements AstVisitor<Void> {
         activeLoops.pop();
     }
     
+    // The string variables that the active loops are accumulating in StringBuilders, and the locals holding those builders.
+    private IdentityHashMap<AstNode.VariableDefinition, Integer> stringAccumulators = new IdentityHashMap<AstNode.VariableDefinition, Integer>();
+    
+    private void startMethod(String methodName, String type, short flags) {
+        cv.startMethod(methodName, type, flags);
+        currentMethodName = methodName;
+        nextLocal = maxLocals = 0;
+        unsharedLocals = 0;
+        liveVariableDescriptors.clear();
+    }
+    
+    private void stopMethod() {
+        if (Talc.debugging('L')) {
+            System.err.println("[talc] " + cv.getClassName() + "." + currentMethodName + " uses " + maxLocals + " local variable slots (" + unsharedLocals + " without reuse)");
+        }
+        cv.stopMethod(maxLocals);
+    }
+    
+    // Returns the first of 'size' consecutive slots for a new local, live until the end of the current scope.
+    private short allocateLocal(String identifier, String signature, int size) {
+        short variable = nextLocal;
+        nextLocal += size;
+        maxLocals = (short) Math.max(maxLocals, nextLocal);
+        unsharedLocals += size;
+        liveVariableDescriptors.add(cv.addVariableDescriptor(identifier, signature, cv.getCurrentCodeOffset(), variable));
+        return variable;
+    }
+    
+    private void enterScope() {
+        activeScopes.push(new int[] { nextLocal, liveVariableDescriptors.size() });
+    }
+    
+    private void leaveScope() {
+        int[] scope = activeScopes.pop();
+        nextLocal = (short) scope[0];
+        while (liveVariableDescriptors.size() > scope[1]) {
+            int handle = liveVariableDescriptors.remove(liveVariableDescriptors.size() - 1);
+            cv.endVariableDescriptor(handle, cv.getCurrentCodeOffset());
+        }
+    }
+    
     // The class we're currently emitting code for.
     private ClassFileWriter cv;
     
     private long creationTime;
     private TalcClassLoader classLoader;
+    private AstEscapeAnalyzer escapeAnalyzer;
+    
+    // The unshared globals that the current global code helper keeps in locals, and those locals' accessors.
+    private IdentityHashMap<AstNode.VariableDefinition, VariableAccessor> cachedGlobals = new IdentityHashMap<AstNode.VariableDefinition, VariableAccessor>();
     
     private class JvmLocalVariableAccessor implements VariableAccessor {
         private int variable;
         
-        private JvmLocalVariableAccessor(String identifier, String signature, int variable) {
-            this.variable = variable;
-            cv.addVariableDescriptor(identifier, signature, cv.getCurrentCodeOffset(), variable);
+        private JvmLocalVariableAccessor(String identifier, String signature) {
+            this.variable = allocateLocal(identifier, signature, 1);
         }
         
         public void emitGet() {
@@ -83,6 +168,32 @@ public class JvmCodeGenerator implements AstVisitor<Void> {
         }
     }
     
+    // Used for the variables shared between the helper methods of a split function.
+    private class JvmFrameAccessor implements VariableAccessor {
+        private int index;
+        private String type;
+        
+        private JvmFrameAccessor(int index, String type) {
+            this.index = index;
+            this.type = type;
+        }
+        
+        public void emitGet() {
+            cv.addALoad(frameLocal);
+            cv.addPush(index);
+            cv.add(ByteCode.AALOAD);
+            cv.add(ByteCode.CHECKCAST, type);
+        }
+        
+        public void emitPut() {
+            cv.addALoad(frameLocal);
+            cv.add(ByteCode.SWAP);
+            cv.addPush(index);
+            cv.add(ByteCode.SWAP);
+            cv.add(ByteCode.AASTORE);
+        }
+    }
+    
     private class JvmFieldAccessor implements VariableAccessor {
         private String className;
         private String fieldName;
@@ -116,6 +227,110 @@ public class JvmCodeGenerator implements AstVisitor<Void> {
         }
     }
     
+    /**
+     * Backs an "int" local with a primitive long slot, speculating that its
+     * value will usually fit in a Java int. Arithmetic on operands in the int
+     * range can't overflow a long, so we can use primitive long bytecodes and
+     * only check the range when the result is stored.
+     *
+     * Any value that doesn't fit (including null, from a missing map key, say)
+     * is "spilled" to a second, IntegerValue, slot.
+     * While that slot is non-null, it holds the variable's value, and code
+     * using the variable has to fall back to the usual boxed IntegerValue path
+     * (which copes with bignums).
+     */
+    private class JvmUnboxedIntegerLocalAccessor implements VariableAccessor {
+        private int fixnumVariable;
+        private int spillVariable;
+        
+        private JvmUnboxedIntegerLocalAccessor(String identifier) {
+            this.fixnumVariable = allocateLocal(identifier, "J", 2);
+            this.spillVariable = allocateLocal(identifier + "$spilled", "Lorg/jessies/talc/IntegerValue;", 1);
+        }
+        
+        public void emitGet() {
+            cv.addLLoad(fixnumVariable);
+            cv.addALoad(spillVariable);
+            cv.addInvoke(ByteCode.INVOKESTATIC, integerValueType, "reboxed", "(JLorg/jessies/talc/IntegerValue;)Lorg/jessies/talc/IntegerValue;");
+        }
+        
+        public void emitPut() {
+            cv.add(ByteCode.DUP);
+            cv.addInvoke(ByteCode.INVOKESTATIC, integerValueType, "spilled", "(Lorg/jessies/talc/IntegerValue;)Lorg/jessies/talc/IntegerValue;");
+            cv.addAStore(spillVariable);
+            cv.addInvoke(ByteCode.INVOKESTATIC, integerValueType, "unboxed", "(Lorg/jessies/talc/IntegerValue;)J");
+            cv.addLStore(fixnumVariable);
+        }
+        
+        // Jumps to 'slowPathLabel' if the variable's current value has been spilled.
+        private void emitGuard(int slowPathLabel) {
+            cv.addALoad(spillVariable);
+            cv.add(ByteCode.IFNONNULL, slowPathLabel);
+        }
+        
+        // Only valid once emitGuard has ruled out a spilled value.
+        private void emitGetUnboxed() {
+            cv.addLLoad(fixnumVariable);
+        }
+        
+        // Stores the long on the top of the stack, spilling it if it doesn't fit in an int.
+        private void emitPutUnboxed() {
+            int spillLabel = cv.acquireLabel();
+            int doneLabel = cv.acquireLabel();
+            
+            // We always write the fixnum slot, so the verifier never sees it uninitialized.
+            cv.add(ByteCode.DUP2);
+            cv.addLStore(fixnumVariable);
+            // if ((long) (int) value != value) goto spillLabel;
+            cv.add(ByteCode.DUP2);
+            cv.add(ByteCode.L2I);
+            cv.add(ByteCode.I2L);
+            cv.add(ByteCode.LCMP);
+            cv.add(ByteCode.IFNE, spillLabel);
+            // spilled = null;
+            cv.add(ByteCode.ACONST_NULL);
+            cv.addAStore(spillVariable);
+            cv.add(ByteCode.GOTO, doneLabel);
+            // spillLabel: spilled = IntegerValue.valueOf(value);
+            cv.markLabel(spillLabel);
+            cv.addLLoad(fixnumVariable);
+            cv.addInvoke(ByteCode.INVOKESTATIC, integerValueType, "valueOf", "(J)Lorg/jessies/talc/IntegerValue;");
+            cv.addAStore(spillVariable);
+            cv.markLabel(doneLabel);
+        }
+    }
+    
+    /**
+     * Backs a "real" local with a primitive double slot. Every real value fits,
+     * so there's no need for guards: we just box whenever the value escapes to
+     * code that expects a RealValue.
+     */
+    private class JvmUnboxedRealLocalAccessor implements VariableAccessor {
+        private int variable;
+        
+        private JvmUnboxedRealLocalAccessor(String identifier) {
+            this.variable = allocateLocal(identifier, "D", 2);
+        }
+        
+        public void emitGet() {
+            cv.addDLoad(variable);
+            cv.addInvoke(ByteCode.INVOKESTATIC, realValueType, "box", "(D)Lorg/jessies/talc/RealValue;");
+        }
+        
+        public void emitPut() {
+            cv.addInvoke(ByteCode.INVOKEVIRTUAL, realValueType, "doubleValue", "()D");
+            cv.addDStore(variable);
+        }
+        
+        private void emitGetUnboxed() {
+            cv.addDLoad(variable);
+        }
+        
+        private void emitPutUnboxed() {
+            cv.addDStore(variable);
+        }
+    }
+    
     /**
      * JVM constant pools can only contain primitives or java.lang.Strings.
      * We make use of that (via ClassFileWriter), but Talc "int" and "real"
@@ -123,80 +338,107 @@ public class JvmCodeGenerator implements AstVisitor<Void> {
      * in the constant pool.
      * 
      * To work round this, we have our own "Talc constant pool", implemented
-     * as a "private static final Object[]" field. We collect constants during
-     * code generation, add a call to <clinit> to a special __init_constants__
-     * method, and generate code to write the constants into the array after
-     * we're finished generating user code.
+     * as a "private static final" field per constant, which the JIT can treat
+     * as a true constant. We collect constants during code generation, add a
+     * call to <clinit> to a special __init_constants__ method, and generate
+     * the fields and the code to initialize them after we're finished
+     * generating user code.
+     * 
+     * The same mechanism gives us precompiled RegularExpressions for regular
+     * expressions given as string literals.
      */
     private JvmTalcConstantPool talcConstantPool;
     private class JvmTalcConstantPool {
         private final String owner;
-        private static final String constantsFieldName = "$__talc_constants";
-        private static final String constantsFieldSignature = "[Ljava/lang/Object;";
+        private static final String constantFieldNamePrefix = "$__talc_constant$";
         
         private ArrayList<Object> constants = new ArrayList<Object>();
+        private ArrayList<String> constantTypes = new ArrayList<String>();
         private HashMap<Object, Integer> constantIndexes = new HashMap<Object, Integer>();
         
         private JvmTalcConstantPool(String owner) {
             this.owner = owner;
-            cv.addField(constantsFieldName, constantsFieldSignature, (short) (ClassFileWriter.ACC_PRIVATE | ClassFileWriter.ACC_STATIC | ClassFileWriter.ACC_FINAL));
         }
         
         public void addConstantAndEmitCode(Object constant, String type) {
             if (Talc.debugging('C')) {
                 emitConstant(constant);
             } else {
-                // FIXME: don't store duplicates.
                 Integer constantIndex = constantIndexes.get(constant);
                 if (constantIndex == null) {
                     constantIndex = constants.size();
                     constants.add(constant);
+                    constantTypes.add(type);
                     constantIndexes.put(constant, constantIndex);
                 }
                 emitGet(constantIndex, type);
             }
         }
         
+        // Regular expressions given as string literals are compiled (and checked) once, rather than on every call.
+        public void addPatternAndEmitCode(AstNode.Constant regularExpression) {
+            // RegularExpressions don't implement equals, so we key them by the regular expression itself.
+            String key = (String) regularExpression.constant();
+            Integer constantIndex = constantIndexes.get(key);
+            if (constantIndex == null) {
+                RegularExpression pattern;
+                try {
+                    pattern = RegularExpression.compile(key);
+                } catch (PatternSyntaxException ex) {
+                    throw new TalcError(regularExpression, "invalid regular expression: " + ex.getDescription() + " near index " + ex.getIndex() + " of \"" + key + "\"");
+                }
+                constantIndex = constants.size();
+                constants.add(pattern);
+                constantTypes.add(regularExpressionType);
+                constantIndexes.put(key, constantIndex);
+            }
+            emitGet(constantIndex, regularExpressionType);
+        }
+        
         private void emitGet(int index, String type) {
-            cv.add(ByteCode.GETSTATIC, owner, constantsFieldName, constantsFieldSignature);
-            cv.addPush(index);
-            cv.add(ByteCode.AALOAD);
-            cv.add(ByteCode.CHECKCAST, type);
+            cv.add(ByteCode.GETSTATIC, owner, constantFieldNamePrefix + index, ClassFileWriter.classNameToSignature(type));
         }
         
         public void emitCallToTalcConstantPoolInitializer() {
-            if (Talc.debugging('C')) {
-                return;
-            }
             cv.addInvoke(ByteCode.INVOKESTATIC, owner, "__init_constants__", "()V");
         }
         
         public void emitTalcConstantPoolInitializer() {
-            if (Talc.debugging('C')) {
-                return;
+            for (int i = 0; i < constants.size(); ++i) {
+                cv.addField(constantFieldNamePrefix + i, ClassFileWriter.classNameToSignature(constantTypes.get(i)), (short) (ClassFileWriter.ACC_PRIVATE | ClassFileWriter.ACC_STATIC | ClassFileWriter.ACC_FINAL));
             }
             
-            maxLocals = 0;
-            cv.startMethod("__init_constants__", "()V", (short) (ClassFileWriter.ACC_PRIVATE | ClassFileWriter.ACC_STATIC));
-            
-            // $talc_constants = new Object[constants.size()];
-            cv.addPush(constants.size());
-            cv.add(ByteCode.ANEWARRAY, javaLangObjectType);
+            // A script with enough constants would need more than 64KiB of code to initialize them, so we initialize them in chunks.
+            // (Version 52 class files let any method of the class, not just <clinit>, set its static final fields.)
+            ArrayList<String> methodNames = new ArrayList<String>();
+            int i = 0;
+            while (i < constants.size()) {
+                String methodName = "__init_constants__$" + methodNames.size();
+                startMethod(methodName, "()V", (short) (ClassFileWriter.ACC_PRIVATE | ClassFileWriter.ACC_STATIC));
+                methodNames.add(methodName);
+                do {
+                    emitConstant(constants.get(i));
+                    cv.add(ByteCode.PUTSTATIC, owner, constantFieldNamePrefix + i, ClassFileWriter.classNameToSignature(constantTypes.get(i)));
+                    ++i;
+                } while (i < constants.size() && cv.getCurrentCodeOffset() < splitMethodSize());
+                cv.add(ByteCode.RETURN);
+                stopMethod();
+            }
             
-            for (int i = 0; i < constants.size(); ++i) {
-                cv.add(ByteCode.DUP);
-                cv.addPush(i);
-                emitConstant(constants.get(i));
-                cv.add(ByteCode.AASTORE);
+            startMethod("__init_constants__", "()V", (short) (ClassFileWriter.ACC_PRIVATE | ClassFileWriter.ACC_STATIC));
+            for (String methodName : methodNames) {
+                cv.addInvoke(ByteCode.INVOKESTATIC, owner, methodName, "()V");
             }
-            cv.add(ByteCode.PUTSTATIC, owner, constantsFieldName, constantsFieldSignature);
             cv.add(ByteCode.RETURN);
             
-            cv.stopMethod(maxLocals);
+            stopMethod();
         }
         
         private void emitConstant(Object constant) {
-            if (constant instanceof RealValue) {
+            if (constant instanceof RegularExpression) {
+                cv.addPush(((RegularExpression) constant).pattern().pattern());
+                cv.addInvoke(ByteCode.INVOKESTATIC, regularExpressionType, "compile", "(Ljava/lang/String;)L" + regularExpressionType + ";");
+            } else if (constant instanceof RealValue) {
                 final RealValue realValue = (RealValue) constant;
                 cv.addPush(realValue.doubleValue());
                 cv.addInvoke(ByteCode.INVOKESTATIC, realValueType, "valueOf", "(D)L" + realValueType + ";");
@@ -216,9 +458,22 @@ public class JvmCodeGenerator implements AstVisitor<Void> {
         }
     }
     
-    public JvmCodeGenerator(TalcClassLoader classLoader, List<AstNode> ast) {
+    public JvmCodeGenerator(TalcClassLoader classLoader, List<AstNode> ast, AstEscapeAnalyzer escapeAnalyzer) {
+        this(classLoader, ast, escapeAnalyzer, null);
+    }
+    
+    /**
+     * Compiles a library into the class 'libraryClassName', if that's non-null.
+     * Importers call its static "$import" method, which runs the library's
+     * global code the first time it's called, and then use its global
+     * functions and variables directly.
+     */
+    public JvmCodeGenerator(TalcClassLoader classLoader, List<AstNode> ast, AstEscapeAnalyzer escapeAnalyzer, String libraryClassName) {
         this.creationTime = System.nanoTime();
         this.classLoader = classLoader;
+        this.escapeAnalyzer = escapeAnalyzer;
+        this.generatedClassType = (libraryClassName != null) ? libraryClassName : scriptClassType;
+        this.isLibrary = (libraryClassName != null);
         compile(ast);
     }
     
@@ -227,7 +482,6 @@ public class JvmCodeGenerator implements AstVisitor<Void> {
     }
     
     private void defineClass(String className, byte[] bytecode) {
-        // FIXME: use 's' for caching rather than/as well as debugging?
         if (Talc.debugging('s') || Talc.debugging('S') || Talc.debugging('v')) {
             File filename = saveGeneratedCode(className, bytecode);
             // FIXME: would be nice to have our own built-in disassembler.
@@ -283,28 +537,20 @@ public class JvmCodeGenerator implements AstVisitor<Void> {
     }
     
     private void compile(List<AstNode> ast) {
-        String sourceFilename = ast.get(0).location().sourceFilename();
+        // Statements the simplifier synthesized (such as the empty block left by "if (false) ...") have no location.
+        String sourceFilename = null;
+        for (AstNode node : ast) {
+            if (node.location() != null) {
+                sourceFilename = node.location().sourceFilename();
+                break;
+            }
+        }
         this.cv = new ClassFileWriter(generatedClassType, javaLangObjectType, sourceFilename);
         cv.setFlags(ClassFileWriter.ACC_PUBLIC);
         emitClassInitializer(generatedClassType);
         
-        // It's convenient to be able to run the class, so we can point an arbitrary JVM at it to see what it thinks.
-        // To enable that, generate a "public static void main(String[] args)" method.
-        // This method also generates the code corresponding to global function definitions.
-        maxLocals = 0;
-        cv.startMethod("main", "([Ljava/lang/String;)V", (short) (ClassFileWriter.ACC_PUBLIC | ClassFileWriter.ACC_STATIC));
-        
-        // main has a (String[] args) argument.
-        int argsLocal = maxLocals++;
-        
-        // ARGS = new ListValue(args);
-        cv.add(ByteCode.NEW, listValueType);
-        cv.add(ByteCode.DUP);
-        cv.addALoad(argsLocal);
-        cv.addInvoke(ByteCode.INVOKESPECIAL, listValueType, "<init>", "([Ljava/lang/String;)V");
-        cv.add(ByteCode.PUTSTATIC, generatedClassType, "ARGS", "Lorg/jessies/talc/ListValue;");
-        
         // Compile the global code, saving global functions and user-defined classes for later.
+        ArrayList<AstNode> globalStatements = new ArrayList<AstNode>();
         ArrayList<AstNode.FunctionDefinition> functionDefinitions = new ArrayList<AstNode.FunctionDefinition>();
         ArrayList<AstNode.ClassDefinition> classDefinitions = new ArrayList<AstNode.ClassDefinition>();
         for (AstNode node : ast) {
@@ -313,14 +559,16 @@ public class JvmCodeGenerator implements AstVisitor<Void> {
             } else if (node instanceof AstNode.FunctionDefinition) {
                 functionDefinitions.add((AstNode.FunctionDefinition) node);
             } else {
-                node.accept(this);
-                popAnythingLeftBy(node);
+                globalStatements.add(node);
             }
         }
+        List<String> globalCodeMethodNames = emitGlobalCode(globalStatements);
         
-        //mg.popScope();
-        cv.add(ByteCode.RETURN);
-        cv.stopMethod(maxLocals);
+        if (isLibrary) {
+            emitLibraryImportMethod(globalCodeMethodNames);
+        } else {
+            emitMainMethod(globalCodeMethodNames);
+        }
         
         // Now we've finished with the global code, we can go back over the global functions.
         emitGlobalFunctions(functionDefinitions);
@@ -333,9 +581,166 @@ public class JvmCodeGenerator implements AstVisitor<Void> {
         emitUserDefinedClasses(classDefinitions);
     }
     
+    private void emitMainMethod(List<String> globalCodeMethodNames) {
+        // It's convenient to be able to run the class, so we can point an arbitrary JVM at it to see what it thinks.
+        // To enable that, generate a "public static void main(String[] args)" method.
+        startMethod("main", "([Ljava/lang/String;)V", (short) (ClassFileWriter.ACC_PUBLIC | ClassFileWriter.ACC_STATIC));
+        
+        // main has a (String[] args) argument.
+        int argsLocal = allocateLocal("args", "[Ljava/lang/String;", 1);
+        
+        // ARGS = new ListValue(args);
+        cv.add(ByteCode.NEW, listValueType);
+        cv.add(ByteCode.DUP);
+        cv.addALoad(argsLocal);
+        cv.addInvoke(ByteCode.INVOKESPECIAL, listValueType, "<init>", "([Ljava/lang/String;)V");
+        cv.add(ByteCode.PUTSTATIC, generatedClassType, "ARGS", "Lorg/jessies/talc/ListValue;");
+        
+        // Run the global code.
+        for (String methodName : globalCodeMethodNames) {
+            cv.addInvoke(ByteCode.INVOKESTATIC, generatedClassType, methodName, "()V");
+        }
+        
+        cv.add(ByteCode.RETURN);
+        stopMethod();
+    }
+    
+    private void emitLibraryImportMethod(List<String> globalCodeMethodNames) {
+        // A library's global code should only run once, however many times it's imported.
+        // (We don't run it from <clinit> because a failed assertion there would be reported as an ExceptionInInitializerError.)
+        cv.addField("$imported", "Z", (short) (ClassFileWriter.ACC_PRIVATE | ClassFileWriter.ACC_STATIC));
+        startMethod("$import", "()V", (short) (ClassFileWriter.ACC_PUBLIC | ClassFileWriter.ACC_STATIC));
+        
+        // if ($imported) return;
+        int firstImportLabel = cv.acquireLabel();
+        cv.add(ByteCode.GETSTATIC, generatedClassType, "$imported", "Z");
+        cv.add(ByteCode.IFEQ, firstImportLabel);
+        cv.add(ByteCode.RETURN);
+        cv.markLabel(firstImportLabel);
+        // $imported = true;
+        cv.add(ByteCode.ICONST_1);
+        cv.add(ByteCode.PUTSTATIC, generatedClassType, "$imported", "Z");
+        
+        // Run the global code.
+        for (String methodName : globalCodeMethodNames) {
+            cv.addInvoke(ByteCode.INVOKESTATIC, generatedClassType, methodName, "()V");
+        }
+        
+        cv.add(ByteCode.RETURN);
+        stopMethod();
+    }
+    
+    /**
+     * Compiling all the global code into "main" would give us a method HotSpot
+     * refuses to JIT-compile once it's over 8000 bytes, and one the class file
+     * format won't allow once it's over 64KiB. So we compile the global code
+     * into a sequence of helper methods instead ("$global$0", "$global$1" and
+     * so on; Talc identifiers can't contain '$'), starting a new one whenever
+     * the current one gets big. Each loop gets a helper to itself, so that a
+     * hot loop is compiled as an ordinary method rather than via on-stack
+     * replacement in the middle of a huge one.
+     * 
+     * Global variables are fields, and any other variable is local to the
+     * statement that defines it, so the only state crossing a helper boundary
+     * is in fields. Globals that aren't shared with any function or class
+     * (see AstEscapeAnalyzer) only live in their fields between helpers,
+     * though: within a helper, they're kept in locals, which the JIT can
+     * keep in registers.
+     * 
+     * We only split between top-level statements. A single statement (a loop
+     * or block, say) whose own code is over 64KiB still fails to compile,
+     * because the variables local to it would have to cross helper boundaries.
+     * 
+     * Returns the names of the helpers, in the order "main" should call them.
+     */
+    private List<String> emitGlobalCode(List<AstNode> statements) {
+        ArrayList<String> methodNames = new ArrayList<String>();
+        boolean inMethod = false;
+        for (AstNode statement : statements) {
+            final boolean isLoop = isLoop(statement);
+            if (inMethod && (isLoop || cv.getCurrentCodeOffset() >= splitMethodSize())) {
+                finishGlobalCodeMethod();
+                inMethod = false;
+            }
+            if (inMethod == false) {
+                String methodName = "$global$" + methodNames.size();
+                startMethod(methodName, "()V", (short) (ClassFileWriter.ACC_PRIVATE | ClassFileWriter.ACC_STATIC));
+                methodNames.add(methodName);
+                inMethod = true;
+            }
+            cacheGlobalsUsedBy(statement);
+            emitStatement(statement);
+            if (isLoop) {
+                finishGlobalCodeMethod();
+                inMethod = false;
+            }
+        }
+        if (inMethod) {
+            finishGlobalCodeMethod();
+        }
+        return methodNames;
+    }
+    
+    // Copies the unshared globals used by 'statement' that aren't already in locals into locals.
+    private void cacheGlobalsUsedBy(AstNode statement) {
+        for (AstNode.VariableDefinition global : escapeAnalyzer.unsharedGlobalsUsedBy(statement)) {
+            if (cachedGlobals.containsKey(global)) {
+                continue;
+            }
+            final boolean isDefined = (global.accessor() != null);
+            if (isDefined == false && global != statement) {
+                // It's defined somewhere inside 'statement', which might not run, so we can't copy the local back to the field later.
+                continue;
+            }
+            VariableAccessor accessor;
+            if (canUnbox(global)) {
+                if (global.type() == TalcType.REAL) {
+                    accessor = new JvmUnboxedRealLocalAccessor(global.identifier());
+                } else {
+                    accessor = new JvmUnboxedIntegerLocalAccessor(global.identifier());
+                }
+            } else {
+                accessor = new JvmLocalVariableAccessor(global.identifier(), ClassFileWriter.classNameToSignature(typeForTalcType(global.type())));
+            }
+            if (isDefined) {
+                global.accessor().emitGet();
+                accessor.emitPut();
+            }
+            // If it's not yet defined, defineVariable will find our accessor.
+            cachedGlobals.put(global, accessor);
+            global.setAccessor(accessor);
+        }
+    }
+    
+    // Copies the globals we kept in locals back to their fields, and finishes the current global code helper.
+    private void finishGlobalCodeMethod() {
+        for (Map.Entry<AstNode.VariableDefinition, VariableAccessor> entry : cachedGlobals.entrySet()) {
+            AstNode.VariableDefinition global = entry.getKey();
+            VariableAccessor fieldAccessor = globalFieldAccessor(global);
+            entry.getValue().emitGet();
+            fieldAccessor.emitPut();
+            global.setAccessor(fieldAccessor);
+        }
+        cachedGlobals.clear();
+        cv.add(ByteCode.RETURN);
+        stopMethod();
+    }
+    
+    private JvmFieldAccessor globalFieldAccessor(AstNode.VariableDefinition global) {
+        String signature = ClassFileWriter.classNameToSignature(typeForTalcType(global.type()));
+        return new JvmFieldAccessor(cv.getClassName(), global.identifier(), signature, true);
+    }
+    
+    private static boolean isLoop(AstNode node) {
+        return (node instanceof AstNode.DoStatement || node instanceof AstNode.ForEachStatement || node instanceof AstNode.ForStatement || node instanceof AstNode.WhileStatement);
+    }
+    
+    private static int splitMethodSize() {
+        return Talc.debugging('M') ? 0 : SPLIT_METHOD_SIZE;
+    }
+    
     private void emitClassInitializer(String className) {
-        maxLocals = 0;
-        cv.startMethod("<clinit>", "()V", ClassFileWriter.ACC_STATIC);
+        startMethod("<clinit>", "()V", ClassFileWriter.ACC_STATIC);
         
         // Create a constant pool for Talc-level constants.
         talcConstantPool = new JvmTalcConstantPool(className);
@@ -344,13 +749,12 @@ public class JvmCodeGenerator implements AstVisitor<Void> {
         if (className.equals(generatedClassType)) {
             // Create and initialize the static fields corresponding to the built-in variables.
             for (AstNode.VariableDefinition builtInVariableDefinition : Scope.builtInVariableDefinitions()) {
-                builtInVariableDefinition.accept(this);
-                popAnythingLeftBy(builtInVariableDefinition);
+                emitStatement(builtInVariableDefinition);
             }
         }
         
         cv.add(ByteCode.RETURN);
-        cv.stopMethod(maxLocals);
+        stopMethod();
     }
     
     private void emitGlobalFunctions(List<AstNode.FunctionDefinition> functionDefinitions) {
@@ -368,10 +772,8 @@ public class JvmCodeGenerator implements AstVisitor<Void> {
     public Void visitAssertStatement(AstNode.AssertStatement assertStatement) {
         int okayLabel = cv.acquireLabel();
         
-        // if (<test-expression> == true) goto okayLabel;
-        assertStatement.testExpression().accept(this);
-        pushTrue();
-        cv.add(ByteCode.IF_ACMPEQ, okayLabel);
+        // if (<test-expression>) goto okayLabel;
+        emitConditionalJump(assertStatement.testExpression(), true, okayLabel);
         
         // throw new AssertionError(<explanatory-expression>);
         cv.add(ByteCode.NEW, javaLangAssertionErrorType);
@@ -391,6 +793,13 @@ public class JvmCodeGenerator implements AstVisitor<Void> {
     }
     
     public Void visitBinaryOperator(AstNode.BinaryOperator binOp) {
+        if (emitUnboxedOperation(binOp, true) == false) {
+            emitBoxedBinaryOperator(binOp);
+        }
+        return null;
+    }
+    
+    private void emitBoxedBinaryOperator(AstNode.BinaryOperator binOp) {
         switch (binOp.op()) {
             case NEG:            invokeUnaryOp(binOp, "negate"); break;
             
@@ -410,9 +819,9 @@ public class JvmCodeGenerator implements AstVisitor<Void> {
             case B_OR:           invokeBinaryOp(binOp, "or"); break;
             case B_XOR:          invokeBinaryOp(binOp, "xor"); break;
             
-            case L_NOT:          l_not(binOp); break;
-            case L_AND:          l_shortCircuit(binOp, "FALSE"); break;
-            case L_OR:           l_shortCircuit(binOp, "TRUE"); break;
+            case L_NOT:          pushCondition(binOp); break;
+            case L_AND:          pushCondition(binOp); break;
+            case L_OR:           pushCondition(binOp); break;
             
             case FACTORIAL:      invokeUnaryOp(binOp, "factorial"); break;
             
@@ -421,13 +830,13 @@ public class JvmCodeGenerator implements AstVisitor<Void> {
             case PRE_DECREMENT:  prePostIncrementDecrement(binOp, true, false); break;
             case PRE_INCREMENT:  prePostIncrementDecrement(binOp, true, true); break;
             
-            case EQ:             eq(binOp, "eq"); break;
-            case NE:             eq(binOp, "ne"); break;
+            case EQ:             pushCondition(binOp); break;
+            case NE:             pushCondition(binOp); break;
             
-            case LE:             cmp(binOp, ByteCode.IFLE); break;
-            case GE:             cmp(binOp, ByteCode.IFGE); break;
-            case GT:             cmp(binOp, ByteCode.IFGT); break;
-            case LT:             cmp(binOp, ByteCode.IFLT); break;
+            case LE:             pushCondition(binOp); break;
+            case GE:             pushCondition(binOp); break;
+            case GT:             pushCondition(binOp); break;
+            case LT:             pushCondition(binOp); break;
             
             case ASSIGN:         binOp.rhs().accept(this); assignTo(binOp.lhs()); break;
             case PLUS_ASSIGN:    numericAddOrStringConcatenation(binOp); assignTo(binOp.lhs()); break;
@@ -441,16 +850,15 @@ public class JvmCodeGenerator implements AstVisitor<Void> {
             case AND_ASSIGN:     invokeBinaryOp(binOp, "and"); assignTo(binOp.lhs()); break;
             case OR_ASSIGN:      invokeBinaryOp(binOp, "or"); assignTo(binOp.lhs()); break;
             case XOR_ASSIGN:     invokeBinaryOp(binOp, "xor"); assignTo(binOp.lhs()); break;
-            
+        
         default:
             throw new TalcError(binOp, "ICE: don't know how to generate code for " + binOp.op());
         }
-        return null;
     }
     
     private void numericAddOrStringConcatenation(AstNode.BinaryOperator binOp) {
         if (binOp.type() == TalcType.STRING) {
-            // FIXME: should generalize to cope with arbitrary chains of concatenation (though probably above this level).
+            // Longer chains of concatenation are collected up by AstSimplifier; see visitStringConcatenation.
             binOp.lhs().accept(this);
             binOp.rhs().accept(this);
             visitLineNumber(binOp);
@@ -460,30 +868,6 @@ public class JvmCodeGenerator implements AstVisitor<Void> {
         }
     }
     
-    private void l_not(AstNode.BinaryOperator binOp) {
-        binOp.lhs().accept(this);
-        visitLineNumber(binOp);
-        cv.addInvoke(ByteCode.INVOKEVIRTUAL, "org/jessies/talc/BooleanValue", "not", "()Lorg/jessies/talc/BooleanValue;");
-    }
-    
-    // Short-circuits the evaluation of binOp.rhs() if the binOp.lhs() is the BooleanValue corresponding to 'trueOrFalse'.
-    // Implements either && or ||, depending on whether you supply "FALSE" or "TRUE".
-    private void l_shortCircuit(AstNode.BinaryOperator binOp, String trueOrFalse) {
-        int shortCircuitLabel = cv.acquireLabel();
-        int doneLabel = cv.acquireLabel();
-        
-        binOp.lhs().accept(this);
-        visitLineNumber(binOp);
-        pushTrueOrFalse(trueOrFalse);
-        cv.add(ByteCode.IF_ACMPEQ, shortCircuitLabel);
-        binOp.rhs().accept(this);
-        visitLineNumber(binOp);
-        cv.add(ByteCode.GOTO, doneLabel);
-        cv.markLabel(shortCircuitLabel);
-        pushTrueOrFalse(trueOrFalse);
-        cv.markLabel(doneLabel);
-    }
-    
     private void prePostIncrementDecrement(AstNode.BinaryOperator binOp, boolean isPre, boolean isIncrement) {
         // Get the initial value on the stack.
         binOp.lhs().accept(this);
@@ -506,30 +890,112 @@ public class JvmCodeGenerator implements AstVisitor<Void> {
         variableDefinition.accessor().emitPut();
     }
     
-    private void eq(AstNode.BinaryOperator binOp, String eqOrNe) {
-        binOp.lhs().accept(this);
-        binOp.rhs().accept(this);
-        visitLineNumber(binOp);
-        cv.addInvoke(ByteCode.INVOKESTATIC, "org/jessies/talc/Functions", eqOrNe, "(Ljava/lang/Object;Ljava/lang/Object;)Lorg/jessies/talc/BooleanValue;");
-    }
-    
-    private void cmp(AstNode.BinaryOperator binOp, int jumpOpcode) {
-        int equalLabel = cv.acquireLabel();
+    // Pushes the BooleanValue corresponding to the boolean expression 'condition'.
+    private void pushCondition(AstNode condition) {
+        int trueLabel = cv.acquireLabel();
         int doneLabel = cv.acquireLabel();
+        short stackTop = cv.getStackTop();
         
-        // Equivalent to: BooleanValue.valueOf(lhsNumber(binOp).compareTo(rhsNumber(binOp)) <comparison> 0);
-        binOp.lhs().accept(this);
-        binOp.rhs().accept(this);
-        visitLineNumber(binOp);
-        cv.addInvoke(ByteCode.INVOKEINTERFACE, "java/lang/Comparable", "compareTo", "(Ljava/lang/Object;)I");
-        cv.add(jumpOpcode, equalLabel);
+        emitConditionalJump(condition, true, trueLabel);
         pushFalse();
         cv.add(ByteCode.GOTO, doneLabel);
-        cv.markLabel(equalLabel);
+        cv.markLabel(trueLabel, stackTop);
         pushTrue();
         cv.markLabel(doneLabel);
     }
     
+    /**
+     * Generates code to jump to 'label' if the boolean expression 'condition'
+     * evaluates to 'jumpIfTrue', and to fall through otherwise. Comparisons and
+     * logical operators branch directly on their operands, rather than building
+     * a BooleanValue only for us to compare it against BooleanValue.TRUE.
+     */
+    private void emitConditionalJump(AstNode condition, boolean jumpIfTrue, int label) {
+        if (condition instanceof AstNode.Constant && ((AstNode.Constant) condition).constant() instanceof BooleanValue) {
+            if ((((AstNode.Constant) condition).constant() == BooleanValue.TRUE) == jumpIfTrue) {
+                visitLineNumber(condition);
+                cv.add(ByteCode.GOTO, label);
+            }
+            return;
+        } else if (condition instanceof AstNode.BinaryOperator) {
+            AstNode.BinaryOperator binOp = (AstNode.BinaryOperator) condition;
+            switch (binOp.op()) {
+                case L_NOT:
+                    emitConditionalJump(binOp.lhs(), !jumpIfTrue, label);
+                    return;
+                case L_AND:
+                case L_OR:
+                    // The lhs alone decides && if it's false, and || if it's true.
+                    boolean shortCircuitValue = (binOp.op() == Token.L_OR);
+                    if (shortCircuitValue == jumpIfTrue) {
+                        emitConditionalJump(binOp.lhs(), jumpIfTrue, label);
+                        emitConditionalJump(binOp.rhs(), jumpIfTrue, label);
+                    } else {
+                        int rhsSkippedLabel = cv.acquireLabel();
+                        emitConditionalJump(binOp.lhs(), shortCircuitValue, rhsSkippedLabel);
+                        emitConditionalJump(binOp.rhs(), jumpIfTrue, label);
+                        cv.markLabel(rhsSkippedLabel);
+                    }
+                    return;
+                case EQ: case NE:
+                case LE: case GE: case GT: case LT:
+                    emitComparisonJump(binOp, jumpIfTrue, label);
+                    return;
+            }
+        }
+        // Anything else leaves a BooleanValue, of which there are only two instances.
+        condition.accept(this);
+        visitLineNumber(condition);
+        pushTrue();
+        cv.add(jumpIfTrue ? ByteCode.IF_ACMPEQ : ByteCode.IF_ACMPNE, label);
+    }
+    
+    private void emitComparisonJump(AstNode.BinaryOperator binOp, boolean jumpIfTrue, int label) {
+        // The opcode that jumps if the comparison, expressed as the sign of an int, has the result we're interested in.
+        int jumpOpcode;
+        switch (binOp.op()) {
+            case EQ: jumpOpcode = jumpIfTrue ? ByteCode.IFEQ : ByteCode.IFNE; break;
+            case NE: jumpOpcode = jumpIfTrue ? ByteCode.IFNE : ByteCode.IFEQ; break;
+            case LE: jumpOpcode = jumpIfTrue ? ByteCode.IFLE : ByteCode.IFGT; break;
+            case GE: jumpOpcode = jumpIfTrue ? ByteCode.IFGE : ByteCode.IFLT; break;
+            case GT: jumpOpcode = jumpIfTrue ? ByteCode.IFGT : ByteCode.IFLE; break;
+            case LT: jumpOpcode = jumpIfTrue ? ByteCode.IFLT : ByteCode.IFGE; break;
+            default: throw new TalcError(binOp, "ICE: " + binOp.op() + " isn't a comparison");
+        }
+        if (emitUnboxedIntegerComparison(binOp, jumpOpcode, label) || emitUnboxedRealComparison(binOp, jumpOpcode, label)) {
+            return;
+        }
+        emitBoxedComparison(binOp, jumpOpcode, label);
+    }
+    
+    private void emitBoxedComparison(AstNode.BinaryOperator binOp, int jumpOpcode, int label) {
+        binOp.lhs().accept(this);
+        binOp.rhs().accept(this);
+        visitLineNumber(binOp);
+        // Where we know the operand types, we call code specific to them rather than going via Comparable or Object.equals.
+        TalcType operandType = talcTypeOf(binOp.lhs());
+        if (operandType != talcTypeOf(binOp.rhs())) {
+            operandType = null;
+        }
+        boolean isEquality = (binOp.op() == Token.EQ || binOp.op() == Token.NE);
+        if ((operandType == TalcType.INT || operandType == TalcType.REAL) && isEquality == false) {
+            // compare can't cope with null, but then neither could compareTo.
+            String type = typeForTalcType(operandType);
+            cv.addInvoke(ByteCode.INVOKESTATIC, type, "compare", "(L" + type + ";L" + type + ";)I");
+            cv.add(jumpOpcode, label);
+        } else if (operandType == TalcType.STRING && isEquality) {
+            cv.addInvoke(ByteCode.INVOKESTATIC, "org/jessies/talc/Functions", "areEqual", "(Ljava/lang/String;Ljava/lang/String;)Z");
+            cv.add((jumpOpcode == ByteCode.IFEQ) ? ByteCode.IFNE : ByteCode.IFEQ, label);
+        } else if (isEquality) {
+            // Functions.areEqual returns true for equality, so we want the opposite sense to a "compareTo".
+            cv.addInvoke(ByteCode.INVOKESTATIC, "org/jessies/talc/Functions", "areEqual", "(Ljava/lang/Object;Ljava/lang/Object;)Z");
+            cv.add((jumpOpcode == ByteCode.IFEQ) ? ByteCode.IFNE : ByteCode.IFEQ, label);
+        } else {
+            cv.addInvoke(ByteCode.INVOKEINTERFACE, "java/lang/Comparable", "compareTo", "(Ljava/lang/Object;)I");
+            cv.add(jumpOpcode, label);
+        }
+    }
+    
     private void invokeUnaryOp(AstNode.BinaryOperator binOp, String name) {
         binOp.lhs().accept(this);
         String type = typeForTalcType(binOp.type());
@@ -537,38 +1003,616 @@ public class JvmCodeGenerator implements AstVisitor<Void> {
         cv.addInvoke(ByteCode.INVOKEVIRTUAL, type, name, "()L" + type + ";");
     }
     
-    private void invokeBinaryOp(AstNode.BinaryOperator binOp, String name) {
-        binOp.lhs().accept(this);
-        binOp.rhs().accept(this);
-        String type = typeForTalcType(binOp.type());
-        visitLineNumber(binOp);
-        cv.addInvoke(ByteCode.INVOKEVIRTUAL, type, name, "(L" + type + ";)L" + type + ";");
+    private void invokeBinaryOp(AstNode.BinaryOperator binOp, String name) {
+        binOp.lhs().accept(this);
+        binOp.rhs().accept(this);
+        String type = typeForTalcType(binOp.type());
+        visitLineNumber(binOp);
+        cv.addInvoke(ByteCode.INVOKEVIRTUAL, type, name, "(L" + type + ";)L" + type + ";");
+    }
+    
+    private void assignTo(AstNode lhs) {
+        visitLineNumber(lhs);
+        AstNode.VariableName variableName = (AstNode.VariableName) lhs;
+        AstNode.VariableDefinition variableDefinition = variableName.definition();
+        cv.add(ByteCode.CHECKCAST, typeForTalcType(variableDefinition.type()));
+        cv.add(ByteCode.DUP);
+        variableDefinition.accessor().emitPut();
+    }
+    
+    // We keep "int" and "real" locals unboxed unless they start off uninitialized (or null), as for-each loop variables do.
+    private boolean canUnbox(AstNode.VariableDefinition variableDefinition) {
+        if (Talc.debugging('U') || (variableDefinition.type() != TalcType.INT && variableDefinition.type() != TalcType.REAL)) {
+            return false;
+        }
+        if (variableDefinition.type() == TalcType.REAL && escapeAnalyzer.mightBeNull(variableDefinition)) {
+            // Unlike an int, a double has nowhere to put a null.
+            return false;
+        }
+        AstNode initializer = variableDefinition.initializer();
+        if (initializer instanceof AstNode.Constant) {
+            return ((AstNode.Constant) initializer).type() != TalcType.NULL;
+        }
+        return initializer != null;
+    }
+    
+    // Tries to generate code for 'binOp' using primitive arithmetic, returning false if it's not suitable.
+    private boolean emitUnboxedOperation(AstNode.BinaryOperator binOp, boolean leaveValue) {
+        return emitUnboxedIntegerOperation(binOp, leaveValue) || emitUnboxedRealOperation(binOp, leaveValue);
+    }
+    
+    /**
+     * Tries to generate code for 'binOp' using primitive long arithmetic, guarded
+     * by checks that fall back to the usual boxed code if any operand doesn't fit
+     * in an int. Returns false, having generated nothing, if 'binOp' isn't suitable.
+     * If 'leaveValue' is false, the caller doesn't want a result left on the stack.
+     */
+    private boolean emitUnboxedIntegerOperation(AstNode.BinaryOperator binOp, boolean leaveValue) {
+        if (Talc.debugging('U') || unboxedSlowPathDepth > 0) {
+            return false;
+        }
+        switch (binOp.op()) {
+            case NEG:
+            case PLUS: case SUB: case MUL: case DIV: case MOD:
+            case B_AND: case B_OR: case B_XOR:
+            case SHL: case SHR:
+                return leaveValue && emitUnboxedIntegerArithmetic(binOp);
+            
+            case ASSIGN:
+            case PLUS_ASSIGN: case SUB_ASSIGN: case MUL_ASSIGN: case DIV_ASSIGN: case MOD_ASSIGN:
+            case AND_ASSIGN: case OR_ASSIGN: case XOR_ASSIGN:
+            case PRE_DECREMENT: case PRE_INCREMENT:
+            case POST_DECREMENT: case POST_INCREMENT:
+                return emitUnboxedIntegerAssignment(binOp, leaveValue);
+            
+            default:
+                return false;
+        }
+    }
+    
+    // Used by emitComparisonJump. Returns false, having generated nothing, if 'binOp' isn't suitable.
+    private boolean emitUnboxedIntegerComparison(AstNode.BinaryOperator binOp, int jumpOpcode, int label) {
+        if (Talc.debugging('U') || unboxedSlowPathDepth > 0) {
+            return false;
+        }
+        if (unboxedIntegerBits(binOp.lhs()) == -1 || unboxedIntegerBits(binOp.rhs()) == -1) {
+            return false;
+        }
+        
+        visitLineNumber(binOp);
+        ArrayList<AstNode.VariableDefinition> variables = new ArrayList<AstNode.VariableDefinition>();
+        collectIntegerVariables(binOp, variables);
+        int slowPathLabel = cv.acquireLabel();
+        int doneLabel = cv.acquireLabel();
+        short stackTop = cv.getStackTop();
+        
+        // if (lhs <comparison> rhs) goto label;
+        emitUnboxedIntegerGuards(variables, slowPathLabel);
+        emitUnboxedInteger(binOp.lhs());
+        emitUnboxedInteger(binOp.rhs());
+        cv.add(ByteCode.LCMP);
+        cv.add(jumpOpcode, label);
+        if (variables.isEmpty() == false) {
+            cv.add(ByteCode.GOTO, doneLabel);
+            cv.markLabel(slowPathLabel, stackTop);
+            ++unboxedSlowPathDepth;
+            emitBoxedComparison(binOp, jumpOpcode, label);
+            --unboxedSlowPathDepth;
+        }
+        cv.markLabel(doneLabel);
+        return true;
+    }
+    
+    private boolean emitUnboxedIntegerArithmetic(AstNode.BinaryOperator binOp) {
+        if (unboxedIntegerBits(binOp) == -1) {
+            return false;
+        }
+        ArrayList<AstNode.VariableDefinition> variables = new ArrayList<AstNode.VariableDefinition>();
+        collectIntegerVariables(binOp, variables);
+        // There's no point unboxing operands that are already boxed just to box the result again.
+        boolean usesUnboxedLocal = false;
+        for (AstNode.VariableDefinition variable : variables) {
+            usesUnboxedLocal |= (variable.accessor() instanceof JvmUnboxedIntegerLocalAccessor);
+        }
+        if (usesUnboxedLocal == false) {
+            return false;
+        }
+        
+        visitLineNumber(binOp);
+        int slowPathLabel = cv.acquireLabel();
+        int doneLabel = cv.acquireLabel();
+        short stackTop = cv.getStackTop();
+        
+        emitUnboxedIntegerGuards(variables, slowPathLabel);
+        emitUnboxedInteger(binOp);
+        cv.addInvoke(ByteCode.INVOKESTATIC, integerValueType, "valueOf", "(J)Lorg/jessies/talc/IntegerValue;");
+        emitUnboxedIntegerSlowPath(binOp, variables, slowPathLabel, doneLabel, stackTop);
+        return true;
+    }
+    
+    private boolean emitUnboxedIntegerAssignment(AstNode.BinaryOperator binOp, boolean leaveValue) {
+        VariableAccessor accessor = ((AstNode.VariableName) binOp.lhs()).definition().accessor();
+        if (accessor instanceof JvmUnboxedIntegerLocalAccessor == false) {
+            return false;
+        }
+        
+        AstNode value = assignedValue(binOp, TalcType.INT);
+        if (value == null) {
+            return false;
+        }
+        
+        // For post-increment/decrement we'd need the old value, so leave that to the boxed code.
+        boolean isPost = (binOp.op() == Token.POST_INCREMENT || binOp.op() == Token.POST_DECREMENT);
+        if (isPost && leaveValue) {
+            return false;
+        }
+        if (emitUnboxedIntegerStore((JvmUnboxedIntegerLocalAccessor) accessor, value, binOp) == false) {
+            return false;
+        }
+        if (leaveValue) {
+            accessor.emitGet();
+        }
+        return true;
+    }
+    
+    // Returns the value an assignment of the given type will store, synthesizing the AST for compound assignments and increments/decrements.
+    private AstNode assignedValue(AstNode.BinaryOperator binOp, TalcType type) {
+        switch (binOp.op()) {
+            case ASSIGN:         return binOp.rhs();
+            case PLUS_ASSIGN:    return syntheticBinaryOperator(binOp, Token.PLUS, binOp.rhs(), type);
+            case SUB_ASSIGN:     return syntheticBinaryOperator(binOp, Token.SUB, binOp.rhs(), type);
+            case MUL_ASSIGN:     return syntheticBinaryOperator(binOp, Token.MUL, binOp.rhs(), type);
+            case POW_ASSIGN:     return syntheticBinaryOperator(binOp, Token.POW, binOp.rhs(), type);
+            case DIV_ASSIGN:     return syntheticBinaryOperator(binOp, Token.DIV, binOp.rhs(), type);
+            case MOD_ASSIGN:     return syntheticBinaryOperator(binOp, Token.MOD, binOp.rhs(), type);
+            case SHL_ASSIGN:     return syntheticBinaryOperator(binOp, Token.SHL, binOp.rhs(), type);
+            case SHR_ASSIGN:     return syntheticBinaryOperator(binOp, Token.SHR, binOp.rhs(), type);
+            case AND_ASSIGN:     return syntheticBinaryOperator(binOp, Token.B_AND, binOp.rhs(), type);
+            case OR_ASSIGN:      return syntheticBinaryOperator(binOp, Token.B_OR, binOp.rhs(), type);
+            case XOR_ASSIGN:     return syntheticBinaryOperator(binOp, Token.B_XOR, binOp.rhs(), type);
+            case PRE_INCREMENT:
+            case POST_INCREMENT: return syntheticBinaryOperator(binOp, Token.PLUS, one(type), type);
+            case PRE_DECREMENT:
+            case POST_DECREMENT: return syntheticBinaryOperator(binOp, Token.SUB, one(type), type);
+            default:             return null;
+        }
+    }
+    
+    private AstNode.BinaryOperator syntheticBinaryOperator(AstNode.BinaryOperator binOp, Token op, AstNode rhs, TalcType type) {
+        AstNode.BinaryOperator result = new AstNode.BinaryOperator(binOp.location(), op, binOp.lhs(), rhs);
+        result.setType(type);
+        return result;
+    }
+    
+    private static AstNode.Constant one(TalcType type) {
+        Object value = (type == TalcType.REAL) ? RealValue.valueOf(1.0) : IntegerValue.valueOf(1);
+        return new AstNode.Constant(null, value, type);
+    }
+    
+    /**
+     * Stores 'value' in the unboxed local 'accessor' using primitive long arithmetic,
+     * falling back to the boxed code for 'node' (the assignment or definition) if any
+     * operand has been spilled. Returns false, having generated nothing, if 'value'
+     * isn't suitable.
+     */
+    private boolean emitUnboxedIntegerStore(JvmUnboxedIntegerLocalAccessor accessor, AstNode value, AstNode node) {
+        if (value == null || unboxedSlowPathDepth > 0 || unboxedIntegerBits(value) == -1) {
+            return false;
+        }
+        
+        visitLineNumber(node);
+        ArrayList<AstNode.VariableDefinition> variables = new ArrayList<AstNode.VariableDefinition>();
+        collectIntegerVariables(value, variables);
+        int slowPathLabel = cv.acquireLabel();
+        int doneLabel = cv.acquireLabel();
+        short stackTop = cv.getStackTop();
+        
+        emitUnboxedIntegerGuards(variables, slowPathLabel);
+        emitUnboxedInteger(value);
+        accessor.emitPutUnboxed();
+        if (variables.isEmpty() == false) {
+            cv.add(ByteCode.GOTO, doneLabel);
+            cv.markLabel(slowPathLabel, stackTop);
+            ++unboxedSlowPathDepth;
+            if (node instanceof AstNode.VariableDefinition) {
+                value.accept(this);
+                cv.add(ByteCode.CHECKCAST, integerValueType);
+                accessor.emitPut();
+            } else {
+                emitBoxedBinaryOperator((AstNode.BinaryOperator) node);
+                cv.add(ByteCode.POP);
+            }
+            --unboxedSlowPathDepth;
+        }
+        cv.markLabel(doneLabel);
+        return true;
+    }
+    
+    // Finishes off a guarded fast path that's left its result on the stack, by adding the boxed code for 'binOp' as the slow path.
+    private void emitUnboxedIntegerSlowPath(AstNode.BinaryOperator binOp, List<AstNode.VariableDefinition> variables, int slowPathLabel, int doneLabel, short stackTop) {
+        if (variables.isEmpty() == false) {
+            cv.add(ByteCode.GOTO, doneLabel);
+            cv.markLabel(slowPathLabel, stackTop);
+            ++unboxedSlowPathDepth;
+            emitBoxedBinaryOperator(binOp);
+            --unboxedSlowPathDepth;
+        }
+        cv.markLabel(doneLabel);
+    }
+    
+    /**
+     * Returns an upper bound on the number of bits in the magnitude of 'node's
+     * value, if we can compute it with primitive long arithmetic, given operands
+     * in the int range. Returns -1 if we can't, or if the result might overflow.
+     * (Because the bound never shrinks as we go up the tree, checking it at the
+     * root is enough to rule out overflow of any intermediate result.)
+     */
+    private int unboxedIntegerBits(AstNode node) {
+        if (node instanceof AstNode.Constant) {
+            AstNode.Constant constant = (AstNode.Constant) node;
+            if (constant.type() != TalcType.INT || constant.constant() instanceof IntegerValue == false) {
+                return -1;
+            }
+            IntegerValue value = (IntegerValue) constant.constant();
+            if (value.isBig() || value.longValue() == Long.MIN_VALUE) {
+                return -1;
+            }
+            return 64 - Long.numberOfLeadingZeros(Math.abs(value.longValue()));
+        } else if (node instanceof AstNode.VariableName) {
+            AstNode.VariableDefinition definition = ((AstNode.VariableName) node).definition();
+            return (definition.type() == TalcType.INT) ? 31 : -1;
+        } else if (node instanceof AstNode.BinaryOperator) {
+            AstNode.BinaryOperator binOp = (AstNode.BinaryOperator) node;
+            if (binOp.type() != TalcType.INT) {
+                return -1;
+            }
+            if (isUnboxedIntegerAssignment(binOp)) {
+                // Common subexpression elimination gives us assignments to new variables in the middle of arithmetic.
+                return unboxedIntegerBits(binOp.rhs());
+            }
+            int lhsBits = unboxedIntegerBits(binOp.lhs());
+            int rhsBits = (binOp.rhs() != null) ? unboxedIntegerBits(binOp.rhs()) : 0;
+            if (lhsBits == -1 || rhsBits == -1) {
+                return -1;
+            }
+            int bits;
+            switch (binOp.op()) {
+                case NEG:
+                case DIV:
+                case MOD:
+                    bits = lhsBits;
+                    break;
+                case PLUS:
+                case SUB:
+                case B_AND:
+                case B_OR:
+                case B_XOR:
+                    bits = Math.max(lhsBits, rhsBits) + 1;
+                    break;
+                case MUL:
+                    bits = lhsBits + rhsBits;
+                    break;
+                case SHL:
+                case SHR:
+                    // We only shift by constants, which AstSimplifier introduces for multiplication by powers of two.
+                    int distance = unboxedShiftDistance(binOp.rhs());
+                    if (distance == -1) {
+                        return -1;
+                    }
+                    bits = (binOp.op() == Token.SHL) ? lhsBits + distance : lhsBits;
+                    break;
+                default:
+                    return -1;
+            }
+            return (bits <= 62) ? bits : -1;
+        }
+        return -1;
+    }
+    
+    // Returns the distance if 'node' is a constant we can shift a long by without losing bits, or -1.
+    private static int unboxedShiftDistance(AstNode node) {
+        if (node instanceof AstNode.Constant == false || ((AstNode.Constant) node).constant() instanceof IntegerValue == false) {
+            return -1;
+        }
+        IntegerValue distance = (IntegerValue) ((AstNode.Constant) node).constant();
+        if (distance.isBig() || distance.longValue() < 0 || distance.longValue() > 62) {
+            return -1;
+        }
+        return (int) distance.longValue();
+    }
+    
+    // Returns true if 'binOp' is a simple assignment to an unboxed int local.
+    private static boolean isUnboxedIntegerAssignment(AstNode.BinaryOperator binOp) {
+        return (binOp.op() == Token.ASSIGN && ((AstNode.VariableName) binOp.lhs()).definition().accessor() instanceof JvmUnboxedIntegerLocalAccessor);
+    }
+    
+    // Collects the definitions of the variables 'node' reads, each of which will need a guard.
+    private void collectIntegerVariables(AstNode node, List<AstNode.VariableDefinition> variables) {
+        if (node instanceof AstNode.VariableName) {
+            AstNode.VariableDefinition definition = ((AstNode.VariableName) node).definition();
+            if (variables.contains(definition) == false) {
+                variables.add(definition);
+            }
+        } else if (node instanceof AstNode.BinaryOperator) {
+            AstNode.BinaryOperator binOp = (AstNode.BinaryOperator) node;
+            if (binOp.op() == Token.ASSIGN) {
+                // The variable being assigned to isn't read.
+                collectIntegerVariables(binOp.rhs(), variables);
+                return;
+            }
+            collectIntegerVariables(binOp.lhs(), variables);
+            if (binOp.rhs() != null) {
+                collectIntegerVariables(binOp.rhs(), variables);
+            }
+        }
+    }
+    
+    // Jumps to 'slowPathLabel' unless all the given variables currently have values in the int range.
+    private void emitUnboxedIntegerGuards(List<AstNode.VariableDefinition> variables, int slowPathLabel) {
+        for (AstNode.VariableDefinition variable : variables) {
+            VariableAccessor accessor = variable.accessor();
+            if (accessor instanceof JvmUnboxedIntegerLocalAccessor) {
+                ((JvmUnboxedIntegerLocalAccessor) accessor).emitGuard(slowPathLabel);
+            } else {
+                accessor.emitGet();
+                cv.addInvoke(ByteCode.INVOKESTATIC, integerValueType, "fitsInInt", "(Lorg/jessies/talc/IntegerValue;)Z");
+                cv.add(ByteCode.IFEQ, slowPathLabel);
+            }
+        }
+    }
+    
+    // Pushes the value of 'node' as a long. Only valid for nodes accepted by unboxedIntegerBits, after emitUnboxedIntegerGuards.
+    private void emitUnboxedInteger(AstNode node) {
+        if (node instanceof AstNode.Constant) {
+            cv.addPush(((IntegerValue) ((AstNode.Constant) node).constant()).longValue());
+        } else if (node instanceof AstNode.VariableName) {
+            VariableAccessor accessor = ((AstNode.VariableName) node).definition().accessor();
+            if (accessor instanceof JvmUnboxedIntegerLocalAccessor) {
+                ((JvmUnboxedIntegerLocalAccessor) accessor).emitGetUnboxed();
+            } else {
+                accessor.emitGet();
+                cv.addInvoke(ByteCode.INVOKESTATIC, integerValueType, "unboxed", "(Lorg/jessies/talc/IntegerValue;)J");
+            }
+        } else {
+            AstNode.BinaryOperator binOp = (AstNode.BinaryOperator) node;
+            if (binOp.op() == Token.ASSIGN) {
+                emitUnboxedInteger(binOp.rhs());
+                cv.add(ByteCode.DUP2);
+                ((JvmUnboxedIntegerLocalAccessor) ((AstNode.VariableName) binOp.lhs()).definition().accessor()).emitPutUnboxed();
+                return;
+            } else if (binOp.op() == Token.SHL || binOp.op() == Token.SHR) {
+                emitUnboxedInteger(binOp.lhs());
+                cv.addPush(unboxedShiftDistance(binOp.rhs()));
+                cv.add(binOp.op() == Token.SHL ? ByteCode.LSHL : ByteCode.LSHR);
+                return;
+            }
+            emitUnboxedInteger(binOp.lhs());
+            if (binOp.rhs() != null) {
+                emitUnboxedInteger(binOp.rhs());
+            }
+            switch (binOp.op()) {
+                case NEG:   cv.add(ByteCode.LNEG); break;
+                case PLUS:  cv.add(ByteCode.LADD); break;
+                case SUB:   cv.add(ByteCode.LSUB); break;
+                case MUL:   cv.add(ByteCode.LMUL); break;
+                case DIV:   cv.add(ByteCode.LDIV); break;
+                case MOD:   cv.add(ByteCode.LREM); break;
+                case B_AND: cv.add(ByteCode.LAND); break;
+                case B_OR:  cv.add(ByteCode.LOR); break;
+                case B_XOR: cv.add(ByteCode.LXOR); break;
+                default:
+                    throw new TalcError(binOp, "ICE: can't generate unboxed code for " + binOp.op());
+            }
+        }
+    }
+    
+    /**
+     * Tries to generate code for 'binOp' treating "real" values as doubles,
+     * boxing only the final result (if it's wanted). Returns false, having
+     * generated nothing, if 'binOp' doesn't involve reals.
+     */
+    private boolean emitUnboxedRealOperation(AstNode.BinaryOperator binOp, boolean leaveValue) {
+        if (Talc.debugging('U')) {
+            return false;
+        }
+        switch (binOp.op()) {
+            case NEG:
+            case PLUS: case SUB: case MUL: case DIV: case POW:
+                if (binOp.type() != TalcType.REAL) {
+                    return false;
+                }
+                if (leaveValue) {
+                    emitUnboxedReal(binOp);
+                    cv.addInvoke(ByteCode.INVOKESTATIC, realValueType, "box", "(D)Lorg/jessies/talc/RealValue;");
+                } else {
+                    // Only the side-effects of the operands, if any, matter.
+                    emitUnboxedReal(binOp);
+                    cv.add(ByteCode.POP2);
+                }
+                return true;
+            
+            default:
+                return emitUnboxedRealAssignment(binOp, leaveValue);
+        }
+    }
+    
+    // Used by emitComparisonJump. Returns false, having generated nothing, if 'binOp' doesn't compare two reals.
+    private boolean emitUnboxedRealComparison(AstNode.BinaryOperator binOp, int jumpOpcode, int label) {
+        if (Talc.debugging('U') || talcTypeOf(binOp.lhs()) != TalcType.REAL || talcTypeOf(binOp.rhs()) != TalcType.REAL) {
+            return false;
+        }
+        if ((binOp.op() == Token.EQ || binOp.op() == Token.NE) && (escapeAnalyzer.mightBeNull(binOp.lhs()) || escapeAnalyzer.mightBeNull(binOp.rhs()))) {
+            // Unlike the ordering operators, == and != are defined for null.
+            return false;
+        }
+        // We use Double.compare rather than dcmpl/dcmpg so NaN and -0.0 behave as RealValue.compareTo and RealValue.equals say they should.
+        emitUnboxedReal(binOp.lhs());
+        emitUnboxedReal(binOp.rhs());
+        visitLineNumber(binOp);
+        cv.addInvoke(ByteCode.INVOKESTATIC, "java/lang/Double", "compare", "(DD)I");
+        cv.add(jumpOpcode, label);
+        return true;
+    }
+    
+    private boolean emitUnboxedRealAssignment(AstNode.BinaryOperator binOp, boolean leaveValue) {
+        if (binOp.lhs() instanceof AstNode.VariableName == false) {
+            return false;
+        }
+        VariableAccessor accessor = ((AstNode.VariableName) binOp.lhs()).definition().accessor();
+        if (accessor instanceof JvmUnboxedRealLocalAccessor == false) {
+            return false;
+        }
+        AstNode value = assignedValue(binOp, TalcType.REAL);
+        if (value == null) {
+            return false;
+        }
+        
+        // For post-increment/decrement, the result is the old value.
+        boolean isPost = (binOp.op() == Token.POST_INCREMENT || binOp.op() == Token.POST_DECREMENT);
+        if (isPost && leaveValue) {
+            accessor.emitGet();
+        }
+        emitUnboxedReal(value);
+        visitLineNumber(binOp);
+        ((JvmUnboxedRealLocalAccessor) accessor).emitPutUnboxed();
+        if (leaveValue && isPost == false) {
+            accessor.emitGet();
+        }
+        return true;
+    }
+    
+    // Pushes the value of the "real" expression 'node' as a double, unboxing only values that come from elsewhere.
+    private void emitUnboxedReal(AstNode node) {
+        if (Talc.debugging('U') == false) {
+            if (node instanceof AstNode.Constant && ((AstNode.Constant) node).constant() instanceof RealValue) {
+                visitLineNumber(node);
+                // Boxed constants go through RealValue.valueOf, which turns -0.0 into 0.0, so we must too.
+                cv.addPush(RealValue.valueOf(((RealValue) ((AstNode.Constant) node).constant()).doubleValue()).doubleValue());
+                return;
+            } else if (node instanceof AstNode.VariableName) {
+                VariableAccessor accessor = ((AstNode.VariableName) node).definition().accessor();
+                if (accessor instanceof JvmUnboxedRealLocalAccessor) {
+                    visitLineNumber(node);
+                    ((JvmUnboxedRealLocalAccessor) accessor).emitGetUnboxed();
+                    return;
+                }
+            } else if (node instanceof AstNode.BinaryOperator && ((AstNode.BinaryOperator) node).type() == TalcType.REAL) {
+                AstNode.BinaryOperator binOp = (AstNode.BinaryOperator) node;
+                int opcode = 0;
+                switch (binOp.op()) {
+                    case NEG:  opcode = ByteCode.DNEG; break;
+                    case PLUS: opcode = ByteCode.DADD; break;
+                    case SUB:  opcode = ByteCode.DSUB; break;
+                    case MUL:  opcode = ByteCode.DMUL; break;
+                    case DIV:  opcode = ByteCode.DDIV; break;
+                    case POW:  opcode = ByteCode.INVOKESTATIC; break;
+                    case ASSIGN:
+                        VariableAccessor accessor = ((AstNode.VariableName) binOp.lhs()).definition().accessor();
+                        if (accessor instanceof JvmUnboxedRealLocalAccessor) {
+                            emitUnboxedReal(binOp.rhs());
+                            visitLineNumber(binOp);
+                            cv.add(ByteCode.DUP2);
+                            ((JvmUnboxedRealLocalAccessor) accessor).emitPutUnboxed();
+                            return;
+                        }
+                        break;
+                }
+                if (opcode != 0) {
+                    emitUnboxedReal(binOp.lhs());
+                    if (binOp.rhs() != null) {
+                        emitUnboxedReal(binOp.rhs());
+                    }
+                    visitLineNumber(binOp);
+                    if (opcode == ByteCode.INVOKESTATIC) {
+                        cv.addInvoke(ByteCode.INVOKESTATIC, "java/lang/Math", "pow", "(DD)D");
+                    } else {
+                        cv.add(opcode);
+                    }
+                    return;
+                }
+            } else if (node instanceof AstNode.FunctionCall) {
+                AstNode.FunctionCall functionCall = (AstNode.FunctionCall) node;
+                AstNode.FunctionDefinition definition = functionCall.definition();
+                if (definition.isExtern()) {
+                    emitExternFunctionCall(functionCall);
+                    // visitExternFunctionCall boxes with RealValue.valueOf, which turns -0.0 into 0.0; adding 0.0 does the same.
+                    cv.add(ByteCode.DCONST_0);
+                    cv.add(ByteCode.DADD);
+                    return;
+                }
+                String mathMethodName = javaLangMathMethodFor(functionCall);
+                if (mathMethodName != null) {
+                    emitUnboxedReal(functionCall.instance());
+                    visitLineNumber(functionCall);
+                    cv.addInvoke(ByteCode.INVOKESTATIC, "java/lang/Math", mathMethodName, "(D)D");
+                    return;
+                }
+            }
+        }
+        // Anything else we evaluate as usual, and unbox the result.
+        node.accept(this);
+        cv.add(ByteCode.CHECKCAST, realValueType);
+        cv.addInvoke(ByteCode.INVOKEVIRTUAL, realValueType, "doubleValue", "()D");
+    }
+    
+    // Returns the name of the java.lang.Math method equivalent to the given call of a no-argument "real" method, or null.
+    private static String javaLangMathMethodFor(AstNode.FunctionCall functionCall) {
+        if (functionCall.instance() == null || functionCall.arguments().length != 0 || functionCall.definition().containingType() != TalcType.REAL) {
+            return null;
+        }
+        String name = functionCall.functionName();
+        if (name.equals("abs") || name.equals("cbrt") || name.equals("log10") || name.equals("signum") || name.equals("sqrt")) {
+            return name;
+        } else if (name.equals("logE")) {
+            return "log";
+        }
+        return null;
     }
     
-    private void assignTo(AstNode lhs) {
-        visitLineNumber(lhs);
-        AstNode.VariableName variableName = (AstNode.VariableName) lhs;
-        AstNode.VariableDefinition variableDefinition = variableName.definition();
-        cv.add(ByteCode.CHECKCAST, typeForTalcType(variableDefinition.type()));
-        cv.add(ByteCode.DUP);
-        variableDefinition.accessor().emitPut();
+    // Returns the Talc type of the value of an expression node, or null if we don't easily know.
+    private static TalcType talcTypeOf(AstNode node) {
+        if (node instanceof AstNode.BinaryOperator) {
+            return ((AstNode.BinaryOperator) node).type();
+        } else if (node instanceof AstNode.Constant) {
+            return ((AstNode.Constant) node).type();
+        } else if (node instanceof AstNode.FunctionCall) {
+            return ((AstNode.FunctionCall) node).resolvedReturnType();
+        } else if (node instanceof AstNode.StringConcatenation) {
+            return TalcType.STRING;
+        } else if (node instanceof AstNode.VariableName) {
+            return ((AstNode.VariableName) node).definition().type();
+        }
+        return null;
     }
     
     public Void visitBlock(AstNode.Block block) {
-        //mg.pushScope();
+        enterScope();
         for (AstNode statement : block.statements()) {
-            statement.accept(this);
-            popAnythingLeftBy(statement);
+            emitStatement(statement);
         }
-        //mg.popScope();
+        leaveScope();
         return null;
     }
     
+    // Generates code for a node whose value, if any, isn't wanted.
+    private void emitStatement(AstNode node) {
+        if (stringAccumulators.isEmpty() == false && emitAppendToStringAccumulator(node)) {
+            // Nothing was left on the stack.
+        } else if (node instanceof AstNode.VariableDefinition) {
+            defineVariable((AstNode.VariableDefinition) node, false);
+        } else if (node instanceof AstNode.BinaryOperator && emitUnboxedOperation((AstNode.BinaryOperator) node, false)) {
+            // Nothing was left on the stack.
+        } else {
+            node.accept(this);
+            popAnythingLeftBy(node);
+        }
+    }
+    
     private void popAnythingLeftBy(AstNode node) {
         // FIXME: is there a cleaner way to do this? ClassFileWriter knows how much stuff is on the stack (getStackTop).
         
         // If the code we generated for "statement" left a value on the stack, we need to pop it off!
-        if (node instanceof AstNode.BinaryOperator || node instanceof AstNode.Constant || node instanceof AstNode.ListLiteral || node instanceof AstNode.MapLiteral || node instanceof AstNode.VariableDefinition || node instanceof AstNode.VariableName) {
+        if (node instanceof AstNode.BinaryOperator || node instanceof AstNode.Constant || node instanceof AstNode.ListLiteral || node instanceof AstNode.MapLiteral || node instanceof AstNode.StringConcatenation || node instanceof AstNode.VariableDefinition || node instanceof AstNode.VariableName) {
             cv.add(ByteCode.POP);
         } else if (node instanceof AstNode.FunctionCall) {
             // Pop unused return values from non-void functions.
@@ -579,6 +1623,90 @@ public class JvmCodeGenerator implements AstVisitor<Void> {
         }
     }
     
+    // Instead of copying the whole string on every "s += x" in a loop, we keep
+    // any string variable that the loop only appends to in a StringBuilder,
+    // and convert it back to a string when we leave the loop.
+    // Returns the variables whose builders need finishing at the end of the loop.
+    private List<AstNode.VariableDefinition> startStringAccumulators(AstNode loop) {
+        ArrayList<AstNode.VariableDefinition> result = new ArrayList<AstNode.VariableDefinition>();
+        for (AstNode.VariableDefinition variable : new AstStringAccumulatorFinder(loop).accumulators()) {
+            // Only locals are safe: anything else could be seen by a function called from the loop.
+            // If an outer loop already has a builder for this variable, we just keep using it.
+            if (variable.accessor() instanceof JvmLocalVariableAccessor == false || stringAccumulators.containsKey(variable)) {
+                continue;
+            }
+            int builder = allocateLocal("$" + variable.identifier() + "$builder", "Ljava/lang/StringBuilder;", 1);
+            // builder = (s != null) ? new StringBuilder(s) : null;
+            // (An append to a null string still needs to throw NullPointerException, so we leave the builder null.)
+            int nullLabel = cv.acquireLabel();
+            cv.add(ByteCode.ACONST_NULL);
+            cv.addAStore(builder);
+            variable.accessor().emitGet();
+            cv.add(ByteCode.IFNULL, nullLabel);
+            cv.add(ByteCode.NEW, "java/lang/StringBuilder");
+            cv.add(ByteCode.DUP);
+            variable.accessor().emitGet();
+            cv.addInvoke(ByteCode.INVOKESPECIAL, "java/lang/StringBuilder", "<init>", "(Ljava/lang/String;)V");
+            cv.addAStore(builder);
+            cv.markLabel(nullLabel);
+            stringAccumulators.put(variable, builder);
+            result.add(variable);
+        }
+        return result;
+    }
+    
+    private void finishStringAccumulators(List<AstNode.VariableDefinition> variables) {
+        for (AstNode.VariableDefinition variable : variables) {
+            int builder = stringAccumulators.remove(variable);
+            // if (builder != null) s = builder.toString();
+            int doneLabel = cv.acquireLabel();
+            cv.addALoad(builder);
+            cv.add(ByteCode.IFNULL, doneLabel);
+            cv.addALoad(builder);
+            cv.addInvoke(ByteCode.INVOKEVIRTUAL, "java/lang/StringBuilder", "toString", "()Ljava/lang/String;");
+            variable.accessor().emitPut();
+            cv.markLabel(doneLabel);
+        }
+    }
+    
+    // Generates code for "s += x" (or equivalent) if 's' is currently being accumulated in a StringBuilder.
+    private boolean emitAppendToStringAccumulator(AstNode statement) {
+        AstNode.VariableDefinition variable = AstStringAccumulatorFinder.appendTarget(statement);
+        if (variable == null || stringAccumulators.containsKey(variable) == false) {
+            return false;
+        }
+        List<AstNode> operands = AstStringAccumulatorFinder.appendedOperands(statement);
+        enterScope();
+        // Evaluate all the operands before we append any of them, as String.concat would.
+        int[] locals = new int[operands.size()];
+        for (int i = 0; i < operands.size(); ++i) {
+            AstNode operand = operands.get(i);
+            if (operand instanceof AstNode.Constant == false) {
+                operand.accept(this);
+                locals[i] = allocateLocal("$operand" + i, "Ljava/lang/String;", 1);
+                cv.addAStore(locals[i]);
+            }
+        }
+        visitLineNumber(statement);
+        cv.addALoad(stringAccumulators.get(variable));
+        for (int i = 0; i < operands.size(); ++i) {
+            AstNode operand = operands.get(i);
+            if (operand instanceof AstNode.Constant) {
+                cv.addPush(((AstNode.Constant) operand).constant().toString());
+            } else {
+                // StringBuilder.append would append "null" where String.concat throws NullPointerException.
+                cv.addALoad(locals[i]);
+                cv.add(ByteCode.DUP);
+                cv.addInvoke(ByteCode.INVOKEVIRTUAL, "java/lang/Object", "getClass", "()Ljava/lang/Class;");
+                cv.add(ByteCode.POP);
+            }
+            cv.addInvoke(ByteCode.INVOKEVIRTUAL, "java/lang/StringBuilder", "append", "(Ljava/lang/String;)Ljava/lang/StringBuilder;");
+        }
+        cv.add(ByteCode.POP);
+        leaveScope();
+        return true;
+    }
+    
     public Void visitBreakStatement(AstNode.BreakStatement breakStatement) {
         visitLineNumber(breakStatement);
         LoopInfo loopInfo = activeLoops.peek();
@@ -617,13 +1745,13 @@ public class JvmCodeGenerator implements AstVisitor<Void> {
         // Generate a method before adding the fields, so we've somewhere to
         // put code for the field initializers; constructors will invoke this
         // method rather than duplicate the initialization.
-        maxLocals = 1;
-        cv.startMethod("__init_fields__", "()V", ClassFileWriter.ACC_PRIVATE);
+        startMethod("__init_fields__", "()V", ClassFileWriter.ACC_PRIVATE);
+        allocateLocal("this", ClassFileWriter.classNameToSignature(cv.getClassName()), 1);
         for (AstNode.VariableDefinition field : classDefinition.fields()) {
-            visitVariableDefinition(field);
+            defineVariable(field, false);
         }
         cv.add(ByteCode.RETURN);
-        cv.stopMethod(maxLocals);
+        stopMethod();
         
         for (AstNode.FunctionDefinition method : classDefinition.methods()) {
             visitFunctionDefinition(method);
@@ -644,57 +1772,57 @@ public class JvmCodeGenerator implements AstVisitor<Void> {
     }
     
     public Void visitDoStatement(AstNode.DoStatement doStatement) {
+        enterScope();
+        List<AstNode.VariableDefinition> accumulators = startStringAccumulators(doStatement);
         LoopInfo loopInfo = enterLoop();
         
         // continueLabel:
         cv.markLabel(loopInfo.continueLabel);
         // <body>
         doStatement.body().accept(this);
-        // if (<expression> == false) goto breakLabel;
-        doStatement.expression().accept(this);
+        // if (<expression>) goto continueLabel;
         visitLineNumber(doStatement);
-        pushFalse();
-        cv.add(ByteCode.IF_ACMPEQ, loopInfo.breakLabel);
-        // goto continueLabel;
-        cv.add(ByteCode.GOTO, loopInfo.continueLabel);
+        emitConditionalJump(doStatement.expression(), true, loopInfo.continueLabel);
         // breakLabel:
         cv.markLabel(loopInfo.breakLabel);
         
         leaveLoop();
+        finishStringAccumulators(accumulators);
+        leaveScope();
         return null;
     }
     
     public Void visitForStatement(AstNode.ForStatement forStatement) {
+        enterScope();
         LoopInfo loopInfo = enterLoop();
         
         int headLabel = cv.acquireLabel();
         
         // <initializer>
         if (forStatement.initializer() != null) {
-            forStatement.initializer().accept(this);
-            popAnythingLeftBy(forStatement.initializer());
+            emitStatement(forStatement.initializer());
         }
+        List<AstNode.VariableDefinition> accumulators = startStringAccumulators(forStatement);
         // headLabel:
         cv.markLabel(headLabel);
         // if (<condition> == false) goto breakLabel;
-        forStatement.conditionExpression().accept(this);
         visitLineNumber(forStatement);
-        pushFalse();
-        cv.add(ByteCode.IF_ACMPEQ, loopInfo.breakLabel);
+        emitConditionalJump(forStatement.conditionExpression(), false, loopInfo.breakLabel);
         // <body>
         forStatement.body().accept(this);
         // continueLabel:
         cv.markLabel(loopInfo.continueLabel);
         // <update-expression>
-        forStatement.updateExpression().accept(this);
+        emitStatement(forStatement.updateExpression());
         visitLineNumber(forStatement);
-        popAnythingLeftBy(forStatement.updateExpression());
         // goto headLabel;
         cv.add(ByteCode.GOTO, headLabel);
         // breakLabel:
         cv.markLabel(loopInfo.breakLabel);
         
         leaveLoop();
+        finishStringAccumulators(accumulators);
+        leaveScope();
         return null;
     }
     
@@ -702,6 +1830,8 @@ public class JvmCodeGenerator implements AstVisitor<Void> {
         final String collectionType = typeForTalcType(forEachStatement.expressionType());
         if (collectionType.equals(mapValueType)) {
             return visitForEachStatementForMap(forEachStatement);
+        } else if (collectionType.equals(iterableValueType)) {
+            return visitForEachStatementForIterable(forEachStatement);
         } else if (collectionType.equals(javaLangStringType) == false && collectionType.equals(listValueType) == false) {
             // FIXME: we need some kind of "iterable" concept in the language. until then, this code assumes we're dealing with a list or string.
             // Even if we have an "iterable" concept, we'll still need to cope with the fact that "string" is a bit of a special case, thanks to StringFunctions.
@@ -709,6 +1839,7 @@ public class JvmCodeGenerator implements AstVisitor<Void> {
         }
         
         visitLineNumber(forEachStatement);
+        enterScope();
         ArrayList<AstNode.VariableDefinition> loopVariables = (ArrayList<AstNode.VariableDefinition>) forEachStatement.loopVariableDefinitions();
         AstNode.VariableDefinition kDefinition;
         if (loopVariables.size() == 1) {
@@ -722,8 +1853,7 @@ public class JvmCodeGenerator implements AstVisitor<Void> {
         kDefinition.setInitializer(new AstNode.Constant(null, IntegerValue.valueOf(0), TalcType.INT));
         
         for (AstNode.VariableDefinition loopVariable : loopVariables) {
-            visitVariableDefinition(loopVariable);
-            popAnythingLeftBy(loopVariable);
+            emitStatement(loopVariable);
         }
         
         LoopInfo loopInfo = enterLoop();
@@ -733,13 +1863,20 @@ public class JvmCodeGenerator implements AstVisitor<Void> {
         // collection: list = <expression>;
         forEachStatement.expression().accept(this);
         visitLineNumber(forEachStatement);
-        JvmLocalVariableAccessor collection = new JvmLocalVariableAccessor("$collection", ClassFileWriter.classNameToSignature(collectionType), maxLocals++);
+        JvmLocalVariableAccessor collection = new JvmLocalVariableAccessor("$collection", ClassFileWriter.classNameToSignature(collectionType));
         cv.add(ByteCode.CHECKCAST, collectionType);
         cv.add(ByteCode.DUP);
         collection.emitPut();
         
         // max: int = collection.size();
-        JvmLocalVariableAccessor max = new JvmLocalVariableAccessor("$max", ClassFileWriter.classNameToSignature(integerValueType), maxLocals++);
+        AstNode.VariableDefinition maxDefinition = new AstNode.VariableDefinition(null, "$max", TalcType.INT, null, true);
+        VariableAccessor max;
+        if (Talc.debugging('U')) {
+            max = new JvmLocalVariableAccessor("$max", ClassFileWriter.classNameToSignature(integerValueType));
+        } else {
+            max = new JvmUnboxedIntegerLocalAccessor("$max");
+        }
+        maxDefinition.setAccessor(max);
         if (forEachStatement.expressionType() == TalcType.STRING) {
             cv.addInvoke(ByteCode.INVOKESTATIC, "org/jessies/talc/StringFunctions", "size", "(Ljava/lang/String;)Lorg/jessies/talc/IntegerValue;");
         } else {
@@ -751,14 +1888,21 @@ public class JvmCodeGenerator implements AstVisitor<Void> {
         VariableAccessor v = loopVariables.get(1).accessor();
         String vType = typeForTalcType(loopVariables.get(1).type());
         
+        // We express the loop condition and increment as AST nodes, so they get the same treatment as user code.
+        AstNode.VariableName kName = new AstNode.VariableName(null, kDefinition.identifier());
+        kName.setDefinition(kDefinition);
+        AstNode.VariableName maxName = new AstNode.VariableName(null, maxDefinition.identifier());
+        maxName.setDefinition(maxDefinition);
+        AstNode.BinaryOperator condition = new AstNode.BinaryOperator(null, Token.LT, kName, maxName);
+        condition.setType(TalcType.BOOL);
+        AstNode.BinaryOperator increment = new AstNode.BinaryOperator(null, Token.PRE_INCREMENT, kName, null);
+        increment.setType(TalcType.INT);
+        
+        List<AstNode.VariableDefinition> accumulators = startStringAccumulators(forEachStatement);
         // headLabel:
         cv.markLabel(headLabel);
-        // if (k >= max) goto breakLabel;
-        k.emitGet();
-        max.emitGet();
-        cv.addInvoke(ByteCode.INVOKEINTERFACE, "java/lang/Comparable", "compareTo", "(Ljava/lang/Object;)I");
-        cv.addPush(0);
-        cv.add(ByteCode.IF_ICMPGE, loopInfo.breakLabel);
+        // if (k < max == false) goto breakLabel;
+        emitConditionalJump(condition, false, loopInfo.breakLabel);
         // v = collection.__get_item__(k);
         collection.emitGet();
         k.emitGet();
@@ -775,20 +1919,21 @@ public class JvmCodeGenerator implements AstVisitor<Void> {
         cv.markLabel(loopInfo.continueLabel);
         // ++k;
         visitLineNumber(forEachStatement);
-        k.emitGet();
-        cv.addInvoke(ByteCode.INVOKEVIRTUAL, integerValueType, "increment", "()Lorg/jessies/talc/IntegerValue;");
-        k.emitPut();
+        emitStatement(increment);
         // goto headLabel;
         cv.add(ByteCode.GOTO, headLabel);
         // breakLabel:
         cv.markLabel(loopInfo.breakLabel);
         
         leaveLoop();
+        finishStringAccumulators(accumulators);
+        leaveScope();
         return null;
     }
     
     private Void visitForEachStatementForMap(AstNode.ForEachStatement forEachStatement) {
         visitLineNumber(forEachStatement);
+        enterScope();
         final ArrayList<AstNode.VariableDefinition> loopVariables = (ArrayList<AstNode.VariableDefinition>) forEachStatement.loopVariableDefinitions();
         AstNode.VariableDefinition kDefinition;
         if (loopVariables.size() == 1) {
@@ -803,21 +1948,20 @@ public class JvmCodeGenerator implements AstVisitor<Void> {
         kDefinition.setInitializer(new AstNode.Constant(null, null, TalcType.NULL));
         
         for (AstNode.VariableDefinition loopVariable : loopVariables) {
-            visitVariableDefinition(loopVariable);
-            popAnythingLeftBy(loopVariable);
+            emitStatement(loopVariable);
         }
         
         // $collection: MapValue = <expression>;
         forEachStatement.expression().accept(this);
         visitLineNumber(forEachStatement);
         final String collectionType = typeForTalcType(forEachStatement.expressionType());
-        final JvmLocalVariableAccessor collection = new JvmLocalVariableAccessor("$collection", ClassFileWriter.classNameToSignature(collectionType), maxLocals++);
+        final JvmLocalVariableAccessor collection = new JvmLocalVariableAccessor("$collection", ClassFileWriter.classNameToSignature(collectionType));
         cv.add(ByteCode.CHECKCAST, collectionType);
         cv.add(ByteCode.DUP);
         collection.emitPut();
         
         // $iterator: java.util.Iterator = <expression>.keyIterator();
-        final JvmLocalVariableAccessor iterator = new JvmLocalVariableAccessor("$iterator", ClassFileWriter.classNameToSignature(javaUtilIteratorType), maxLocals++);
+        final JvmLocalVariableAccessor iterator = new JvmLocalVariableAccessor("$iterator", ClassFileWriter.classNameToSignature(javaUtilIteratorType));
         cv.addInvoke(ByteCode.INVOKEVIRTUAL, mapValueType, "keyIterator", "()Ljava/util/Iterator;");
         iterator.emitPut();
         
@@ -826,6 +1970,8 @@ public class JvmCodeGenerator implements AstVisitor<Void> {
         final String kType = typeForTalcType(loopVariables.get(0).type());
         final String vType = typeForTalcType(loopVariables.get(1).type());
         
+        final List<AstNode.VariableDefinition> accumulators = startStringAccumulators(forEachStatement);
+        
         // continueLabel:
         final LoopInfo loopInfo = enterLoop();
         cv.markLabel(loopInfo.continueLabel);
@@ -855,10 +2001,110 @@ public class JvmCodeGenerator implements AstVisitor<Void> {
         cv.markLabel(loopInfo.breakLabel);
         
         leaveLoop();
+        finishStringAccumulators(accumulators);
+        leaveScope();
+        return null;
+    }
+    
+    private Void visitForEachStatementForIterable(AstNode.ForEachStatement forEachStatement) {
+        visitLineNumber(forEachStatement);
+        enterScope();
+        final ArrayList<AstNode.VariableDefinition> loopVariables = (ArrayList<AstNode.VariableDefinition>) forEachStatement.loopVariableDefinitions();
+        AstNode.VariableDefinition kDefinition;
+        if (loopVariables.size() == 1) {
+            // The user didn't ask for the index, but it's simplest to synthesize it anyway.
+            kDefinition = new AstNode.VariableDefinition(null, "$key", TalcType.INT, null, false);
+            loopVariables.add(0, kDefinition);
+        } else {
+            // The user did ask for the index, but won't (can't!) have supplied an initializer.
+            kDefinition = loopVariables.get(0);
+        }
+        kDefinition.setInitializer(new AstNode.Constant(null, IntegerValue.valueOf(0), TalcType.INT));
+        
+        for (AstNode.VariableDefinition loopVariable : loopVariables) {
+            emitStatement(loopVariable);
+        }
+        
+        // $iterator: java.util.Iterator = <expression>.iterator();
+        // We never materialize the whole sequence: each iteration asks for the next element.
+        forEachStatement.expression().accept(this);
+        visitLineNumber(forEachStatement);
+        final JvmLocalVariableAccessor iterator = new JvmLocalVariableAccessor("$iterator", ClassFileWriter.classNameToSignature(javaUtilIteratorType));
+        cv.add(ByteCode.CHECKCAST, iterableValueType);
+        cv.addInvoke(ByteCode.INVOKEVIRTUAL, iterableValueType, "iterator", "()Ljava/util/Iterator;");
+        iterator.emitPut();
+        
+        final VariableAccessor v = loopVariables.get(1).accessor();
+        final String vType = typeForTalcType(loopVariables.get(1).type());
+        
+        AstNode.VariableName kName = new AstNode.VariableName(null, kDefinition.identifier());
+        kName.setDefinition(kDefinition);
+        AstNode.BinaryOperator increment = new AstNode.BinaryOperator(null, Token.PRE_INCREMENT, kName, null);
+        increment.setType(TalcType.INT);
+        
+        final List<AstNode.VariableDefinition> accumulators = startStringAccumulators(forEachStatement);
+        
+        final LoopInfo loopInfo = enterLoop();
+        loopInfo.iterator = iterator;
+        final short stackTop = cv.getStackTop();
+        final int headLabel = cv.acquireLabel();
+        // headLabel:
+        cv.markLabel(headLabel);
+        
+        // if (!$iterator.hasNext()) goto breakLabel;
+        iterator.emitGet();
+        cv.addInvoke(ByteCode.INVOKEINTERFACE, javaUtilIteratorType, "hasNext", "()Z");
+        cv.add(ByteCode.IFEQ, loopInfo.breakLabel);
+        
+        // v = (V) $iterator.next();
+        iterator.emitGet();
+        cv.addInvoke(ByteCode.INVOKEINTERFACE, javaUtilIteratorType, "next", "()Ljava/lang/Object;");
+        cv.add(ByteCode.CHECKCAST, vType);
+        v.emitPut();
+        
+        // <body>
+        forEachStatement.body().accept(this);
+        // continueLabel:
+        cv.markLabel(loopInfo.continueLabel);
+        // ++k;
+        visitLineNumber(forEachStatement);
+        emitStatement(increment);
+        // goto headLabel;
+        cv.add(ByteCode.GOTO, headLabel);
+        // breakLabel:
+        cv.markLabel(loopInfo.breakLabel);
+        
+        // IterableValue.close($iterator);
+        // A "break" stops the work, and this lets go of any resources (such as an open file) it was using.
+        final int doneLabel = cv.acquireLabel();
+        emitIteratorClose(iterator);
+        cv.add(ByteCode.GOTO, doneLabel);
+        
+        // If anything in the loop throws, we close the iterator and rethrow. (A "return" closes it itself.)
+        final int handlerLabel = cv.acquireLabel();
+        cv.markHandler(handlerLabel);
+        emitIteratorClose(iterator);
+        cv.add(ByteCode.ATHROW);
+        cv.addExceptionHandler(headLabel, loopInfo.breakLabel, handlerLabel, null);
+        cv.markLabel(doneLabel, stackTop);
+        
+        leaveLoop();
+        finishStringAccumulators(accumulators);
+        leaveScope();
         return null;
     }
     
     private Void visitExternFunctionCall(AstNode.FunctionCall functionCall) {
+        emitExternFunctionCall(functionCall);
+        
+        // FIXME: convert the result to the appropriate Talc type.
+        cv.addInvoke(ByteCode.INVOKESTATIC, "org/jessies/talc/RealValue", "valueOf", "(D)Lorg/jessies/talc/RealValue;");
+        
+        return null;
+    }
+    
+    // Leaves the Java method's double result on the stack.
+    private void emitExternFunctionCall(AstNode.FunctionCall functionCall) {
         AstNode.FunctionDefinition definition = functionCall.definition();
         
         if (definition.externLanguageName().equals("Java") == false) {
@@ -878,18 +2124,12 @@ public class JvmCodeGenerator implements AstVisitor<Void> {
         List<TalcType> formalParameterTypes = definition.formalParameterTypes();
         AstNode[] arguments = functionCall.arguments();
         for (int i = 0; i < arguments.length; ++i) {
-            arguments[i].accept(this);
             // FIXME: convert to the type the Java method's expecting.
-            cv.addInvoke(ByteCode.INVOKEVIRTUAL, "org/jessies/talc/RealValue", "doubleValue", "()D");
+            emitUnboxedReal(arguments[i]);
         }
         
         // FIXME: use reflection to check the method exists?
         cv.addInvoke(ByteCode.INVOKESTATIC, className, methodName, methodSignature);
-        
-        // FIXME: convert the result to the appropriate Talc type.
-        cv.addInvoke(ByteCode.INVOKESTATIC, "org/jessies/talc/RealValue", "valueOf", "(D)Lorg/jessies/talc/RealValue;");
-        
-        return null;
     }
     
     private void pushObjectArray(AstNode[] arguments) {
@@ -923,6 +2163,8 @@ public class JvmCodeGenerator implements AstVisitor<Void> {
         //System.err.println("call to " + functionName + " in type " + talcContainingType + " defined in scope " + definition.scope());
         if (talcContainingType != null) {
             containingType = typeForTalcType(talcContainingType);
+        } else if (definition.libraryClassName() != null) {
+            containingType = definition.libraryClassName();
         } else if (definition.scope() == null) {
             // We need a special case for built-in "global" functions.
             containingType = "org/jessies/talc/Functions";
@@ -976,8 +2218,16 @@ public class JvmCodeGenerator implements AstVisitor<Void> {
                 cv.add(ByteCode.ALOAD_0);
             }
             
+            // Does this call take a regular expression we can precompile?
+            // (StringFunctions handles the splitting and substitution methods without java.util.regex when the pattern has no metacharacters.)
+            final boolean hasPatternLiteral = (proxyType != null && takesRegularExpression(functionName) && isStringConstant(arguments[0]) && (functionName.contains("match") || StringFunctions.isLiteral((String) ((AstNode.Constant) arguments[0]).constant()) == false));
+            
             List<TalcType> formalParameterTypes = definition.formalParameterTypes();
             for (int i = 0; i < arguments.length; ++i) {
+                if (i == 0 && hasPatternLiteral) {
+                    talcConstantPool.addPatternAndEmitCode((AstNode.Constant) arguments[0]);
+                    continue;
+                }
                 arguments[i].accept(this);
                 
                 // Emit a "checkcast", just in case.
@@ -989,7 +2239,14 @@ public class JvmCodeGenerator implements AstVisitor<Void> {
                 functionName = "toString";
             }
             String methodSignature = methodSignature(definition);
-            if (proxyType != null) {
+            if (hasPatternLiteral) {
+                // Use the overload that takes a RegularExpression instead of a String.
+                methodSignature = "(" + ClassFileWriter.classNameToSignature(regularExpressionType) + methodSignature.substring(1 + ClassFileWriter.classNameToSignature(javaLangStringType).length());
+            }
+            if (functionCall.instance() != null && (proxyType != null || containingType == listValueType || containingType == mapValueType) && Talc.debugging('I')) {
+                emitBuiltInMethodCall(functionCall, functionName, containingType, proxyType, methodSignature);
+                return null;
+            } else if (proxyType != null) {
                 // We have to insert the argument representing "this" in these static methods.
                 methodSignature = "(" + ClassFileWriter.classNameToSignature(containingType) + methodSignature.substring(1);
                 cv.addInvoke(ByteCode.INVOKESTATIC, proxyType, functionName, methodSignature);
@@ -1019,6 +2276,39 @@ public class JvmCodeGenerator implements AstVisitor<Void> {
         return null;
     }
     
+    // The string methods whose first argument is a regular expression.
+    private static boolean takesRegularExpression(String functionName) {
+        return functionName.equals("each_match") || functionName.equals("each_split") || functionName.equals("gsub") || functionName.equals("match") || functionName.equals("match_all") || functionName.equals("split") || functionName.equals("sub");
+    }
+    
+    private static boolean isStringConstant(AstNode node) {
+        return (node instanceof AstNode.Constant && ((AstNode.Constant) node).constant() instanceof String);
+    }
+    
+    // With -D I, calls to built-in methods on lists, maps, and strings go through an invokedynamic call site linked by Linker.
+    // That's off by default because it's slower than direct calls on JDK 8 until Linker has specializations to offer.
+    // The call site's type uses the call's resolved return type, so we don't need a "checkcast" for erased generic return types.
+    private void emitBuiltInMethodCall(AstNode.FunctionCall functionCall, String functionName, String containingType, String proxyType, String methodSignature) {
+        ClassFileWriter.MHandle implementation;
+        if (proxyType != null) {
+            implementation = new ClassFileWriter.MHandle(ByteCode.MH_INVOKESTATIC, proxyType, functionName, "(" + ClassFileWriter.classNameToSignature(containingType) + methodSignature.substring(1));
+        } else {
+            implementation = new ClassFileWriter.MHandle(ByteCode.MH_INVOKEVIRTUAL, containingType, functionName, methodSignature);
+        }
+        
+        StringBuilder callSiteType = new StringBuilder("(");
+        callSiteType.append(ClassFileWriter.classNameToSignature(containingType));
+        callSiteType.append(methodSignature, 1, methodSignature.indexOf(')') + 1);
+        TalcType resolvedReturnType = functionCall.resolvedReturnType();
+        if (resolvedReturnType == TalcType.VOID) {
+            callSiteType.append("V");
+        } else {
+            callSiteType.append(ClassFileWriter.classNameToSignature(typeForTalcType(resolvedReturnType)));
+        }
+        
+        cv.addInvokeDynamic(functionName, callSiteType.toString(), builtInMethodBootstrap, implementation);
+    }
+    
     private String typeForTalcType(TalcType talcType) {
         if (talcType == TalcType.BOOL) {
             return "org/jessies/talc/BooleanValue";
@@ -1045,6 +2335,8 @@ public class JvmCodeGenerator implements AstVisitor<Void> {
         } else if (talcType.rawName().equals("map") || talcType.rawName().equals("empty-map")) {
             // FIXME: this is a particularly big hack.
             return mapValueType;
+        } else if (talcType.rawName().equals("iterable")) {
+            return iterableValueType;
         } else if (talcType.isUserDefined()) {
             return talcType.rawName();
         } else {
@@ -1090,48 +2382,171 @@ public class JvmCodeGenerator implements AstVisitor<Void> {
             functionName = "toString";
         }
         
-        maxLocals = 0;
-        cv.startMethod(functionName, methodSignature(functionDefinition), flags);
+        if (Talc.debugging('M') == false) {
+            startMethod(functionName, methodSignature(functionDefinition), flags);
+            
+            visitLineNumber(functionDefinition);
+            
+            emitFunctionPrologue(functionDefinition, flags);
+            for (AstNode.VariableDefinition formalParameter : functionDefinition.formalParameters()) {
+                String formalParameterSignature = ClassFileWriter.classNameToSignature(typeForTalcType(formalParameter.type()));
+                formalParameter.setAccessor(new JvmLocalVariableAccessor(formalParameter.identifier(), formalParameterSignature));
+            }
+            emitConstructorPreamble(functionDefinition);
+            functionDefinition.body().accept(this);
+            
+            if (functionDefinition.isConstructor() || functionDefinition.returnType() == TalcType.VOID) {
+                // Void functions in Talc are allowed an implicit "return".
+                // The bytecode verifier doesn't care if we have an unreachable RETURN bytecode, but it does care if we fall off the end of a method!
+                cv.add(ByteCode.RETURN);
+            }
+            
+            if (cv.getCurrentCodeOffset() <= HUGE_METHOD_SIZE) {
+                stopMethod();
+                return null;
+            }
+            // Too big for HotSpot to compile (or maybe even too big to be a method), so try again...
+            cv.abandonMethod();
+        }
         
-        visitLineNumber(functionDefinition);
+        emitSplitFunction(functionDefinition, functionName, flags);
+        return null;
+    }
+    
+    // For non-static methods, "this" is argument 0 and the arguments start from 1.
+    private void emitFunctionPrologue(AstNode.FunctionDefinition functionDefinition, short flags) {
+        if ((flags & ClassFileWriter.ACC_STATIC) == 0) {
+            allocateLocal("this", ClassFileWriter.classNameToSignature(cv.getClassName()), 1);
+        }
+    }
+    
+    private void emitConstructorPreamble(AstNode.FunctionDefinition functionDefinition) {
+        if (functionDefinition.isConstructor()) {
+            // Constructors need to call their superclass constructor.
+            cv.add(ByteCode.ALOAD_0);
+            // FIXME: not all classes will have java/lang/Object as their direct superclass!
+            cv.addInvoke(ByteCode.INVOKESPECIAL, "java/lang/Object", "<init>", "()V");
+            cv.add(ByteCode.ALOAD_0);
+            cv.addInvoke(ByteCode.INVOKEVIRTUAL, cv.getClassName(), "__init_fields__", "()V");
+        }
+    }
+    
+    /**
+     * Generates a function whose body is too big for one method as a
+     * sequence of helper methods ("f$0", "f$1" and so on), each taking some of
+     * the body's statements, plus a method with the function's real name that
+     * calls them in turn.
+     * 
+     * The parameters and the variables defined in the body's outermost scope
+     * can be seen from more than one helper, so they live in an Object[]
+     * "frame" passed to each helper. (Variables in nested scopes are local to the
+     * statement that defines them, and stay in the helper's locals.)
+     * 
+     * A helper returns the frame itself if control fell off its end, and
+     * anything else (including null) is the function's return value.
+     */
+    private void emitSplitFunction(AstNode.FunctionDefinition functionDefinition, String functionName, short flags) {
+        final boolean isStatic = (flags & ClassFileWriter.ACC_STATIC) != 0;
+        final boolean isVoid = functionDefinition.isConstructor() || functionDefinition.returnType() == TalcType.VOID;
+        final String frameSignature = "[Ljava/lang/Object;";
+        final String helperType = "(" + frameSignature + ")Ljava/lang/Object;";
+        final short helperFlags = (short) (ClassFileWriter.ACC_PRIVATE | (flags & ClassFileWriter.ACC_STATIC));
+        final List<AstNode> statements = ((AstNode.Block) functionDefinition.body()).statements();
+        
+        inSplitFunction = true;
+        frameScope = statements.isEmpty() ? null : statements.get(0).scope();
+        frameSize = 0;
+        for (AstNode.VariableDefinition formalParameter : functionDefinition.formalParameters()) {
+            formalParameter.setAccessor(new JvmFrameAccessor(frameSize++, typeForTalcType(formalParameter.type())));
+        }
         
-        // For non-static methods, "this" is argument 0 and the arguments start from 1.
-        JvmLocalVariableAccessor thisAccessor = null;
-        String containingClassName = null;
-        String containingClassSignature = null;
-        if (functionDefinition.containingType() != null) {
-            containingClassName = typeForTalcType(functionDefinition.containingType());
-            containingClassSignature = ClassFileWriter.classNameToSignature(containingClassName);
+        ArrayList<String> helperNames = new ArrayList<String>();
+        boolean inHelper = false;
+        for (AstNode statement : statements) {
+            if (inHelper && cv.getCurrentCodeOffset() >= splitMethodSize()) {
+                emitFallOffEndOfHelper();
+                inHelper = false;
+            }
+            if (inHelper == false) {
+                String helperName = functionDefinition.functionName() + "$" + helperNames.size();
+                startMethod(helperName, helperType, helperFlags);
+                emitFunctionPrologue(functionDefinition, flags);
+                frameLocal = allocateLocal("$frame", frameSignature, 1);
+                helperNames.add(helperName);
+                inHelper = true;
+            }
+            emitStatement(statement);
         }
-        if ((flags & ClassFileWriter.ACC_STATIC) == 0) {
-            thisAccessor = new JvmLocalVariableAccessor("this", containingClassSignature, maxLocals++);
+        if (inHelper) {
+            emitFallOffEndOfHelper();
         }
         
+        startMethod(functionName, methodSignature(functionDefinition), flags);
+        visitLineNumber(functionDefinition);
+        emitFunctionPrologue(functionDefinition, flags);
+        ArrayList<Integer> formalParameterLocals = new ArrayList<Integer>();
         for (AstNode.VariableDefinition formalParameter : functionDefinition.formalParameters()) {
             String formalParameterSignature = ClassFileWriter.classNameToSignature(typeForTalcType(formalParameter.type()));
-            formalParameter.setAccessor(new JvmLocalVariableAccessor(formalParameter.identifier(), formalParameterSignature, maxLocals++));
+            formalParameterLocals.add((int) allocateLocal(formalParameter.identifier(), formalParameterSignature, 1));
         }
+        frameLocal = allocateLocal("$frame", frameSignature, 1);
         
-        //mg.pushScope();
-        if (functionDefinition.isConstructor()) {
-            // Constructors need to call their superclass constructor.
-            thisAccessor.emitGet();
-            // FIXME: not all classes will have java/lang/Object as their direct superclass!
-            cv.addInvoke(ByteCode.INVOKESPECIAL, "java/lang/Object", "<init>", "()V");
-            thisAccessor.emitGet();
-            cv.addInvoke(ByteCode.INVOKEVIRTUAL, containingClassName, "__init_fields__", "()V");
+        // $frame = new Object[] { <formal parameters>, <space for the body's variables> };
+        cv.addPush(frameSize);
+        cv.add(ByteCode.ANEWARRAY, javaLangObjectType);
+        for (int i = 0; i < formalParameterLocals.size(); ++i) {
+            cv.add(ByteCode.DUP);
+            cv.addPush(i);
+            cv.addALoad(formalParameterLocals.get(i));
+            cv.add(ByteCode.AASTORE);
+        }
+        cv.addAStore(frameLocal);
+        
+        emitConstructorPreamble(functionDefinition);
+        
+        for (String helperName : helperNames) {
+            int nextLabel = cv.acquireLabel();
+            // if ((result = helper($frame)) != $frame) return result;
+            if (isStatic) {
+                cv.addALoad(frameLocal);
+                cv.addInvoke(ByteCode.INVOKESTATIC, cv.getClassName(), helperName, helperType);
+            } else {
+                cv.add(ByteCode.ALOAD_0);
+                cv.addALoad(frameLocal);
+                cv.addInvoke(ByteCode.INVOKESPECIAL, cv.getClassName(), helperName, helperType);
+            }
+            cv.add(ByteCode.DUP);
+            cv.addALoad(frameLocal);
+            cv.add(ByteCode.IF_ACMPEQ, nextLabel);
+            if (isVoid) {
+                cv.add(ByteCode.POP);
+                cv.add(ByteCode.RETURN);
+            } else {
+                cv.add(ByteCode.CHECKCAST, typeForTalcType(functionDefinition.returnType()));
+                cv.add(ByteCode.ARETURN);
+            }
+            // The helper's result is still on the stack here, but ClassFileWriter can't know that after a return.
+            cv.markLabel(nextLabel, (short) 1);
+            cv.add(ByteCode.POP);
         }
-        functionDefinition.body().accept(this);
-        //mg.popScope();
         
-        if (functionDefinition.isConstructor() || functionDefinition.returnType() == TalcType.VOID) {
-            // Void functions in Talc are allowed an implicit "return".
-            // The bytecode verifier doesn't care if we have an unreachable RETURN bytecode, but it does care if we fall off the end of a method!
+        if (isVoid) {
             cv.add(ByteCode.RETURN);
+        } else {
+            // We can't get here, but the verifier doesn't know that.
+            cv.add(ByteCode.ACONST_NULL);
+            cv.add(ByteCode.ARETURN);
         }
+        stopMethod();
         
-        cv.stopMethod(maxLocals);
-        return null;
+        inSplitFunction = false;
+        frameScope = null;
+    }
+    
+    private void emitFallOffEndOfHelper() {
+        cv.addALoad(frameLocal);
+        cv.add(ByteCode.ARETURN);
+        stopMethod();
     }
     
     // Implements "if" statements.
@@ -1153,9 +2568,7 @@ public class JvmCodeGenerator implements AstVisitor<Void> {
         
         // Unlike most compilers, we actually keep all the expressions together in a sort of "jump table"...
         for (int i = 0; i < expressionCount; ++i) {
-            expressions.get(i).accept(this);
-            pushTrue();
-            cv.add(ByteCode.IF_ACMPEQ, labels[i]);
+            emitConditionalJump(expressions.get(i), true, labels[i]);
         }
         cv.add(ByteCode.GOTO, elseLabel);
         
@@ -1179,6 +2592,26 @@ public class JvmCodeGenerator implements AstVisitor<Void> {
         return null;
     }
     
+    public Void visitImportStatement(AstNode.ImportStatement importStatement) {
+        Library library = importStatement.library();
+        linkLibrary(library);
+        // Run the library's global code, if no-one has yet.
+        visitLineNumber(importStatement);
+        cv.addInvoke(ByteCode.INVOKESTATIC, library.className(), "$import", "()V");
+        return null;
+    }
+    
+    // Points the accessors for the globals of 'library', and of the libraries it imports, at the fields of their classes.
+    private void linkLibrary(Library library) {
+        for (Library importedLibrary : library.importedLibraries()) {
+            linkLibrary(importedLibrary);
+        }
+        for (AstNode.VariableDefinition global : library.globals()) {
+            String signature = ClassFileWriter.classNameToSignature(typeForTalcType(global.type()));
+            global.setAccessor(new JvmFieldAccessor(library.className(), global.identifier(), signature, true));
+        }
+    }
+    
     public Void visitListLiteral(AstNode.ListLiteral listLiteral) {
         // ListValue $anon$result = new ListValue();
         visitLineNumber(listLiteral);
@@ -1230,29 +2663,113 @@ public class JvmCodeGenerator implements AstVisitor<Void> {
             returnStatement.expression().accept(this);
             cv.add(ByteCode.CHECKCAST, typeForTalcType(returnStatement.returnType()));
             visitLineNumber(returnStatement);
+            emitIteratorCloses();
             cv.add(ByteCode.ARETURN);
             return null;
         }
         
         visitLineNumber(returnStatement);
-        cv.add(ByteCode.RETURN);
+        emitIteratorCloses();
+        if (inSplitFunction) {
+            // We're in a helper for a split void function, so we need to return something other than the frame.
+            cv.add(ByteCode.ACONST_NULL);
+            cv.add(ByteCode.ARETURN);
+        } else {
+            cv.add(ByteCode.RETURN);
+        }
+        return null;
+    }
+    
+    // Closes the iterators of all the for-each loops a "return" leaves, innermost first.
+    private void emitIteratorCloses() {
+        for (LoopInfo loopInfo : activeLoops) {
+            if (loopInfo.iterator != null) {
+                emitIteratorClose(loopInfo.iterator);
+            }
+        }
+    }
+    
+    private void emitIteratorClose(JvmLocalVariableAccessor iterator) {
+        iterator.emitGet();
+        cv.addInvoke(ByteCode.INVOKESTATIC, iterableValueType, "close", "(Ljava/util/Iterator;)V");
+    }
+    
+    // Rather than one String.concat (and one intermediate string) per "+", we
+    // evaluate all the operands first and append them to a StringBuilder
+    // presized to the exact length of the result.
+    public Void visitStringConcatenation(AstNode.StringConcatenation stringConcatenation) {
+        final List<AstNode> operands = stringConcatenation.operands();
+        final int operandCount = operands.size();
+        enterScope();
+        
+        // Evaluate the non-constant operands in order, keeping them in locals.
+        int[] locals = new int[operandCount];
+        int constantLength = 0;
+        for (int i = 0; i < operandCount; ++i) {
+            AstNode operand = operands.get(i);
+            if (operand instanceof AstNode.Constant) {
+                constantLength += ((AstNode.Constant) operand).constant().toString().length();
+                locals[i] = -1;
+            } else {
+                operand.accept(this);
+                locals[i] = allocateLocal("$operand" + i, "Ljava/lang/String;", 1);
+                cv.addAStore(locals[i]);
+            }
+        }
+        
+        // new StringBuilder(<constant length> + operand1.length() + ...)
+        visitLineNumber(stringConcatenation);
+        cv.add(ByteCode.NEW, "java/lang/StringBuilder");
+        cv.add(ByteCode.DUP);
+        cv.addPush(constantLength);
+        for (int i = 0; i < operandCount; ++i) {
+            if (locals[i] != -1) {
+                cv.addALoad(locals[i]);
+                cv.addInvoke(ByteCode.INVOKEVIRTUAL, javaLangStringType, "length", "()I");
+                cv.add(ByteCode.IADD);
+            }
+        }
+        cv.addInvoke(ByteCode.INVOKESPECIAL, "java/lang/StringBuilder", "<init>", "(I)V");
+        
+        for (int i = 0; i < operandCount; ++i) {
+            if (locals[i] != -1) {
+                cv.addALoad(locals[i]);
+            } else {
+                cv.addPush(((AstNode.Constant) operands.get(i)).constant().toString());
+            }
+            cv.addInvoke(ByteCode.INVOKEVIRTUAL, "java/lang/StringBuilder", "append", "(Ljava/lang/String;)Ljava/lang/StringBuilder;");
+        }
+        cv.addInvoke(ByteCode.INVOKEVIRTUAL, "java/lang/StringBuilder", "toString", "()Ljava/lang/String;");
+        
+        leaveScope();
         return null;
     }
     
     public Void visitVariableDefinition(AstNode.VariableDefinition variableDefinition) {
+        defineVariable(variableDefinition, true);
+        return null;
+    }
+    
+    private void defineVariable(AstNode.VariableDefinition variableDefinition, boolean leaveValue) {
         String type = typeForTalcType(variableDefinition.type());
         String signature = ClassFileWriter.classNameToSignature(type);
         VariableAccessor accessor;
         if (variableDefinition.scope() == Scope.globalScope() || variableDefinition.scope() == Scope.builtInScope()) {
-            // If we're at global scope, we may need to back variables with fields.
-            // Escape analysis would tell us whether or not we do, but we don't do any of that, so we have to assume the worst.
-            short access = ClassFileWriter.ACC_PRIVATE | ClassFileWriter.ACC_STATIC;
+            // If we're at global scope, we need to back variables with fields, because they're visible to more than one method.
+            // (Though AstEscapeAnalyzer tells us which ones we can keep in locals while we're running a global code helper.)
+            // A library's globals are public, because its importers use them directly.
+            short access = (short) ((isLibrary ? ClassFileWriter.ACC_PUBLIC : ClassFileWriter.ACC_PRIVATE) | ClassFileWriter.ACC_STATIC);
             if (variableDefinition.isFinal()) {
                 access |= ClassFileWriter.ACC_FINAL;
             }
             
             cv.addField(variableDefinition.identifier(), signature, access);
-            accessor = new JvmFieldAccessor(cv.getClassName(), variableDefinition.identifier(), signature, true);
+            if (cachedGlobals.containsKey(variableDefinition)) {
+                // An unshared global we're keeping in a local for now.
+                accessor = cachedGlobals.get(variableDefinition);
+            } else {
+                accessor = new JvmFieldAccessor(cv.getClassName(), variableDefinition.identifier(), signature, true);
+            }
         } else if (variableDefinition.isField()) {
             short access = ClassFileWriter.ACC_PRIVATE;
             if (variableDefinition.isFinal()) {
@@ -1261,41 +2778,66 @@ public class JvmCodeGenerator implements AstVisitor<Void> {
             
             cv.addField(variableDefinition.identifier(), signature, access);
             accessor = new JvmFieldAccessor(cv.getClassName(), variableDefinition.identifier(), signature, false);
+        } else if (inSplitFunction && variableDefinition.scope() == frameScope) {
+            accessor = new JvmFrameAccessor(frameSize++, type);
+        } else if (canUnbox(variableDefinition)) {
+            if (variableDefinition.type() == TalcType.REAL) {
+                accessor = new JvmUnboxedRealLocalAccessor(variableDefinition.identifier());
+            } else {
+                accessor = new JvmUnboxedIntegerLocalAccessor(variableDefinition.identifier());
+            }
         } else {
             // If we're at local scope, we can back variables with locals.
-            accessor = new JvmLocalVariableAccessor(variableDefinition.identifier(), signature, maxLocals++);
+            accessor = new JvmLocalVariableAccessor(variableDefinition.identifier(), signature);
         }
         variableDefinition.setAccessor(accessor);
-        if (variableDefinition.initializer() != null) {
-            variableDefinition.initializer().accept(this);
+        AstNode initializer = variableDefinition.initializer();
+        if (accessor instanceof JvmUnboxedIntegerLocalAccessor && emitUnboxedIntegerStore((JvmUnboxedIntegerLocalAccessor) accessor, initializer, variableDefinition)) {
+            if (leaveValue) {
+                accessor.emitGet();
+            }
+        } else if (accessor instanceof JvmUnboxedRealLocalAccessor) {
+            emitUnboxedReal(initializer);
+            visitLineNumber(variableDefinition);
+            ((JvmUnboxedRealLocalAccessor) accessor).emitPutUnboxed();
+            if (leaveValue) {
+                accessor.emitGet();
+            }
+        } else if (initializer != null) {
+            initializer.accept(this);
             visitLineNumber(variableDefinition);
             cv.add(ByteCode.CHECKCAST, type);
-            cv.add(ByteCode.DUP);
+            if (leaveValue) {
+                cv.add(ByteCode.DUP);
+            }
             accessor.emitPut();
-        } else {
+        } else if (leaveValue) {
             // FIXME: it would be good if we had some kind of guarantee this no-initializer case only happens for for/for-each loop variables.
             // FIXME: this is only needed because popAnythingLeftBy expects junk on the stack.
             cv.add(ByteCode.ACONST_NULL);
         }
-        return null;
     }
     
     public Void visitVariableName(AstNode.VariableName variableName) {
+        if (isLibrary && variableName.definition().scope() == Scope.builtInScope() && (variableName.identifier().equals("ARGS") || variableName.identifier().equals("ARGV0"))) {
+            // A library is compiled once for all the scripts that import it.
+            throw new TalcError(variableName, "libraries can't use \"" + variableName.identifier() + "\"; pass it to a function instead");
+        }
         visitLineNumber(variableName);
         variableName.definition().accessor().emitGet();
         return null;
     }
     
     public Void visitWhileStatement(AstNode.WhileStatement whileStatement) {
+        enterScope();
+        List<AstNode.VariableDefinition> accumulators = startStringAccumulators(whileStatement);
         LoopInfo loopInfo = enterLoop();
         
         // continueLabel:
         cv.markLabel(loopInfo.continueLabel);
         // if (<expression> == false) goto breakLabel;
-        whileStatement.expression().accept(this);
         visitLineNumber(whileStatement);
-        pushFalse();
-        cv.add(ByteCode.IF_ACMPEQ, loopInfo.breakLabel);
+        emitConditionalJump(whileStatement.expression(), false, loopInfo.breakLabel);
         // <body>
         whileStatement.body().accept(this);
         // goto continueLabel;
@@ -1305,6 +2847,8 @@ public class JvmCodeGenerator implements AstVisitor<Void> {
         cv.markLabel(loopInfo.breakLabel);
         
         leaveLoop();
+        finishStringAccumulators(accumulators);
+        leaveScope();
         return null;
     }
     
@@ -0,0 +1,418 @@
+/*
+ * This file is part of Talc.
+ * Copyright (C) 2008-2009 Elliott Hughes <enh@jessies.org>.
+ * 
+ * Talc is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * Talc is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.jessies.talc;
+
+import java.io.*;
+import java.util.*;
+
+/**
+ * An imported library, compiled separately into its own class.
+ * 
+ * Each library is compiled (or loaded from the CodeCache) at most once per
+ * process, into a class loader shared by everything that imports it. What an
+ * importer needs to know about a library -- its global functions and
+ * variables, and their types -- is its signature, which we cache alongside
+ * its code so that importing an unchanged library needn't parse it at all.
+ */
+public class Library {
+    // Every library we've loaded, keyed by canonical path.
+    private static final HashMap<String, Library> libraries = new HashMap<String, Library>();
+    // The libraries we're in the middle of loading, to catch circular imports.
+    private static final HashSet<String> librariesBeingLoaded = new HashSet<String>();
+    private static final HashSet<String> classNames = new HashSet<String>();
+    private static final TalcClassLoader classLoader = new TalcClassLoader();
+    
+    private final String name;
+    private final File file;
+    private final String className;
+    private final List<Library> importedLibraries;
+    private final List<AstNode.FunctionDefinition> functions = new ArrayList<AstNode.FunctionDefinition>();
+    private final List<AstNode.VariableDefinition> globals = new ArrayList<AstNode.VariableDefinition>();
+    private final LinkedHashMap<String, byte[]> classes = new LinkedHashMap<String, byte[]>();
+    
+    private Library(String name, File file, String className, List<Library> importedLibraries) {
+        this.name = name;
+        this.file = file;
+        this.className = className;
+        this.importedLibraries = importedLibraries;
+    }
+    
+    /**
+     * Returns the class loader that all libraries are defined in.
+     * Code that imports a library needs to be loaded by a child of this class loader.
+     */
+    public static TalcClassLoader classLoader() {
+        return classLoader;
+    }
+    
+    /**
+     * Loads the libraries imported by the global code in 'ast', and returns them.
+     */
+    public static List<Library> loadImports(List<AstNode> ast, List<String> libraryPath) {
+        ArrayList<Library> result = new ArrayList<Library>();
+        for (AstNode node : ast) {
+            if (node instanceof AstNode.ImportStatement) {
+                AstNode.ImportStatement importStatement = (AstNode.ImportStatement) node;
+                Library library = load(importStatement.libraryName(), importStatement.libraryFile(), libraryPath, importStatement.location());
+                importStatement.setLibrary(library);
+                result.add(library);
+            }
+        }
+        return result;
+    }
+    
+    /**
+     * Returns the library 'name', from 'file', compiling it if it isn't in the CodeCache.
+     * 'location' is the import that caused it to be loaded, for error reporting.
+     */
+    public static Library load(String name, File file, List<String> libraryPath, SourceLocation location) {
+        String path;
+        try {
+            path = file.getCanonicalPath();
+        } catch (IOException ex) {
+            path = file.getAbsolutePath();
+        }
+        Library library = libraries.get(path);
+        if (library != null) {
+            return library;
+        }
+        if (librariesBeingLoaded.add(path) == false) {
+            throw new TalcError(location, "circular import of \"" + name + "\"");
+        }
+        try {
+            byte[] source;
+            try {
+                source = Talc.readFile(file);
+            } catch (IOException ex) {
+                // This probably means the library isn't readable?
+                throw new TalcError(location, "couldn't import \"" + name + "\": " + ex.getMessage());
+            }
+            String className = chooseClassName(name);
+            CodeCache cache = CodeCache.forSource(source, null, libraryPath, "library " + className);
+            if (cache != null) {
+                long lookup0 = System.nanoTime();
+                library = loadFromCache(name, file, className, libraryPath, cache);
+                Talc.reportTime("library code cache " + (library != null ? "hit" : "miss") + " (" + cache.entryFile() + ")", System.nanoTime() - lookup0);
+            }
+            if (library == null) {
+                library = compile(name, file, className, libraryPath, location);
+                byte[] signature = library.signature();
+                if (cache != null && signature != null) {
+                    long store0 = System.nanoTime();
+                    boolean stored = cache.store(transitiveImports(library.importedLibraries), library.classes, signature);
+                    Talc.reportTime(stored ? "library code cache store" : "library code cache store (failed)", System.nanoTime() - store0);
+                }
+            }
+            classNames.add(className);
+            libraries.put(path, library);
+            return library;
+        } finally {
+            librariesBeingLoaded.remove(path);
+        }
+    }
+    
+    private static String chooseClassName(String name) {
+        StringBuilder result = new StringBuilder("TalcLibrary$");
+        for (int i = 0; i < name.length(); ++i) {
+            char ch = name.charAt(i);
+            result.append(Character.isJavaIdentifierPart(ch) ? ch : '_');
+        }
+        // Two different files can have the same name ("import \"/a/x\"; import \"/b/x\";").
+        String className = result.toString();
+        for (int i = 2; classNames.contains(className); ++i) {
+            className = result.toString() + "$" + i;
+        }
+        return className;
+    }
+    
+    private static Library compile(String name, File file, String className, List<String> libraryPath, SourceLocation location) {
+        Lexer lexer;
+        try {
+            lexer = new Lexer(file);
+        } catch (IOException ex) {
+            throw new TalcError(location, "couldn't import \"" + name + "\": " + ex.getMessage());
+        }
+        long parse0 = System.nanoTime();
+        List<AstNode> ast = new Parser(lexer, libraryPath).parse();
+        Talc.reportTime("parsing library \"" + name + "\"", System.nanoTime() - parse0);
+        
+        Library library = new Library(name, file, className, loadImports(ast, libraryPath));
+        // Note what's already in the class loader, so we know which classes are ours.
+        HashSet<String> existingClasses = new HashSet<String>(classLoader.definedClasses().keySet());
+        Talc.compile(ast, null, className, classLoader);
+        for (Map.Entry<String, byte[]> definedClass : classLoader.definedClasses().entrySet()) {
+            if (existingClasses.contains(definedClass.getKey()) == false) {
+                library.classes.put(definedClass.getKey(), definedClass.getValue());
+            }
+        }
+        
+        for (AstNode node : ast) {
+            if (node instanceof AstNode.FunctionDefinition) {
+                AstNode.FunctionDefinition function = (AstNode.FunctionDefinition) node;
+                function.setLibraryClassName(className);
+                library.functions.add(function);
+            } else if (node instanceof AstNode.VariableDefinition && node.scope() == Scope.globalScope()) {
+                library.globals.add((AstNode.VariableDefinition) node);
+            }
+        }
+        return library;
+    }
+    
+    private static Library loadFromCache(String name, File file, String className, List<String> libraryPath, CodeCache cache) {
+        CodeCache.Entry entry = cache.load();
+        if (entry == null || entry.signature() == null) {
+            return null;
+        }
+        try {
+            DataInputStream in = new DataInputStream(new ByteArrayInputStream(entry.signature()));
+            // The entry lists everything imported, directly or not, with each library's imports before it.
+            // The signature tells us which of them this library imported itself.
+            ArrayList<Library> importedLibraries = new ArrayList<Library>();
+            int importCount = in.readInt();
+            for (int i = 0; i < importCount; ++i) {
+                String importName = in.readUTF();
+                File importFile = entry.importedLibraries().get(importName);
+                if (importFile == null) {
+                    return null;
+                }
+                importedLibraries.add(load(importName, importFile, libraryPath, new SourceLocation(file, 0, 0)));
+            }
+            
+            Library library = new Library(name, file, className, importedLibraries);
+            SourceLocation location = new SourceLocation(file, 0, 0);
+            int functionCount = in.readInt();
+            for (int i = 0; i < functionCount; ++i) {
+                String functionName = in.readUTF();
+                TalcType returnType = readType(in);
+                int parameterCount = in.readInt();
+                ArrayList<String> parameterNames = new ArrayList<String>();
+                ArrayList<TalcType> parameterTypes = new ArrayList<TalcType>();
+                for (int j = 0; j < parameterCount; ++j) {
+                    parameterNames.add(in.readUTF());
+                    parameterTypes.add(readType(in));
+                }
+                AstNode.FunctionDefinition function = new AstNode.FunctionDefinition(location, functionName, parameterNames, parameterTypes, returnType, null);
+                if (in.readBoolean()) {
+                    function.setExtern(in.readUTF(), in.readUTF());
+                }
+                function.setLibraryClassName(className);
+                library.functions.add(function);
+            }
+            int globalCount = in.readInt();
+            for (int i = 0; i < globalCount; ++i) {
+                String identifier = in.readUTF();
+                TalcType type = readType(in);
+                boolean isFinal = in.readBoolean();
+                AstNode.Constant initializer = readConstant(in, location, type);
+                library.globals.add(new AstNode.VariableDefinition(location, identifier, type, initializer, isFinal));
+            }
+            
+            for (Map.Entry<String, byte[]> cachedClass : entry.classes().entrySet()) {
+                classLoader.defineClass(cachedClass.getKey(), cachedClass.getValue());
+                library.classes.put(cachedClass.getKey(), cachedClass.getValue());
+            }
+            return library;
+        } catch (IOException ex) {
+            return null;
+        } catch (IllegalArgumentException ex) {
+            // A type we couldn't find.
+            return null;
+        }
+    }
+    
+    /**
+     * Returns what importers need to know about this library, or null if it can't be described.
+     * We can't yet describe libraries that define classes, because their importers would need the whole class definition.
+     */
+    private byte[] signature() {
+        for (String generatedClassName : classes.keySet()) {
+            if (generatedClassName.equals(className) == false) {
+                return null;
+            }
+        }
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(bytes);
+            out.writeInt(importedLibraries.size());
+            for (Library importedLibrary : importedLibraries) {
+                out.writeUTF(importedLibrary.name);
+            }
+            out.writeInt(functions.size());
+            for (AstNode.FunctionDefinition function : functions) {
+                out.writeUTF(function.functionName());
+                out.writeUTF(function.returnType().toString());
+                out.writeInt(function.formalParameterNames().size());
+                for (int i = 0; i < function.formalParameterNames().size(); ++i) {
+                    out.writeUTF(function.formalParameterNames().get(i));
+                    out.writeUTF(function.formalParameterTypes().get(i).toString());
+                }
+                out.writeBoolean(function.isExtern());
+                if (function.isExtern()) {
+                    out.writeUTF(function.externLanguageName());
+                    out.writeUTF(function.externFunctionDescriptor());
+                }
+            }
+            out.writeInt(globals.size());
+            for (AstNode.VariableDefinition global : globals) {
+                out.writeUTF(global.identifier());
+                out.writeUTF(global.type().toString());
+                out.writeBoolean(global.isFinal());
+                // Importers can use the values of final globals initialized with constants, as AstSimplifier would within the library.
+                writeConstant(out, global);
+            }
+            out.close();
+            return bytes.toByteArray();
+        } catch (IOException ex) {
+            // A ByteArrayOutputStream doesn't throw IOException.
+            throw new RuntimeException(ex);
+        }
+    }
+    
+    private static void writeConstant(DataOutputStream out, AstNode.VariableDefinition global) throws IOException {
+        Object value = null;
+        if (global.isFinal() && global.initializer() instanceof AstNode.Constant) {
+            AstNode.Constant constant = (AstNode.Constant) global.initializer();
+            if (constant.type() == global.type()) {
+                value = constant.constant();
+            }
+        }
+        if (value instanceof IntegerValue) {
+            out.writeByte('i');
+            out.writeUTF(value.toString());
+        } else if (value instanceof RealValue) {
+            out.writeByte('r');
+            out.writeDouble(((RealValue) value).doubleValue());
+        } else if (value instanceof BooleanValue) {
+            out.writeByte('b');
+            out.writeBoolean(value == BooleanValue.TRUE);
+        } else if (value instanceof String && ((String) value).length() < 16*1024) {
+            out.writeByte('s');
+            out.writeUTF((String) value);
+        } else {
+            out.writeByte('-');
+        }
+    }
+    
+    private static AstNode.Constant readConstant(DataInputStream in, SourceLocation location, TalcType type) throws IOException {
+        Object value;
+        switch (in.readByte()) {
+        case 'i': value = new IntegerValue(in.readUTF(), 10); break;
+        case 'r': value = RealValue.valueOf(in.readDouble()); break;
+        case 'b': value = BooleanValue.valueOf(in.readBoolean()); break;
+        case 's': value = in.readUTF(); break;
+        default: return null;
+        }
+        return new AstNode.Constant(location, value, type);
+    }
+    
+    private static TalcType readType(DataInputStream in) throws IOException {
+        String typeName = in.readUTF();
+        TalcTypeDescriptor descriptor = parseTypeDescriptor(typeName, new int[] { 0 });
+        TalcType type = (typeName.equals(TalcType.VOID.toString())) ? TalcType.VOID : descriptor.type();
+        if (type == null) {
+            throw new IllegalArgumentException(typeName);
+        }
+        return type;
+    }
+    
+    // Parses the output of TalcType.toString: "int", "list<int>", "map<string,list<int>>" and so on.
+    private static TalcTypeDescriptor parseTypeDescriptor(String s, int[] position) {
+        int start = position[0];
+        while (position[0] < s.length() && "<,>".indexOf(s.charAt(position[0])) == -1) {
+            ++position[0];
+        }
+        String typeName = s.substring(start, position[0]);
+        if (position[0] == s.length() || s.charAt(position[0]) != '<') {
+            return new TalcTypeDescriptor(typeName);
+        }
+        ++position[0];
+        TalcTypeDescriptor keyTypeDescriptor = parseTypeDescriptor(s, position);
+        TalcTypeDescriptor valueTypeDescriptor = null;
+        if (position[0] < s.length() && s.charAt(position[0]) == ',') {
+            ++position[0];
+            valueTypeDescriptor = parseTypeDescriptor(s, position);
+        }
+        ++position[0]; // '>'
+        return new TalcTypeDescriptor(typeName, keyTypeDescriptor, valueTypeDescriptor);
+    }
+    
+    /**
+     * Returns the files of 'libraries' and everything they import, each library after its imports.
+     */
+    public static LinkedHashMap<String, File> transitiveImports(List<Library> libraries) {
+        LinkedHashMap<String, File> result = new LinkedHashMap<String, File>();
+        for (Library library : transitiveLibraries(libraries)) {
+            result.put(library.name, library.file);
+        }
+        return result;
+    }
+    
+    /**
+     * Returns the classes generated for 'libraries' and everything they import, in an order they can be defined in.
+     */
+    public static LinkedHashMap<String, byte[]> transitiveClasses(List<Library> libraries) {
+        LinkedHashMap<String, byte[]> result = new LinkedHashMap<String, byte[]>();
+        for (Library library : transitiveLibraries(libraries)) {
+            result.putAll(library.classes);
+        }
+        return result;
+    }
+    
+    private static List<Library> transitiveLibraries(List<Library> libraries) {
+        LinkedHashSet<Library> result = new LinkedHashSet<Library>();
+        addTransitiveLibraries(result, libraries);
+        return new ArrayList<Library>(result);
+    }
+    
+    private static void addTransitiveLibraries(LinkedHashSet<Library> result, List<Library> libraries) {
+        for (Library library : libraries) {
+            if (result.contains(library) == false) {
+                addTransitiveLibraries(result, library.importedLibraries);
+                result.add(library);
+            }
+        }
+    }
+    
+    public String name() {
+        return name;
+    }
+    
+    public File file() {
+        return file;
+    }
+    
+    /**
+     * Returns the name of the class containing the library's global functions and variables, and its "$import" method.
+     */
+    public String className() {
+        return className;
+    }
+    
+    public List<Library> importedLibraries() {
+        return importedLibraries;
+    }
+    
+    public List<AstNode.FunctionDefinition> functions() {
+        return functions;
+    }
+    
+    public List<AstNode.VariableDefinition> globals() {
+        return globals;
+    }
+}
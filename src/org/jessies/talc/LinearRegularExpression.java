@@ -0,0 +1,1130 @@
+/*
+ * This file is part of Talc.
+ * Copyright (C) 2008-2009 Elliott Hughes <enh@jessies.org>.
+ * 
+ * Talc is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * Talc is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.jessies.talc;
+
+import java.util.*;
+import java.util.regex.*;
+
+/**
+ * A regular expression matcher whose running time is linear in the length of
+ * the input, for the subset of java.util.regex syntax that doesn't need
+ * backtracking: literals, escapes, character classes, ".", groups,
+ * alternation, greedy and reluctant quantifiers, "^" and "$". Anything else
+ * (backreferences, lookaround, possessive quantifiers, embedded flags, and so
+ * on) makes compile return null, and the caller should use java.util.regex.
+ * 
+ * The regular expression is compiled to an NFA program, as in Thompson's
+ * construction. To find a match, we first run a DFA built lazily from that
+ * program, one state at a time as the input needs them, which answers
+ * "is there a match starting here or later?" with one table lookup per
+ * character. Only if there is do we run the program to find the match and
+ * its groups. For short inputs we backtrack, as java.util.regex would, but
+ * remember which (instruction, index) pairs we've already tried, so we never
+ * try one twice. For longer inputs, where that bitmap would be too big, we
+ * run the program as a Pike VM, simulating all the NFA's threads in lockstep
+ * in priority order. Either way, we find the same match (and the same
+ * groups) that java.util.regex would.
+ * 
+ * Supplementary characters are outside the subset too: java.util.regex
+ * matches code points, not chars, so isSupportedInput must be checked first.
+ */
+public final class LinearRegularExpression {
+    // The NFA's instructions.
+    private static final int CHAR = 0;  // Matches the char 'arg'.
+    private static final int SET = 1;   // Matches any char in sets[arg].
+    private static final int SPLIT = 2; // Continues at 'arg' and, with lower priority, at 'arg2'.
+    private static final int JMP = 3;   // Continues at 'arg'.
+    private static final int SAVE = 4;  // Records the current index in group slot 'arg'.
+    private static final int BOL = 5;   // "^" (without MULTILINE).
+    private static final int EOL = 6;   // "$" (without MULTILINE).
+    private static final int MATCH = 7;
+    
+    // Limits on what we're willing to compile, so pathological regular expressions fall back to java.util.regex.
+    private static final int MAX_PROGRAM_SIZE = 10000;
+    private static final int MAX_REPETITION_COUNT = 1000;
+    private static final int MAX_DFA_STATES = 1000;
+    // The largest bitmap of visited (instruction, index) pairs we'll use to backtrack.
+    private static final int MAX_BACKTRACKING_BITS = 256 * 1024;
+    
+    private final String regularExpression;
+    private final int groupCount;
+    private final int[] op;
+    private final int[] arg;
+    private final int[] arg2;
+    private final CharSet[] sets;
+    
+    // The lazily-built DFA. The states are only ever created while holding the lock.
+    private final HashMap<String, DfaState> dfaStates = new HashMap<String, DfaState>();
+    private final DfaState dfaStartOfInput;
+    private final DfaState dfaStartElsewhere;
+    private volatile boolean dfaFull = false;
+    
+    private LinearRegularExpression(String regularExpression, int groupCount, Compiler compiler) {
+        this.regularExpression = regularExpression;
+        this.groupCount = groupCount;
+        this.op = Arrays.copyOf(compiler.op, compiler.size);
+        this.arg = Arrays.copyOf(compiler.arg, compiler.size);
+        this.arg2 = Arrays.copyOf(compiler.arg2, compiler.size);
+        this.sets = compiler.sets.toArray(new CharSet[compiler.sets.size()]);
+        synchronized (this) {
+            this.dfaStartOfInput = dfaState(new int[] { 0 }, 1, true);
+            this.dfaStartElsewhere = dfaState(new int[] { 0 }, 1, false);
+        }
+    }
+    
+    /**
+     * Returns a matcher for 'regularExpression', or null if it uses syntax we don't support.
+     * 'regularExpression' should already have been accepted by Pattern.compile.
+     */
+    public static LinearRegularExpression compile(String regularExpression) {
+        try {
+            Parser parser = new Parser(regularExpression);
+            Node root = parser.parse();
+            Compiler compiler = new Compiler();
+            compiler.emit(SAVE, 0, 0);
+            compiler.compile(root);
+            compiler.emit(SAVE, 1, 0);
+            compiler.emit(MATCH, 0, 0);
+            return new LinearRegularExpression(regularExpression, parser.groupCount, compiler);
+        } catch (UnsupportedSyntaxException ex) {
+            return null;
+        }
+    }
+    
+    /**
+     * Tests whether 's' is free of surrogate chars, which java.util.regex would treat as code points.
+     */
+    public static boolean isSupportedInput(String s) {
+        for (int i = 0; i < s.length(); ++i) {
+            if (Character.isSurrogate(s.charAt(i))) {
+                return false;
+            }
+        }
+        return true;
+    }
+    
+    /**
+     * Returns the first match in 's' starting at or after 'from', or null.
+     * This is equivalent to Matcher.find(from), but without resetting the anchoring of "^".
+     */
+    public MatchResult find(String s, int from) {
+        if (dfaFull == false && dfaCanMatch(s, from) == false) {
+            return null;
+        }
+        int[] groups;
+        if ((long) op.length * (s.length() - from + 1) <= MAX_BACKTRACKING_BITS) {
+            groups = backtrack(s, from);
+        } else {
+            groups = pikeVm(s, from);
+        }
+        return (groups != null) ? new Match(regularExpression, s, groups, groupCount) : null;
+    }
+    
+    // Java's "$" without MULTILINE: the end of the input, or just before a line terminator at the end of the input.
+    private static boolean isEndOfLine(String s, int i) {
+        final int n = s.length();
+        if (i == n) {
+            return true;
+        } else if (i == n - 2) {
+            return s.charAt(i) == '\r' && s.charAt(i + 1) == '\n';
+        } else if (i == n - 1) {
+            final char ch = s.charAt(i);
+            if (ch == '\n') {
+                // Not between "\r" and "\n".
+                return i == 0 || s.charAt(i - 1) != '\r';
+            }
+            return ch == '\r' || ch == '\u0085' || ch == '\u2028' || ch == '\u2029';
+        }
+        return false;
+    }
+    
+    private boolean matches(int pc, char ch) {
+        return (op[pc] == CHAR) ? (ch == arg[pc]) : sets[arg[pc]].contains(ch);
+    }
+    
+    //
+    // The bounded backtracker.
+    //
+    
+    // Returns the group slots of the first match starting at or after 'from', or null.
+    private int[] backtrack(String s, int from) {
+        final int n = s.length();
+        final int width = n - from + 1;
+        final int[] visited = new int[(op.length * width + 31) / 32];
+        final int[] groups = new int[2 * (groupCount + 1)];
+        // Pairs of (pc, index) still to try, or (-1 - slot, value) to restore a group slot when we backtrack past its SAVE.
+        int[] stack = new int[64];
+        for (int start = from; start <= n; ++start) {
+            Arrays.fill(groups, -1);
+            int sp = 0;
+            stack[sp++] = 0;
+            stack[sp++] = start;
+            while (sp > 0) {
+                int i = stack[--sp];
+                int pc = stack[--sp];
+                if (pc < 0) {
+                    groups[-1 - pc] = i;
+                    continue;
+                }
+                while (true) {
+                    final int bit = pc * width + (i - from);
+                    if ((visited[bit >>> 5] & (1 << bit)) != 0) {
+                        // We've been here before, and it didn't lead to a match then either.
+                        break;
+                    }
+                    visited[bit >>> 5] |= (1 << bit);
+                    final int instruction = op[pc];
+                    if (instruction == CHAR || instruction == SET) {
+                        if (i == n || matches(pc, s.charAt(i)) == false) {
+                            break;
+                        }
+                        ++pc;
+                        ++i;
+                    } else if (instruction == SPLIT) {
+                        if (sp + 2 > stack.length) {
+                            stack = Arrays.copyOf(stack, 2 * stack.length);
+                        }
+                        stack[sp++] = arg2[pc];
+                        stack[sp++] = i;
+                        pc = arg[pc];
+                    } else if (instruction == JMP) {
+                        pc = arg[pc];
+                    } else if (instruction == SAVE) {
+                        if (sp + 2 > stack.length) {
+                            stack = Arrays.copyOf(stack, 2 * stack.length);
+                        }
+                        stack[sp++] = -1 - arg[pc];
+                        stack[sp++] = groups[arg[pc]];
+                        groups[arg[pc]] = i;
+                        ++pc;
+                    } else if (instruction == BOL) {
+                        if (i != 0) {
+                            break;
+                        }
+                        ++pc;
+                    } else if (instruction == EOL) {
+                        if (isEndOfLine(s, i) == false) {
+                            break;
+                        }
+                        ++pc;
+                    } else {
+                        return groups;
+                    }
+                }
+            }
+        }
+        return null;
+    }
+    
+    //
+    // The Pike VM.
+    //
+    
+    private static final class ThreadList {
+        private final int[] pcs;
+        private final int[][] groups;
+        private final int[] marks;
+        private int stamp = 1;
+        private int size = 0;
+        
+        private ThreadList(int programSize) {
+            this.pcs = new int[programSize];
+            this.groups = new int[programSize][];
+            this.marks = new int[programSize];
+        }
+        
+        private void clear() {
+            ++stamp;
+            size = 0;
+        }
+    }
+    
+    // Returns the group slots of the highest-priority match starting at the lowest index at or after 'from', or null.
+    private int[] pikeVm(String s, int from) {
+        final int n = s.length();
+        ThreadList current = new ThreadList(op.length);
+        ThreadList next = new ThreadList(op.length);
+        final int[] stackPcs = new int[2 * op.length + 1];
+        final int[][] stackGroups = new int[2 * op.length + 1][];
+        int[] matchedGroups = null;
+        for (int i = from; i <= n; ++i) {
+            if (matchedGroups == null) {
+                // Start a new attempt here, with lower priority than those that started earlier.
+                int[] groups = new int[2 * (groupCount + 1)];
+                Arrays.fill(groups, -1);
+                addThread(current, 0, groups, s, i, stackPcs, stackGroups);
+            }
+            if (current.size == 0 && matchedGroups != null) {
+                // Nothing could beat the match we've found.
+                break;
+            }
+            final char ch = (i < n) ? s.charAt(i) : 0;
+            for (int t = 0; t < current.size; ++t) {
+                final int pc = current.pcs[t];
+                if (op[pc] == MATCH) {
+                    // This beats all the lower-priority threads, so we can forget them.
+                    matchedGroups = current.groups[t];
+                    break;
+                } else if (i < n && matches(pc, ch)) {
+                    addThread(next, pc + 1, current.groups[t], s, i + 1, stackPcs, stackGroups);
+                }
+            }
+            ThreadList tmp = current;
+            current = next;
+            next = tmp;
+            next.clear();
+        }
+        return matchedGroups;
+    }
+    
+    // Adds the threads reachable from 'startPc' without consuming input, in priority order.
+    private void addThread(ThreadList list, int startPc, int[] startGroups, String s, int i, int[] stackPcs, int[][] stackGroups) {
+        int sp = 0;
+        stackPcs[sp] = startPc;
+        stackGroups[sp] = startGroups;
+        ++sp;
+        while (sp > 0) {
+            --sp;
+            final int pc = stackPcs[sp];
+            final int[] groups = stackGroups[sp];
+            if (list.marks[pc] == list.stamp) {
+                continue;
+            }
+            list.marks[pc] = list.stamp;
+            switch (op[pc]) {
+            case JMP:
+                stackPcs[sp] = arg[pc];
+                stackGroups[sp++] = groups;
+                break;
+            case SPLIT:
+                // Push the lower-priority branch first, so the higher-priority branch is explored first.
+                stackPcs[sp] = arg2[pc];
+                stackGroups[sp++] = groups;
+                stackPcs[sp] = arg[pc];
+                stackGroups[sp++] = groups;
+                break;
+            case SAVE:
+                // Threads share group arrays, so copy before writing.
+                final int[] newGroups = groups.clone();
+                newGroups[arg[pc]] = i;
+                stackPcs[sp] = pc + 1;
+                stackGroups[sp++] = newGroups;
+                break;
+            case BOL:
+                if (i == 0) {
+                    stackPcs[sp] = pc + 1;
+                    stackGroups[sp++] = groups;
+                }
+                break;
+            case EOL:
+                if (isEndOfLine(s, i)) {
+                    stackPcs[sp] = pc + 1;
+                    stackGroups[sp++] = groups;
+                }
+                break;
+            default:
+                list.pcs[list.size] = pc;
+                list.groups[list.size] = groups;
+                ++list.size;
+            }
+        }
+    }
+    
+    //
+    // The lazy DFA.
+    //
+    
+    // A DFA state is a set of NFA threads, identified by the char-consuming instructions they're waiting at.
+    // Every state also includes a fresh thread at the start of the program, so the DFA searches the whole input.
+    // We don't know where the input ends, so we treat "$" as always succeeding: the DFA may find false matches, but never misses one.
+    private static final class DfaState {
+        private final int[] pcs;
+        private final boolean matching;
+        private final DfaState[] asciiTransitions = new DfaState[128];
+        private HashMap<Character, DfaState> otherTransitions;
+        
+        private DfaState(int[] pcs, boolean matching) {
+            this.pcs = pcs;
+            this.matching = matching;
+        }
+    }
+    
+    // Tests whether there may be a match starting at or after 'from'.
+    private boolean dfaCanMatch(String s, int from) {
+        final int n = s.length();
+        DfaState state = (from == 0) ? dfaStartOfInput : dfaStartElsewhere;
+        for (int i = from; ; ++i) {
+            if (state.matching) {
+                return true;
+            } else if (i == n || (state.pcs.length == 0 && state == dfaStartElsewhere)) {
+                // Either we've run out of input, or we're in a state we can never leave.
+                return false;
+            }
+            final char ch = s.charAt(i);
+            DfaState nextState = (ch < 128) ? state.asciiTransitions[ch] : null;
+            if (nextState == null) {
+                nextState = dfaTransition(state, ch);
+                if (nextState == null) {
+                    // The DFA has too many states. Let the Pike VM decide.
+                    return true;
+                }
+            }
+            state = nextState;
+        }
+    }
+    
+    private synchronized DfaState dfaTransition(DfaState state, char ch) {
+        DfaState result = null;
+        if (ch < 128) {
+            result = state.asciiTransitions[ch];
+        } else if (state.otherTransitions != null) {
+            result = state.otherTransitions.get(ch);
+        }
+        if (result != null) {
+            return result;
+        }
+        
+        final int[] seeds = new int[state.pcs.length + 1];
+        int seedCount = 0;
+        for (int pc : state.pcs) {
+            if (matches(pc, ch)) {
+                seeds[seedCount++] = pc + 1;
+            }
+        }
+        seeds[seedCount++] = 0;
+        result = dfaState(seeds, seedCount, false);
+        if (result == null) {
+            return null;
+        }
+        
+        if (ch < 128) {
+            state.asciiTransitions[ch] = result;
+        } else {
+            if (state.otherTransitions == null) {
+                state.otherTransitions = new HashMap<Character, DfaState>();
+            }
+            state.otherTransitions.put(ch, result);
+        }
+        return result;
+    }
+    
+    // Returns the state for the threads reachable from 'seeds' without consuming input, or null if there would be too many states.
+    private DfaState dfaState(int[] seeds, int seedCount, boolean atStartOfInput) {
+        final boolean[] seen = new boolean[op.length];
+        final int[] stack = new int[2 * op.length + seedCount];
+        int sp = 0;
+        for (int i = 0; i < seedCount; ++i) {
+            stack[sp++] = seeds[i];
+        }
+        final int[] pcs = new int[op.length];
+        int pcCount = 0;
+        boolean matching = false;
+        while (sp > 0) {
+            final int pc = stack[--sp];
+            if (seen[pc]) {
+                continue;
+            }
+            seen[pc] = true;
+            switch (op[pc]) {
+            case JMP:
+                stack[sp++] = arg[pc];
+                break;
+            case SPLIT:
+                stack[sp++] = arg[pc];
+                stack[sp++] = arg2[pc];
+                break;
+            case BOL:
+                if (atStartOfInput) {
+                    stack[sp++] = pc + 1;
+                }
+                break;
+            case SAVE:
+            case EOL:
+                stack[sp++] = pc + 1;
+                break;
+            case MATCH:
+                matching = true;
+                break;
+            default:
+                pcs[pcCount++] = pc;
+            }
+        }
+        
+        final int[] statePcs = Arrays.copyOf(pcs, pcCount);
+        Arrays.sort(statePcs);
+        final StringBuilder key = new StringBuilder(pcCount + 1);
+        key.append(matching ? 'M' : '-');
+        for (int pc : statePcs) {
+            key.append((char) pc);
+        }
+        DfaState state = dfaStates.get(key.toString());
+        if (state == null) {
+            if (dfaStates.size() >= MAX_DFA_STATES) {
+                dfaFull = true;
+                return null;
+            }
+            state = new DfaState(statePcs, matching);
+            dfaStates.put(key.toString(), state);
+        }
+        return state;
+    }
+    
+    //
+    // Match results.
+    //
+    
+    private static final class Match implements MatchResult {
+        private final String regularExpression;
+        private final String input;
+        private final int[] groups;
+        private final int groupCount;
+        
+        private Match(String regularExpression, String input, int[] groups, int groupCount) {
+            this.regularExpression = regularExpression;
+            this.input = input;
+            this.groups = groups;
+            this.groupCount = groupCount;
+        }
+        
+        private void checkGroup(int group) {
+            if (group < 0 || group > groupCount) {
+                throw new IndexOutOfBoundsException("No group " + group);
+            }
+        }
+        
+        public int start() {
+            return groups[0];
+        }
+        
+        public int start(int group) {
+            checkGroup(group);
+            return groups[2 * group];
+        }
+        
+        public int end() {
+            return groups[1];
+        }
+        
+        public int end(int group) {
+            checkGroup(group);
+            return groups[2 * group + 1];
+        }
+        
+        public String group() {
+            return group(0);
+        }
+        
+        public String group(int group) {
+            checkGroup(group);
+            if (groups[2 * group] == -1 || groups[2 * group + 1] == -1) {
+                return null;
+            }
+            return input.substring(groups[2 * group], groups[2 * group + 1]);
+        }
+        
+        public int groupCount() {
+            return groupCount;
+        }
+        
+        // The same as the string you'd get from the MatchResult returned by Matcher.toMatchResult.
+        @Override public String toString() {
+            return "java.util.regex.Matcher[pattern=" + regularExpression + " region=0," + input.length() + " lastmatch=" + group() + "]";
+        }
+    }
+    
+    //
+    // Parsing.
+    //
+    
+    private static class UnsupportedSyntaxException extends Exception {
+        private static final long serialVersionUID = 1L;
+    }
+    
+    private static final class CharSet {
+        // Sorted, non-overlapping, non-adjacent inclusive ranges: lo0, hi0, lo1, hi1, ...
+        private final int[] ranges;
+        
+        private CharSet(int[] ranges) {
+            this.ranges = ranges;
+        }
+        
+        private static CharSet of(int[] unsortedRanges, int length, boolean negated) {
+            // Sort the ranges by their low ends, and merge any that overlap or touch.
+            final int rangeCount = length / 2;
+            final long[] packed = new long[rangeCount];
+            for (int i = 0; i < rangeCount; ++i) {
+                packed[i] = ((long) unsortedRanges[2 * i] << 32) | unsortedRanges[2 * i + 1];
+            }
+            Arrays.sort(packed);
+            final int[] merged = new int[length];
+            int mergedLength = 0;
+            for (long range : packed) {
+                final int lo = (int) (range >>> 32);
+                final int hi = (int) range;
+                if (mergedLength > 0 && lo <= merged[mergedLength - 1] + 1) {
+                    merged[mergedLength - 1] = Math.max(merged[mergedLength - 1], hi);
+                } else {
+                    merged[mergedLength++] = lo;
+                    merged[mergedLength++] = hi;
+                }
+            }
+            if (negated == false) {
+                return new CharSet(Arrays.copyOf(merged, mergedLength));
+            }
+            final int[] complement = new int[mergedLength + 2];
+            int complementLength = 0;
+            int next = 0;
+            for (int i = 0; i < mergedLength; i += 2) {
+                if (merged[i] > next) {
+                    complement[complementLength++] = next;
+                    complement[complementLength++] = merged[i] - 1;
+                }
+                next = merged[i + 1] + 1;
+            }
+            if (next <= Character.MAX_VALUE) {
+                complement[complementLength++] = next;
+                complement[complementLength++] = Character.MAX_VALUE;
+            }
+            return new CharSet(Arrays.copyOf(complement, complementLength));
+        }
+        
+        private boolean contains(char ch) {
+            for (int i = 0; i < ranges.length && ch >= ranges[i]; i += 2) {
+                if (ch <= ranges[i + 1]) {
+                    return true;
+                }
+            }
+            return false;
+        }
+        
+        // Returns the only char in the set, or -1.
+        private int singleChar() {
+            return (ranges.length == 2 && ranges[0] == ranges[1]) ? ranges[0] : -1;
+        }
+    }
+    
+    // Java's predefined classes (without UNICODE_CHARACTER_CLASS).
+    private static final int[] DIGIT_RANGES = { '0', '9' };
+    private static final int[] WORD_RANGES = { 'a', 'z', 'A', 'Z', '_', '_', '0', '9' };
+    private static final int[] SPACE_RANGES = { ' ', ' ', '\t', '\n', '\u000b', '\r' };
+    // "." without DOTALL matches anything but a line terminator.
+    private static final CharSet DOT = CharSet.of(new int[] { '\n', '\n', '\r', '\r', '\u0085', '\u0085', '\u2028', '\u2029' }, 8, true);
+    
+    private static final class Node {
+        private static final int EMPTY = 0;
+        private static final int LITERAL = 1;
+        private static final int CLASS = 2;
+        private static final int START = 3;
+        private static final int END = 4;
+        private static final int CONCATENATION = 5;
+        private static final int ALTERNATION = 6;
+        private static final int GROUP = 7;
+        private static final int REPETITION = 8;
+        
+        private final int kind;
+        private int ch;
+        private CharSet set;
+        private List<Node> children;
+        private int group;
+        private int min;
+        private int max;
+        private boolean greedy;
+        
+        private Node(int kind) {
+            this.kind = kind;
+        }
+        
+        private boolean hasCapturingGroup() {
+            if (kind == GROUP && group != -1) {
+                return true;
+            }
+            if (children != null) {
+                for (Node child : children) {
+                    if (child.hasCapturingGroup()) {
+                        return true;
+                    }
+                }
+            }
+            return false;
+        }
+        
+        // Tests whether this node can match the empty string.
+        private boolean isNullable() {
+            switch (kind) {
+            case LITERAL:
+            case CLASS:
+                return false;
+            case CONCATENATION:
+                for (Node child : children) {
+                    if (child.isNullable() == false) {
+                        return false;
+                    }
+                }
+                return true;
+            case ALTERNATION:
+                for (Node child : children) {
+                    if (child.isNullable()) {
+                        return true;
+                    }
+                }
+                return false;
+            case GROUP:
+                return children.get(0).isNullable();
+            case REPETITION:
+                return min == 0 || children.get(0).isNullable();
+            default:
+                return true;
+            }
+        }
+    }
+    
+    private static final class Parser {
+        private final String re;
+        private int i = 0;
+        private int groupCount = 0;
+        
+        private Parser(String re) {
+            this.re = re;
+        }
+        
+        private Node parse() throws UnsupportedSyntaxException {
+            if (isSupportedInput(re) == false) {
+                throw new UnsupportedSyntaxException();
+            }
+            Node result = parseAlternation();
+            if (i != re.length()) {
+                throw new UnsupportedSyntaxException();
+            }
+            return result;
+        }
+        
+        private boolean lookingAt(char ch) {
+            return i < re.length() && re.charAt(i) == ch;
+        }
+        
+        private void expect(char ch) throws UnsupportedSyntaxException {
+            if (lookingAt(ch) == false) {
+                throw new UnsupportedSyntaxException();
+            }
+            ++i;
+        }
+        
+        private Node parseAlternation() throws UnsupportedSyntaxException {
+            ArrayList<Node> alternatives = new ArrayList<Node>();
+            alternatives.add(parseConcatenation());
+            while (lookingAt('|')) {
+                ++i;
+                alternatives.add(parseConcatenation());
+            }
+            if (alternatives.size() == 1) {
+                return alternatives.get(0);
+            }
+            Node result = new Node(Node.ALTERNATION);
+            result.children = alternatives;
+            return result;
+        }
+        
+        private Node parseConcatenation() throws UnsupportedSyntaxException {
+            ArrayList<Node> items = new ArrayList<Node>();
+            while (i < re.length() && lookingAt('|') == false && lookingAt(')') == false) {
+                items.add(parseRepetition());
+            }
+            if (items.size() == 1) {
+                return items.get(0);
+            }
+            Node result = new Node(Node.CONCATENATION);
+            result.children = items;
+            return result;
+        }
+        
+        private Node parseRepetition() throws UnsupportedSyntaxException {
+            final Node atom = parseAtom();
+            int min;
+            int max;
+            if (lookingAt('*')) {
+                min = 0;
+                max = -1;
+            } else if (lookingAt('+')) {
+                min = 1;
+                max = -1;
+            } else if (lookingAt('?')) {
+                min = 0;
+                max = 1;
+            } else if (lookingAt('{')) {
+                ++i;
+                min = parseNumber();
+                max = min;
+                if (lookingAt(',')) {
+                    ++i;
+                    max = lookingAt('}') ? -1 : parseNumber();
+                }
+                if (lookingAt('}') == false || (max != -1 && max < min)) {
+                    throw new UnsupportedSyntaxException();
+                }
+            } else {
+                return atom;
+            }
+            ++i;
+            
+            boolean greedy = true;
+            if (lookingAt('?')) {
+                greedy = false;
+                ++i;
+            } else if (lookingAt('+')) {
+                // Possessive quantifiers are all about backtracking.
+                throw new UnsupportedSyntaxException();
+            }
+            if (i < re.length() && "*+?{".indexOf(re.charAt(i)) != -1) {
+                throw new UnsupportedSyntaxException();
+            }
+            if (atom.kind == Node.START || atom.kind == Node.END) {
+                throw new UnsupportedSyntaxException();
+            }
+            if (atom.isNullable() && (min != 0 || max != 1)) {
+                // java.util.regex has its own special rules for loops that match the empty string. Let it apply them.
+                throw new UnsupportedSyntaxException();
+            }
+            if (atom.hasCapturingGroup() && (min != 0 || max != 1)) {
+                // java.util.regex can leave a repeated group set by an iteration that didn't ultimately match.
+                throw new UnsupportedSyntaxException();
+            }
+            
+            Node result = new Node(Node.REPETITION);
+            result.children = Collections.singletonList(atom);
+            result.min = min;
+            result.max = max;
+            result.greedy = greedy;
+            return result;
+        }
+        
+        private int parseNumber() throws UnsupportedSyntaxException {
+            final int start = i;
+            while (i < re.length() && Character.isDigit(re.charAt(i)) && i - start < 5) {
+                ++i;
+            }
+            if (i == start) {
+                throw new UnsupportedSyntaxException();
+            }
+            final int result = Integer.parseInt(re.substring(start, i));
+            if (result > MAX_REPETITION_COUNT) {
+                throw new UnsupportedSyntaxException();
+            }
+            return result;
+        }
+        
+        private Node parseAtom() throws UnsupportedSyntaxException {
+            final char ch = re.charAt(i++);
+            switch (ch) {
+            case '(':
+                {
+                    int group = -1;
+                    if (lookingAt('?')) {
+                        // Of the "(?" constructs, only non-capturing groups don't need backtracking.
+                        ++i;
+                        expect(':');
+                    } else {
+                        group = ++groupCount;
+                    }
+                    Node body = parseAlternation();
+                    expect(')');
+                    Node result = new Node(Node.GROUP);
+                    result.group = group;
+                    result.children = Collections.singletonList(body);
+                    return result;
+                }
+            case '[':
+                return setNode(parseClass());
+            case '.':
+                return setNode(DOT);
+            case '^':
+                return new Node(Node.START);
+            case '$':
+                return new Node(Node.END);
+            case '\\':
+                return setNode(parseEscape());
+            case '*':
+            case '+':
+            case '?':
+            case '{':
+                throw new UnsupportedSyntaxException();
+            default:
+                return literalNode(ch);
+            }
+        }
+        
+        private static Node literalNode(int ch) {
+            Node result = new Node(Node.LITERAL);
+            result.ch = ch;
+            return result;
+        }
+        
+        private static Node setNode(CharSet set) {
+            if (set.singleChar() != -1) {
+                return literalNode(set.singleChar());
+            }
+            Node result = new Node(Node.CLASS);
+            result.set = set;
+            return result;
+        }
+        
+        // Parses the escape sequence following a backslash. The same escapes mean the same thing inside and outside classes.
+        private CharSet parseEscape() throws UnsupportedSyntaxException {
+            if (i == re.length()) {
+                throw new UnsupportedSyntaxException();
+            }
+            final char ch = re.charAt(i++);
+            switch (ch) {
+            case 't': return singleton('\t');
+            case 'n': return singleton('\n');
+            case 'r': return singleton('\r');
+            case 'f': return singleton('\f');
+            case 'a': return singleton('\u0007');
+            case 'e': return singleton('\u001b');
+            case 'd': return CharSet.of(DIGIT_RANGES, DIGIT_RANGES.length, false);
+            case 'D': return CharSet.of(DIGIT_RANGES, DIGIT_RANGES.length, true);
+            case 'w': return CharSet.of(WORD_RANGES, WORD_RANGES.length, false);
+            case 'W': return CharSet.of(WORD_RANGES, WORD_RANGES.length, true);
+            case 's': return CharSet.of(SPACE_RANGES, SPACE_RANGES.length, false);
+            case 'S': return CharSet.of(SPACE_RANGES, SPACE_RANGES.length, true);
+            case 'x': return singleton(parseHex(2));
+            case 'u': return singleton(parseHex(4));
+            }
+            if (Character.isLetterOrDigit(ch)) {
+                // Backreferences, octal escapes, boundaries, \p{...}, \Q...\E, and so on.
+                throw new UnsupportedSyntaxException();
+            }
+            return singleton(ch);
+        }
+        
+        private int parseHex(int digitCount) throws UnsupportedSyntaxException {
+            if (i + digitCount > re.length()) {
+                throw new UnsupportedSyntaxException();
+            }
+            int result = 0;
+            for (int j = 0; j < digitCount; ++j) {
+                final int digit = Character.digit(re.charAt(i++), 16);
+                if (digit == -1) {
+                    throw new UnsupportedSyntaxException();
+                }
+                result = result * 16 + digit;
+            }
+            if (Character.isSurrogate((char) result)) {
+                throw new UnsupportedSyntaxException();
+            }
+            return result;
+        }
+        
+        private static CharSet singleton(int ch) {
+            return new CharSet(new int[] { ch, ch });
+        }
+        
+        // Parses a class like "[a-z_]" or "[^\d]", the opening bracket having already been consumed.
+        private CharSet parseClass() throws UnsupportedSyntaxException {
+            boolean negated = false;
+            if (lookingAt('^')) {
+                negated = true;
+                ++i;
+            }
+            if (lookingAt(']')) {
+                // java.util.regex's rules for a leading ']' are unusual.
+                throw new UnsupportedSyntaxException();
+            }
+            int[] ranges = new int[16];
+            int length = 0;
+            final int start = i;
+            while (true) {
+                if (i == re.length()) {
+                    throw new UnsupportedSyntaxException();
+                }
+                final char ch = re.charAt(i);
+                if (ch == ']') {
+                    ++i;
+                    break;
+                } else if (ch == '[' || (ch == '&' && re.startsWith("&&", i))) {
+                    // Unions and intersections.
+                    throw new UnsupportedSyntaxException();
+                } else if (ch == '-' && i != start && lookingAtClassEnd(i + 1) == false) {
+                    throw new UnsupportedSyntaxException();
+                }
+                
+                int lo;
+                ++i;
+                if (ch == '\\') {
+                    CharSet escape = parseEscape();
+                    lo = escape.singleChar();
+                    if (lo == -1) {
+                        // A predefined class like \d.
+                        if (lookingAt('-') && lookingAtClassEnd(i + 1) == false) {
+                            throw new UnsupportedSyntaxException();
+                        }
+                        for (int j = 0; j < escape.ranges.length; ++j) {
+                            ranges = append(ranges, length++, escape.ranges[j]);
+                        }
+                        continue;
+                    }
+                } else {
+                    lo = ch;
+                }
+                
+                int hi = lo;
+                if (lookingAt('-') && lookingAtClassEnd(i + 1) == false) {
+                    ++i;
+                    final char hiCh = re.charAt(i++);
+                    if (hiCh == '\\') {
+                        hi = parseEscape().singleChar();
+                    } else if (hiCh == '[') {
+                        throw new UnsupportedSyntaxException();
+                    } else {
+                        hi = hiCh;
+                    }
+                    if (hi < lo) {
+                        throw new UnsupportedSyntaxException();
+                    }
+                }
+                ranges = append(ranges, length++, lo);
+                ranges = append(ranges, length++, hi);
+            }
+            if (length == 0) {
+                throw new UnsupportedSyntaxException();
+            }
+            return CharSet.of(ranges, length, negated);
+        }
+        
+        private boolean lookingAtClassEnd(int index) {
+            return index >= re.length() || re.charAt(index) == ']';
+        }
+        
+        private static int[] append(int[] array, int index, int value) {
+            if (index == array.length) {
+                array = Arrays.copyOf(array, 2 * array.length);
+            }
+            array[index] = value;
+            return array;
+        }
+    }
+    
+    //
+    // Code generation.
+    //
+    
+    private static final class Compiler {
+        private int[] op = new int[32];
+        private int[] arg = new int[32];
+        private int[] arg2 = new int[32];
+        private int size = 0;
+        private ArrayList<CharSet> sets = new ArrayList<CharSet>();
+        
+        private int emit(int instruction, int a, int b) throws UnsupportedSyntaxException {
+            if (size == MAX_PROGRAM_SIZE) {
+                throw new UnsupportedSyntaxException();
+            }
+            if (size == op.length) {
+                op = Arrays.copyOf(op, 2 * size);
+                arg = Arrays.copyOf(arg, 2 * size);
+                arg2 = Arrays.copyOf(arg2, 2 * size);
+            }
+            op[size] = instruction;
+            arg[size] = a;
+            arg2[size] = b;
+            return size++;
+        }
+        
+        // Points the SPLIT at 'pc' at the body of an optional or repeated item and what follows it.
+        private void patchSplit(int pc, int body, int rest, boolean greedy) {
+            arg[pc] = greedy ? body : rest;
+            arg2[pc] = greedy ? rest : body;
+        }
+        
+        private void compile(Node node) throws UnsupportedSyntaxException {
+            switch (node.kind) {
+            case Node.EMPTY:
+                break;
+            case Node.LITERAL:
+                emit(CHAR, node.ch, 0);
+                break;
+            case Node.CLASS:
+                sets.add(node.set);
+                emit(SET, sets.size() - 1, 0);
+                break;
+            case Node.START:
+                emit(BOL, 0, 0);
+                break;
+            case Node.END:
+                emit(EOL, 0, 0);
+                break;
+            case Node.CONCATENATION:
+                for (Node child : node.children) {
+                    compile(child);
+                }
+                break;
+            case Node.ALTERNATION:
+                {
+                    ArrayList<Integer> jumps = new ArrayList<Integer>();
+                    for (int i = 0; i < node.children.size() - 1; ++i) {
+                        final int split = emit(SPLIT, 0, 0);
+                        arg[split] = size;
+                        compile(node.children.get(i));
+                        jumps.add(emit(JMP, 0, 0));
+                        arg2[split] = size;
+                    }
+                    compile(node.children.get(node.children.size() - 1));
+                    for (int jump : jumps) {
+                        arg[jump] = size;
+                    }
+                }
+                break;
+            case Node.GROUP:
+                if (node.group != -1) {
+                    emit(SAVE, 2 * node.group, 0);
+                }
+                compile(node.children.get(0));
+                if (node.group != -1) {
+                    emit(SAVE, 2 * node.group + 1, 0);
+                }
+                break;
+            case Node.REPETITION:
+                compileRepetition(node.children.get(0), node.min, node.max, node.greedy);
+                break;
+            }
+        }
+        
+        private void compileRepetition(Node body, int min, int max, boolean greedy) throws UnsupportedSyntaxException {
+            for (int i = 0; i < min; ++i) {
+                compile(body);
+            }
+            if (max == -1) {
+                // L: split body, end; body; jmp L; end:
+                final int split = emit(SPLIT, 0, 0);
+                compile(body);
+                emit(JMP, split, 0);
+                patchSplit(split, split + 1, size, greedy);
+            } else {
+                // x{0,3} is (x(x(x)?)?)?.
+                final ArrayList<Integer> splits = new ArrayList<Integer>();
+                for (int i = min; i < max; ++i) {
+                    splits.add(emit(SPLIT, 0, 0));
+                    compile(body);
+                }
+                for (int split : splits) {
+                    patchSplit(split, split + 1, size, greedy);
+                }
+            }
+        }
+    }
+}
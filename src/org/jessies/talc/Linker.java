@@ -0,0 +1,138 @@
+/*
+ * This file is part of Talc.
+ * Copyright (C) 2008-2009 Elliott Hughes <enh@jessies.org>.
+ * 
+ * Talc is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * Talc is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.jessies.talc;
+
+import java.lang.invoke.*;
+import java.lang.reflect.*;
+import java.util.concurrent.*;
+
+/**
+ * Links the invokedynamic call sites JvmCodeGenerator emits for calls to
+ * built-in methods.
+ * 
+ * A call site whose receiver type is final (string, say) is bound directly
+ * to the built-in implementation. Other call sites keep a polymorphic inline
+ * cache: a chain of targets guarded by the receiver's exact class, each
+ * added the first time the call site sees a new class. Sites that see too
+ * many classes give up and make a plain virtual call.
+ * 
+ * Representation-specific implementations registered with specialize are
+ * used for receivers of exactly the given class, even by code compiled
+ * before they were registered.
+ */
+public final class Linker {
+    private static final int MAX_INLINE_CACHE_DEPTH = 4;
+    
+    private static final MethodHandle FALLBACK;
+    private static final MethodHandle CHECK_CLASS;
+    static {
+        try {
+            MethodHandles.Lookup lookup = MethodHandles.lookup();
+            FALLBACK = lookup.findVirtual(InlineCachingCallSite.class, "fallback", MethodType.methodType(Object.class, Object[].class));
+            CHECK_CLASS = lookup.findStatic(Linker.class, "checkClass", MethodType.methodType(boolean.class, Class.class, Object.class));
+        } catch (ReflectiveOperationException ex) {
+            throw new ExceptionInInitializerError(ex);
+        }
+    }
+    
+    // Receiver class -> method name and type (not counting the receiver) -> implementation.
+    private static final ConcurrentHashMap<Class<?>, ConcurrentHashMap<String, MethodHandle>> specializations = new ConcurrentHashMap<Class<?>, ConcurrentHashMap<String, MethodHandle>>();
+    
+    private Linker() {
+    }
+    
+    /**
+     * Registers 'implementation' as the method 'name' for receivers of exactly 'receiverClass'.
+     * The implementation's first parameter is the receiver.
+     */
+    public static void specialize(Class<?> receiverClass, String name, MethodHandle implementation) {
+        ConcurrentHashMap<String, MethodHandle> methods = specializations.get(receiverClass);
+        if (methods == null) {
+            specializations.putIfAbsent(receiverClass, new ConcurrentHashMap<String, MethodHandle>());
+            methods = specializations.get(receiverClass);
+        }
+        methods.put(specializationKey(name, implementation.type()), implementation);
+    }
+    
+    private static String specializationKey(String name, MethodType type) {
+        return name + type.dropParameterTypes(0, 1).toMethodDescriptorString();
+    }
+    
+    /**
+     * The bootstrap method. 'type' is the call site's type, whose first parameter is the receiver.
+     * 'implementation' is the built-in method that would have been called directly.
+     */
+    public static CallSite bootstrap(MethodHandles.Lookup lookup, String name, MethodType type, MethodHandle implementation) {
+        if (Modifier.isFinal(type.parameterType(0).getModifiers())) {
+            return new ConstantCallSite(implementation.asType(type));
+        }
+        return new InlineCachingCallSite(name, type, implementation);
+    }
+    
+    private static boolean checkClass(Class<?> c, Object receiver) {
+        return receiver != null && receiver.getClass() == c;
+    }
+    
+    private static class InlineCachingCallSite extends MutableCallSite {
+        private final String name;
+        private final MethodHandle implementation;
+        private int depth = 0;
+        
+        private InlineCachingCallSite(String name, MethodType type, MethodHandle implementation) {
+            super(type);
+            this.name = name;
+            this.implementation = implementation;
+            setTarget(FALLBACK.bindTo(this).asCollector(Object[].class, type.parameterCount()).asType(type));
+        }
+        
+        // Called when none of the cached targets matches the receiver.
+        Object fallback(Object[] arguments) throws Throwable {
+            Object receiver = arguments[0];
+            if (receiver == null) {
+                // Let the built-in implementation fail the way it always has.
+                return implementation.invokeWithArguments(arguments);
+            }
+            Class<?> receiverClass = receiver.getClass();
+            MethodHandle target = targetFor(receiverClass);
+            synchronized (this) {
+                if (depth < MAX_INLINE_CACHE_DEPTH) {
+                    MethodHandle test = CHECK_CLASS.bindTo(receiverClass).asType(MethodType.methodType(boolean.class, type().parameterType(0)));
+                    setTarget(MethodHandles.guardWithTest(test, target, getTarget()));
+                    ++depth;
+                } else {
+                    // Megamorphic: stop caching, and stop paying for the guards.
+                    setTarget(implementation.asType(type()));
+                }
+            }
+            return target.invokeWithArguments(arguments);
+        }
+        
+        private MethodHandle targetFor(Class<?> receiverClass) {
+            ConcurrentHashMap<String, MethodHandle> methods = specializations.get(receiverClass);
+            if (methods != null) {
+                MethodHandle specialization = methods.get(specializationKey(name, implementation.type()));
+                if (specialization != null) {
+                    return specialization.asType(type());
+                }
+            }
+            // Casting the receiver to its exact class lets the JIT bind the call statically.
+            return implementation.asType(implementation.type().changeParameterType(0, receiverClass)).asType(type());
+        }
+    }
+}
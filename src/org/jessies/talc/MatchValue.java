@@ -27,6 +27,10 @@ public class MatchValue {
         this.match = matcher.toMatchResult();
     }
     
+    public MatchValue(MatchResult match) {
+        this.match = match;
+    }
+    
     @Override public boolean equals(Object o) {
         if (o instanceof MatchValue) {
             return match.equals(((MatchValue) o).match);
@@ -27,7 +27,8 @@ public class Parser {
     private Lexer lexer;
     private List<String> libraryPath;
     
-    private HashSet<String> importedLibraries = new HashSet<String>();
+    // Maps each library name we've imported to the file we found it in.
+    private LinkedHashMap<String, File> importedLibraries = new LinkedHashMap<String, File>();
     
     public Parser(Lexer lexer, List<String> libraryPath) {
         this.lexer = lexer;
@@ -417,34 +418,21 @@ public class Parser {
         expect(Token.STRING_LITERAL);
         expect(Token.SEMICOLON);
         
-        // Parse the imported source file, if we haven't seen it already.
-        if (importedLibraries.contains(libraryName) == false) {
-            Lexer oldLexer = lexer;
-            lexer = makeLexerForLibrary(libraryName);
-            if (lexer != null) {
-                parse(result);
+        // Libraries are compiled separately (see Library), so all we need here is the file.
+        // Importing a library we've already imported does nothing.
+        if (importedLibraries.containsKey(libraryName) == false) {
+            // Find the source file corresponding to the import.
+            File libraryFile = findLibrary(libraryPath, libraryName);
+            if (libraryFile == null) {
+                final String path = new ListValue(libraryPath).join(":");
+                throw new TalcError(location, "couldn't find a match for import \"" + libraryName + "\" on library path \"" + path + "\"");
             }
-            lexer = oldLexer;
-            importedLibraries.add(libraryName);
+            importedLibraries.put(libraryName, libraryFile);
+            result.add(new AstNode.ImportStatement(location, libraryName, libraryFile));
         }
     }
     
-    private Lexer makeLexerForLibrary(String libraryName) {
-        // Find the source file corresponding to the import.
-        File libraryFile = findLibrary(libraryName);
-        if (libraryFile == null) {
-            final String path = new ListValue(libraryPath).join(":");
-            throw new TalcError(lexer, "couldn't find a match for import \"" + libraryName + "\" on library path \"" + path + "\"");
-        }
-        try {
-            return new Lexer(libraryFile);
-        } catch (IOException ex) {
-            // This probably means the library isn't readable?
-            throw new TalcError(lexer, "couldn't import \"" + libraryName + "\": " + ex.getMessage());
-        }
-    }
-    
-    private File findLibrary(String libraryName) {
+    static File findLibrary(List<String> libraryPath, String libraryName) {
         if (libraryName.endsWith(".talc") == false) {
             libraryName += ".talc";
         }
@@ -76,6 +76,12 @@ public class RealValue implements Comparable<RealValue> {
         return Double.compare(value, rhs.value);
     }
     
+    // Used by JvmCodeGenerator when both operands are known to be "real", to avoid Comparable's interface dispatch.
+    // Double.compare agrees with equals, so this is fine for == and != too.
+    public static int compare(RealValue lhs, RealValue rhs) {
+        return Double.compare(lhs.value, rhs.value);
+    }
+    
     public RealValue cbrt() {
         return new RealValue(Math.cbrt(value));
     }
@@ -130,6 +136,17 @@ public class RealValue implements Comparable<RealValue> {
         return new RealValue(d);
     }
     
+    // Used by JvmCodeGenerator to box the result of arithmetic on unboxed reals.
+    // Unlike valueOf, this keeps -0.0, just as our arithmetic methods do.
+    public static RealValue box(double d) {
+        if (d == 0.0 && 1/d > 0) {
+            return ZERO;
+        } else if (d == 1.0) {
+            return ONE;
+        }
+        return new RealValue(d);
+    }
+    
     public IntegerValue to_i() {
         return IntegerValue.valueOf((long) value);
     }
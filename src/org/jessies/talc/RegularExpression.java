@@ -0,0 +1,135 @@
+/*
+ * This file is part of Talc.
+ * Copyright (C) 2008-2009 Elliott Hughes <enh@jessies.org>.
+ * 
+ * Talc is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * Talc is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.jessies.talc;
+
+import java.util.*;
+import java.util.regex.*;
+
+/**
+ * A compiled regular expression, as used by the built-in string methods.
+ * 
+ * match and match_all use a LinearRegularExpression when the regular
+ * expression doesn't need backtracking, so they take time linear in the
+ * length of the input. Everything else uses java.util.regex. The debugging
+ * flags 'j' and 'd' force one engine or the other, for benchmarking.
+ */
+public final class RegularExpression {
+    private final Pattern pattern;
+    private final LinearRegularExpression linearRegularExpression;
+    
+    private RegularExpression(String regularExpression) {
+        // Pattern.compile also checks the syntax for us.
+        this.pattern = Pattern.compile(regularExpression);
+        if (Talc.debugging('j')) {
+            this.linearRegularExpression = null;
+        } else {
+            this.linearRegularExpression = LinearRegularExpression.compile(regularExpression);
+            if (linearRegularExpression == null && Talc.debugging('d')) {
+                throw new RuntimeException("regular expression \"" + regularExpression + "\" isn't supported by the linear-time engine");
+            }
+        }
+    }
+    
+    /**
+     * Compiles 'regularExpression', throwing PatternSyntaxException if it's invalid.
+     */
+    public static RegularExpression compile(String regularExpression) {
+        return new RegularExpression(regularExpression);
+    }
+    
+    public Pattern pattern() {
+        return pattern;
+    }
+    
+    public MatchValue match(String s) {
+        if (linearRegularExpression != null && LinearRegularExpression.isSupportedInput(s)) {
+            MatchResult match = linearRegularExpression.find(s, 0);
+            return (match != null) ? new MatchValue(match) : null;
+        }
+        final Matcher m = pattern.matcher(s);
+        if (m.find()) {
+            return new MatchValue(m);
+        }
+        return null;
+    }
+    
+    public ListValue matchAll(String s) {
+        return matches(s).to_list();
+    }
+    
+    /**
+     * Returns the matches in 's', as successive calls to Matcher.find would find them, one at a time.
+     */
+    public IterableValue matches(final String s) {
+        return new IterableValue() {
+            public Iterator<Object> iterator() {
+                if (linearRegularExpression != null && LinearRegularExpression.isSupportedInput(s)) {
+                    return new IterableValue.LookaheadIterator() {
+                        private int from = 0;
+                        
+                        protected Object computeNext() {
+                            if (from > s.length()) {
+                                return null;
+                            }
+                            final MatchResult match = linearRegularExpression.find(s, from);
+                            if (match == null) {
+                                from = s.length() + 1;
+                                return null;
+                            }
+                            // After an empty match, Matcher.find moves on one char so as not to find it again.
+                            from = (match.end() == match.start()) ? match.end() + 1 : match.end();
+                            return new MatchValue(match);
+                        }
+                    };
+                }
+                final Matcher m = pattern.matcher(s);
+                return new IterableValue.LookaheadIterator() {
+                    protected Object computeNext() {
+                        return m.find() ? new MatchValue(m) : null;
+                    }
+                };
+            }
+        };
+    }
+    
+    /**
+     * Returns the same pieces as Pattern.split, one at a time.
+     */
+    public IterableValue split(final String s) {
+        return new IterableValue() {
+            public Iterator<Object> iterator() {
+                final Matcher m = pattern.matcher(s);
+                return new IterableValue.SplitIterator(s) {
+                    protected boolean findSeparator() {
+                        if (m.find() == false) {
+                            return false;
+                        }
+                        separatorStart = m.start();
+                        separatorEnd = m.end();
+                        return true;
+                    }
+                };
+            }
+        };
+    }
+    
+    @Override public String toString() {
+        return pattern.pattern();
+    }
+}
@@ -22,8 +22,12 @@ import java.util.*;
 
 public class Scope {
     private static Scope builtInScope;
+    private static Scope importedScope;
     private static Scope globalScope;
     
+    // The libraries whose definitions are in importedScope.
+    private static HashSet<Library> importedLibraries;
+    
     private Scope parent;
     private HashMap<String, AstNode.FunctionDefinition> functions;
     private HashMap<String, AstNode.VariableDefinition> variables;
@@ -45,6 +49,13 @@ public class Scope {
             variables = new HashMap<String, AstNode.VariableDefinition>();
         }
         AstNode.VariableDefinition oldDefinition = variables.get(v.identifier());
+        if (oldDefinition == null && this == globalScope) {
+            // A global can't hide a global from an imported library, any more than it could if the library's code were part of the script.
+            oldDefinition = importedScope.findVariable(v.identifier());
+            if (oldDefinition != null && oldDefinition.scope() != importedScope) {
+                oldDefinition = null;
+            }
+        }
         if (oldDefinition != null) {
             throw new TalcError(v, "redefinition of \"" + v.identifier() + "\"...\n" + oldDefinition.location() + "...previously defined here");
         }
@@ -147,6 +158,10 @@ public class Scope {
         return builtInScope;
     }
     
+    public static Scope importedScope() {
+        return importedScope;
+    }
+    
     public static Scope globalScope() {
         return globalScope;
     }
@@ -173,7 +188,28 @@ public class Scope {
         
         // Note that we have to surround the built-in scope with a scope for user-defined globals.
         // Both things are "global", but it's important not to confuse the two.
-        globalScope = new Scope(builtInScope);
+        // Globals from imported libraries are in a third scope between them, because they're in a different class.
+        importedScope = new Scope(builtInScope);
+        importedLibraries = new HashSet<Library>();
+        globalScope = new Scope(importedScope);
+    }
+    
+    /**
+     * Makes the global functions and variables of 'library', and of any libraries it imports, visible.
+     */
+    public static void addImportedLibrary(Library library) {
+        if (importedLibraries.add(library) == false) {
+            return;
+        }
+        for (Library importedLibrary : library.importedLibraries()) {
+            addImportedLibrary(importedLibrary);
+        }
+        for (AstNode.FunctionDefinition function : library.functions()) {
+            importedScope.addFunction(function);
+        }
+        for (AstNode.VariableDefinition global : library.globals()) {
+            importedScope.addVariable(global);
+        }
     }
     
     public static Collection<AstNode.VariableDefinition> builtInVariableDefinitions() {
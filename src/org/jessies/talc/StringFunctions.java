@@ -18,12 +18,119 @@
 
 package org.jessies.talc;
 
-import java.util.regex.*;
+import java.util.*;
 
 public final class StringFunctions {
+    // Regular expressions that aren't literals (see JvmCodeGenerator) are often built once and used many times.
+    // We keep the most recently used compiled patterns, so they don't have to be recompiled on every call.
+    private static final int PATTERN_CACHE_SIZE = 64;
+    private static final PatternCache patternCache = new PatternCache();
+    
+    private static class PatternCache {
+        private final LinkedHashMap<String, RegularExpression> patterns = new LinkedHashMap<String, RegularExpression>(PATTERN_CACHE_SIZE, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+            
+            @Override protected boolean removeEldestEntry(Map.Entry<String, RegularExpression> eldest) {
+                if (size() > PATTERN_CACHE_SIZE) {
+                    ++evictions;
+                    return true;
+                }
+                return false;
+            }
+        };
+        private long hits;
+        private long misses;
+        private long evictions;
+        
+        public synchronized RegularExpression compile(String regularExpression) {
+            RegularExpression result = patterns.get(regularExpression);
+            if (result != null) {
+                ++hits;
+            } else {
+                ++misses;
+                result = RegularExpression.compile(regularExpression);
+                patterns.put(regularExpression, result);
+            }
+            return result;
+        }
+        
+        public synchronized String statistics() {
+            return "regular expression cache: " + hits + " hits, " + misses + " misses, " + evictions + " evictions";
+        }
+    }
+    
     private StringFunctions() {
     }
     
+    // Most patterns passed to split, sub, and gsub are plain strings like "\t" or ",".
+    // Those can be handled by searching with indexOf, without involving java.util.regex at all.
+    
+    /**
+     * Tests whether the regular expression 'pattern' only matches itself.
+     */
+    public static boolean isLiteral(String pattern) {
+        if (pattern.length() == 0) {
+            // The empty pattern matches between every pair of characters, which isn't a substring search.
+            return false;
+        }
+        for (int i = 0; i < pattern.length(); ++i) {
+            if ("\\[](){}.*+?^$|".indexOf(pattern.charAt(i)) != -1) {
+                return false;
+            }
+        }
+        return true;
+    }
+    
+    // Tests whether 'replacement' means the same to Matcher.replaceAll as it does literally.
+    private static boolean isLiteralReplacement(String replacement) {
+        return replacement.indexOf('$') == -1 && replacement.indexOf('\\') == -1;
+    }
+    
+    // Equivalent to Pattern.split for a literal pattern, including the removal of trailing empty strings.
+    private static ListValue splitLiteral(String s, String separator) {
+        final int separatorLength = separator.length();
+        int pieceCount = 1;
+        for (int i = s.indexOf(separator); i != -1; i = s.indexOf(separator, i + separatorLength)) {
+            ++pieceCount;
+        }
+        final String[] pieces = new String[pieceCount];
+        int start = 0;
+        for (int i = 0; i < pieceCount - 1; ++i) {
+            final int end = s.indexOf(separator, start);
+            pieces[i] = s.substring(start, end);
+            start = end + separatorLength;
+        }
+        pieces[pieceCount - 1] = s.substring(start);
+        if (pieceCount > 1) {
+            while (pieceCount > 0 && pieces[pieceCount - 1].length() == 0) {
+                --pieceCount;
+            }
+        }
+        return new ListValue(Arrays.asList(pieces).subList(0, pieceCount));
+    }
+    
+    // Equivalent to Matcher.replaceAll (or replaceFirst) for a literal pattern and replacement.
+    private static String replaceLiteral(String s, String target, String replacement, boolean replaceAll) {
+        int end = s.indexOf(target);
+        if (end == -1) {
+            return s;
+        }
+        final StringBuilder result = new StringBuilder(s.length());
+        int start = 0;
+        do {
+            result.append(s, start, end);
+            result.append(replacement);
+            start = end + target.length();
+            end = replaceAll ? s.indexOf(target, start) : -1;
+        } while (end != -1);
+        result.append(s, start, s.length());
+        return result.toString();
+    }
+    
+    public static String patternCacheStatistics() {
+        return patternCache.statistics();
+    }
+    
     public static String __get_item__(String s, IntegerValue index) {
         int i = index.intValue();
         return s.substring(i, i + 1);
@@ -37,6 +144,42 @@ public final class StringFunctions {
         return BooleanValue.valueOf(s.endsWith(suffix));
     }
     
+    // The each_ methods are streaming counterparts of the methods that return lists.
+    
+    public static IterableValue each_match(String s, String pattern) {
+        return each_match(s, patternCache.compile(pattern));
+    }
+    
+    public static IterableValue each_match(String s, RegularExpression pattern) {
+        return pattern.matches(s);
+    }
+    
+    public static IterableValue each_split(final String s, final String pattern) {
+        if (isLiteral(pattern)) {
+            return new IterableValue() {
+                public Iterator<Object> iterator() {
+                    return new IterableValue.SplitIterator(s) {
+                        protected boolean findSeparator() {
+                            // The previous separator's end is where we start looking (and initially 0).
+                            final int index = s.indexOf(pattern, separatorEnd);
+                            if (index == -1) {
+                                return false;
+                            }
+                            separatorStart = index;
+                            separatorEnd = index + pattern.length();
+                            return true;
+                        }
+                    };
+                }
+            };
+        }
+        return each_split(s, patternCache.compile(pattern));
+    }
+    
+    public static IterableValue each_split(String s, RegularExpression pattern) {
+        return pattern.split(s);
+    }
+    
     public static String escape_html(String s) {
         return s.replace("&", "&amp;").replace("\"", "&quot;").replace(">", "&gt;").replace("<", "&lt;");
     }
@@ -60,7 +203,15 @@ public final class StringFunctions {
     }
     
     public static String gsub(String s, String pattern, String replacement) {
-        return s.replaceAll(pattern, replacement);
+        if (isLiteral(pattern) && isLiteralReplacement(replacement)) {
+            return replaceLiteral(s, pattern, replacement, true);
+        }
+        return gsub(s, patternCache.compile(pattern), replacement);
+    }
+    
+    // The overloads taking a RegularExpression are used when the pattern is a string literal, precompiled by JvmCodeGenerator.
+    public static String gsub(String s, RegularExpression pattern, String replacement) {
+        return pattern.pattern().matcher(s).replaceAll(replacement);
     }
     
     public static String lc(String s) {
@@ -76,23 +227,19 @@ public final class StringFunctions {
     }
     
     public static MatchValue match(String s, String pattern) {
-        final Pattern p = Pattern.compile(pattern);
-        final Matcher m = p.matcher(s);
-        if (m.find()) {
-            return new MatchValue(m);
-        }
-        return null;
+        return match(s, patternCache.compile(pattern));
+    }
+    
+    public static MatchValue match(String s, RegularExpression pattern) {
+        return pattern.match(s);
     }
     
-    // FIXME: it would be better to return an iterable, so we don't have to precompute everything.
     public static ListValue match_all(String s, String pattern) {
-        final ListValue result = new ListValue();
-        final Pattern p = Pattern.compile(pattern);
-        final Matcher m = p.matcher(s);
-        while (m.find()) {
-            result.push_back(new MatchValue(m));
-        }
-        return result;
+        return match_all(s, patternCache.compile(pattern));
+    }
+    
+    public static ListValue match_all(String s, RegularExpression pattern) {
+        return pattern.matchAll(s);
     }
     
     // Why "repeat"? Most languages use operator*, but Talc's not going to.
@@ -111,7 +258,14 @@ public final class StringFunctions {
     }
     
     public static ListValue split(String s, String pattern) {
-        return new ListValue(s.split(pattern));
+        if (isLiteral(pattern)) {
+            return splitLiteral(s, pattern);
+        }
+        return split(s, patternCache.compile(pattern));
+    }
+    
+    public static ListValue split(String s, RegularExpression pattern) {
+        return new ListValue(pattern.pattern().split(s));
     }
     
     public static BooleanValue starts_with(String s, String prefix) {
@@ -119,7 +273,14 @@ public final class StringFunctions {
     }
     
     public static String sub(String s, String pattern, String replacement) {
-        return s.replaceFirst(pattern, replacement);
+        if (isLiteral(pattern) && isLiteralReplacement(replacement)) {
+            return replaceLiteral(s, pattern, replacement, false);
+        }
+        return sub(s, patternCache.compile(pattern), replacement);
+    }
+    
+    public static String sub(String s, RegularExpression pattern, String replacement) {
+        return pattern.pattern().matcher(s).replaceFirst(replacement);
     }
     
     public static IntegerValue to_i(String s) {
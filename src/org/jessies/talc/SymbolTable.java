@@ -225,6 +225,12 @@ public class SymbolTable implements AstVisitor<Void> {
         return null;
     }
     
+    public Void visitImportStatement(AstNode.ImportStatement importStatement) {
+        setScope(importStatement);
+        Scope.addImportedLibrary(importStatement.library());
+        return null;
+    }
+    
     public Void visitListLiteral(AstNode.ListLiteral listLiteral) {
         for (AstNode expression : listLiteral.expressions()) {
             expression.accept(this);
@@ -245,6 +251,14 @@ public class SymbolTable implements AstVisitor<Void> {
         return null;
     }
     
+    public Void visitStringConcatenation(AstNode.StringConcatenation stringConcatenation) {
+        setScope(stringConcatenation);
+        for (AstNode operand : stringConcatenation.operands()) {
+            operand.accept(this);
+        }
+        return null;
+    }
+    
     public Void visitVariableDefinition(AstNode.VariableDefinition variableDefinition) {
         setScope(variableDefinition);
         // Check the initializer first...
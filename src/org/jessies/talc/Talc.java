@@ -25,16 +25,24 @@ public class Talc {
     private static final boolean[] debuggingFlags = new boolean[127];
     private static final String[] debuggingFlagNames = new String[127];
     static {
+        debuggingFlagNames['c'] = "don't use the on-disk cache of generated code";
         debuggingFlagNames['C'] = "don't use a synthetic 'constant pool' for int and real constants";
+        debuggingFlagNames['d'] = "use the linear-time regular expression engine for every regular expression (failing if it can't handle one)";
         debuggingFlagNames['i'] = "show each inferred type as it's fixed up";
+        debuggingFlagNames['I'] = "use invokedynamic for calls to built-in methods";
+        debuggingFlagNames['j'] = "use java.util.regex for every regular expression, rather than the linear-time engine where possible";
         debuggingFlagNames['l'] = "show each token returned by the lexer";
+        debuggingFlagNames['L'] = "show how many local variable slots each generated method uses";
+        debuggingFlagNames['M'] = "split generated code into as many helper methods as possible (to test method splitting)";
         debuggingFlagNames['n'] = "don't execute the generated code";
         debuggingFlagNames['o'] = "don't optimize the AST before generating code";
         debuggingFlagNames['p'] = "show information about parsing as it progresses, and the AST for each completed parse";
+        debuggingFlagNames['r'] = "show regular expression cache statistics after execution";
         debuggingFlagNames['t'] = "show timing information for each phase of compilation/execution";
         debuggingFlagNames['T'] = "show information helpful when debugging the type checker";
         debuggingFlagNames['S'] = "show the generated JVM bytecodes";
         debuggingFlagNames['s'] = "save the generated code to /tmp";
+        debuggingFlagNames['U'] = "don't keep int and real locals in unboxed primitive slots";
         debuggingFlagNames['v'] = "verify the generated code with ASM's verifier (implies 's'; libasm3-java must be installed)";
     }
     
@@ -43,6 +51,12 @@ public class Talc {
     private boolean implicitInputMode = false; // -n
     private boolean implicitInputOutputMode = false; // -p
     
+    private boolean compileMode = false; // --compile
+    private String jarFilename = null; // -o
+    
+    // The libraries imported by the script we've just compiled.
+    private List<Library> importedLibraries;
+    
     public Talc() {
         initLibraryPath();
     }
@@ -53,7 +67,7 @@ public class Talc {
         libraryPath.add(System.getProperty("org.jessies.projectRoot") + "/lib/talc/");
     }
     
-    private void reportTime(String task, long ns) {
+    static void reportTime(String task, long ns) {
         if (Talc.debugging('t')) {
             double s = ns/1000000000.0;
             System.err.println("[talc] " + new java.text.DecimalFormat("#.####").format(s) + "s " + task);
@@ -63,13 +77,97 @@ public class Talc {
     }
     
     private void parseAndEvaluate(String argv0, String[] args, Lexer lexer) throws Throwable {
+        TalcClassLoader loader = compile(argv0, new Parser(lexer, libraryPath));
+        evaluate(args, loader);
+    }
+    
+    /**
+     * Runs the script 'scriptFilename', or the program 'expression' if that's null,
+     * reusing the code generated by an earlier run if it's in the CodeCache.
+     */
+    private void parseAndEvaluate(String scriptFilename, String expression, String[] args) throws Throwable {
+        String argv0 = scriptFilename;
+        if (compileMode) {
+            compileToJar(argv0, makeLexer(scriptFilename, expression));
+            return;
+        }
+        byte[] source = (scriptFilename != null) ? readFile(new File(scriptFilename)) : expression.getBytes("UTF-8");
+        String options = implicitInputMode ? "-n" : (implicitInputOutputMode ? "-p" : "");
+        CodeCache cache = CodeCache.forSource(source, argv0, libraryPath, options);
+        if (cache == null) {
+            parseAndEvaluate(argv0, args, makeLexer(scriptFilename, expression));
+            return;
+        }
+        
+        long lookup0 = System.nanoTime();
+        CodeCache.Entry entry = cache.load();
+        if (entry != null) {
+            // The libraries have their own cache entries.
+            for (Map.Entry<String, File> library : entry.importedLibraries().entrySet()) {
+                Library.load(library.getKey(), library.getValue(), libraryPath, SourceLocation.NONE);
+            }
+            TalcClassLoader loader = new TalcClassLoader(Library.classLoader());
+            for (Map.Entry<String, byte[]> cachedClass : entry.classes().entrySet()) {
+                loader.defineClass(cachedClass.getKey(), cachedClass.getValue());
+            }
+            reportTime("code cache hit (" + cache.entryFile() + ")", System.nanoTime() - lookup0);
+            evaluate(args, loader);
+            return;
+        }
+        reportTime("code cache miss (" + cache.entryFile() + ")", System.nanoTime() - lookup0);
+        
+        TalcClassLoader loader = compile(argv0, new Parser(makeLexer(scriptFilename, expression), libraryPath));
+        long store0 = System.nanoTime();
+        boolean stored = cache.store(Library.transitiveImports(importedLibraries), loader.definedClasses(), null);
+        reportTime(stored ? "code cache store" : "code cache store (failed)", System.nanoTime() - store0);
+        evaluate(args, loader);
+    }
+    
+    private void compileToJar(String argv0, Lexer lexer) throws Throwable {
+        TalcClassLoader loader = compile(argv0, new Parser(lexer, libraryPath));
+        long write0 = System.nanoTime();
+        LinkedHashMap<String, byte[]> classes = Library.transitiveClasses(importedLibraries);
+        classes.putAll(loader.definedClasses());
+        JarWriter.writeJar(new File(jarFilename), classes);
+        reportTime("writing \"" + jarFilename + "\"", System.nanoTime() - write0);
+    }
+    
+    private static Lexer makeLexer(String scriptFilename, String expression) throws IOException {
+        return (scriptFilename != null) ? new Lexer(new File(scriptFilename)) : new Lexer(expression);
+    }
+    
+    static byte[] readFile(File file) throws IOException {
+        DataInputStream in = new DataInputStream(new FileInputStream(file));
+        try {
+            byte[] result = new byte[(int) file.length()];
+            in.readFully(result);
+            return result;
+        } finally {
+            in.close();
+        }
+    }
+    
+    private TalcClassLoader compile(String argv0, Parser parser) throws Throwable {
         // 1. Parse.
         long parse0 = System.nanoTime();
-        List<AstNode> ast = new Parser(lexer, libraryPath).parse();
+        List<AstNode> ast = parser.parse();
         reportTime("parsing", System.nanoTime() - parse0);
-        // 1a. Add any code implied by -n or -p options.
+        // 1a. Compile (or find in the cache) any imported libraries.
+        importedLibraries = Library.loadImports(ast, libraryPath);
+        // 1b. Add any code implied by -n or -p options.
         ast = addImplicitCode(ast);
-        // 1b. Insert values for built-in constants.
+        
+        TalcClassLoader loader = new TalcClassLoader(Library.classLoader());
+        compile(ast, argv0, null, loader);
+        return loader;
+    }
+    
+    /**
+     * Compiles 'ast' into 'loader', as the class for the library 'libraryClassName', or as the script if that's null.
+     * Any imported libraries must already have been loaded.
+     */
+    static void compile(List<AstNode> ast, String argv0, String libraryClassName, TalcClassLoader loader) {
+        // 1c. Insert values for built-in constants.
         Scope.initGlobalScope(argv0);
         
         // 2. Compile-time checking.
@@ -84,16 +182,29 @@ public class Talc {
         reportTime("other checking", System.nanoTime() - errorChecker.creationTime());
         // 2d. Simplification.
         if (Talc.debugging('o') == false) {
-            AstSimplifier simplifier = new AstSimplifier();
+            AstSimplifier simplifier = new AstSimplifier(errorChecker.assignedVariables(), libraryClassName != null);
             ast = simplifier.simplify(ast);
             reportTime("simplification", System.nanoTime() - simplifier.creationTime());
+            // 2e. Loop-invariant code motion.
+            AstLoopInvariantHoister hoister = new AstLoopInvariantHoister();
+            ast = hoister.hoist(ast);
+            reportTime("loop-invariant code motion", System.nanoTime() - hoister.creationTime());
+            // 2f. Common subexpression elimination.
+            AstCommonSubexpressionEliminator eliminator = new AstCommonSubexpressionEliminator();
+            ast = eliminator.eliminate(ast);
+            reportTime("common subexpression elimination", System.nanoTime() - eliminator.creationTime());
         }
         
+        // 2g. Escape analysis (which has to see the simplified AST).
+        AstEscapeAnalyzer escapeAnalyzer = new AstEscapeAnalyzer(ast);
+        reportTime("escape analysis", System.nanoTime() - escapeAnalyzer.creationTime());
+        
         // 3. Byte-code generation.
-        TalcClassLoader loader = new TalcClassLoader();
-        JvmCodeGenerator codeGenerator = new JvmCodeGenerator(loader, ast);
+        JvmCodeGenerator codeGenerator = new JvmCodeGenerator(loader, ast, escapeAnalyzer, libraryClassName);
         reportTime("code generation", System.nanoTime() - codeGenerator.creationTime());
-        
+    }
+    
+    private void evaluate(String[] args, TalcClassLoader loader) throws Throwable {
         // 4. Execution.
         if (Talc.debugging('n')) {
             System.err.println("[talc] (not executing generated code because of -D n.)");
@@ -105,6 +216,9 @@ public class Talc {
             generatedClass.getMethod("main", String[].class).invoke(null, (Object) args);
         } finally {
             reportTime("execution", System.nanoTime() - execution0);
+            if (Talc.debugging('r')) {
+                System.err.println("[talc] " + StringFunctions.patternCacheStatistics());
+            }
         }
     }
     
@@ -153,12 +267,14 @@ public class Talc {
     private void usage(int exitStatus) {
         PrintStream out = (exitStatus == 0) ? System.out : System.err;
         out.println("usage: talc [talc-arguments] [--] [script-filename] [script-arguments]");
+        out.println("  --compile          write a jar file for \"java -jar\" instead of running the script (see -o)");
         out.println("  -D flags           set debugging flags (-D ? for a list)");
         out.println("  --dump-class name  describe the given class");
         out.println("  --dump-classes     describe all built-in classes");
         out.println("  -e program         one line of program; multiple -e's allowed, but omit explicit script filename");
         out.println("  -I directory       add the given directory to the \"import\" search path");
         out.println("  -n                 assume 'while ((_ = gets()) != null) { ... }' around script");
+        out.println("  -o jar-filename    name the jar file written by --compile (default: script name with .jar)");
         out.println("  -p                 assume 'while ((_ = gets()) != null) { ... puts(_); }' around script");
         out.println("  --copyright        show brief copyright information");
         System.exit(exitStatus);
@@ -179,6 +295,8 @@ public class Talc {
                 didSomethingUseful = true;
             } else if (args[i].equals("-h") || args[i].equals("--help")) {
                 usage(0);
+            } else if (args[i].equals("--compile")) {
+                compileMode = true;
             } else if (args[i].startsWith("-D")) {
                 String flags = args[i].substring(2);
                 if (flags.length() == 0) {
@@ -226,6 +344,11 @@ public class Talc {
                     directory = args[++i];
                 }
                 libraryPath.add(directory);
+            } else if (args[i].equals("-o")) {
+                if (i + 1 >= args.length) {
+                    usage(1);
+                }
+                jarFilename = args[++i];
             } else if (args[i].equals("-n")) {
                 implicitInputMode = true;
             } else if (args[i].equals("-p")) {
@@ -234,9 +357,12 @@ public class Talc {
                 inScriptArgs = true;
             } else if (args[i].startsWith("-")) {
                 die("unrecognized option \"" + args[i] + "\"");
+            } else if (scriptFilename != null) {
+                die("--compile takes only one script filename (\"" + scriptFilename + "\" and \"" + args[i] + "\")");
             } else {
                 scriptFilename = args[i];
-                inScriptArgs = true;
+                // A compiled script doesn't run, so it can't have arguments, but the options can follow it.
+                inScriptArgs = (compileMode == false);
             }
         }
         if (scriptFilename == null && expression == null) {
@@ -253,8 +379,16 @@ public class Talc {
         if (implicitInputMode && implicitInputOutputMode) {
             die("can't use -n and -p together");
         }
-        Lexer lexer = (scriptFilename != null) ? new Lexer(new File(scriptFilename)) : new Lexer(expression);
-        parseAndEvaluate(scriptFilename, scriptArgs.toArray(new String[scriptArgs.size()]), lexer);
+        if (jarFilename != null && compileMode == false) {
+            die("-o only makes sense with --compile");
+        }
+        if (compileMode && jarFilename == null) {
+            if (scriptFilename == null) {
+                die("--compile with -e needs -o to name the jar file");
+            }
+            jarFilename = scriptFilename.replaceAll("\\.talc$", "") + ".jar";
+        }
+        parseAndEvaluate(scriptFilename, expression, scriptArgs.toArray(new String[scriptArgs.size()]));
     }
     
     private static void die(String message) {
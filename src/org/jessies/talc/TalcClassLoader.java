@@ -18,19 +18,36 @@
 
 package org.jessies.talc;
 
+import java.util.*;
+
 /**
  * Makes defineClass and loadClass accessible.
  * This lets us conveniently store our generated classes in a ClassLoader,
  * and then get hold of them again when it's time to run one.
+ * We also remember the bytecode, so it can be saved in the CodeCache.
  */
 public class TalcClassLoader extends ClassLoader {
+    private final LinkedHashMap<String, byte[]> definedClasses = new LinkedHashMap<String, byte[]>();
+    
     public TalcClassLoader() {
     }
     
+    public TalcClassLoader(ClassLoader parent) {
+        super(parent);
+    }
+    
     public Class<?> defineClass(String name, byte[] bytes) throws ClassFormatError {
+        definedClasses.put(name, bytes);
         return super.defineClass(name, bytes, 0, bytes.length);
     }
     
+    /**
+     * Returns the bytecode of each class defined so far, in the order they were defined.
+     */
+    public Map<String, byte[]> definedClasses() {
+        return definedClasses;
+    }
+    
     public Class<?> getClass(String name) throws ClassNotFoundException {
         return super.loadClass(name, true);
     }
@@ -43,6 +43,7 @@ public class TalcType {
     // Built-in parameterized types.
     public static final TalcType LIST_OF_T = new TalcType(OBJECT, "list", T, null);
     public static final TalcType MAP_OF_K_V = new TalcType(OBJECT, "map", K, V);
+    public static final TalcType ITERABLE_OF_T = new TalcType(OBJECT, "iterable", T, null);
     
     // Commonly-used list types in the built-in library.
     public static final TalcType LIST_OF_MATCH = instantiateType(LIST_OF_T, MATCH, null);
@@ -51,6 +52,10 @@ public class TalcType {
     public static final TalcType LIST_OF_K;
     public static final TalcType LIST_OF_V;
     
+    // The lazily-computed counterparts, for the built-in library's streaming methods.
+    public static final TalcType ITERABLE_OF_MATCH = instantiateType(ITERABLE_OF_T, MATCH, null);
+    public static final TalcType ITERABLE_OF_STRING = instantiateType(ITERABLE_OF_T, STRING, null);
+    
     // The type of "null".
     public static final TalcType NULL = new TalcType(null, "null-type");
     
@@ -69,6 +74,7 @@ public class TalcType {
         addMemberFunction(FILE, new BuiltInFunction("append", Arrays.asList("content"), Arrays.asList(TalcType.STRING), TalcType.VOID));
         addMemberFunction(FILE, new BuiltInFunction("basename", TalcType.STRING));
         addMemberFunction(FILE, new BuiltInFunction("dirname", TalcType.FILE));
+        addMemberFunction(FILE, new BuiltInFunction("each_line", TalcType.ITERABLE_OF_STRING));
         addMemberFunction(FILE, new BuiltInFunction("exists", TalcType.BOOL));
         addMemberFunction(FILE, new BuiltInFunction("is_directory", TalcType.BOOL));
         addMemberFunction(FILE, new BuiltInFunction("is_executable", TalcType.BOOL));
@@ -80,6 +86,9 @@ public class TalcType {
         addMemberFunction(FILE, new BuiltInFunction("write", Arrays.asList("content"), Arrays.asList(TalcType.STRING), TalcType.VOID));
         addClass(FILE);
         
+        addMemberFunction(ITERABLE_OF_T, new BuiltInFunction("to_list", TalcType.LIST_OF_T));
+        addClass(ITERABLE_OF_T);
+        
         INT.isNullable = false;
         addMemberFunction(INT, new BuiltInFunction("abs", TalcType.INT));
         addMemberFunction(INT, new BuiltInFunction("signum", TalcType.INT));
@@ -145,6 +154,8 @@ public class TalcType {
         
         addMemberFunction(STRING, new BuiltInFunction("__get_item__", Arrays.asList("index"), Arrays.asList(TalcType.INT), TalcType.STRING));
         addMemberFunction(STRING, new BuiltInFunction("contains", Arrays.asList("substring"), Arrays.asList(TalcType.STRING), TalcType.BOOL));
+        addMemberFunction(STRING, new BuiltInFunction("each_match", Arrays.asList("pattern"), Arrays.asList(TalcType.STRING), TalcType.ITERABLE_OF_MATCH));
+        addMemberFunction(STRING, new BuiltInFunction("each_split", Arrays.asList("pattern"), Arrays.asList(TalcType.STRING), TalcType.ITERABLE_OF_STRING));
         addMemberFunction(STRING, new BuiltInFunction("ends_with", Arrays.asList("suffix"), Arrays.asList(TalcType.STRING), TalcType.BOOL));
         addMemberFunction(STRING, new BuiltInFunction("escape_html", TalcType.STRING));
         addMemberFunction(STRING, new BuiltInFunction("format", null, null, TalcType.STRING));
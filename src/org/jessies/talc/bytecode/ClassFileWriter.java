@@ -263,16 +263,31 @@ public class ClassFileWriter {
      *                 or -1 if it does not have a Java register.
      * @param register the Java register number of variable
      *                 or -1 if it does not have a Java register.
+     * @return a handle to pass to <code>endVariableDescriptor</code>.
      */
-    public void addVariableDescriptor(String name, String type, int startPC, int register)
+    public int addVariableDescriptor(String name, String type, int startPC, int register)
     {
         int nameIndex = itsConstantPool.addUtf8(name);
         int descriptorIndex = itsConstantPool.addUtf8(type);
-        int [] chunk = { nameIndex, descriptorIndex, startPC, register };
+        int [] chunk = { nameIndex, descriptorIndex, startPC, register, -1 };
         if (itsVarDescriptors == null) {
             itsVarDescriptors = new ArrayList<Object>();
         }
         itsVarDescriptors.add(chunk);
+        return itsVarDescriptors.size() - 1;
+    }
+
+    /**
+     * Marks the end of the range of code in which a variable is live.
+     * Variables whose range isn't ended are live until the end of the method.
+     *
+     * @param handle the value returned by <code>addVariableDescriptor</code>.
+     * @param endPC the bytecode PC just after the last at which the variable is live.
+     */
+    public void endVariableDescriptor(int handle, int endPC)
+    {
+        int[] chunk = (int[])itsVarDescriptors.get(handle);
+        chunk[4] = endPC;
     }
 
     /**
@@ -291,6 +306,9 @@ public class ClassFileWriter {
         short typeIndex = itsConstantPool.addUtf8(type);
         itsCurrentMethod = new ClassFileMethod(methodNameIndex, typeIndex,
                                                flags);
+        itsCurrentMethodName = methodName;
+        itsCurrentMethodType = type;
+        itsCurrentMethodFlags = flags;
         itsMethods.add(itsCurrentMethod);
     }
 
@@ -311,6 +329,13 @@ public class ClassFileWriter {
 
         itsMaxLocals = maxLocals;
 
+        byte[] stackMapTable = computeStackMapTable();
+        int stackMapTableLength = 0;
+        if (stackMapTable != null) {
+            // 6 bytes for the attribute header
+            stackMapTableLength = 6 + stackMapTable.length;
+        }
+
         int lineNumberTableLength = 0;
         if (itsLineNumberTable != null) {
             // 6 bytes for the attribute header
@@ -334,10 +359,11 @@ public class ClassFileWriter {
                          4 +                    // code_length
                          itsCodeBufferTop +
                          2 +                    // exception_table_length
-                         (itsExceptionTableTop * 8) +
+                         (itsHandlers.length * 8) +
                          2 +                    // attributes_count
                          lineNumberTableLength +
-                         variableTableLength;
+                         variableTableLength +
+                         stackMapTableLength;
 
         if (attrLength > 65536) {
             // See http://java.sun.com/docs/books/jvms/second_edition/html/ClassFile.doc.html,
@@ -359,26 +385,13 @@ public class ClassFileWriter {
                          itsCodeBufferTop);
         index += itsCodeBufferTop;
 
-        if (itsExceptionTableTop > 0) {
-            index = putInt16(itsExceptionTableTop, codeAttribute, index);
-            for (int i = 0; i < itsExceptionTableTop; i++) {
-                ExceptionTableEntry ete = itsExceptionTable[i];
-                short startPC = (short)getLabelPC(ete.itsStartLabel);
-                short endPC = (short)getLabelPC(ete.itsEndLabel);
-                short handlerPC = (short)getLabelPC(ete.itsHandlerLabel);
-                short catchType = ete.itsCatchType;
-                if (startPC == -1)
-                    throw new IllegalStateException("start label not defined");
-                if (endPC == -1)
-                    throw new IllegalStateException("end label not defined");
-                if (handlerPC == -1)
-                    throw new IllegalStateException(
-                        "handler label not defined");
-
-                index = putInt16(startPC, codeAttribute, index);
-                index = putInt16(endPC, codeAttribute, index);
-                index = putInt16(handlerPC, codeAttribute, index);
-                index = putInt16(catchType, codeAttribute, index);
+        if (itsHandlers.length > 0) {
+            index = putInt16(itsHandlers.length, codeAttribute, index);
+            for (int[] handler : itsHandlers) {
+                index = putInt16(handler[0], codeAttribute, index);
+                index = putInt16(handler[1], codeAttribute, index);
+                index = putInt16(handler[2], codeAttribute, index);
+                index = putInt16(handler[3], codeAttribute, index);
             }
         }
         else {
@@ -391,6 +404,8 @@ public class ClassFileWriter {
             attributeCount++;
         if (itsVarDescriptors != null)
             attributeCount++;
+        if (stackMapTable != null)
+            attributeCount++;
         index = putInt16(attributeCount, codeAttribute, index);
 
         if (itsLineNumberTable != null) {
@@ -419,7 +434,8 @@ public class ClassFileWriter {
                 int descriptorIndex = chunk[1];
                 int startPC         = chunk[2];
                 int register        = chunk[3];
-                int length = itsCodeBufferTop - startPC;
+                int endPC           = (chunk[4] != -1) ? chunk[4] : itsCodeBufferTop;
+                int length = endPC - startPC;
 
                 index = putInt16(startPC, codeAttribute, index);
                 index = putInt16(length, codeAttribute, index);
@@ -429,8 +445,34 @@ public class ClassFileWriter {
             }
         }
 
+        if (stackMapTable != null) {
+            int stackMapTableAttrIndex
+                    = itsConstantPool.addUtf8("StackMapTable");
+            index = putInt16(stackMapTableAttrIndex, codeAttribute, index);
+            index = putInt32(stackMapTable.length, codeAttribute, index);
+            System.arraycopy(stackMapTable, 0, codeAttribute, index,
+                             stackMapTable.length);
+            index += stackMapTable.length;
+        }
+
         itsCurrentMethod.setCodeAttribute(codeAttribute);
 
+        resetMethodState();
+    }
+
+    /**
+     * Throw away the method begun with <code>startMethod</code>, so that it
+     * can be generated again some other way (if it turned out to be too big,
+     * say).
+     */
+    public void abandonMethod() {
+        if (itsCurrentMethod == null)
+            throw new IllegalStateException("No method to abandon");
+        itsMethods.remove(itsCurrentMethod);
+        resetMethodState();
+    }
+
+    private void resetMethodState() {
         itsExceptionTable = null;
         itsExceptionTableTop = 0;
         itsLineNumberTableTop = 0;
@@ -850,6 +892,119 @@ public class ClassFileWriter {
         }
     }
 
+    /**
+     * A method handle constant, for use as a bootstrap method or as a
+     * static argument to one.
+     */
+    public static final class MHandle
+    {
+        /**
+         * @param tag one of the ByteCode.MH_ reference kinds
+         * @param owner the class containing the member, in slashed form
+         * @param name the member's name
+         * @param desc the member's type descriptor
+         */
+        public MHandle(byte tag, String owner, String name, String desc)
+        {
+            this.tag = tag;
+            this.owner = owner;
+            this.name = name;
+            this.desc = desc;
+        }
+
+        @Override
+        public boolean equals(Object obj)
+        {
+            if (!(obj instanceof MHandle)) { return false; }
+            MHandle x = (MHandle)obj;
+            return tag == x.tag && owner.equals(x.owner)
+                && name.equals(x.name) && desc.equals(x.desc);
+        }
+
+        @Override
+        public int hashCode()
+        {
+            return tag ^ owner.hashCode() ^ name.hashCode() ^ desc.hashCode();
+        }
+
+        @Override
+        public String toString()
+        {
+            return owner + '.' + name + desc + " (" + tag + ")";
+        }
+
+        final byte tag;
+        final String owner;
+        final String name;
+        final String desc;
+    }
+
+    /**
+     * Add an invokedynamic instruction to the current method.
+     *
+     * @param methodName the name passed to the bootstrap method
+     * @param methodType the call site's type descriptor
+     * @param bsm the bootstrap method
+     * @param bsmArgs the bootstrap method's static arguments: Integer,
+     *        String, or MHandle
+     */
+    public void addInvokeDynamic(String methodName, String methodType,
+                                 MHandle bsm, Object... bsmArgs)
+    {
+        if (DEBUGCODE) {
+            System.out.println("Add invokedynamic, "+methodName+", "
+                               +methodType);
+        }
+        int parameterInfo = sizeOfParameters(methodType);
+        int stackDiff = (short)parameterInfo;
+
+        int newStack = itsStackTop + stackDiff;
+        if (newStack < 0 || Short.MAX_VALUE < newStack) badStack(newStack);
+
+        int bootstrapIndex = addBootstrapMethod(bsm, bsmArgs);
+        addToCodeBuffer(ByteCode.INVOKEDYNAMIC);
+        addToCodeInt16(itsConstantPool.addInvokeDynamic(bootstrapIndex,
+                                                        methodName,
+                                                        methodType));
+        addToCodeInt16(0);
+
+        itsStackTop = (short)newStack;
+        if (newStack > itsMaxStack) itsMaxStack = (short)newStack;
+        if (DEBUGSTACK) {
+            System.out.println("After invokedynamic stack = "+itsStackTop);
+        }
+    }
+
+    // Returns the index of the given bootstrap method and arguments in the BootstrapMethods attribute, adding them if necessary.
+    private int addBootstrapMethod(MHandle bsm, Object[] bsmArgs)
+    {
+        ArrayList<Object> key = new ArrayList<Object>();
+        key.add(bsm);
+        key.addAll(Arrays.asList(bsmArgs));
+        Integer existingIndex = itsBootstrapMethodIndexes.get(key);
+        if (existingIndex != null) {
+            return existingIndex.intValue();
+        }
+        int[] entry = new int[1 + bsmArgs.length];
+        entry[0] = itsConstantPool.addMethodHandle(bsm);
+        for (int i = 0; i < bsmArgs.length; ++i) {
+            Object arg = bsmArgs[i];
+            if (arg instanceof Integer) {
+                entry[1 + i] = itsConstantPool.addConstant(((Integer)arg).intValue());
+            } else if (arg instanceof String) {
+                entry[1 + i] = itsConstantPool.addConstant((String)arg);
+            } else if (arg instanceof MHandle) {
+                entry[1 + i] = itsConstantPool.addMethodHandle((MHandle)arg);
+            } else {
+                throw new IllegalArgumentException("bad bootstrap method argument: " + arg);
+            }
+        }
+        int index = itsBootstrapMethods.size();
+        itsBootstrapMethods.add(entry);
+        itsBootstrapMethodIndexes.put(key, index);
+        return index;
+    }
+
     /**
      * Generate code to load the given integer on stack.
      *
@@ -1265,6 +1420,36 @@ public class ClassFileWriter {
         itsFixupTable[top] = ((long)label << 32) | fixupSite;
     }
 
+    private byte[] computeStackMapTable()
+    {
+        int[][] handlers = new int[itsExceptionTableTop][];
+        for (int i = 0; i < itsExceptionTableTop; i++) {
+            ExceptionTableEntry ete = itsExceptionTable[i];
+            handlers[i] = new int[] {
+                getLabelPC(ete.itsStartLabel),
+                getLabelPC(ete.itsEndLabel),
+                getLabelPC(ete.itsHandlerLabel),
+                ete.itsCatchType & 0xffff
+            };
+            if (handlers[i][0] == -1)
+                throw new IllegalStateException("start label not defined");
+            if (handlers[i][1] == -1)
+                throw new IllegalStateException("end label not defined");
+            if (handlers[i][2] == -1)
+                throw new IllegalStateException(
+                    "handler label not defined");
+        }
+        StackMapTable stackMapTable = new StackMapTable(itsConstantPool,
+                generatedClassName, itsCodeBuffer, itsCodeBufferTop,
+                itsMaxLocals, itsMaxStack, handlers);
+        boolean isStatic = (itsCurrentMethodFlags & ACC_STATIC) != 0;
+        byte[] result = stackMapTable.compute(itsCurrentMethodName,
+                                              itsCurrentMethodType, isStatic);
+        // Unreachable code is taken out of the handlers' ranges.
+        itsHandlers = stackMapTable.handlers();
+        return result;
+    }
+
     private  void fixLabelGotos()
     {
         byte[] codeBuffer = itsCodeBuffer;
@@ -1417,6 +1602,9 @@ public class ClassFileWriter {
         if (itsSourceFileNameIndex != 0) {
             itsConstantPool.addUtf8("SourceFile");
         }
+        if (!itsBootstrapMethods.isEmpty()) {
+            itsConstantPool.addUtf8("BootstrapMethods");
+        }
 
         size += 8; //writeLong(FileHeaderConstant);
         size += itsConstantPool.getWriteSize();
@@ -1436,13 +1624,16 @@ public class ClassFileWriter {
             size += method.getWriteSize();
         }
 
+        size += 2; //writeShort(attributes count)
         if (itsSourceFileNameIndex != 0) {
-            size += 2; //writeShort(1);  attributes count
             size += 2; //writeShort(sourceFileAttributeNameIndex);
             size += 4; //writeInt(2);
             size += 2; //writeShort(itsSourceFileNameIndex);
-        }else {
-            size += 2; //out.writeShort(0);  no attributes
+        }
+        if (!itsBootstrapMethods.isEmpty()) {
+            size += 2; //writeShort(bootstrapMethodsAttributeNameIndex);
+            size += 4; //writeInt(attribute length);
+            size += getBootstrapMethodsLength();
         }
 
         return size;
@@ -1462,6 +1653,13 @@ public class ClassFileWriter {
             sourceFileAttributeNameIndex = itsConstantPool.addUtf8(
                                                "SourceFile");
         }
+        short bootstrapMethodsAttributeNameIndex = 0;
+        int attributeCount = (itsSourceFileNameIndex != 0) ? 1 : 0;
+        if (!itsBootstrapMethods.isEmpty()) {
+            bootstrapMethodsAttributeNameIndex = itsConstantPool.addUtf8(
+                                                     "BootstrapMethods");
+            ++attributeCount;
+        }
 
         offset = putInt64(FileHeaderConstant, data, offset);
         offset = itsConstantPool.write(data, offset);
@@ -1480,13 +1678,23 @@ public class ClassFileWriter {
         for (ClassFileMethod method : itsMethods) {
             offset = method.write(data, offset);
         }
+        offset = putInt16(attributeCount, data, offset);
         if (itsSourceFileNameIndex != 0) {
-            offset = putInt16(1, data, offset); // attributes count
             offset = putInt16(sourceFileAttributeNameIndex, data, offset);
             offset = putInt32(2, data, offset);
             offset = putInt16(itsSourceFileNameIndex, data, offset);
-        } else {
-            offset = putInt16(0, data, offset); // no attributes
+        }
+        if (!itsBootstrapMethods.isEmpty()) {
+            offset = putInt16(bootstrapMethodsAttributeNameIndex, data, offset);
+            offset = putInt32(getBootstrapMethodsLength(), data, offset);
+            offset = putInt16(itsBootstrapMethods.size(), data, offset);
+            for (int[] entry : itsBootstrapMethods) {
+                offset = putInt16(entry[0], data, offset);
+                offset = putInt16(entry.length - 1, data, offset);
+                for (int i = 1; i < entry.length; ++i) {
+                    offset = putInt16(entry[i], data, offset);
+                }
+            }
         }
 
         if (offset != dataSize) {
@@ -1497,6 +1705,16 @@ public class ClassFileWriter {
         return data;
     }
 
+    // The length of the BootstrapMethods attribute, not counting its name and length.
+    private int getBootstrapMethodsLength()
+    {
+        int length = 2; // num_bootstrap_methods
+        for (int[] entry : itsBootstrapMethods) {
+            length += 2 + 2 + 2 * (entry.length - 1);
+        }
+        return length;
+    }
+
     static int putInt64(long value, byte[] array, int offset)
     {
         offset = putInt32((int)(value >>> 32), array, offset);
@@ -2281,6 +2499,7 @@ public class ClassFileWriter {
                 case ByteCode.INVOKESPECIAL:    return "invokespecial";
                 case ByteCode.INVOKESTATIC:     return "invokestatic";
                 case ByteCode.INVOKEINTERFACE:  return "invokeinterface";
+                case ByteCode.INVOKEDYNAMIC:    return "invokedynamic";
                 case ByteCode.NEW:              return "new";
                 case ByteCode.NEWARRAY:         return "newarray";
                 case ByteCode.ANEWARRAY:        return "anewarray";
@@ -2318,7 +2537,8 @@ public class ClassFileWriter {
     private static final int LineNumberTableSize = 16;
     private static final int ExceptionTableSize = 4;
 
-    private final static long FileHeaderConstant = 0xCAFEBABE0003002DL;
+    // Magic number, minor version 0, major version 52 (Java 6 introduced StackMapTable; Java 8 is the oldest JVM we care about).
+    private final static long FileHeaderConstant = 0xCAFEBABE00000034L;
     // Set DEBUG flags to true to get better checking and progress info.
     private static final boolean DEBUGSTACK = false;
     private static final boolean DEBUGLABELS = false;
@@ -2328,6 +2548,8 @@ public class ClassFileWriter {
 
     private ExceptionTableEntry itsExceptionTable[];
     private int itsExceptionTableTop;
+    // The exception table as written, as { startPC, endPC, handlerPC, catchType }.
+    private int[][] itsHandlers;
 
     private int itsLineNumberTable[];   // pack start_pc & line_number together
     private int itsLineNumberTableTop;
@@ -2338,6 +2560,9 @@ public class ClassFileWriter {
     private ConstantPool itsConstantPool;
 
     private ClassFileMethod itsCurrentMethod;
+    private String itsCurrentMethodName;
+    private String itsCurrentMethodType;
+    private short itsCurrentMethodFlags;
     private short itsStackTop;
 
     private short itsMaxStack;
@@ -2352,6 +2577,10 @@ public class ClassFileWriter {
     private short itsSuperClassIndex;
     private short itsSourceFileNameIndex;
 
+    // Each entry is a bootstrap method's constant pool index followed by those of its static arguments.
+    private ArrayList<int[]> itsBootstrapMethods = new ArrayList<int[]>();
+    private HashMap<List<Object>, Integer> itsBootstrapMethodIndexes = new HashMap<List<Object>, Integer>();
+
     private static final int MIN_LABEL_TABLE_SIZE = 32;
     private int[] itsLabelTable;
     private int itsLabelTableTop;
@@ -2479,350 +2708,3 @@ final class ClassFileMethod
     private byte[] itsCodeAttribute;
 
 }
-
-final class ConstantPool
-{
-
-    ConstantPool(ClassFileWriter cfw)
-    {
-        this.cfw = cfw;
-        itsTopIndex = 1;       // the zero'th entry is reserved
-        itsPool = new byte[ConstantPoolSize];
-        itsTop = 0;
-    }
-
-    private static final int ConstantPoolSize = 256;
-    private static final byte
-        CONSTANT_Class = 7,
-        CONSTANT_Fieldref = 9,
-        CONSTANT_Methodref = 10,
-        CONSTANT_InterfaceMethodref = 11,
-        CONSTANT_String = 8,
-        CONSTANT_Integer = 3,
-        CONSTANT_Float = 4,
-        CONSTANT_Long = 5,
-        CONSTANT_Double = 6,
-        CONSTANT_NameAndType = 12,
-        CONSTANT_Utf8 = 1;
-
-    int write(byte[] data, int offset)
-    {
-        offset = ClassFileWriter.putInt16((short)itsTopIndex, data, offset);
-        System.arraycopy(itsPool, 0, data, offset, itsTop);
-        offset += itsTop;
-        return offset;
-    }
-
-    int getWriteSize()
-    {
-        return 2 + itsTop;
-    }
-
-    int addConstant(int k)
-    {
-        ensure(5);
-        itsPool[itsTop++] = CONSTANT_Integer;
-        itsTop = ClassFileWriter.putInt32(k, itsPool, itsTop);
-        return (short)(itsTopIndex++);
-    }
-
-    int addConstant(long k)
-    {
-        ensure(9);
-        itsPool[itsTop++] = CONSTANT_Long;
-        itsTop = ClassFileWriter.putInt64(k, itsPool, itsTop);
-        int index = itsTopIndex;
-        itsTopIndex += 2;
-        return index;
-    }
-
-    int addConstant(float k)
-    {
-        ensure(5);
-        itsPool[itsTop++] = CONSTANT_Float;
-        int bits = Float.floatToIntBits(k);
-        itsTop = ClassFileWriter.putInt32(bits, itsPool, itsTop);
-        return itsTopIndex++;
-    }
-
-    int addConstant(double k)
-    {
-        ensure(9);
-        itsPool[itsTop++] = CONSTANT_Double;
-        long bits = Double.doubleToLongBits(k);
-        itsTop = ClassFileWriter.putInt64(bits, itsPool, itsTop);
-        int index = itsTopIndex;
-        itsTopIndex += 2;
-        return index;
-    }
-
-    int addConstant(String k)
-    {
-        int utf8Index = 0xFFFF & addUtf8(k);
-        Integer theIntegerIndex = itsStringConstHash.get(utf8Index);
-        if (theIntegerIndex != null) {
-            return theIntegerIndex.intValue();
-        } else {
-            int theIndex = itsTopIndex++;
-            ensure(3);
-            itsPool[itsTop++] = CONSTANT_String;
-            itsTop = ClassFileWriter.putInt16(utf8Index, itsPool, itsTop);
-            itsStringConstHash.put(utf8Index, theIndex);
-            return theIndex;
-        }
-    }
-
-    boolean isUnderUtfEncodingLimit(String s)
-    {
-        int strLen = s.length();
-        if (strLen * 3 <= MAX_UTF_ENCODING_SIZE) {
-            return true;
-        } else if (strLen > MAX_UTF_ENCODING_SIZE) {
-            return false;
-        }
-        return strLen == getUtfEncodingLimit(s, 0, strLen);
-    }
-
-    /**
-     * Get maximum i such that <tt>start <= i <= end</tt> and
-     * <tt>s.substring(start, i)</tt> fits JVM UTF string encoding limit.
-     */
-    int getUtfEncodingLimit(String s, int start, int end)
-    {
-        if ((end - start) * 3 <= MAX_UTF_ENCODING_SIZE) {
-            return end;
-        }
-        int limit = MAX_UTF_ENCODING_SIZE;
-        for (int i = start; i != end; i++) {
-            int c = s.charAt(i);
-            if (0 != c && c <= 0x7F) {
-                --limit;
-            } else if (c < 0x7FF) {
-                limit -= 2;
-            } else {
-                limit -= 3;
-            }
-            if (limit < 0) {
-                return i;
-            }
-        }
-        return end;
-    }
-
-    short addUtf8(String k)
-    {
-        Integer theIntegerIndex = itsUtf8Hash.get(k);
-        if (theIntegerIndex == null) {
-            int theIndex = -1;
-            int strLen = k.length();
-            boolean tooBigString;
-            if (strLen > MAX_UTF_ENCODING_SIZE) {
-                tooBigString = true;
-            } else {
-                tooBigString = false;
-                // Ask for worst case scenario buffer when each char takes 3
-                // bytes
-                ensure(1 + 2 + strLen * 3);
-                int top = itsTop;
-
-                itsPool[top++] = CONSTANT_Utf8;
-                top += 2; // skip length
-
-                char[] chars = cfw.getCharBuffer(strLen);
-                k.getChars(0, strLen, chars, 0);
-
-                for (int i = 0; i != strLen; i++) {
-                    int c = chars[i];
-                    if (c != 0 && c <= 0x7F) {
-                        itsPool[top++] = (byte)c;
-                    } else if (c > 0x7FF) {
-                        itsPool[top++] = (byte)(0xE0 | (c >> 12));
-                        itsPool[top++] = (byte)(0x80 | ((c >> 6) & 0x3F));
-                        itsPool[top++] = (byte)(0x80 | (c & 0x3F));
-                    } else {
-                        itsPool[top++] = (byte)(0xC0 | (c >> 6));
-                        itsPool[top++] = (byte)(0x80 | (c & 0x3F));
-                    }
-                }
-
-                int utfLen = top - (itsTop + 1 + 2);
-                if (utfLen > MAX_UTF_ENCODING_SIZE) {
-                    tooBigString = true;
-                } else {
-                    // Write back length
-                    itsPool[itsTop + 1] = (byte)(utfLen >>> 8);
-                    itsPool[itsTop + 2] = (byte)utfLen;
-
-                    itsTop = top;
-                    theIndex = itsTopIndex++;
-                    itsUtf8Hash.put(k, theIndex);
-                }
-            }
-            if (tooBigString) {
-                throw new IllegalArgumentException("Too big string");
-            }
-            theIntegerIndex = Integer.valueOf(theIndex);
-        }
-        return theIntegerIndex.shortValue();
-    }
-
-    private short addNameAndType(String name, String type)
-    {
-        short nameIndex = addUtf8(name);
-        short typeIndex = addUtf8(type);
-        ensure(5);
-        itsPool[itsTop++] = CONSTANT_NameAndType;
-        itsTop = ClassFileWriter.putInt16(nameIndex, itsPool, itsTop);
-        itsTop = ClassFileWriter.putInt16(typeIndex, itsPool, itsTop);
-        return (short)(itsTopIndex++);
-    }
-
-    short addClass(String className)
-    {
-        Integer theIntegerIndex = itsClassHash.get(className);
-        if (theIntegerIndex != null) {
-            return theIntegerIndex.shortValue();
-        } else {
-            String slashed = className;
-            if (className.indexOf('.') > 0) {
-                slashed = ClassFileWriter.getSlashedForm(className);
-                Integer theIndex = itsClassHash.get(slashed);
-                if (theIndex != null) {
-                    itsClassHash.put(className, theIndex);
-                    return theIndex.shortValue();
-                }
-            }
-            {
-                int utf8Index = addUtf8(slashed);
-                ensure(3);
-                itsPool[itsTop++] = CONSTANT_Class;
-                itsTop = ClassFileWriter.putInt16(utf8Index, itsPool, itsTop);
-                int theIndex = itsTopIndex++;
-                itsClassHash.put(slashed, theIndex);
-                if (className != slashed) {
-                    itsClassHash.put(className, theIndex);
-                }
-                return (short)theIndex;
-            }
-        }
-    }
-
-    short addFieldRef(String className, String fieldName, String fieldType)
-    {
-        FieldOrMethodRef ref = new FieldOrMethodRef(className, fieldName,
-                                                    fieldType);
-
-        Integer theIntegerIndex = itsFieldRefHash.get(ref);
-        if (theIntegerIndex != null) {
-            return theIntegerIndex.shortValue();
-        } else {
-            short ntIndex = addNameAndType(fieldName, fieldType);
-            short classIndex = addClass(className);
-            ensure(5);
-            itsPool[itsTop++] = CONSTANT_Fieldref;
-            itsTop = ClassFileWriter.putInt16(classIndex, itsPool, itsTop);
-            itsTop = ClassFileWriter.putInt16(ntIndex, itsPool, itsTop);
-            int theIndex = itsTopIndex++;
-            itsFieldRefHash.put(ref, theIndex);
-            return (short)theIndex;
-        }
-    }
-
-    short addMethodRef(String className, String methodName,
-                       String methodType)
-    {
-        FieldOrMethodRef ref = new FieldOrMethodRef(className, methodName,
-                                                    methodType);
-
-        Integer theIntegerIndex = itsMethodRefHash.get(ref);
-        if (theIntegerIndex != null) {
-            return theIntegerIndex.shortValue();
-        } else {
-            short ntIndex = addNameAndType(methodName, methodType);
-            short classIndex = addClass(className);
-            ensure(5);
-            itsPool[itsTop++] = CONSTANT_Methodref;
-            itsTop = ClassFileWriter.putInt16(classIndex, itsPool, itsTop);
-            itsTop = ClassFileWriter.putInt16(ntIndex, itsPool, itsTop);
-            int theIndex = itsTopIndex++;
-            itsMethodRefHash.put(ref, theIndex);
-            return (short)theIndex;
-        }
-    }
-
-    short addInterfaceMethodRef(String className,
-                                String methodName, String methodType)
-    {
-        short ntIndex = addNameAndType(methodName, methodType);
-        short classIndex = addClass(className);
-        ensure(5);
-        itsPool[itsTop++] = CONSTANT_InterfaceMethodref;
-        itsTop = ClassFileWriter.putInt16(classIndex, itsPool, itsTop);
-        itsTop = ClassFileWriter.putInt16(ntIndex, itsPool, itsTop);
-        return (short)(itsTopIndex++);
-    }
-
-    void ensure(int howMuch)
-    {
-        if (itsTop + howMuch > itsPool.length) {
-            int newCapacity = itsPool.length * 2;
-            if (itsTop + howMuch > newCapacity) {
-                newCapacity = itsTop + howMuch;
-            }
-            byte[] tmp = new byte[newCapacity];
-            System.arraycopy(itsPool, 0, tmp, 0, itsTop);
-            itsPool = tmp;
-        }
-    }
-
-    private ClassFileWriter cfw;
-
-    private static final int MAX_UTF_ENCODING_SIZE = 65535;
-
-    private HashMap<Integer, Integer> itsStringConstHash = new HashMap<Integer, Integer>();
-    private HashMap<Object, Integer> itsUtf8Hash = new HashMap<Object, Integer>();
-    private HashMap<Object, Integer> itsFieldRefHash = new HashMap<Object, Integer>();
-    private HashMap<Object, Integer> itsMethodRefHash = new HashMap<Object, Integer>();
-    private HashMap<Object, Integer> itsClassHash = new HashMap<Object, Integer>();
-
-    private int itsTop;
-    private int itsTopIndex;
-    private byte itsPool[];
-}
-
-final class FieldOrMethodRef
-{
-    FieldOrMethodRef(String className, String name, String type)
-    {
-        this.className = className;
-        this.name = name;
-        this.type = type;
-    }
-
-    @Override
-    public boolean equals(Object obj)
-    {
-        if (!(obj instanceof FieldOrMethodRef)) { return false; }
-        FieldOrMethodRef x = (FieldOrMethodRef)obj;
-        return className.equals(x.className)
-            && name.equals(x.name)
-            && type.equals(x.type);
-    }
-
-    @Override
-    public int hashCode()
-    {
-        if (hashCode == -1) {
-            int h1 = className.hashCode();
-            int h2 = name.hashCode();
-            int h3 = type.hashCode();
-            hashCode = h1 ^ h2 ^ h3;
-        }
-        return hashCode;
-    }
-
-    private String className;
-    private String name;
-    private String type;
-    private int hashCode = -1;
-}
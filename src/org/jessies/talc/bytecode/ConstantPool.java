@@ -0,0 +1,478 @@
+/* -*- Mode: java; tab-width: 8; indent-tabs-mode: nil; c-basic-offset: 4 -*-
+ *
+ * ***** BEGIN LICENSE BLOCK *****
+ * Version: MPL 1.1/GPL 2.0
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is Rhino code, released
+ * May 6, 1999.
+ *
+ * The Initial Developer of the Original Code is
+ * Netscape Communications Corporation.
+ * Portions created by the Initial Developer are Copyright (C) 1997-1999
+ * the Initial Developer. All Rights Reserved.
+ *
+ * Contributor(s):
+ *   Roger Lawrence
+ *
+ * Alternatively, the contents of this file may be used under the terms of
+ * the GNU General Public License Version 2 or later (the "GPL"), in which
+ * case the provisions of the GPL are applicable instead of those above. If
+ * you wish to allow use of your version of this file only under the terms of
+ * the GPL and not to allow others to use your version of this file under the
+ * MPL, indicate your decision by deleting the provisions above and replacing
+ * them with the notice and other provisions required by the GPL. If you do
+ * not delete the provisions above, a recipient may use your version of this
+ * file under either the MPL or the GPL.
+ *
+ * ***** END LICENSE BLOCK ***** */
+
+package org.jessies.talc.bytecode;
+
+import java.io.*;
+import java.util.*;
+
+final class ConstantPool
+{
+
+    ConstantPool(ClassFileWriter cfw)
+    {
+        this.cfw = cfw;
+        itsTopIndex = 1;       // the zero'th entry is reserved
+        itsPool = new byte[ConstantPoolSize];
+        itsTop = 0;
+    }
+
+    private static final int ConstantPoolSize = 256;
+    static final byte
+        CONSTANT_Class = 7,
+        CONSTANT_Fieldref = 9,
+        CONSTANT_Methodref = 10,
+        CONSTANT_InterfaceMethodref = 11,
+        CONSTANT_String = 8,
+        CONSTANT_Integer = 3,
+        CONSTANT_Float = 4,
+        CONSTANT_Long = 5,
+        CONSTANT_Double = 6,
+        CONSTANT_NameAndType = 12,
+        CONSTANT_MethodHandle = 15,
+        CONSTANT_MethodType = 16,
+        CONSTANT_InvokeDynamic = 18,
+        CONSTANT_Utf8 = 1;
+
+    int write(byte[] data, int offset)
+    {
+        offset = ClassFileWriter.putInt16((short)itsTopIndex, data, offset);
+        System.arraycopy(itsPool, 0, data, offset, itsTop);
+        offset += itsTop;
+        return offset;
+    }
+
+    int getWriteSize()
+    {
+        return 2 + itsTop;
+    }
+
+    int addConstant(int k)
+    {
+        ensure(5);
+        itsPool[itsTop++] = CONSTANT_Integer;
+        itsTop = ClassFileWriter.putInt32(k, itsPool, itsTop);
+        itsConstantTags.put(itsTopIndex, CONSTANT_Integer);
+        return (short)(itsTopIndex++);
+    }
+
+    int addConstant(long k)
+    {
+        ensure(9);
+        itsPool[itsTop++] = CONSTANT_Long;
+        itsTop = ClassFileWriter.putInt64(k, itsPool, itsTop);
+        itsConstantTags.put(itsTopIndex, CONSTANT_Long);
+        int index = itsTopIndex;
+        itsTopIndex += 2;
+        return index;
+    }
+
+    int addConstant(float k)
+    {
+        ensure(5);
+        itsPool[itsTop++] = CONSTANT_Float;
+        int bits = Float.floatToIntBits(k);
+        itsTop = ClassFileWriter.putInt32(bits, itsPool, itsTop);
+        itsConstantTags.put(itsTopIndex, CONSTANT_Float);
+        return itsTopIndex++;
+    }
+
+    int addConstant(double k)
+    {
+        ensure(9);
+        itsPool[itsTop++] = CONSTANT_Double;
+        long bits = Double.doubleToLongBits(k);
+        itsTop = ClassFileWriter.putInt64(bits, itsPool, itsTop);
+        itsConstantTags.put(itsTopIndex, CONSTANT_Double);
+        int index = itsTopIndex;
+        itsTopIndex += 2;
+        return index;
+    }
+
+    int addConstant(String k)
+    {
+        int utf8Index = 0xFFFF & addUtf8(k);
+        Integer theIntegerIndex = itsStringConstHash.get(utf8Index);
+        if (theIntegerIndex != null) {
+            return theIntegerIndex.intValue();
+        } else {
+            int theIndex = itsTopIndex++;
+            ensure(3);
+            itsPool[itsTop++] = CONSTANT_String;
+            itsTop = ClassFileWriter.putInt16(utf8Index, itsPool, itsTop);
+            itsStringConstHash.put(utf8Index, theIndex);
+            itsConstantTags.put(theIndex, CONSTANT_String);
+            return theIndex;
+        }
+    }
+
+    boolean isUnderUtfEncodingLimit(String s)
+    {
+        int strLen = s.length();
+        if (strLen * 3 <= MAX_UTF_ENCODING_SIZE) {
+            return true;
+        } else if (strLen > MAX_UTF_ENCODING_SIZE) {
+            return false;
+        }
+        return strLen == getUtfEncodingLimit(s, 0, strLen);
+    }
+
+    /**
+     * Get maximum i such that <tt>start <= i <= end</tt> and
+     * <tt>s.substring(start, i)</tt> fits JVM UTF string encoding limit.
+     */
+    int getUtfEncodingLimit(String s, int start, int end)
+    {
+        if ((end - start) * 3 <= MAX_UTF_ENCODING_SIZE) {
+            return end;
+        }
+        int limit = MAX_UTF_ENCODING_SIZE;
+        for (int i = start; i != end; i++) {
+            int c = s.charAt(i);
+            if (0 != c && c <= 0x7F) {
+                --limit;
+            } else if (c < 0x7FF) {
+                limit -= 2;
+            } else {
+                limit -= 3;
+            }
+            if (limit < 0) {
+                return i;
+            }
+        }
+        return end;
+    }
+
+    short addUtf8(String k)
+    {
+        Integer theIntegerIndex = itsUtf8Hash.get(k);
+        if (theIntegerIndex == null) {
+            int theIndex = -1;
+            int strLen = k.length();
+            boolean tooBigString;
+            if (strLen > MAX_UTF_ENCODING_SIZE) {
+                tooBigString = true;
+            } else {
+                tooBigString = false;
+                // Ask for worst case scenario buffer when each char takes 3
+                // bytes
+                ensure(1 + 2 + strLen * 3);
+                int top = itsTop;
+
+                itsPool[top++] = CONSTANT_Utf8;
+                top += 2; // skip length
+
+                char[] chars = cfw.getCharBuffer(strLen);
+                k.getChars(0, strLen, chars, 0);
+
+                for (int i = 0; i != strLen; i++) {
+                    int c = chars[i];
+                    if (c != 0 && c <= 0x7F) {
+                        itsPool[top++] = (byte)c;
+                    } else if (c > 0x7FF) {
+                        itsPool[top++] = (byte)(0xE0 | (c >> 12));
+                        itsPool[top++] = (byte)(0x80 | ((c >> 6) & 0x3F));
+                        itsPool[top++] = (byte)(0x80 | (c & 0x3F));
+                    } else {
+                        itsPool[top++] = (byte)(0xC0 | (c >> 6));
+                        itsPool[top++] = (byte)(0x80 | (c & 0x3F));
+                    }
+                }
+
+                int utfLen = top - (itsTop + 1 + 2);
+                if (utfLen > MAX_UTF_ENCODING_SIZE) {
+                    tooBigString = true;
+                } else {
+                    // Write back length
+                    itsPool[itsTop + 1] = (byte)(utfLen >>> 8);
+                    itsPool[itsTop + 2] = (byte)utfLen;
+
+                    itsTop = top;
+                    theIndex = itsTopIndex++;
+                    itsUtf8Hash.put(k, theIndex);
+                }
+            }
+            if (tooBigString) {
+                throw new IllegalArgumentException("Too big string");
+            }
+            theIntegerIndex = Integer.valueOf(theIndex);
+        }
+        return theIntegerIndex.shortValue();
+    }
+
+    private short addNameAndType(String name, String type)
+    {
+        short nameIndex = addUtf8(name);
+        short typeIndex = addUtf8(type);
+        ensure(5);
+        itsPool[itsTop++] = CONSTANT_NameAndType;
+        itsTop = ClassFileWriter.putInt16(nameIndex, itsPool, itsTop);
+        itsTop = ClassFileWriter.putInt16(typeIndex, itsPool, itsTop);
+        return (short)(itsTopIndex++);
+    }
+
+    short addClass(String className)
+    {
+        Integer theIntegerIndex = itsClassHash.get(className);
+        if (theIntegerIndex != null) {
+            return theIntegerIndex.shortValue();
+        } else {
+            String slashed = className;
+            if (className.indexOf('.') > 0) {
+                slashed = ClassFileWriter.getSlashedForm(className);
+                Integer theIndex = itsClassHash.get(slashed);
+                if (theIndex != null) {
+                    itsClassHash.put(className, theIndex);
+                    return theIndex.shortValue();
+                }
+            }
+            {
+                int utf8Index = addUtf8(slashed);
+                ensure(3);
+                itsPool[itsTop++] = CONSTANT_Class;
+                itsTop = ClassFileWriter.putInt16(utf8Index, itsPool, itsTop);
+                int theIndex = itsTopIndex++;
+                itsClassHash.put(slashed, theIndex);
+                itsConstantTags.put(theIndex, CONSTANT_Class);
+                itsConstantData.put(theIndex, slashed);
+                if (className != slashed) {
+                    itsClassHash.put(className, theIndex);
+                }
+                return (short)theIndex;
+            }
+        }
+    }
+
+    short addFieldRef(String className, String fieldName, String fieldType)
+    {
+        FieldOrMethodRef ref = new FieldOrMethodRef(className, fieldName,
+                                                    fieldType);
+
+        Integer theIntegerIndex = itsFieldRefHash.get(ref);
+        if (theIntegerIndex != null) {
+            return theIntegerIndex.shortValue();
+        } else {
+            short ntIndex = addNameAndType(fieldName, fieldType);
+            short classIndex = addClass(className);
+            ensure(5);
+            itsPool[itsTop++] = CONSTANT_Fieldref;
+            itsTop = ClassFileWriter.putInt16(classIndex, itsPool, itsTop);
+            itsTop = ClassFileWriter.putInt16(ntIndex, itsPool, itsTop);
+            int theIndex = itsTopIndex++;
+            itsFieldRefHash.put(ref, theIndex);
+            itsConstantTags.put(theIndex, CONSTANT_Fieldref);
+            itsConstantData.put(theIndex, ref);
+            return (short)theIndex;
+        }
+    }
+
+    short addMethodRef(String className, String methodName,
+                       String methodType)
+    {
+        FieldOrMethodRef ref = new FieldOrMethodRef(className, methodName,
+                                                    methodType);
+
+        Integer theIntegerIndex = itsMethodRefHash.get(ref);
+        if (theIntegerIndex != null) {
+            return theIntegerIndex.shortValue();
+        } else {
+            short ntIndex = addNameAndType(methodName, methodType);
+            short classIndex = addClass(className);
+            ensure(5);
+            itsPool[itsTop++] = CONSTANT_Methodref;
+            itsTop = ClassFileWriter.putInt16(classIndex, itsPool, itsTop);
+            itsTop = ClassFileWriter.putInt16(ntIndex, itsPool, itsTop);
+            int theIndex = itsTopIndex++;
+            itsMethodRefHash.put(ref, theIndex);
+            itsConstantTags.put(theIndex, CONSTANT_Methodref);
+            itsConstantData.put(theIndex, ref);
+            return (short)theIndex;
+        }
+    }
+
+    short addInterfaceMethodRef(String className,
+                                String methodName, String methodType)
+    {
+        short ntIndex = addNameAndType(methodName, methodType);
+        short classIndex = addClass(className);
+        ensure(5);
+        itsPool[itsTop++] = CONSTANT_InterfaceMethodref;
+        itsTop = ClassFileWriter.putInt16(classIndex, itsPool, itsTop);
+        itsTop = ClassFileWriter.putInt16(ntIndex, itsPool, itsTop);
+        itsConstantTags.put(itsTopIndex, CONSTANT_InterfaceMethodref);
+        itsConstantData.put(itsTopIndex, new FieldOrMethodRef(className, methodName, methodType));
+        return (short)(itsTopIndex++);
+    }
+
+    short addMethodHandle(ClassFileWriter.MHandle mh)
+    {
+        Integer theIntegerIndex = itsMethodHandleHash.get(mh);
+        if (theIntegerIndex != null) {
+            return theIntegerIndex.shortValue();
+        }
+        short refIndex;
+        if (mh.tag <= ByteCode.MH_PUTSTATIC) {
+            refIndex = addFieldRef(mh.owner, mh.name, mh.desc);
+        } else if (mh.tag == ByteCode.MH_INVOKEINTERFACE) {
+            refIndex = addInterfaceMethodRef(mh.owner, mh.name, mh.desc);
+        } else {
+            refIndex = addMethodRef(mh.owner, mh.name, mh.desc);
+        }
+        ensure(4);
+        itsPool[itsTop++] = CONSTANT_MethodHandle;
+        itsPool[itsTop++] = mh.tag;
+        itsTop = ClassFileWriter.putInt16(refIndex, itsPool, itsTop);
+        int theIndex = itsTopIndex++;
+        itsMethodHandleHash.put(mh, theIndex);
+        itsConstantTags.put(theIndex, CONSTANT_MethodHandle);
+        return (short)theIndex;
+    }
+
+    short addInvokeDynamic(int bootstrapIndex, String methodName,
+                           String methodType)
+    {
+        short ntIndex = addNameAndType(methodName, methodType);
+        ensure(5);
+        itsPool[itsTop++] = CONSTANT_InvokeDynamic;
+        itsTop = ClassFileWriter.putInt16(bootstrapIndex, itsPool, itsTop);
+        itsTop = ClassFileWriter.putInt16(ntIndex, itsPool, itsTop);
+        itsConstantTags.put(itsTopIndex, CONSTANT_InvokeDynamic);
+        itsConstantData.put(itsTopIndex, new FieldOrMethodRef(null, methodName, methodType));
+        return (short)(itsTopIndex++);
+    }
+
+    // The remaining methods let StackMapTable find out about constants referred to by the code it's analyzing.
+
+    byte getConstantTag(int index)
+    {
+        Byte tag = itsConstantTags.get(index);
+        return (tag != null) ? tag.byteValue() : 0;
+    }
+
+    String getClassName(int index)
+    {
+        return (String) itsConstantData.get(index);
+    }
+
+    String getMemberName(int index)
+    {
+        return ((FieldOrMethodRef) itsConstantData.get(index)).getName();
+    }
+
+    String getMemberType(int index)
+    {
+        return ((FieldOrMethodRef) itsConstantData.get(index)).getType();
+    }
+
+    void ensure(int howMuch)
+    {
+        if (itsTop + howMuch > itsPool.length) {
+            int newCapacity = itsPool.length * 2;
+            if (itsTop + howMuch > newCapacity) {
+                newCapacity = itsTop + howMuch;
+            }
+            byte[] tmp = new byte[newCapacity];
+            System.arraycopy(itsPool, 0, tmp, 0, itsTop);
+            itsPool = tmp;
+        }
+    }
+
+    private ClassFileWriter cfw;
+
+    private static final int MAX_UTF_ENCODING_SIZE = 65535;
+
+    private HashMap<Integer, Integer> itsStringConstHash = new HashMap<Integer, Integer>();
+    private HashMap<Object, Integer> itsUtf8Hash = new HashMap<Object, Integer>();
+    private HashMap<Object, Integer> itsFieldRefHash = new HashMap<Object, Integer>();
+    private HashMap<Object, Integer> itsMethodRefHash = new HashMap<Object, Integer>();
+    private HashMap<Object, Integer> itsClassHash = new HashMap<Object, Integer>();
+    private HashMap<Object, Integer> itsMethodHandleHash = new HashMap<Object, Integer>();
+    private HashMap<Integer, Byte> itsConstantTags = new HashMap<Integer, Byte>();
+    private HashMap<Integer, Object> itsConstantData = new HashMap<Integer, Object>();
+
+    private int itsTop;
+    private int itsTopIndex;
+    private byte itsPool[];
+}
+
+final class FieldOrMethodRef
+{
+    FieldOrMethodRef(String className, String name, String type)
+    {
+        this.className = className;
+        this.name = name;
+        this.type = type;
+    }
+
+    String getName()
+    {
+        return name;
+    }
+
+    String getType()
+    {
+        return type;
+    }
+
+    @Override
+    public boolean equals(Object obj)
+    {
+        if (!(obj instanceof FieldOrMethodRef)) { return false; }
+        FieldOrMethodRef x = (FieldOrMethodRef)obj;
+        return className.equals(x.className)
+            && name.equals(x.name)
+            && type.equals(x.type);
+    }
+
+    @Override
+    public int hashCode()
+    {
+        if (hashCode == -1) {
+            int h1 = className.hashCode();
+            int h2 = name.hashCode();
+            int h3 = type.hashCode();
+            hashCode = h1 ^ h2 ^ h3;
+        }
+        return hashCode;
+    }
+
+    private String className;
+    private String name;
+    private String type;
+    private int hashCode = -1;
+}
@@ -0,0 +1,889 @@
+/*
+ * This file is part of Talc.
+ * Copyright (C) 2007-2008 Elliott Hughes <enh@jessies.org>.
+ *
+ * Talc is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Talc is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.jessies.talc.bytecode;
+
+import java.util.*;
+
+/**
+ * Computes the StackMapTable attribute for a method's code. Class files from
+ * version 50 on carry the types of the locals and stack at each branch target,
+ * so the JVM can verify code with a single linear type-checking pass rather
+ * than by the old (and slower) type inference. We do the inference instead,
+ * once, by abstract interpretation of the finished bytecode.
+ *
+ * Unreachable code is replaced with NOPs and an ATHROW, as ASM does, because
+ * the type-checking verifier insists on a frame for it, and there's no
+ * meaningful frame to give it.
+ */
+final class StackMapTable {
+    // Verification types, encoded as in the class file's verification_type_info,
+    // with the constant pool index (OBJECT) or offset of the NEW (UNINITIALIZED) above the tag.
+    private static final int TOP = 0;
+    private static final int INTEGER = 1;
+    private static final int FLOAT = 2;
+    private static final int DOUBLE = 3;
+    private static final int LONG = 4;
+    private static final int NULL = 5;
+    private static final int UNINITIALIZED_THIS = 6;
+    private static final int OBJECT = 7;
+    private static final int UNINITIALIZED = 8;
+
+    private final ConstantPool pool;
+    private final String className;
+    private final byte[] code;
+    private final int codeLength;
+    private final int maxLocals;
+    // Each handler is { startPC, endPC, handlerPC, catchTypeIndex }.
+    private int[][] handlers;
+
+    // The state on entry to each basic block, indexed by offset. Null if the offset isn't a reachable block start.
+    private boolean[] isBlockStart;
+    private boolean[] needsFrame;
+    private int[][] entryLocals;
+    private int[][] entryStacks;
+    private ArrayList<Integer> worklist = new ArrayList<Integer>();
+
+    // The state during interpretation.
+    private int[] locals;
+    private int[] stack;
+    private int stackTop;
+
+    StackMapTable(ConstantPool pool, String className, byte[] code, int codeLength, int maxLocals, int maxStack, int[][] handlers) {
+        this.pool = pool;
+        this.className = className;
+        this.code = code;
+        this.codeLength = codeLength;
+        this.maxLocals = maxLocals;
+        this.handlers = handlers;
+        this.stack = new int[maxStack];
+    }
+
+    /**
+     * Returns the body of the StackMapTable attribute (after the attribute
+     * length), or null if the method doesn't need one.
+     */
+    byte[] compute(String methodName, String methodType, boolean isStatic) {
+        findBlocks();
+
+        int[] initialLocals = new int[maxLocals];
+        int local = 0;
+        if (isStatic == false) {
+            initialLocals[local++] = methodName.equals("<init>") ? UNINITIALIZED_THIS : objectType(className);
+        }
+        for (int i = 1; methodType.charAt(i) != ')'; ) {
+            int end = endOfDescriptor(methodType, i);
+            int type = typeForDescriptor(methodType.substring(i, end));
+            initialLocals[local++] = type;
+            if (type == LONG || type == DOUBLE) {
+                initialLocals[local++] = TOP;
+            }
+            i = end;
+        }
+        mergeInto(0, initialLocals, new int[0], 0);
+
+        while (worklist.isEmpty() == false) {
+            interpretBlock(worklist.remove(worklist.size() - 1));
+        }
+
+        replaceUnreachableCode();
+        return writeFrames();
+    }
+
+    /**
+     * Returns the exception handlers, as { startPC, endPC, handlerPC, catchTypeIndex },
+     * with any code compute found to be unreachable removed from their ranges.
+     */
+    int[][] handlers() {
+        return handlers;
+    }
+
+    // Marks the start of every basic block, and those that will need a frame.
+    private void findBlocks() {
+        isBlockStart = new boolean[codeLength + 1];
+        needsFrame = new boolean[codeLength + 1];
+        entryLocals = new int[codeLength][];
+        entryStacks = new int[codeLength][];
+        isBlockStart[0] = true;
+        for (int pc = 0; pc < codeLength; pc += instructionLength(pc)) {
+            int opcode = code[pc] & 0xff;
+            int next = pc + instructionLength(pc);
+            if (isConditionalBranch(opcode)) {
+                markBranchTarget(pc + readInt16(pc + 1));
+                isBlockStart[next] = true;
+            } else if (opcode == ByteCode.GOTO || opcode == ByteCode.GOTO_W) {
+                markBranchTarget(pc + ((opcode == ByteCode.GOTO) ? readInt16(pc + 1) : readInt32(pc + 1)));
+                markBranchTarget(next);
+            } else if (opcode == ByteCode.TABLESWITCH || opcode == ByteCode.LOOKUPSWITCH) {
+                for (int target : switchTargets(pc)) {
+                    markBranchTarget(target);
+                }
+                markBranchTarget(next);
+            } else if (isReturnOrThrow(opcode)) {
+                markBranchTarget(next);
+            } else if (opcode == ByteCode.JSR || opcode == ByteCode.JSR_W || opcode == ByteCode.RET) {
+                throw new ClassFileWriter.ClassFileFormatException("subroutines aren't allowed in class files with a StackMapTable");
+            }
+        }
+        for (int[] handler : handlers) {
+            markBranchTarget(handler[2]);
+        }
+        // We never need a frame for the end of the code.
+        needsFrame[codeLength] = false;
+    }
+
+    private void markBranchTarget(int pc) {
+        isBlockStart[pc] = true;
+        needsFrame[pc] = true;
+    }
+
+    private void interpretBlock(int start) {
+        locals = entryLocals[start].clone();
+        stackTop = entryStacks[start].length;
+        System.arraycopy(entryStacks[start], 0, stack, 0, stackTop);
+
+        int pc = start;
+        while (true) {
+            // Any instruction covered by an exception handler might transfer control to it, with just the exception on the stack.
+            for (int[] handler : handlers) {
+                if (pc >= handler[0] && pc < handler[1]) {
+                    int catchType = (handler[3] == 0) ? objectType("java/lang/Throwable") : (OBJECT | (handler[3] << 8));
+                    mergeInto(handler[2], locals, new int[] { catchType }, 1);
+                }
+            }
+
+            int opcode = code[pc] & 0xff;
+            int next = pc + instructionLength(pc);
+            interpretInstruction(pc, opcode);
+
+            if (isConditionalBranch(opcode)) {
+                mergeInto(pc + readInt16(pc + 1), locals, stack, stackTop);
+            } else if (opcode == ByteCode.GOTO || opcode == ByteCode.GOTO_W) {
+                mergeInto(pc + ((opcode == ByteCode.GOTO) ? readInt16(pc + 1) : readInt32(pc + 1)), locals, stack, stackTop);
+                return;
+            } else if (opcode == ByteCode.TABLESWITCH || opcode == ByteCode.LOOKUPSWITCH) {
+                for (int target : switchTargets(pc)) {
+                    mergeInto(target, locals, stack, stackTop);
+                }
+                return;
+            } else if (isReturnOrThrow(opcode)) {
+                return;
+            }
+
+            if (next >= codeLength) {
+                throw new ClassFileWriter.ClassFileFormatException("code falls off the end of the method");
+            } else if (isBlockStart[next]) {
+                mergeInto(next, locals, stack, stackTop);
+                return;
+            }
+            pc = next;
+        }
+    }
+
+    private void mergeInto(int pc, int[] newLocals, int[] newStack, int newStackTop) {
+        if (entryLocals[pc] == null) {
+            entryLocals[pc] = newLocals.clone();
+            entryStacks[pc] = new int[newStackTop];
+            System.arraycopy(newStack, 0, entryStacks[pc], 0, newStackTop);
+            worklist.add(pc);
+            return;
+        }
+
+        boolean changed = false;
+        int[] oldLocals = entryLocals[pc];
+        for (int i = 0; i < oldLocals.length; ++i) {
+            int merged = mergeTypes(oldLocals[i], newLocals[i]);
+            changed |= (merged != oldLocals[i]);
+            oldLocals[i] = merged;
+        }
+        int[] oldStack = entryStacks[pc];
+        if (oldStack.length != newStackTop) {
+            throw new ClassFileWriter.ClassFileFormatException("inconsistent stack heights at offset " + pc);
+        }
+        for (int i = 0; i < newStackTop; ++i) {
+            int merged = mergeTypes(oldStack[i], newStack[i]);
+            if (merged == TOP) {
+                throw new ClassFileWriter.ClassFileFormatException("inconsistent stack types at offset " + pc);
+            }
+            changed |= (merged != oldStack[i]);
+            oldStack[i] = merged;
+        }
+        if (changed) {
+            worklist.add(pc);
+        }
+    }
+
+    private int mergeTypes(int a, int b) {
+        if (a == b) {
+            return a;
+        }
+        int aTag = a & 0xff;
+        int bTag = b & 0xff;
+        if (aTag == NULL && bTag == OBJECT) {
+            return b;
+        } else if (aTag == OBJECT && bTag == NULL) {
+            return a;
+        } else if (aTag == OBJECT && bTag == OBJECT) {
+            return objectType(commonSuperclass(pool.getClassName(a >>> 8), pool.getClassName(b >>> 8)));
+        }
+        return TOP;
+    }
+
+    // Returns the most specific class both classes extend. We can only find
+    // out about classes we can load; generated classes all extend Object anyway.
+    private static String commonSuperclass(String a, String b) {
+        if (a.startsWith("[") == false && b.startsWith("[") == false) {
+            try {
+                ClassLoader loader = StackMapTable.class.getClassLoader();
+                Class<?> aClass = Class.forName(a.replace('/', '.'), false, loader);
+                Class<?> bClass = Class.forName(b.replace('/', '.'), false, loader);
+                if (aClass.isInterface() == false && bClass.isInterface() == false) {
+                    for (Class<?> c = aClass; c != null; c = c.getSuperclass()) {
+                        if (c.isAssignableFrom(bClass)) {
+                            return c.getName().replace('.', '/');
+                        }
+                    }
+                }
+            } catch (ClassNotFoundException ex) {
+                // Fall through.
+            }
+        }
+        return "java/lang/Object";
+    }
+
+    private void interpretInstruction(int pc, int opcode) {
+        switch (opcode) {
+        case ByteCode.NOP:
+        case ByteCode.GOTO: case ByteCode.GOTO_W:
+        case ByteCode.RETURN:
+        case ByteCode.IINC:
+            break;
+
+        case ByteCode.ACONST_NULL:
+            push(NULL);
+            break;
+        case ByteCode.ICONST_M1: case ByteCode.ICONST_0: case ByteCode.ICONST_1: case ByteCode.ICONST_2:
+        case ByteCode.ICONST_3: case ByteCode.ICONST_4: case ByteCode.ICONST_5:
+        case ByteCode.BIPUSH: case ByteCode.SIPUSH:
+            push(INTEGER);
+            break;
+        case ByteCode.LCONST_0: case ByteCode.LCONST_1:
+            push(LONG);
+            break;
+        case ByteCode.FCONST_0: case ByteCode.FCONST_1: case ByteCode.FCONST_2:
+            push(FLOAT);
+            break;
+        case ByteCode.DCONST_0: case ByteCode.DCONST_1:
+            push(DOUBLE);
+            break;
+        case ByteCode.LDC:
+            push(constantType(code[pc + 1] & 0xff));
+            break;
+        case ByteCode.LDC_W: case ByteCode.LDC2_W:
+            push(constantType(readUint16(pc + 1)));
+            break;
+
+        case ByteCode.ILOAD: case ByteCode.ILOAD_0: case ByteCode.ILOAD_1: case ByteCode.ILOAD_2: case ByteCode.ILOAD_3:
+            push(INTEGER);
+            break;
+        case ByteCode.LLOAD: case ByteCode.LLOAD_0: case ByteCode.LLOAD_1: case ByteCode.LLOAD_2: case ByteCode.LLOAD_3:
+            push(LONG);
+            break;
+        case ByteCode.FLOAD: case ByteCode.FLOAD_0: case ByteCode.FLOAD_1: case ByteCode.FLOAD_2: case ByteCode.FLOAD_3:
+            push(FLOAT);
+            break;
+        case ByteCode.DLOAD: case ByteCode.DLOAD_0: case ByteCode.DLOAD_1: case ByteCode.DLOAD_2: case ByteCode.DLOAD_3:
+            push(DOUBLE);
+            break;
+        case ByteCode.ALOAD:
+            push(locals[code[pc + 1] & 0xff]);
+            break;
+        case ByteCode.ALOAD_0: case ByteCode.ALOAD_1: case ByteCode.ALOAD_2: case ByteCode.ALOAD_3:
+            push(locals[opcode - ByteCode.ALOAD_0]);
+            break;
+
+        case ByteCode.ISTORE: case ByteCode.LSTORE: case ByteCode.FSTORE: case ByteCode.DSTORE: case ByteCode.ASTORE:
+            store(code[pc + 1] & 0xff, pop());
+            break;
+        case ByteCode.ISTORE_0: case ByteCode.ISTORE_1: case ByteCode.ISTORE_2: case ByteCode.ISTORE_3:
+            store(opcode - ByteCode.ISTORE_0, pop());
+            break;
+        case ByteCode.LSTORE_0: case ByteCode.LSTORE_1: case ByteCode.LSTORE_2: case ByteCode.LSTORE_3:
+            store(opcode - ByteCode.LSTORE_0, pop());
+            break;
+        case ByteCode.FSTORE_0: case ByteCode.FSTORE_1: case ByteCode.FSTORE_2: case ByteCode.FSTORE_3:
+            store(opcode - ByteCode.FSTORE_0, pop());
+            break;
+        case ByteCode.DSTORE_0: case ByteCode.DSTORE_1: case ByteCode.DSTORE_2: case ByteCode.DSTORE_3:
+            store(opcode - ByteCode.DSTORE_0, pop());
+            break;
+        case ByteCode.ASTORE_0: case ByteCode.ASTORE_1: case ByteCode.ASTORE_2: case ByteCode.ASTORE_3:
+            store(opcode - ByteCode.ASTORE_0, pop());
+            break;
+        case ByteCode.WIDE:
+            interpretWideInstruction(pc);
+            break;
+
+        case ByteCode.IALOAD: case ByteCode.BALOAD: case ByteCode.CALOAD: case ByteCode.SALOAD:
+            pop(2);
+            push(INTEGER);
+            break;
+        case ByteCode.LALOAD:
+            pop(2);
+            push(LONG);
+            break;
+        case ByteCode.FALOAD:
+            pop(2);
+            push(FLOAT);
+            break;
+        case ByteCode.DALOAD:
+            pop(2);
+            push(DOUBLE);
+            break;
+        case ByteCode.AALOAD: {
+            pop();
+            int array = pop();
+            if ((array & 0xff) == OBJECT) {
+                push(typeForDescriptor(pool.getClassName(array >>> 8).substring(1)));
+            } else {
+                push(NULL);
+            }
+            break;
+        }
+        case ByteCode.IASTORE: case ByteCode.LASTORE: case ByteCode.FASTORE: case ByteCode.DASTORE:
+        case ByteCode.AASTORE: case ByteCode.BASTORE: case ByteCode.CASTORE: case ByteCode.SASTORE:
+            pop(3);
+            break;
+
+        case ByteCode.POP:
+            pop();
+            break;
+        case ByteCode.POP2:
+            if (isCategory1(peek(0))) {
+                pop(2);
+            } else {
+                pop();
+            }
+            break;
+        case ByteCode.DUP:
+            push(peek(0));
+            break;
+        case ByteCode.DUP_X1: {
+            int value1 = pop();
+            int value2 = pop();
+            push(value1);
+            push(value2);
+            push(value1);
+            break;
+        }
+        case ByteCode.DUP_X2: {
+            int value1 = pop();
+            int value2 = pop();
+            if (isCategory1(value2)) {
+                int value3 = pop();
+                push(value1);
+                push(value3);
+            } else {
+                push(value1);
+            }
+            push(value2);
+            push(value1);
+            break;
+        }
+        case ByteCode.DUP2:
+            if (isCategory1(peek(0))) {
+                int value1 = peek(0);
+                int value2 = peek(1);
+                push(value2);
+                push(value1);
+            } else {
+                push(peek(0));
+            }
+            break;
+        case ByteCode.DUP2_X1:
+        case ByteCode.DUP2_X2: {
+            // Pop the category 2 value (or pair of category 1 values) to be duplicated...
+            int[] top = isCategory1(peek(0)) ? new int[] { peek(1), peek(0) } : new int[] { peek(0) };
+            pop(top.length);
+            // ...then the value(s) they're to be inserted under...
+            int[] under;
+            if (opcode == ByteCode.DUP2_X1 || isCategory1(peek(0)) == false) {
+                under = new int[] { peek(0) };
+            } else {
+                under = new int[] { peek(1), peek(0) };
+            }
+            pop(under.length);
+            pushAll(top);
+            pushAll(under);
+            pushAll(top);
+            break;
+        }
+        case ByteCode.SWAP: {
+            int value1 = pop();
+            int value2 = pop();
+            push(value1);
+            push(value2);
+            break;
+        }
+
+        case ByteCode.IADD: case ByteCode.ISUB: case ByteCode.IMUL: case ByteCode.IDIV: case ByteCode.IREM:
+        case ByteCode.ISHL: case ByteCode.ISHR: case ByteCode.IUSHR: case ByteCode.IAND: case ByteCode.IOR: case ByteCode.IXOR:
+        case ByteCode.LCMP: case ByteCode.FCMPL: case ByteCode.FCMPG: case ByteCode.DCMPL: case ByteCode.DCMPG:
+            pop(2);
+            push(INTEGER);
+            break;
+        case ByteCode.LADD: case ByteCode.LSUB: case ByteCode.LMUL: case ByteCode.LDIV: case ByteCode.LREM:
+        case ByteCode.LSHL: case ByteCode.LSHR: case ByteCode.LUSHR: case ByteCode.LAND: case ByteCode.LOR: case ByteCode.LXOR:
+            pop(2);
+            push(LONG);
+            break;
+        case ByteCode.FADD: case ByteCode.FSUB: case ByteCode.FMUL: case ByteCode.FDIV: case ByteCode.FREM:
+            pop(2);
+            push(FLOAT);
+            break;
+        case ByteCode.DADD: case ByteCode.DSUB: case ByteCode.DMUL: case ByteCode.DDIV: case ByteCode.DREM:
+            pop(2);
+            push(DOUBLE);
+            break;
+        case ByteCode.INEG: case ByteCode.LNEG: case ByteCode.FNEG: case ByteCode.DNEG:
+            break;
+        case ByteCode.L2I: case ByteCode.F2I: case ByteCode.D2I:
+        case ByteCode.I2B: case ByteCode.I2C: case ByteCode.I2S:
+        case ByteCode.ARRAYLENGTH:
+            pop();
+            push(INTEGER);
+            break;
+        case ByteCode.I2L: case ByteCode.F2L: case ByteCode.D2L:
+            pop();
+            push(LONG);
+            break;
+        case ByteCode.I2F: case ByteCode.L2F: case ByteCode.D2F:
+            pop();
+            push(FLOAT);
+            break;
+        case ByteCode.I2D: case ByteCode.L2D: case ByteCode.F2D:
+            pop();
+            push(DOUBLE);
+            break;
+
+        case ByteCode.IFEQ: case ByteCode.IFNE: case ByteCode.IFLT: case ByteCode.IFGE: case ByteCode.IFGT: case ByteCode.IFLE:
+        case ByteCode.IFNULL: case ByteCode.IFNONNULL:
+        case ByteCode.TABLESWITCH: case ByteCode.LOOKUPSWITCH:
+        case ByteCode.IRETURN: case ByteCode.LRETURN: case ByteCode.FRETURN: case ByteCode.DRETURN: case ByteCode.ARETURN:
+        case ByteCode.ATHROW:
+        case ByteCode.MONITORENTER: case ByteCode.MONITOREXIT:
+            pop();
+            break;
+        case ByteCode.IF_ICMPEQ: case ByteCode.IF_ICMPNE: case ByteCode.IF_ICMPLT: case ByteCode.IF_ICMPGE:
+        case ByteCode.IF_ICMPGT: case ByteCode.IF_ICMPLE: case ByteCode.IF_ACMPEQ: case ByteCode.IF_ACMPNE:
+            pop(2);
+            break;
+
+        case ByteCode.GETSTATIC:
+            push(typeForDescriptor(pool.getMemberType(readUint16(pc + 1))));
+            break;
+        case ByteCode.PUTSTATIC:
+            pop();
+            break;
+        case ByteCode.GETFIELD:
+            pop();
+            push(typeForDescriptor(pool.getMemberType(readUint16(pc + 1))));
+            break;
+        case ByteCode.PUTFIELD:
+            pop(2);
+            break;
+
+        case ByteCode.INVOKEVIRTUAL: case ByteCode.INVOKESPECIAL: case ByteCode.INVOKESTATIC: case ByteCode.INVOKEINTERFACE: case ByteCode.INVOKEDYNAMIC: {
+            int index = readUint16(pc + 1);
+            String methodType = pool.getMemberType(index);
+            for (int i = 1; methodType.charAt(i) != ')'; i = endOfDescriptor(methodType, i)) {
+                pop();
+            }
+            if (opcode != ByteCode.INVOKESTATIC && opcode != ByteCode.INVOKEDYNAMIC) {
+                int receiver = pop();
+                if (opcode == ByteCode.INVOKESPECIAL && pool.getMemberName(index).equals("<init>")) {
+                    initialize(receiver);
+                }
+            }
+            String returnType = methodType.substring(methodType.indexOf(')') + 1);
+            if (returnType.equals("V") == false) {
+                push(typeForDescriptor(returnType));
+            }
+            break;
+        }
+
+        case ByteCode.NEW:
+            push(UNINITIALIZED | (pc << 8));
+            break;
+        case ByteCode.NEWARRAY:
+            pop();
+            push(objectType("[" + "    ZCFDBSIJ".charAt(code[pc + 1])));
+            break;
+        case ByteCode.ANEWARRAY: {
+            pop();
+            String componentType = pool.getClassName(readUint16(pc + 1));
+            push(objectType("[" + (componentType.startsWith("[") ? componentType : ("L" + componentType + ";"))));
+            break;
+        }
+        case ByteCode.MULTIANEWARRAY:
+            pop(code[pc + 3] & 0xff);
+            push(OBJECT | (readUint16(pc + 1) << 8));
+            break;
+        case ByteCode.CHECKCAST:
+            pop();
+            push(OBJECT | (readUint16(pc + 1) << 8));
+            break;
+        case ByteCode.INSTANCEOF:
+            pop();
+            push(INTEGER);
+            break;
+
+        default:
+            throw new ClassFileWriter.ClassFileFormatException("can't compute stack map for opcode " + opcode + " at offset " + pc);
+        }
+    }
+
+    private void interpretWideInstruction(int pc) {
+        int opcode = code[pc + 1] & 0xff;
+        int local = readUint16(pc + 2);
+        switch (opcode) {
+        case ByteCode.ILOAD: push(INTEGER); break;
+        case ByteCode.LLOAD: push(LONG); break;
+        case ByteCode.FLOAD: push(FLOAT); break;
+        case ByteCode.DLOAD: push(DOUBLE); break;
+        case ByteCode.ALOAD: push(locals[local]); break;
+        case ByteCode.ISTORE: case ByteCode.LSTORE: case ByteCode.FSTORE: case ByteCode.DSTORE: case ByteCode.ASTORE:
+            store(local, pop());
+            break;
+        case ByteCode.IINC:
+            break;
+        default:
+            throw new ClassFileWriter.ClassFileFormatException("can't compute stack map for wide opcode " + opcode + " at offset " + pc);
+        }
+    }
+
+    // Replaces all references to the object initialized by an <init> call with its initialized type.
+    private void initialize(int uninitializedType) {
+        int initializedType;
+        if (uninitializedType == UNINITIALIZED_THIS) {
+            initializedType = objectType(className);
+        } else if ((uninitializedType & 0xff) == UNINITIALIZED) {
+            int newPC = uninitializedType >>> 8;
+            initializedType = OBJECT | (readUint16(newPC + 1) << 8);
+        } else {
+            return;
+        }
+        for (int i = 0; i < locals.length; ++i) {
+            if (locals[i] == uninitializedType) {
+                locals[i] = initializedType;
+            }
+        }
+        for (int i = 0; i < stackTop; ++i) {
+            if (stack[i] == uninitializedType) {
+                stack[i] = initializedType;
+            }
+        }
+    }
+
+    private void store(int local, int type) {
+        // Overwriting half of a long or double invalidates the other half.
+        if (local > 0 && (locals[local - 1] == LONG || locals[local - 1] == DOUBLE)) {
+            locals[local - 1] = TOP;
+        }
+        locals[local] = type;
+        if (type == LONG || type == DOUBLE) {
+            locals[local + 1] = TOP;
+        }
+    }
+
+    private void push(int type) {
+        stack[stackTop++] = type;
+    }
+
+    private void pushAll(int[] types) {
+        for (int type : types) {
+            push(type);
+        }
+    }
+
+    private int pop() {
+        return stack[--stackTop];
+    }
+
+    private void pop(int count) {
+        stackTop -= count;
+    }
+
+    private int peek(int depth) {
+        return stack[stackTop - 1 - depth];
+    }
+
+    private static boolean isCategory1(int type) {
+        return type != LONG && type != DOUBLE;
+    }
+
+    private int objectType(String className) {
+        return OBJECT | ((pool.addClass(className) & 0xffff) << 8);
+    }
+
+    private int constantType(int index) {
+        switch (pool.getConstantTag(index)) {
+        case ConstantPool.CONSTANT_Integer: return INTEGER;
+        case ConstantPool.CONSTANT_Float: return FLOAT;
+        case ConstantPool.CONSTANT_Long: return LONG;
+        case ConstantPool.CONSTANT_Double: return DOUBLE;
+        case ConstantPool.CONSTANT_String: return objectType("java/lang/String");
+        case ConstantPool.CONSTANT_Class: return objectType("java/lang/Class");
+        default: throw new ClassFileWriter.ClassFileFormatException("can't load constant " + index);
+        }
+    }
+
+    private int typeForDescriptor(String descriptor) {
+        switch (descriptor.charAt(0)) {
+        case 'Z': case 'B': case 'C': case 'S': case 'I':
+            return INTEGER;
+        case 'J':
+            return LONG;
+        case 'F':
+            return FLOAT;
+        case 'D':
+            return DOUBLE;
+        case 'L':
+            return objectType(descriptor.substring(1, descriptor.length() - 1));
+        case '[':
+            return objectType(descriptor);
+        default:
+            throw new ClassFileWriter.ClassFileFormatException("bad type descriptor \"" + descriptor + "\"");
+        }
+    }
+
+    // Returns the index just past the type descriptor starting at 'start' in 'descriptor'.
+    private static int endOfDescriptor(String descriptor, int start) {
+        int i = start;
+        while (descriptor.charAt(i) == '[') {
+            ++i;
+        }
+        if (descriptor.charAt(i) == 'L') {
+            i = descriptor.indexOf(';', i);
+        }
+        return i + 1;
+    }
+
+    private void replaceUnreachableCode() {
+        for (int pc = 0; pc < codeLength; pc += instructionLength(pc)) {
+            if (isBlockStart[pc] == false || entryLocals[pc] != null) {
+                continue;
+            }
+            // Find the end of this run of unreachable code.
+            int end = pc;
+            do {
+                end += instructionLength(end);
+            } while (end < codeLength && (isBlockStart[end] == false || entryLocals[end] == null));
+
+            for (int i = pc; i < end - 1; ++i) {
+                code[i] = (byte) ByteCode.NOP;
+            }
+            code[end - 1] = (byte) ByteCode.ATHROW;
+            entryLocals[pc] = new int[0];
+            entryStacks[pc] = new int[] { objectType("java/lang/Throwable") };
+            needsFrame[pc] = true;
+            for (int i = pc + 1; i < end; ++i) {
+                isBlockStart[i] = false;
+                needsFrame[i] = false;
+            }
+            removeFromHandlers(pc, end);
+            pc = end - 1;
+        }
+    }
+
+    // The verifier checks every instruction a handler covers against the handler's frame, which the frame we give unreachable code can't match.
+    private void removeFromHandlers(int start, int end) {
+        ArrayList<int[]> result = new ArrayList<int[]>();
+        for (int[] handler : handlers) {
+            if (handler[0] < start) {
+                result.add(new int[] { handler[0], Math.min(handler[1], start), handler[2], handler[3] });
+            }
+            if (handler[1] > end) {
+                result.add(new int[] { Math.max(handler[0], end), handler[1], handler[2], handler[3] });
+            }
+        }
+        handlers = result.toArray(new int[result.size()][]);
+    }
+
+    // We always write full frames; the compressed forms would just make our class files a little smaller.
+    private byte[] writeFrames() {
+        int frameCount = 0;
+        for (int pc = 0; pc < codeLength; ++pc) {
+            if (needsFrame[pc]) {
+                ++frameCount;
+            }
+        }
+        if (frameCount == 0) {
+            return null;
+        }
+
+        ByteArrayBuilder out = new ByteArrayBuilder();
+        out.writeInt16(frameCount);
+        int lastPC = -1;
+        for (int pc = 0; pc < codeLength; ++pc) {
+            if (needsFrame[pc] == false) {
+                continue;
+            }
+            out.writeByte(255); // full_frame
+            out.writeInt16(pc - lastPC - 1);
+            lastPC = pc;
+
+            int[] frameLocals = entryLocals[pc];
+            int localCount = frameLocals.length;
+            while (localCount > 0 && frameLocals[localCount - 1] == TOP) {
+                --localCount;
+            }
+            int encodedCount = 0;
+            for (int i = 0; i < localCount; ++i) {
+                ++encodedCount;
+                if (frameLocals[i] == LONG || frameLocals[i] == DOUBLE) {
+                    ++i;
+                }
+            }
+            out.writeInt16(encodedCount);
+            for (int i = 0; i < localCount; ++i) {
+                writeType(out, frameLocals[i]);
+                if (frameLocals[i] == LONG || frameLocals[i] == DOUBLE) {
+                    ++i;
+                }
+            }
+
+            int[] frameStack = entryStacks[pc];
+            out.writeInt16(frameStack.length);
+            for (int type : frameStack) {
+                writeType(out, type);
+            }
+        }
+        return out.toByteArray();
+    }
+
+    private static void writeType(ByteArrayBuilder out, int type) {
+        int tag = type & 0xff;
+        out.writeByte(tag);
+        if (tag == OBJECT || tag == UNINITIALIZED) {
+            out.writeInt16(type >>> 8);
+        }
+    }
+
+    private int instructionLength(int pc) {
+        int opcode = code[pc] & 0xff;
+        switch (opcode) {
+        case ByteCode.BIPUSH: case ByteCode.LDC: case ByteCode.NEWARRAY:
+        case ByteCode.ILOAD: case ByteCode.LLOAD: case ByteCode.FLOAD: case ByteCode.DLOAD: case ByteCode.ALOAD:
+        case ByteCode.ISTORE: case ByteCode.LSTORE: case ByteCode.FSTORE: case ByteCode.DSTORE: case ByteCode.ASTORE:
+        case ByteCode.RET:
+            return 2;
+        case ByteCode.SIPUSH: case ByteCode.LDC_W: case ByteCode.LDC2_W: case ByteCode.IINC:
+        case ByteCode.GETSTATIC: case ByteCode.PUTSTATIC: case ByteCode.GETFIELD: case ByteCode.PUTFIELD:
+        case ByteCode.INVOKEVIRTUAL: case ByteCode.INVOKESPECIAL: case ByteCode.INVOKESTATIC:
+        case ByteCode.NEW: case ByteCode.ANEWARRAY: case ByteCode.CHECKCAST: case ByteCode.INSTANCEOF:
+        case ByteCode.IFEQ: case ByteCode.IFNE: case ByteCode.IFLT: case ByteCode.IFGE: case ByteCode.IFGT: case ByteCode.IFLE:
+        case ByteCode.IF_ICMPEQ: case ByteCode.IF_ICMPNE: case ByteCode.IF_ICMPLT: case ByteCode.IF_ICMPGE:
+        case ByteCode.IF_ICMPGT: case ByteCode.IF_ICMPLE: case ByteCode.IF_ACMPEQ: case ByteCode.IF_ACMPNE:
+        case ByteCode.GOTO: case ByteCode.JSR: case ByteCode.IFNULL: case ByteCode.IFNONNULL:
+            return 3;
+        case ByteCode.MULTIANEWARRAY:
+            return 4;
+        case ByteCode.INVOKEINTERFACE: case ByteCode.INVOKEDYNAMIC: case ByteCode.GOTO_W: case ByteCode.JSR_W:
+            return 5;
+        case ByteCode.WIDE:
+            return ((code[pc + 1] & 0xff) == ByteCode.IINC) ? 6 : 4;
+        case ByteCode.TABLESWITCH: {
+            int base = (pc + 4) & ~3;
+            int low = readInt32(base + 4);
+            int high = readInt32(base + 8);
+            return base + 12 + 4 * (high - low + 1) - pc;
+        }
+        case ByteCode.LOOKUPSWITCH: {
+            int base = (pc + 4) & ~3;
+            int pairCount = readInt32(base + 4);
+            return base + 8 + 8 * pairCount - pc;
+        }
+        default:
+            return 1;
+        }
+    }
+
+    private int[] switchTargets(int pc) {
+        int base = (pc + 4) & ~3;
+        int opcode = code[pc] & 0xff;
+        int[] targets;
+        if (opcode == ByteCode.TABLESWITCH) {
+            int low = readInt32(base + 4);
+            int high = readInt32(base + 8);
+            targets = new int[high - low + 2];
+            for (int i = 0; i < targets.length - 1; ++i) {
+                targets[i + 1] = pc + readInt32(base + 12 + 4 * i);
+            }
+        } else {
+            int pairCount = readInt32(base + 4);
+            targets = new int[pairCount + 1];
+            for (int i = 0; i < pairCount; ++i) {
+                targets[i + 1] = pc + readInt32(base + 8 + 8 * i + 4);
+            }
+        }
+        targets[0] = pc + readInt32(base);
+        return targets;
+    }
+
+    private static boolean isConditionalBranch(int opcode) {
+        return (opcode >= ByteCode.IFEQ && opcode <= ByteCode.IF_ACMPNE) || opcode == ByteCode.IFNULL || opcode == ByteCode.IFNONNULL;
+    }
+
+    private static boolean isReturnOrThrow(int opcode) {
+        return (opcode >= ByteCode.IRETURN && opcode <= ByteCode.RETURN) || opcode == ByteCode.ATHROW;
+    }
+
+    private int readUint16(int offset) {
+        return ((code[offset] & 0xff) << 8) | (code[offset + 1] & 0xff);
+    }
+
+    private int readInt16(int offset) {
+        return (short) readUint16(offset);
+    }
+
+    private int readInt32(int offset) {
+        return (readUint16(offset) << 16) | readUint16(offset + 2);
+    }
+
+    private static class ByteArrayBuilder {
+        private byte[] bytes = new byte[64];
+        private int length = 0;
+
+        void writeByte(int b) {
+            if (length == bytes.length) {
+                bytes = Arrays.copyOf(bytes, 2 * length);
+            }
+            bytes[length++] = (byte) b;
+        }
+
+        void writeInt16(int value) {
+            writeByte(value >> 8);
+            writeByte(value);
+        }
+
+        byte[] toByteArray() {
+            return Arrays.copyOf(bytes, length);
+        }
+    }
+}